@@ -1,25 +1,106 @@
 package com.miniagent.agent;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.miniagent.config.AiProperties;
+import com.miniagent.exception.RequestCancelledException;
+import com.miniagent.model.ChatRequest;
 import com.miniagent.service.AiService;
+import com.miniagent.service.CancellationToken;
+import com.miniagent.service.StreamHandle;
+import com.miniagent.service.session.ExpiringStore;
+import com.miniagent.service.session.MemoryEstimator;
+import com.miniagent.service.session.SessionCodec;
+import com.miniagent.service.session.SessionSnapshot;
+import com.miniagent.service.session.SessionStore;
+import com.miniagent.service.stream.StreamEvents;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Agent服务 - 管理多个Agent实例
+ *
+ * 空闲超时的Agent自动过期, 实例数或估算内存超出上限时按最近访问淘汰,
+ * 有进行中请求的Agent不会被淘汰.
+ * 配置了会话存储时, Agent的配置和历史在每次修改后写入存储, 堆内实例只是近端缓存,
+ * 被淘汰或在其他节点创建的Agent访问时从存储加载. 写入按版本号检查,
+ * 与其他节点并发对话时以存储中的历史为基础追加本地尚未写入的消息, 配置修改在存储的状态上重新应用.
  */
 @Slf4j
 @Service
 public class AgentService {
 
+    /**
+     * 存储中Agent键的前缀, 与会话区分
+     */
+    private static final String KEY_PREFIX = "agent:";
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    /**
+     * 流式对话中一轮最多的模型调用次数, 与 FnCallAgent 的默认迭代次数一致
+     */
+    private static final int MAX_TOOL_ROUNDS = 5;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> ARGUMENTS_TYPE = new TypeReference<>() {
+    };
+
     private final AiService aiService;
-    private final Map<String, MiniAgent> agents = new ConcurrentHashMap<>();
+    private final ExpiringStore<MiniAgent> agents;
+
+    /**
+     * 已注册的工具, 流式对话按名称选用
+     */
+    private final ObjectProvider<Map<String, FnCallAgent.ToolExecutor>> toolsProvider;
+
+    /**
+     * 持久存储, 未配置时为null (被淘汰的Agent直接丢弃)
+     */
+    private final SessionStore store;
+
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder storeErrors = new LongAdder();
+
+    /**
+     * 每个Agent进行中的请求令牌, 用于取消
+     */
+    private final Map<String, Set<CancellationToken>> running = new ConcurrentHashMap<>();
 
-    public AgentService(AiService aiService) {
+    public AgentService(AiService aiService, AiProperties aiProperties, ObjectProvider<SessionStore> storeProvider,
+                        ObjectProvider<Map<String, FnCallAgent.ToolExecutor>> toolsProvider) {
         this.aiService = aiService;
+        this.toolsProvider = toolsProvider;
+        this.store = storeProvider.getIfAvailable();
+        AiProperties.Agents config = aiProperties.getAgents();
+        this.agents = new ExpiringStore<>("agents", config.getIdleTimeoutSeconds() * 1000,
+                config.getMaxAgents(), config.getMaxMemoryBytes(), config.getSweepIntervalSeconds(),
+                AgentService::estimateBytes, agent -> running.containsKey(agent.getId()),
+                (id, agent, cause) -> log.info("Evicted agent: {} ({})", id, cause));
+        if (store != null) {
+            store.onInvalidate(this::invalidate);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        agents.close();
     }
 
     /**
@@ -29,6 +110,7 @@ public class AgentService {
         MiniAgent agent = new MiniAgent(aiService, systemPrompt);
         agent.setName(name);
         agents.put(agent.getId(), agent);
+        persist(agent);
         log.info("Created agent: {} ({})", name, agent.getId());
         return agent;
     }
@@ -37,7 +119,45 @@ public class AgentService {
      * 获取Agent
      */
     public MiniAgent getAgent(String agentId) {
-        return agents.get(agentId);
+        MiniAgent agent = agents.get(agentId);
+        if (agent != null || store == null) {
+            return agent;
+        }
+        MiniAgent restored = load(agentId);
+        // 并发加载时以先放入的为准
+        return restored != null ? agents.computeIfAbsent(agentId, id -> restored) : null;
+    }
+
+    /**
+     * 修改Agent的配置或历史并写入存储. 版本冲突时以存储中的状态为基础重新应用修改后重试,
+     * 多次冲突仍未写入时丢弃本地实例并抛出 ConcurrentModificationException.
+     * Agent不存在 (或已在其他节点删除) 时返回null
+     */
+    public MiniAgent update(String agentId, Consumer<MiniAgent> change) {
+        MiniAgent agent = getAgent(agentId);
+        if (agent == null) {
+            return null;
+        }
+        if (store == null) {
+            synchronized (agent) {
+                change.accept(agent);
+            }
+            agents.reweigh(agentId);
+            return agent;
+        }
+        try {
+            return write(agent, change) ? agent : null;
+        } catch (IOException e) {
+            storeErrors.increment();
+            log.warn("Failed to save agent {}: {}", agentId, e.getMessage());
+            return agent;
+        } catch (ConcurrentModificationException e) {
+            // 本地实例已应用了未写入的修改, 丢弃后下次访问重新加载
+            agents.remove(agentId);
+            throw e;
+        } finally {
+            agents.reweigh(agentId);
+        }
     }
 
     /**
@@ -45,6 +165,15 @@ public class AgentService {
      */
     public void removeAgent(String agentId) {
         agents.remove(agentId);
+        cancel(agentId, "agent removed");
+        if (store != null) {
+            try {
+                store.delete(KEY_PREFIX + agentId);
+            } catch (IOException e) {
+                storeErrors.increment();
+                log.warn("Failed to delete agent {} from store: {}", agentId, e.getMessage());
+            }
+        }
         log.info("Removed agent: {}", agentId);
     }
 
@@ -52,17 +181,478 @@ public class AgentService {
      * 对话
      */
     public String chat(String agentId, String message) {
-        MiniAgent agent = agents.get(agentId);
+        return chat(agentId, message, new CancellationToken());
+    }
+
+    /**
+     * 可取消的对话, 进行期间可通过 cancel(agentId) 中止
+     */
+    public String chat(String agentId, String message, CancellationToken token) {
+        MiniAgent agent = getAgent(agentId);
         if (agent == null) {
             throw new IllegalArgumentException("Agent not found: " + agentId);
         }
-        return agent.chat(message);
+        track(agentId, token);
+        try {
+            String reply = agent.chat(message, token);
+            persist(agent);
+            return reply;
+        } finally {
+            untrack(agentId, token);
+        }
+    }
+
+    /**
+     * 流式对话: 带上Agent的历史和请求的用量归属(租户、会话), 完成后把本轮写入历史.
+     * request.tools 按名称选择已注册的工具, 模型请求调用时执行工具并推送 tool_start/tool_result 事件,
+     * 再把结果交给模型继续生成. 进行期间同样可通过 cancel(agentId) 中止, 取消时回调收到错误
+     */
+    public StreamHandle chatStream(String agentId, ChatRequest request, AiService.StreamCallback callback) {
+        MiniAgent agent = getAgent(agentId);
+        if (agent == null) {
+            throw new IllegalArgumentException("Agent not found: " + agentId);
+        }
+        List<ChatRequest.Message> messages = request.getMessages();
+        if (messages == null || messages.isEmpty()) {
+            throw new IllegalArgumentException("messages is required");
+        }
+        Map<String, FnCallAgent.ToolExecutor> tools = selectTools(request.getTools());
+        ChatRequest.Message userMessage = new ChatRequest.Message("user",
+                messages.get(messages.size() - 1).getContent(), null, null);
+        ChatRequest chatRequest = agent.requestFor(userMessage);
+        chatRequest.setTenantId(request.getTenantId());
+        chatRequest.setSessionId(request.getSessionId());
+        if (!tools.isEmpty()) {
+            chatRequest.setTools(toolDefinitions(tools));
+        }
+
+        CancellationToken token = new CancellationToken();
+        track(agentId, token);
+        StreamHandle handle = new StreamHandle();
+        AgentStream stream = new AgentStream(agent, chatRequest, userMessage, tools, token, callback);
+        // 取消或客户端断开后上游不再回调, 在这里结束
+        handle.onCancel(stream::abandon);
+        stream.start(handle, token.onCancel(handle::cancel));
+        return handle;
+    }
+
+    /**
+     * 取消Agent所有进行中的请求, 返回取消的数量
+     */
+    public int cancel(String agentId, String reason) {
+        Set<CancellationToken> tokens = running.get(agentId);
+        if (tokens == null) {
+            return 0;
+        }
+        int count = 0;
+        for (CancellationToken token : tokens) {
+            if (!token.isCancelled()) {
+                token.cancel(reason);
+                count++;
+            }
+        }
+        if (count > 0) {
+            log.info("Cancelled {} running request(s) of agent {}", count, agentId);
+        }
+        return count;
     }
 
     /**
      * 列出所有Agent
      */
     public Map<String, MiniAgent> listAgents() {
-        return new ConcurrentHashMap<>(agents);
+        return agents.snapshot();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(agents.getStats());
+        stats.put("loaded", loaded.sum());
+        stats.put("saved", saved.sum());
+        stats.put("conflicts", conflicts.sum());
+        stats.put("storeErrors", storeErrors.sum());
+        return stats;
+    }
+
+    private void track(String agentId, CancellationToken token) {
+        running.computeIfAbsent(agentId, k -> ConcurrentHashMap.newKeySet()).add(token);
+    }
+
+    private void untrack(String agentId, CancellationToken token) {
+        running.computeIfPresent(agentId, (k, v) -> v.remove(token) && v.isEmpty() ? null : v);
+        agents.reweigh(agentId);
+    }
+
+    /**
+     * 写入Agent的当前状态 (新建或本轮对话之后). 冲突重试仍失败时本轮消息留在 unsaved 中, 随下次写入
+     */
+    private void persist(MiniAgent agent) {
+        if (store == null) {
+            return;
+        }
+        try {
+            write(agent, null);
+        } catch (IOException e) {
+            storeErrors.increment();
+            log.warn("Failed to save agent {}: {}", agent.getId(), e.getMessage());
+        } catch (ConcurrentModificationException e) {
+            log.warn("{}, turn not persisted yet", e.getMessage());
+        }
+    }
+
+    /**
+     * 按版本号写入, 每次写入前在历史锁内应用 change (可为null) 并编码, 编码的状态和 unsaved 计数一致.
+     * 版本冲突时以存储中的配置和历史为基础、保留本地尚未写入的消息 (其他节点同时与该Agent对话),
+     * 重新应用 change 后重试. 返回false表示已在其他节点删除
+     */
+    private boolean write(MiniAgent agent, Consumer<MiniAgent> change) throws IOException {
+        String key = KEY_PREFIX + agent.getId();
+        synchronized (agent.saveLock()) {
+            for (int attempt = 0; attempt < MAX_SAVE_ATTEMPTS; attempt++) {
+                byte[] data;
+                long expected;
+                int flushed;
+                synchronized (agent) {
+                    if (change != null) {
+                        change.accept(agent);
+                    }
+                    data = encode(agent);
+                    expected = agent.getVersion();
+                    flushed = agent.getUnsaved();
+                }
+                long version = store.save(key, data, expected);
+                if (version != SessionStore.CONFLICT) {
+                    agent.saved(version, flushed);
+                    saved.increment();
+                    return true;
+                }
+                conflicts.increment();
+                SessionStore.Versioned stored = store.load(key);
+                if (stored == null) {
+                    agents.remove(agent.getId());
+                    return false;
+                }
+                agent.rebase(SessionCodec.decode(stored.getData()), stored.getVersion());
+            }
+        }
+        throw new ConcurrentModificationException("Agent " + agent.getId() + " still conflicting after "
+                + MAX_SAVE_ATTEMPTS + " attempts");
+    }
+
+    private MiniAgent load(String agentId) {
+        try {
+            SessionStore.Versioned stored = store.load(KEY_PREFIX + agentId);
+            if (stored == null) {
+                return null;
+            }
+            SessionSnapshot snapshot = SessionCodec.decode(stored.getData());
+            MiniAgent agent = new MiniAgent(aiService, snapshot.getSystemPrompt());
+            agent.setId(agentId);
+            agent.setName(snapshot.getName());
+            agent.setMaxHistory(snapshot.getMaxMessages());
+            agent.setHistory(new ArrayList<>(snapshot.getMessages()));
+            agent.setVersion(stored.getVersion());
+            loaded.increment();
+            return agent;
+        } catch (IOException e) {
+            storeErrors.increment();
+            log.warn("Failed to load agent {} from store: {}", agentId, e.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] encode(MiniAgent agent) throws IOException {
+        long now = System.currentTimeMillis();
+        return SessionCodec.encode(new SessionSnapshot(agent.getId(), agent.getName(), agent.getSystemPrompt(),
+                agent.getMaxHistory(), now, now, agent.getHistory()));
+    }
+
+    /**
+     * 其他节点修改了Agent: 丢弃本地实例 (正在对话的保留, 写入时按版本冲突处理)
+     */
+    private void invalidate(String key) {
+        if (key == null) {
+            agents.snapshot().keySet().forEach(id -> {
+                if (!running.containsKey(id)) {
+                    agents.remove(id);
+                }
+            });
+        } else if (key.startsWith(KEY_PREFIX)) {
+            String agentId = key.substring(KEY_PREFIX.length());
+            if (!running.containsKey(agentId)) {
+                agents.remove(agentId);
+            }
+        }
+    }
+
+    /**
+     * 按名称选择已注册的工具, 未注册的名称报错
+     */
+    private Map<String, FnCallAgent.ToolExecutor> selectTools(List<ChatRequest.ToolDefinition> requested) {
+        if (requested == null || requested.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, FnCallAgent.ToolExecutor> available = toolsProvider.getIfAvailable(Map::of);
+        Map<String, FnCallAgent.ToolExecutor> selected = new TreeMap<>();
+        for (ChatRequest.ToolDefinition definition : requested) {
+            FnCallAgent.ToolExecutor executor = available.get(definition.getName());
+            if (executor == null) {
+                throw new IllegalArgumentException("Unknown tool: " + definition.getName());
+            }
+            selected.put(definition.getName(), executor);
+        }
+        return selected;
+    }
+
+    private static List<ChatRequest.ToolDefinition> toolDefinitions(Map<String, FnCallAgent.ToolExecutor> tools) {
+        List<ChatRequest.ToolDefinition> result = new ArrayList<>();
+        for (Map.Entry<String, FnCallAgent.ToolExecutor> entry : tools.entrySet()) {
+            ChatRequest.ToolDefinition definition = new ChatRequest.ToolDefinition();
+            definition.setName(entry.getKey());
+            definition.setDescription(entry.getValue().getDescription());
+            definition.setParameters(entry.getValue().getParameters());
+            result.add(definition);
+        }
+        return result;
+    }
+
+    /**
+     * 一次Agent流式对话: 转发数据块, 拼接回答和工具调用;
+     * 模型请求工具时执行工具并开始下一轮, 正常结束时把本轮写入历史
+     */
+    private class AgentStream implements AiService.StreamCallback {
+        private final MiniAgent agent;
+        private final ChatRequest request;
+        private final Map<String, FnCallAgent.ToolExecutor> tools;
+        private final CancellationToken token;
+        private final AiService.StreamCallback delegate;
+        private final List<ChatRequest.Message> turn = new ArrayList<>();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private StreamHandle handle;
+        private CancellationToken.Registration registration;
+        private CancellationToken.Registration roundRegistration;
+        private int rounds;
+
+        /**
+         * 当前一轮的回答和工具调用增量 (按index合并), 回调在同一时刻只有一个线程执行
+         */
+        private StringBuilder content;
+        private Map<Integer, ToolCallParts> toolCalls;
+
+        AgentStream(MiniAgent agent, ChatRequest request, ChatRequest.Message userMessage,
+                    Map<String, FnCallAgent.ToolExecutor> tools, CancellationToken token,
+                    AiService.StreamCallback delegate) {
+            this.agent = agent;
+            this.request = request;
+            this.tools = tools;
+            this.token = token;
+            this.delegate = delegate;
+            turn.add(userMessage);
+        }
+
+        synchronized void start(StreamHandle handle, CancellationToken.Registration registration) {
+            this.handle = handle;
+            this.registration = registration;
+            nextRound();
+        }
+
+        private void nextRound() {
+            rounds++;
+            content = new StringBuilder();
+            toolCalls = new TreeMap<>();
+            if (roundRegistration != null) {
+                roundRegistration.close();
+            }
+            StreamHandle round = aiService.chatStream(request, this);
+            roundRegistration = handle.onCancel(round::cancel);
+        }
+
+        @Override
+        public void onMessage(String data) {
+            if (finished.get()) {
+                return;
+            }
+            StreamEvents.dispatch(data, (type, event) -> {
+                if (StreamEvents.DELTA.equals(type)) {
+                    content.append(event.get("content"));
+                } else if (StreamEvents.TOOL_CALL.equals(type)) {
+                    mergeToolCalls(event.get("toolCalls"));
+                }
+            });
+            delegate.onMessage(data);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            if (finished.get()) {
+                return;
+            }
+            String text = content.length() > 0 ? content.toString() : null;
+            if (toolCalls.isEmpty() || tools.isEmpty()) {
+                append(new ChatRequest.Message("assistant", text, null, null));
+                complete();
+                return;
+            }
+            if (rounds >= MAX_TOOL_ROUNDS) {
+                onError("Tool rounds exceeded " + MAX_TOOL_ROUNDS);
+                return;
+            }
+            List<ChatRequest.ToolCall> calls = new ArrayList<>();
+            toolCalls.values().forEach(parts -> calls.add(parts.toToolCall()));
+            append(new ChatRequest.Message("assistant", text, calls, null));
+            for (ChatRequest.ToolCall call : calls) {
+                if (token.isCancelled() || finished.get()) {
+                    return;
+                }
+                append(new ChatRequest.Message("tool", executeTool(call), null, call.getId()));
+            }
+            nextRound();
+        }
+
+        @Override
+        public void onError(String error) {
+            if (release()) {
+                delegate.onError(error);
+            }
+        }
+
+        /**
+         * 上游调用被取消: 由令牌取消时通知客户端, 客户端自己断开时不需要
+         */
+        void abandon() {
+            if (release() && token.isCancelled()) {
+                delegate.onError("Request cancelled: " + token.getReason());
+            }
+        }
+
+        /**
+         * 未完成就结束 (出错、取消或客户端断开), 本轮不写入历史. 返回是否由本次调用结束
+         */
+        boolean release() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            close();
+            return true;
+        }
+
+        private void complete() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                agent.appendTurn(turn);
+                persist(agent);
+            } finally {
+                close();
+            }
+            delegate.onComplete();
+        }
+
+        private void close() {
+            if (registration != null) {
+                registration.close();
+            }
+            untrack(agent.getId(), token);
+        }
+
+        private void append(ChatRequest.Message message) {
+            turn.add(message);
+            request.getMessages().add(message);
+        }
+
+        /**
+         * 执行一个工具调用, 前后各推送一个事件. 返回交给模型的结果文本
+         */
+        private String executeTool(ChatRequest.ToolCall call) {
+            Map<String, Object> started = new LinkedHashMap<>();
+            started.put("id", call.getId());
+            started.put("name", call.getName());
+            started.put("arguments", call.getArguments());
+            delegate.onEvent(StreamEvents.TOOL_START, started);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", call.getId());
+            result.put("name", call.getName());
+            String output;
+            FnCallAgent.ToolExecutor executor = tools.get(call.getName());
+            if (executor == null) {
+                output = "Error: unknown tool " + call.getName();
+                result.put("error", output);
+            } else {
+                try {
+                    Object value = executor.execute(parseArguments(call.getArguments()), token);
+                    output = "Tool " + call.getName() + " result: " + value;
+                    result.put("result", value);
+                } catch (RequestCancelledException e) {
+                    return "Error: " + e.getMessage();
+                } catch (Exception e) {
+                    log.warn("Tool execution failed: {}", call.getName(), e);
+                    output = "Error: " + e.getMessage();
+                    result.put("error", output);
+                }
+            }
+            delegate.onEvent(StreamEvents.TOOL_RESULT, result);
+            return output;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void mergeToolCalls(Object deltas) {
+            if (!(deltas instanceof List)) {
+                return;
+            }
+            for (Object item : (List<?>) deltas) {
+                if (!(item instanceof Map)) {
+                    continue;
+                }
+                Map<String, Object> delta = (Map<String, Object>) item;
+                int index = delta.get("index") instanceof Number ? ((Number) delta.get("index")).intValue() : 0;
+                ToolCallParts parts = toolCalls.computeIfAbsent(index, i -> new ToolCallParts());
+                if (delta.get("id") instanceof String) {
+                    parts.id = (String) delta.get("id");
+                }
+                if (delta.get("function") instanceof Map) {
+                    Map<String, Object> function = (Map<String, Object>) delta.get("function");
+                    if (function.get("name") instanceof String) {
+                        parts.name = (String) function.get("name");
+                    }
+                    if (function.get("arguments") instanceof String) {
+                        parts.arguments.append((String) function.get("arguments"));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 流式返回的一个工具调用, 名称和参数分多个数据块到达
+     */
+    private static class ToolCallParts {
+        private String id;
+        private String name;
+        private final StringBuilder arguments = new StringBuilder();
+
+        ChatRequest.ToolCall toToolCall() {
+            return new ChatRequest.ToolCall(id, name, arguments.toString());
+        }
+    }
+
+    private static Map<String, Object> parseArguments(String arguments) {
+        if (arguments == null || arguments.isBlank()) {
+            return Map.of();
+        }
+        try {
+            return OBJECT_MAPPER.readValue(arguments, ARGUMENTS_TYPE);
+        } catch (IOException e) {
+            log.warn("Failed to parse tool arguments: {}", arguments);
+            return Map.of();
+        }
+    }
+
+    /**
+     * 估算Agent占用的内存: 系统提示和对话历史
+     */
+    private static long estimateBytes(MiniAgent agent) {
+        return MemoryEstimator.estimate(agent.getSystemPrompt())
+                + MemoryEstimator.estimate(agent.getHistory());
     }
 }
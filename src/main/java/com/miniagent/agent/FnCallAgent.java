@@ -2,14 +2,20 @@ package com.miniagent.agent;
 
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
+import com.miniagent.exception.RequestCancelledException;
 import com.miniagent.service.AiService;
+import com.miniagent.service.CancellationToken;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
 /**
  * Function Calling Agent - 支持工具调用的Agent
@@ -19,43 +25,81 @@ import java.util.UUID;
 @Data
 public class FnCallAgent {
 
+    private static final PromptSegment TOOLS_INTRO = PromptSegments.intern(
+            "\n\nYou have access to the following tools:\n\n");
+    private static final PromptSegment TOOLS_OUTRO = PromptSegments.intern("\n\n" +
+            "When you need to call a function, use the tool_calls format.\n" +
+            "After getting the tool results, generate your final response.");
+
     private String id;
     private String name;
-    private String systemPrompt;
+
+    /**
+     * 共享的提示片段, 相同提示的Agent引用同一份
+     */
+    private PromptSegment systemPrompt;
     private List<ChatRequest.Message> history;
     private AiService aiService;
     private Map<String, ToolExecutor> tools;
     private Integer maxIterations;
 
+    /**
+     * 缓存的系统提示和工具定义, 每轮迭代复用同一份, 保证请求前缀字节稳定
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private PromptPrefix promptPrefix;
+
     public FnCallAgent(AiService aiService, String systemPrompt, Map<String, ToolExecutor> tools) {
         this.id = UUID.randomUUID().toString();
         this.aiService = aiService;
-        this.systemPrompt = systemPrompt;
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
         this.history = new ArrayList<>();
         this.tools = tools;
         this.maxIterations = 5;
     }
 
+    public String getSystemPrompt() {
+        return systemPrompt != null ? systemPrompt.text() : null;
+    }
+
+    public void setSystemPrompt(String systemPrompt) {
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
+    }
+
     /**
      * 执行对话（带工具调用）
      */
     public AgentResult chat(String userMessage) {
+        return chat(userMessage, CancellationToken.NONE);
+    }
+
+    /**
+     * 执行对话, 令牌取消后在下一步之前停止 (进行中的模型调用和工具执行同时中止)
+     */
+    public AgentResult chat(String userMessage, CancellationToken token) {
+        token.throwIfCancelled();
         addMessage("user", userMessage);
         
         int iteration = 0;
         String lastContent = null;
         
         while (iteration < maxIterations) {
+            token.throwIfCancelled();
             iteration++;
             
-            // 构建请求
+            // 构建请求: 静态的系统提示和工具在前, 对话历史在后
+            PromptPrefix prefix = promptPrefix();
             ChatRequest request = new ChatRequest();
+            request.setAgentId(id);
             request.setMessages(new ArrayList<>(history));
-            request.setSystemPrompt(buildFnCallSystemPrompt());
-            request.setTools(convertTools(tools));
+            request.setSystemPrompt(prefix.systemPrompt.text());
+            request.setTools(prefix.tools);
             
             // 发送请求
-            ChatResponse response = aiService.chat(request);
+            ChatResponse response = aiService.chat(request, token);
             
             String content = response.getContent();
             List<ChatResponse.ToolCall> toolCalls = response.getToolCalls();
@@ -70,13 +114,14 @@ public class FnCallAgent {
                 
                 // 执行工具
                 for (ChatResponse.ToolCall toolCall : toolCalls) {
+                    token.throwIfCancelled();
                     String toolName = toolCall.getName();
                     String args = toolCall.getArguments();
                     
                     ToolExecutor executor = tools.get(toolName);
                     if (executor != null) {
                         try {
-                            Object result = executor.execute(parseJson(args));
+                            Object result = executor.execute(parseJson(args), token);
                             
                             // 添加工具结果
                             ChatRequest.Message toolMsg = new ChatRequest.Message();
@@ -86,6 +131,8 @@ public class FnCallAgent {
                             history.add(toolMsg);
                             
                             log.info("Tool executed: {} -> {}", toolName, result);
+                        } catch (RequestCancelledException e) {
+                            throw e;
                         } catch (Exception e) {
                             log.error("Tool execution failed: {}", toolName, e);
                             
@@ -118,14 +165,25 @@ public class FnCallAgent {
     }
 
     /**
-     * 构建函数调用系统提示
+     * 获取请求前缀, 系统提示或工具集变化时重建. 系统提示是共享片段, 按引用比较
      */
-    private String buildFnCallSystemPrompt() {
-        return systemPrompt + "\n\n" +
-            "You have access to the following tools:\n\n" +
-            buildToolsDescription() + "\n\n" +
-            "When you need to call a function, use the tool_calls format.\n" +
-            "After getting the tool results, generate your final response.";
+    private PromptPrefix promptPrefix() {
+        Set<String> toolNames = tools != null ? new TreeSet<>(tools.keySet()) : Collections.emptySet();
+        PromptPrefix prefix = promptPrefix;
+        if (prefix == null || prefix.source != systemPrompt || !prefix.toolNames.equals(toolNames)) {
+            prefix = new PromptPrefix(systemPrompt, toolNames, buildFnCallSystemPrompt(),
+                    Collections.unmodifiableList(convertTools(tools)));
+            promptPrefix = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * 构建函数调用系统提示: 原始提示、工具说明和固定说明的组合, 相同组合的Agent共享同一份文本
+     */
+    private PromptSegment buildFnCallSystemPrompt() {
+        return PromptSegments.join(systemPrompt, TOOLS_INTRO, PromptSegments.intern(buildToolsDescription()),
+                TOOLS_OUTRO);
     }
 
     /**
@@ -137,7 +195,7 @@ public class FnCallAgent {
         }
         
         StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, ToolExecutor> entry : tools.entrySet()) {
+        for (Map.Entry<String, ToolExecutor> entry : new TreeMap<>(tools).entrySet()) {
             sb.append("- ").append(entry.getKey()).append(": ")
               .append(entry.getValue().getDescription()).append("\n");
         }
@@ -145,13 +203,13 @@ public class FnCallAgent {
     }
 
     /**
-     * 转换工具定义
+     * 转换工具定义 (按名称排序)
      */
     private List<ChatRequest.ToolDefinition> convertTools(Map<String, ToolExecutor> tools) {
         List<ChatRequest.ToolDefinition> result = new ArrayList<>();
         if (tools == null) return result;
         
-        for (Map.Entry<String, ToolExecutor> entry : tools.entrySet()) {
+        for (Map.Entry<String, ToolExecutor> entry : new TreeMap<>(tools).entrySet()) {
             ChatRequest.ToolDefinition def = new ChatRequest.ToolDefinition();
             def.setName(entry.getKey());
             def.setDescription(entry.getValue().getDescription());
@@ -204,10 +262,46 @@ public class FnCallAgent {
      */
     public interface ToolExecutor {
         Object execute(Map<String, Object> params) throws Exception;
+
+        /**
+         * 可取消的执行. 默认在取消时中断执行线程 (可中断的阻塞和同步HTTP会随之中止);
+         * 启动子进程等不响应中断的工具应覆盖此方法
+         */
+        default Object execute(Map<String, Object> params, CancellationToken token) throws Exception {
+            token.throwIfCancelled();
+            Object result;
+            CancellationToken.Registration registration = token.interruptOnCancel();
+            try {
+                result = execute(params);
+            } finally {
+                registration.close();
+            }
+            token.throwIfCancelled();
+            return result;
+        }
+
         String getDescription();
         Map<String, ChatRequest.ToolParameter> getParameters();
     }
 
+    /**
+     * 请求前缀缓存
+     */
+    private static class PromptPrefix {
+        private final PromptSegment source;
+        private final Set<String> toolNames;
+        private final PromptSegment systemPrompt;
+        private final List<ChatRequest.ToolDefinition> tools;
+
+        PromptPrefix(PromptSegment source, Set<String> toolNames, PromptSegment systemPrompt,
+                     List<ChatRequest.ToolDefinition> tools) {
+            this.source = source;
+            this.toolNames = toolNames;
+            this.systemPrompt = systemPrompt;
+            this.tools = tools;
+        }
+    }
+
     /**
      * Agent执行结果
      */
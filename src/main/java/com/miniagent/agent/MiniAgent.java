@@ -3,7 +3,16 @@ package com.miniagent.agent;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
 import com.miniagent.service.AiService;
+import com.miniagent.service.CancellationToken;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
+import com.miniagent.service.session.SessionSnapshot;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
@@ -12,6 +21,9 @@ import java.util.UUID;
 
 /**
  * Agent核心类 - 负责管理对话上下文和AI交互
+ *
+ * 对话历史由 this 保护. 并发的对话各自以开始时的历史快照发请求, 完成后整轮追加,
+ * 不会交错; 追加后尚未写入会话存储的消息数记录在 unsaved 中, 写入冲突时在存储的历史上重放.
  */
 @Slf4j
 @Data
@@ -19,94 +31,191 @@ public class MiniAgent {
 
     private String id;
     private String name;
-    private String systemPrompt;
+
+    /**
+     * 共享的提示片段, 相同提示的Agent引用同一份
+     */
+    private PromptSegment systemPrompt;
     private List<ChatRequest.Message> history;
     private AiService aiService;
     private Integer maxHistory;
 
+    /**
+     * 会话存储中的版本, 0表示尚未写入
+     */
+    private long version;
+
+    /**
+     * 历史末尾尚未写入会话存储的消息数
+     */
+    @Setter(AccessLevel.NONE)
+    private int unsaved;
+
+    /**
+     * 串行化同一Agent的存储写入, 与历史的锁分开, 写入期间不阻塞对话
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private final Object saveLock = new Object();
+
     public MiniAgent(AiService aiService, String systemPrompt) {
         this.id = UUID.randomUUID().toString();
         this.aiService = aiService;
-        this.systemPrompt = systemPrompt;
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
         this.history = new ArrayList<>();
         this.maxHistory = 10;
     }
 
+    public String getSystemPrompt() {
+        return systemPrompt != null ? systemPrompt.text() : null;
+    }
+
+    public void setSystemPrompt(String systemPrompt) {
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
+    }
+
+    /**
+     * 历史的快照
+     */
+    public synchronized List<ChatRequest.Message> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    public synchronized void setHistory(List<ChatRequest.Message> history) {
+        this.history = new ArrayList<>(history);
+        this.unsaved = 0;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int getUnsaved() {
+        return unsaved;
+    }
+
     /**
      * 发送消息并获取回复
      */
     public String chat(String userMessage) {
-        // 添加用户消息
-        addMessage("user", userMessage);
-        
-        // 构建请求
-        ChatRequest request = new ChatRequest();
-        request.setMessages(new ArrayList<>(history));
-        request.setSystemPrompt(systemPrompt);
-        
+        return chat(userMessage, CancellationToken.NONE);
+    }
+
+    /**
+     * 发送消息并获取回复, 令牌取消时中止模型调用. 成功后把用户消息和回复作为一轮追加到历史
+     */
+    public String chat(String userMessage, CancellationToken token) {
+        token.throwIfCancelled();
+        ChatRequest.Message user = new ChatRequest.Message("user", userMessage, null, null);
+
         // 发送请求
-        ChatResponse response = aiService.chat(request);
-        
-        // 添加助手回复
-        addMessage("assistant", response.getContent());
-        
+        ChatResponse response = aiService.chat(requestFor(user), token);
+
+        // 添加本轮消息
+        appendTurn(List.of(user, new ChatRequest.Message("assistant", response.getContent(), null, null)));
         return response.getContent();
     }
 
+    /**
+     * 本轮的请求: 当前历史加上本轮的用户消息, 不修改历史
+     */
+    public synchronized ChatRequest requestFor(ChatRequest.Message userMessage) {
+        List<ChatRequest.Message> messages = new ArrayList<>(history);
+        messages.add(userMessage);
+        ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
+        request.setMessages(messages);
+        request.setSystemPrompt(getSystemPrompt());
+        return request;
+    }
+
+    /**
+     * 对话完成后追加本轮的全部消息 (用户消息、工具调用和结果、最终回复)
+     */
+    public synchronized void appendTurn(List<ChatRequest.Message> turn) {
+        history.addAll(turn);
+        unsaved += turn.size();
+        trimHistory();
+    }
+
     /**
      * 带工具调用的对话
      */
     public String chatWithTools(String userMessage, List<ChatRequest.ToolDefinition> tools) {
-        addMessage("user", userMessage);
-        
-        ChatRequest request = new ChatRequest();
-        request.setMessages(new ArrayList<>(history));
-        request.setSystemPrompt(systemPrompt);
+        ChatRequest.Message user = new ChatRequest.Message("user", userMessage, null, null);
+        ChatRequest request = requestFor(user);
         request.setTools(tools);
         
         // 这里简化处理，实际需要循环调用直到没有tool call
         ChatResponse response = aiService.chat(request);
+        List<ChatRequest.Message> turn = new ArrayList<>();
+        turn.add(user);
         
         // 处理工具调用
         if (response.getToolCalls() != null && !response.getToolCalls().isEmpty()) {
             for (ChatResponse.ToolCall toolCall : response.getToolCalls()) {
                 // 添加助手消息(含tool calls)
-                addMessage("assistant", response.getContent());
+                turn.add(new ChatRequest.Message("assistant", response.getContent(), null, null));
                 
                 // TODO: 执行工具并添加结果
             }
         }
         
-        addMessage("assistant", response.getContent());
+        turn.add(new ChatRequest.Message("assistant", response.getContent(), null, null));
+        appendTurn(turn);
         return response.getContent();
     }
 
     /**
-     * 添加消息到历史
+     * 写入存储成功: 记录新版本, 写入期间追加的消息仍待写回
      */
-    private void addMessage(String role, String content) {
-        ChatRequest.Message msg = new ChatRequest.Message();
-        msg.setRole(role);
-        msg.setContent(content);
-        history.add(msg);
-        
-        // 裁剪历史
+    public synchronized void saved(long newVersion, int flushed) {
+        version = newVersion;
+        unsaved = Math.max(0, unsaved - flushed);
+    }
+
+    /**
+     * 写入冲突: 以存储中的配置和历史为基础, 追加本地尚未写回的消息
+     */
+    public synchronized void rebase(SessionSnapshot stored, long storedVersion) {
+        List<ChatRequest.Message> tail = new ArrayList<>(history.subList(history.size() - unsaved, history.size()));
+        name = stored.getName();
+        setSystemPrompt(stored.getSystemPrompt());
+        maxHistory = stored.getMaxMessages();
+        history = new ArrayList<>(stored.getMessages());
+        history.addAll(tail);
+        version = storedVersion;
+        trimHistory();
+    }
+
+    Object saveLock() {
+        return saveLock;
+    }
+
+    /**
+     * 裁剪历史
+     */
+    private void trimHistory() {
         while (history.size() > maxHistory * 2) {
             history.remove(0);
         }
+        unsaved = Math.min(unsaved, history.size());
     }
 
     /**
      * 清除历史
      */
-    public void clearHistory() {
+    public synchronized void clearHistory() {
         history.clear();
+        unsaved = 0;
     }
 
     /**
      * 获取历史消息数
      */
-    public int getHistorySize() {
+    public synchronized int getHistorySize() {
         return history.size();
     }
 }
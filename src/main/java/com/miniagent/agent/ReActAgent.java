@@ -2,14 +2,20 @@ package com.miniagent.agent;
 
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
+import com.miniagent.exception.RequestCancelledException;
 import com.miniagent.service.AiService;
+import com.miniagent.service.CancellationToken;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
 /**
  * ReAct Agent - 推理+行动 Agent
@@ -25,29 +31,81 @@ import java.util.UUID;
 @Data
 public class ReActAgent {
 
+    private static final PromptSegment REACT_FORMAT = PromptSegments.intern("\n\n" +
+            "You are a ReAct agent. Follow this format:\n\n" +
+            "Thought: [your reasoning about what to do next]\n" +
+            "Action: [tool name to use, or 'finish' if done]\n" +
+            "Action Input: [input to the tool in JSON format]\n" +
+            "Observation: [result from the tool]\n\n" +
+            "Available tools: ");
+    private static final PromptSegment REACT_OUTRO = PromptSegments.intern("\n\n" +
+            "Repeat Thought->Action->Action Input->Observation until you can answer the question.\n" +
+            "When done, use 'finish' as the action with your final answer in the observation.");
+
     private String id;
     private String name;
-    private String systemPrompt;
+
+    /**
+     * 共享的提示片段, 相同提示的Agent引用同一份
+     */
+    private PromptSegment systemPrompt;
     private List<ChatRequest.Message> history;
     private List<ReActStep> reasoningTrace;
     private AiService aiService;
     private Map<String, FnCallAgent.ToolExecutor> tools;
     private Integer maxIterations;
 
+    /**
+     * 缓存的系统提示及其来源 (原始提示片段 + 工具名), 来源不变时复用
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private PromptSegment cachedSystemPrompt;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private PromptSegment cachedSystemPromptSource;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private Set<String> cachedToolNames;
+
     public ReActAgent(AiService aiService, String systemPrompt, Map<String, FnCallAgent.ToolExecutor> tools) {
         this.id = UUID.randomUUID().toString();
         this.aiService = aiService;
-        this.systemPrompt = systemPrompt;
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
         this.history = new ArrayList<>();
         this.reasoningTrace = new ArrayList<>();
         this.tools = tools;
         this.maxIterations = 10;
     }
 
+    public String getSystemPrompt() {
+        return systemPrompt != null ? systemPrompt.text() : null;
+    }
+
+    public void setSystemPrompt(String systemPrompt) {
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
+    }
+
     /**
      * 执行ReAct对话
      */
     public ReActResult chat(String userMessage) {
+        return chat(userMessage, CancellationToken.NONE);
+    }
+
+    /**
+     * 执行ReAct对话, 令牌取消后在下一步之前停止
+     */
+    public ReActResult chat(String userMessage, CancellationToken token) {
+        token.throwIfCancelled();
         reasoningTrace.clear();
         addMessage("user", userMessage);
         
@@ -57,15 +115,17 @@ public class ReActAgent {
         String finalAnswer = null;
         
         while (iteration < maxIterations) {
+            token.throwIfCancelled();
             iteration++;
             
-            // 构建请求
+            // 构建请求: 系统提示由AiService放在最前, 这里只放逐轮追加的用户消息
             ChatRequest request = new ChatRequest();
+            request.setAgentId(id);
             request.setMessages(buildMessages(userPrompt));
             request.setSystemPrompt(getReActSystemPrompt());
             
             // 发送请求
-            ChatResponse response = aiService.chat(request);
+            ChatResponse response = aiService.chat(request, token);
             String content = response.getContent();
             
             // 解析ReAct步骤
@@ -91,8 +151,10 @@ public class ReActAgent {
             if (tools != null && tools.containsKey(step.getAction())) {
                 try {
                     Map<String, Object> params = parseActionInput(step.getActionInput());
-                    Object result = tools.get(step.getAction()).execute(params);
+                    Object result = tools.get(step.getAction()).execute(params, token);
                     step.setObservation("Result: " + (result != null ? result.toString() : "null"));
+                } catch (RequestCancelledException e) {
+                    throw e;
                 } catch (Exception e) {
                     step.setObservation("Error: " + e.getMessage());
                 }
@@ -127,17 +189,11 @@ public class ReActAgent {
     }
 
     /**
-     * 构建消息列表
+     * 构建消息列表 (系统提示通过request.systemPrompt传递, 不再重复放入消息)
      */
     private List<ChatRequest.Message> buildMessages(String userPrompt) {
         List<ChatRequest.Message> messages = new ArrayList<>();
         
-        // 系统消息
-        ChatRequest.Message systemMsg = new ChatRequest.Message();
-        systemMsg.setRole("system");
-        systemMsg.setContent(getReActSystemPrompt());
-        messages.add(systemMsg);
-        
         // 用户消息
         ChatRequest.Message userMsg = new ChatRequest.Message();
         userMsg.setRole("user");
@@ -148,18 +204,25 @@ public class ReActAgent {
     }
 
     /**
-     * ReAct系统提示
+     * ReAct系统提示 (缓存, 原始提示和工具集不变时返回同一字符串, 不再每次拼接比较)
      */
     private String getReActSystemPrompt() {
-        return systemPrompt + "\n\n" +
-            "You are a ReAct agent. Follow this format:\n\n" +
-            "Thought: [your reasoning about what to do next]\n" +
-            "Action: [tool name to use, or 'finish' if done]\n" +
-            "Action Input: [input to the tool in JSON format]\n" +
-            "Observation: [result from the tool]\n\n" +
-            "Available tools: " + getAvailableTools() + "\n\n" +
-            "Repeat Thought->Action->Action Input->Observation until you can answer the question.\n" +
-            "When done, use 'finish' as the action with your final answer in the observation.";
+        Set<String> toolNames = tools != null ? tools.keySet() : Collections.emptySet();
+        if (cachedSystemPrompt == null || cachedSystemPromptSource != systemPrompt
+                || !cachedToolNames.equals(toolNames)) {
+            cachedSystemPrompt = buildReActSystemPrompt();
+            cachedSystemPromptSource = systemPrompt;
+            cachedToolNames = new TreeSet<>(toolNames);
+        }
+        return cachedSystemPrompt.text();
+    }
+
+    /**
+     * 原始提示、固定格式说明和工具列表的组合, 相同组合的Agent共享同一份文本
+     */
+    private PromptSegment buildReActSystemPrompt() {
+        return PromptSegments.join(systemPrompt, REACT_FORMAT, PromptSegments.intern(getAvailableTools()),
+                REACT_OUTRO);
     }
 
     /**
@@ -169,7 +232,7 @@ public class ReActAgent {
         if (tools == null || tools.isEmpty()) {
             return "none";
         }
-        return String.join(", ", tools.keySet());
+        return String.join(", ", new TreeSet<>(tools.keySet()));
     }
 
     /**
@@ -3,7 +3,14 @@ package com.miniagent.agent.browser;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
 import com.miniagent.service.AiService;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
@@ -26,9 +33,30 @@ import java.net.http.HttpResponse;
 @Data
 public class BrowserAgent {
 
+    private static final PromptSegment BROWSER_INSTRUCTIONS = PromptSegments.intern("\n\n" +
+            "You are a browser assistant. You can:\n" +
+            "- Navigate to URLs\n" +
+            "- Search the web\n" +
+            "- Extract page content\n" +
+            "- Find links and information\n\n" +
+            "Use the browser methods available to you.");
+
     private String id;
     private String name;
-    private String systemPrompt;
+
+    /**
+     * 共享的提示片段, 相同提示的Agent引用同一份
+     */
+    private PromptSegment systemPrompt;
+
+    /**
+     * 原始提示 + 浏览器说明的组合片段, 相同提示的Agent共享同一份拼接结果
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private PromptSegment browserPrompt;
     private List<ChatRequest.Message> history;
     private AiService aiService;
     private Map<String, Object> config;
@@ -38,16 +66,32 @@ public class BrowserAgent {
     private boolean headless = true;
 
     public BrowserAgent(AiService aiService, String systemPrompt) {
+        this(aiService, systemPrompt, HttpClient.newHttpClient());
+    }
+
+    /**
+     * 使用共享的HttpClient, 复用已建立的连接
+     */
+    public BrowserAgent(AiService aiService, String systemPrompt, HttpClient httpClient) {
         this.id = UUID.randomUUID().toString();
         this.aiService = aiService;
-        this.systemPrompt = systemPrompt;
+        setSystemPrompt(systemPrompt);
         this.history = new ArrayList<>();
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = httpClient;
         this.config = new HashMap<>();
         config.put("timeout", 30000);
         config.put("userAgent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36");
     }
 
+    public String getSystemPrompt() {
+        return systemPrompt != null ? systemPrompt.text() : null;
+    }
+
+    public void setSystemPrompt(String systemPrompt) {
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
+        this.browserPrompt = PromptSegments.join(this.systemPrompt, BROWSER_INSTRUCTIONS);
+    }
+
     /**
      * 导航到URL
      */
@@ -101,8 +145,9 @@ public class BrowserAgent {
         addMessage("user", userMessage);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
-        request.setSystemPrompt(buildBrowserPrompt());
+        request.setSystemPrompt(browserPrompt.text());
         
         ChatResponse response = aiService.chat(request);
         addMessage("assistant", response.getContent());
@@ -110,16 +155,6 @@ public class BrowserAgent {
         return response.getContent();
     }
 
-    private String buildBrowserPrompt() {
-        return systemPrompt + "\n\n" +
-            "You are a browser assistant. You can:\n" +
-            "- Navigate to URLs\n" +
-            "- Search the web\n" +
-            "- Extract page content\n" +
-            "- Find links and information\n\n" +
-            "Use the browser methods available to you.";
-    }
-
     private void addMessage(String role, String content) {
         ChatRequest.Message msg = new ChatRequest.Message();
         msg.setRole(role);
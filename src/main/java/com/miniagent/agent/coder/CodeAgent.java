@@ -3,6 +3,8 @@ package com.miniagent.agent.coder;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
 import com.miniagent.service.AiService;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
 import com.miniagent.tool.PythonSandbox;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -22,9 +24,43 @@ import java.util.*;
 @Data
 public class CodeAgent {
 
+    private static final PromptSegment DEFAULT_PROMPT = PromptSegments.intern(
+            "You are an expert programming assistant. " +
+            "Help users write, debug, and understand code. " +
+            "Provide clear explanations and efficient solutions.");
+    private static final PromptSegment REVIEW_HEAD = PromptSegments.intern(
+            "You are a code reviewer. Review the following ");
+    private static final PromptSegment REVIEW_TAIL = PromptSegments.intern(
+            " code and provide feedback on:\n" +
+            "- Potential bugs\n" +
+            "- Code style issues\n" +
+            "- Performance improvements\n" +
+            "- Security concerns\n" +
+            "- Best practices");
+    private static final PromptSegment EXPLAIN_HEAD = PromptSegments.intern(
+            "You are a code explainer. Explain the following ");
+    private static final PromptSegment EXPLAIN_TAIL = PromptSegments.intern(
+            " code in clear, simple terms. Focus on what the code does and how it works.");
+    private static final PromptSegment OPTIMIZE_HEAD = PromptSegments.intern(
+            "You are a code optimizer. Optimize the following ");
+    private static final PromptSegment OPTIMIZE_TAIL = PromptSegments.intern(
+            " code for:\n" +
+            "- Performance\n" +
+            "- Readability\n" +
+            "- Memory usage\n" +
+            "- Best practices");
+    private static final PromptSegment TEST_HEAD = PromptSegments.intern(
+            "You are a testing expert. Generate comprehensive unit tests for the following ");
+    private static final PromptSegment TEST_TAIL = PromptSegments.intern(
+            " code. Use appropriate testing frameworks and cover edge cases.");
+
     private String id;
     private String name;
-    private String systemPrompt;
+
+    /**
+     * 共享的提示片段, 默认提示所有实例共用一份
+     */
+    private PromptSegment systemPrompt;
     private List<ChatRequest.Message> history;
     private AiService aiService;
     private PythonSandbox sandbox;
@@ -35,7 +71,7 @@ public class CodeAgent {
         this.name = "CodeAgent";
         this.aiService = aiService;
         this.sandbox = new PythonSandbox();
-        this.systemPrompt = getDefaultPrompt();
+        this.systemPrompt = DEFAULT_PROMPT;
         this.history = new ArrayList<>();
         this.language = "python";
     }
@@ -47,6 +83,7 @@ public class CodeAgent {
         addMessage("user", "Review this " + language + " code:\n" + code);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
         request.setSystemPrompt(getReviewPrompt(language));
         
@@ -103,6 +140,7 @@ public class CodeAgent {
         addMessage("user", "Explain this " + language + " code:\n" + code);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
         request.setSystemPrompt(getExplainPrompt(language));
         
@@ -119,6 +157,7 @@ public class CodeAgent {
         addMessage("user", "Optimize this " + language + " code:\n" + code);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
         request.setSystemPrompt(getOptimizePrompt(language));
         
@@ -135,6 +174,7 @@ public class CodeAgent {
         addMessage("user", "Generate unit tests for this " + language + " code:\n" + code);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
         request.setSystemPrompt(getTestPrompt(language));
         
@@ -151,8 +191,9 @@ public class CodeAgent {
         addMessage("user", message);
         
         ChatRequest request = new ChatRequest();
+        request.setAgentId(id);
         request.setMessages(new ArrayList<>(history));
-        request.setSystemPrompt(systemPrompt);
+        request.setSystemPrompt(getSystemPrompt());
         
         ChatResponse response = aiService.chat(request);
         addMessage("assistant", response.getContent());
@@ -167,41 +208,35 @@ public class CodeAgent {
         history.add(msg);
     }
 
-    private String getDefaultPrompt() {
-        return "You are an expert programming assistant. " +
-               "Help users write, debug, and understand code. " +
-               "Provide clear explanations and efficient solutions.";
+    public String getSystemPrompt() {
+        return systemPrompt != null ? systemPrompt.text() : null;
+    }
+
+    public void setSystemPrompt(String systemPrompt) {
+        this.systemPrompt = PromptSegments.intern(systemPrompt);
     }
 
+    /**
+     * 各任务的提示由固定片段和语言名组合, 同一语言的组合在使用期间全局共享一份文本
+     */
     private String getReviewPrompt(String language) {
-        return "You are a code reviewer. " +
-               "Review the following " + language + " code and provide feedback on:\n" +
-               "- Potential bugs\n" +
-               "- Code style issues\n" +
-               "- Performance improvements\n" +
-               "- Security concerns\n" +
-               "- Best practices";
+        return taskPrompt(REVIEW_HEAD, language, REVIEW_TAIL);
     }
 
     private String getExplainPrompt(String language) {
-        return "You are a code explainer. " +
-               "Explain the following " + language + " code in clear, simple terms. " +
-               "Focus on what the code does and how it works.";
+        return taskPrompt(EXPLAIN_HEAD, language, EXPLAIN_TAIL);
     }
 
     private String getOptimizePrompt(String language) {
-        return "You are a code optimizer. " +
-               "Optimize the following " + language + " code for:\n" +
-               "- Performance\n" +
-               "- Readability\n" +
-               "- Memory usage\n" +
-               "- Best practices";
+        return taskPrompt(OPTIMIZE_HEAD, language, OPTIMIZE_TAIL);
     }
 
     private String getTestPrompt(String language) {
-        return "You are a testing expert. " +
-               "Generate comprehensive unit tests for the following " + language + " code. " +
-               "Use appropriate testing frameworks and cover edge cases.";
+        return taskPrompt(TEST_HEAD, language, TEST_TAIL);
+    }
+
+    private static String taskPrompt(PromptSegment head, String language, PromptSegment tail) {
+        return PromptSegments.join(head, PromptSegments.intern(String.valueOf(language)), tail).text();
     }
 
     public void clearHistory() {
@@ -4,6 +4,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * AI配置属性 - 支持多模型
  */
@@ -20,12 +23,97 @@ public class AiProperties {
     private Integer timeout = 120000;
     private String provider = "deepseek";
     private String systemPrompt = "You are a helpful AI assistant.";
+    private Boolean coalesceRequests = true;
+
+    /**
+     * 多provider端点池 (为空时使用上面的单provider配置)
+     */
+    private List<Endpoint> endpoints = new ArrayList<>();
+
+    /**
+     * 连续失败多少次后熔断
+     */
+    private Integer circuitFailureThreshold = 5;
+
+    /**
+     * 熔断持续时间(毫秒), 之后放行一次探测请求
+     */
+    private Long circuitOpenMillis = 30000L;
+
+    /**
+     * EWMA延迟平滑系数
+     */
+    private Double latencyEwmaAlpha = 0.3;
+
+    /**
+     * 对冲请求配置
+     */
+    private Hedging hedging = new Hedging();
+
+    /**
+     * 失败重试配置
+     */
+    private Retry retry = new Retry();
+
+    /**
+     * 客户端限流配置
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * 上下文窗口预算配置
+     */
+    private Context context = new Context();
+
+    /**
+     * 流式输出(SSE)配置
+     */
+    private Stream stream = new Stream();
+
+    /**
+     * 服务端会话配置
+     */
+    private Session session = new Session();
+
+    /**
+     * Agent实例的过期与淘汰配置
+     */
+    private Agents agents = new Agents();
+
+    /**
+     * 对话记忆(ChatMemory)的后台摘要配置
+     */
+    private Memory memory = new Memory();
 
     public String getEffectiveBaseUrl() {
+        return resolveBaseUrl(provider, baseUrl);
+    }
+
+    public String getChatEndpoint() {
+        return getEffectiveBaseUrl() + "/chat/completions";
+    }
+
+    /**
+     * 生效的端点列表
+     */
+    public List<Endpoint> getEffectiveEndpoints() {
+        if (endpoints != null && !endpoints.isEmpty()) {
+            return endpoints;
+        }
+        Endpoint endpoint = new Endpoint();
+        endpoint.setName(provider);
+        endpoint.setProvider(provider);
+        endpoint.setBaseUrl(baseUrl);
+        endpoint.setApiKey(apiKey);
+        endpoint.setModel(model);
+        return List.of(endpoint);
+    }
+
+    static String resolveBaseUrl(String provider, String baseUrl) {
         if (baseUrl != null && !baseUrl.isEmpty()) {
             return baseUrl;
         }
-        switch (provider.toLowerCase()) {
+        switch (provider == null ? "" : provider.toLowerCase()) {
             case "deepseek": return "https://api.deepseek.com/v1";
             case "openai": return "https://api.openai.com/v1";
             case "minimax": return "https://api.minimaxi.com/v1";
@@ -33,7 +121,192 @@ public class AiProperties {
         }
     }
 
-    public String getChatEndpoint() {
-        return getEffectiveBaseUrl() + "/chat/completions";
+    /**
+     * 单个LLM端点
+     */
+    @Data
+    public static class Endpoint {
+        private String name;
+        private String provider = "deepseek";
+        private String baseUrl = "";
+        private String apiKey;
+        private String model;
+        private Integer weight = 1;
+        private Long requestsPerMinute;
+        private Long tokensPerMinute;
+
+        public String getEffectiveBaseUrl() {
+            return resolveBaseUrl(provider, baseUrl);
+        }
+
+        public String getChatEndpoint() {
+            return getEffectiveBaseUrl() + "/chat/completions";
+        }
+    }
+
+    /**
+     * 对冲请求: 主请求超过分位延迟仍未返回时, 向备用端点发出备份请求
+     */
+    @Data
+    public static class Hedging {
+        private boolean enabled = false;
+        private double percentile = 95.0;
+        private long initialDelayMillis = 2000;
+        private long minDelayMillis = 100;
+        private double budgetRatio = 0.05;
+        private double maxBurst = 10.0;
+    }
+
+    /**
+     * 重试: 指数退避 + 随机抖动, 重试次数受令牌桶预算限制
+     */
+    @Data
+    public static class Retry {
+        private boolean enabled = true;
+        private int maxAttempts = 3;
+        private long initialBackoffMillis = 500;
+        private long maxBackoffMillis = 10000;
+        private double multiplier = 2.0;
+        private long maxRetryAfterMillis = 30000;
+        private double budgetRatio = 0.1;
+        private double maxBurst = 10.0;
+    }
+
+    /**
+     * 上下文预算: 调用前按token数裁剪历史, 保留系统提示和最近的消息
+     */
+    @Data
+    public static class Context {
+        private boolean enabled = true;
+        private int maxContextTokens = 64000;
+        private int keepRecentMessages = 6;
+        private int toolResultMaxTokens = 2000;
+        private int dropBlockSize = 4;
+    }
+
+    /**
+     * 流式输出: 整体超时和心跳间隔, 心跳防止代理在模型思考时断开空闲连接.
+     * WebSocket连接另有每连接的并发生成数和发送缓冲上限, 客户端读得太慢时断开连接
+     */
+    @Data
+    public static class Stream {
+        private long timeoutMillis = 300000;
+        private long heartbeatSeconds = 15;
+        private int maxStreamsPerConnection = 8;
+        private int sendTimeLimitMillis = 10000;
+        private int sendBufferSizeLimit = 512 * 1024;
+        private List<String> allowedOrigins = new ArrayList<>();
+    }
+
+    /**
+     * 服务端会话: 每个会话保留的最大消息数(创建会话时可单独指定),
+     * 堆内近端缓存的空闲超时, 会话数和估算内存上限 (0表示不限制), 后台清理间隔.
+     * store 为持久存储: local(本地分段文件), redis(多节点共享) 或 none(只在堆内, 淘汰即丢失).
+     * 修改过的会话每 writeBehindMillis 批量写回, 超过保留天数未写入的会话被删除
+     */
+    @Data
+    public static class Session {
+        private int maxMessages = 100;
+        private long idleTimeoutSeconds = 1800;
+        private int maxSessions = 10000;
+        private long maxMemoryBytes = 256L * 1024 * 1024;
+        private long sweepIntervalSeconds = 60;
+        private String store = "local";
+        private long writeBehindMillis = 50;
+        private int writeBatchSize = 100;
+        private long retentionDays = 30;
+        private String localDir = "data/sessions";
+        private long localSegmentBytes = 64L * 1024 * 1024;
+        private long localCompactIntervalSeconds = 300;
+        private Redis redis = new Redis();
+        private History history = new History();
+    }
+
+    /**
+     * 对话日志: 每轮对话追加到本地分段日志, 组提交落盘, 会话不在存储中时(如 store=none 重启后)从日志回放.
+     * awaitSync 为 true 时每轮等待落盘(最多 syncTimeoutMillis), syncDelayMillis 为同步前额外攒批的时间.
+     * 最新记录超过 retentionDays 的段整段删除
+     */
+    @Data
+    public static class History {
+        private boolean enabled = true;
+        private String dir = "data/conversations";
+        private long segmentBytes = 64L * 1024 * 1024;
+        private long retentionDays = 90;
+        private long syncDelayMillis = 0;
+        private boolean awaitSync = true;
+        private long syncTimeoutMillis = 1000;
+        private long cleanupIntervalSeconds = 600;
+    }
+
+    /**
+     * Redis(或兼容RESP协议的服务)连接
+     */
+    @Data
+    public static class Redis {
+        private String host = "localhost";
+        private int port = 6379;
+        private String password;
+        private int database = 0;
+        private String keyPrefix = "miniagent:";
+        private int timeoutMillis = 2000;
+        private int poolSize = 8;
+    }
+
+    /**
+     * Agent实例: 空闲超时, 实例数和估算内存上限 (0表示不限制), 后台清理间隔.
+     * 有进行中请求的Agent不会被淘汰
+     */
+    @Data
+    public static class Agents {
+        private long idleTimeoutSeconds = 3600;
+        private int maxAgents = 1000;
+        private long maxMemoryBytes = 64L * 1024 * 1024;
+        private long sweepIntervalSeconds = 60;
+    }
+
+    /**
+     * 对话记忆摘要: 短时记忆估算超过 summarizeTokenThreshold 个token (或消息数达到上限) 时,
+     * 在后台把较早的消息合并进滚动摘要, 保留最近 keepRecentMessages 条原文.
+     * 摘要排队超过 queueSize 时跳过本次, 由消息数上限兜底裁剪.
+     *
+     * 长时记忆: 每个用户最多 longTermMaxItems 条, 满时淘汰重要度按 decayHalfLifeDays 衰减后最低的;
+     * 召回相似度不低于 recallMinSimilarity 的前 recallTopK 条 (默认值按字面哈希向量设定, 不是语义相似度).
+     * 堆内最多 longTermMaxUsers 个用户, 修改过的每 longTermFlushIntervalSeconds 秒写入 longTermDir
+     */
+    @Data
+    public static class Memory {
+        private int summarizeTokenThreshold = 4000;
+        private int keepRecentMessages = 8;
+        private int summaryMaxTokens = 512;
+        private int summarizerThreads = 2;
+        private int queueSize = 100;
+        private String longTermDir = "data/memory";
+        private int longTermMaxItems = 2000;
+        private int longTermMaxUsers = 10000;
+        private long longTermIdleTimeoutSeconds = 3600;
+        private long longTermFlushIntervalSeconds = 30;
+        private int recallTopK = 5;
+        private double recallMinSimilarity = 0.25;
+        private double decayHalfLifeDays = 30;
+    }
+
+    /**
+     * 客户端限流: 每分钟配额为0表示不限制.
+     * 租户配额表最多保存 maxTenants 个租户, 超出后新租户共用一个溢出配额
+     */
+    @Data
+    public static class RateLimit {
+        private boolean enabled = true;
+        private long queueTimeoutMillis = 30000;
+        private long providerRequestsPerMinute = 0;
+        private long providerTokensPerMinute = 0;
+        private long tenantRequestsPerMinute = 0;
+        private long tenantTokensPerMinute = 0;
+        private int maxTenants = 100000;
+        private int initialConcurrency = 20;
+        private int minConcurrency = 1;
+        private int maxConcurrency = 200;
+        private long latencyThresholdMillis = 0;
     }
 }
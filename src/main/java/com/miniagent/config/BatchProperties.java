@@ -0,0 +1,49 @@
+package com.miniagent.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 批量推理配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "ai.batch")
+public class BatchProperties {
+
+    /**
+     * 检查点目录, 每个任务一个子目录
+     */
+    private String checkpointDir = "data/batch";
+
+    /**
+     * 单个任务默认并发数
+     */
+    private int defaultConcurrency = 8;
+
+    /**
+     * 所有批量任务共享的最大并发数
+     */
+    private int maxConcurrency = 32;
+
+    /**
+     * 单个任务最大请求数
+     */
+    private int maxItems = 200000;
+
+    /**
+     * 单条请求被本地限流拒绝后最多重新排队的次数
+     */
+    private int maxRateLimitRetries = 20;
+
+    /**
+     * 未指定租户时使用的租户ID, 与交互流量分开限流
+     */
+    private String defaultTenantId = "batch";
+
+    /**
+     * 启动时是否恢复未完成的任务
+     */
+    private boolean resumeOnStartup = true;
+}
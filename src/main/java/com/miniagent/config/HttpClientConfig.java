@@ -0,0 +1,56 @@
+package com.miniagent.config;
+
+import com.miniagent.service.http.InstrumentedHttpClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 共享HTTP客户端 - LLM调用和各工具共用同一个连接池、TLS会话和回调线程池
+ */
+@Slf4j
+@Configuration
+public class HttpClientConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public InstrumentedHttpClient httpClient(HttpClientProperties properties) {
+        // JDK连接池参数只在第一次创建HttpClient时读取
+        setIfAbsent("jdk.httpclient.keepalive.timeout", String.valueOf(properties.getKeepAliveSeconds()));
+        setIfAbsent("jdk.httpclient.connectionPoolSize", String.valueOf(properties.getMaxIdleConnections()));
+
+        ThreadPoolExecutor executor = properties.getExecutorThreads() > 0
+                ? new ThreadPoolExecutor(properties.getExecutorThreads(), properties.getExecutorThreads(),
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreads())
+                : new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                        new SynchronousQueue<>(), daemonThreads());
+
+        HttpClient delegate = HttpClient.newBuilder()
+                .version(properties.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(properties.getConnectTimeoutMillis()))
+                .executor(executor)
+                .build();
+        log.info("Shared HTTP client created: version={}, executorThreads={}",
+                delegate.version(), properties.getExecutorThreads() > 0 ? properties.getExecutorThreads() : "cached");
+        return new InstrumentedHttpClient(delegate, executor);
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "http-client-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,54 @@
+package com.miniagent.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 共享HTTP客户端配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "ai.http")
+public class HttpClientProperties {
+
+    /**
+     * 优先使用HTTP/2 (服务端不支持时自动降级到HTTP/1.1)
+     */
+    private boolean http2 = true;
+
+    /**
+     * 建连超时(毫秒)
+     */
+    private long connectTimeoutMillis = 10000;
+
+    /**
+     * 回调线程数, 0表示按需创建. 流式响应由AiService的专用线程读取, 不占用回调线程
+     */
+    private int executorThreads = 0;
+
+    /**
+     * HTTP/1.1保活连接池的最大空闲连接数 (所有目标合计, 不是每个目标), 0表示不限制
+     */
+    private int maxIdleConnections = 0;
+
+    /**
+     * 空闲连接保活时间(秒)
+     */
+    private long keepAliveSeconds = 300;
+
+    /**
+     * 启动时预热LLM端点连接
+     */
+    private boolean prewarm = true;
+
+    /**
+     * 定期重新预热的间隔(秒), 应小于keepAliveSeconds; 0表示只在启动时预热
+     */
+    private long rewarmIntervalSeconds = 240;
+
+    /**
+     * 预热请求超时(毫秒)
+     */
+    private long prewarmTimeoutMillis = 5000;
+}
@@ -0,0 +1,41 @@
+package com.miniagent.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 问答缓存配置 (按归一化问题精确匹配)
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "ai.question-cache")
+public class QuestionCacheProperties {
+
+    /**
+     * 总开关 (默认关闭)
+     */
+    private boolean enabled = false;
+
+    /**
+     * 启用缓存的路由, 如 chat
+     */
+    private Set<String> routes = new HashSet<>(Set.of("chat"));
+
+    /**
+     * 最大缓存条目数, 超出后按LRU淘汰
+     */
+    private int maxEntries = 10000;
+
+    /**
+     * 条目存活时间(秒)
+     */
+    private long ttlSeconds = 3600;
+
+    public boolean isEnabledFor(String route) {
+        return enabled && routes != null && routes.contains(route);
+    }
+}
@@ -0,0 +1,60 @@
+package com.miniagent.config;
+
+import com.miniagent.service.session.ConversationLog;
+import com.miniagent.service.session.LocalSessionStore;
+import com.miniagent.service.session.RedisSessionStore;
+import com.miniagent.service.session.RespClient;
+import com.miniagent.service.session.SegmentStore;
+import com.miniagent.service.session.SessionStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * 会话存储 - 按 ai.session.store 选择实现, 应用自己声明 SessionStore bean 时不创建.
+ * 对话日志按 ai.session.history.enabled 创建
+ */
+@Slf4j
+@Configuration
+public class SessionStoreConfig {
+
+    private static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean(SessionStore.class)
+    @ConditionalOnProperty(prefix = "ai.session", name = "store", havingValue = "local", matchIfMissing = true)
+    public SessionStore localSessionStore(AiProperties aiProperties) throws IOException {
+        AiProperties.Session config = aiProperties.getSession();
+        SegmentStore segments = new SegmentStore(Paths.get(config.getLocalDir()), config.getLocalSegmentBytes(),
+                config.getRetentionDays() * DAY_MILLIS, config.getLocalCompactIntervalSeconds());
+        log.info("Session store: local ({})", config.getLocalDir());
+        return new LocalSessionStore(segments);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean(SessionStore.class)
+    @ConditionalOnProperty(prefix = "ai.session", name = "store", havingValue = "redis")
+    public SessionStore redisSessionStore(AiProperties aiProperties) {
+        AiProperties.Session config = aiProperties.getSession();
+        AiProperties.Redis redis = config.getRedis();
+        RespClient client = new RespClient(redis.getHost(), redis.getPort(), redis.getPassword(), redis.getDatabase(),
+                redis.getTimeoutMillis(), redis.getPoolSize());
+        log.info("Session store: redis ({}:{})", redis.getHost(), redis.getPort());
+        return new RedisSessionStore(client, redis.getKeyPrefix(), config.getRetentionDays() * DAY_MILLIS);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean(ConversationLog.class)
+    @ConditionalOnProperty(prefix = "ai.session.history", name = "enabled", havingValue = "true", matchIfMissing = true)
+    public ConversationLog conversationLog(AiProperties aiProperties) throws IOException {
+        AiProperties.History config = aiProperties.getSession().getHistory();
+        log.info("Conversation log: {}", config.getDir());
+        return new ConversationLog(Paths.get(config.getDir()), config.getSegmentBytes(),
+                config.getRetentionDays() * DAY_MILLIS, config.getSyncDelayMillis(), config.getCleanupIntervalSeconds());
+    }
+}
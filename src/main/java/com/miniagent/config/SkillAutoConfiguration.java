@@ -9,6 +9,7 @@ import org.springframework.boot.CommandLineRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.net.http.HttpClient;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,14 +35,14 @@ public class SkillAutoConfiguration {
     }
 
     @Bean
-    public Map<String, FnCallAgent.ToolExecutor> toolExecutors() {
+    public Map<String, FnCallAgent.ToolExecutor> toolExecutors(HttpClient httpClient) {
         Map<String, FnCallAgent.ToolExecutor> tools = new HashMap<>();
         
         // 注册工具
         tools.put("python_sandbox", new PythonSandbox());
         tools.put("python_executor", new PythonExecutor());
-        tools.put("web_search", new WebSearchTool());
-        tools.put("web_extractor", new WebExtractorTool());
+        tools.put("web_search", new WebSearchTool(httpClient));
+        tools.put("web_extractor", new WebExtractorTool(httpClient));
         
         return tools;
     }
@@ -0,0 +1,54 @@
+package com.miniagent.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * token用量计量配置
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "ai.usage")
+public class UsageProperties {
+
+    /**
+     * 总开关
+     */
+    private boolean enabled = true;
+
+    /**
+     * 用量明细的追加写入目录, 按天分文件
+     */
+    private String storeDir = "data/usage";
+
+    /**
+     * 刷盘间隔(秒)
+     */
+    private long flushIntervalSeconds = 10;
+
+    /**
+     * 每日token上限 (0表示不限制)
+     */
+    private long tenantDailyTokenLimit = 0;
+    private long agentDailyTokenLimit = 0;
+    private long sessionDailyTokenLimit = 0;
+
+    /**
+     * 模型单价, key为模型名
+     */
+    private Map<String, Price> prices = new HashMap<>();
+
+    /**
+     * 每百万token的价格
+     */
+    @Data
+    public static class Price {
+        private double inputPerMillion;
+        private double cachedInputPerMillion;
+        private double outputPerMillion;
+    }
+}
@@ -0,0 +1,30 @@
+package com.miniagent.config;
+
+import com.miniagent.controller.ChatWebSocketHandler;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * WebSocket配置 - 注册多路复用的聊天通道 /ws/chat
+ */
+@Configuration
+@EnableWebSocket
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final ChatWebSocketHandler chatWebSocketHandler;
+    private final AiProperties aiProperties;
+
+    public WebSocketConfig(ChatWebSocketHandler chatWebSocketHandler, AiProperties aiProperties) {
+        this.chatWebSocketHandler = chatWebSocketHandler;
+        this.aiProperties = aiProperties;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        // 未配置allowedOrigins时只允许同源页面连接
+        registry.addHandler(chatWebSocketHandler, "/ws/chat")
+                .setAllowedOrigins(aiProperties.getStream().getAllowedOrigins().toArray(new String[0]));
+    }
+}
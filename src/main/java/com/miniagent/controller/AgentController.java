@@ -2,13 +2,16 @@ package com.miniagent.controller;
 
 import com.miniagent.agent.AgentService;
 import com.miniagent.agent.MiniAgent;
+import com.miniagent.exception.GlobalExceptionHandler;
+import com.miniagent.exception.RequestCancelledException;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
-import com.miniagent.service.AiService;
+import com.miniagent.service.stream.SseStreamService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -22,11 +25,11 @@ import java.util.stream.Collectors;
 public class AgentController {
 
     private final AgentService agentService;
-    private final AiService aiService;
+    private final SseStreamService sseStreamService;
 
-    public AgentController(AgentService agentService, AiService aiService) {
+    public AgentController(AgentService agentService, SseStreamService sseStreamService) {
         this.agentService = agentService;
-        this.aiService = aiService;
+        this.sseStreamService = sseStreamService;
     }
 
     /**
@@ -90,6 +93,9 @@ public class AgentController {
             result.put("timestamp", new Date());
             
             return ResponseEntity.ok(result);
+        } catch (RequestCancelledException e) {
+            return ResponseEntity.status(GlobalExceptionHandler.CLIENT_CLOSED_REQUEST)
+                    .body(Map.of("error", e.getMessage()));
         } catch (IllegalArgumentException e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
@@ -99,47 +105,31 @@ public class AgentController {
     }
 
     /**
-     * 流式对话
+     * 取消Agent进行中的对话 (模型调用和工具执行立即中止)
+     */
+    @PostMapping("/{agentId}/cancel")
+    public ResponseEntity<Map<String, Object>> cancel(@PathVariable String agentId) {
+        int cancelled = agentService.cancel(agentId, "cancelled by client");
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", true);
+        result.put("cancelled", cancelled);
+        return ResponseEntity.ok(result);
+    }
+
+    /**
+     * 流式对话 (SSE). 与非流式对话一样读取并追加Agent历史, 可通过 /{agentId}/cancel 中止
      */
     @PostMapping(value = "/{agentId}/chat/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public ResponseEntity<Void> chatStream(@PathVariable String agentId,
-                                          @RequestBody ChatRequest request,
-                                          org.springframework.web.servlet.mvc.method.annotation.SseEmitter emitter) {
-        try {
-            MiniAgent agent = agentService.getAgent(agentId);
-            if (agent == null) {
-                emitter.completeWithError(new IllegalArgumentException("Agent not found"));
-                return ResponseEntity.badRequest().build();
-            }
-            
-            // 构建请求
-            ChatRequest chatRequest = new ChatRequest();
-            chatRequest.setMessages(request.getMessages());
-            chatRequest.setSystemPrompt(agent.getSystemPrompt());
-            
-            aiService.chatStream(chatRequest, new AiService.StreamCallback() {
-                @Override
-                public void onMessage(String data) {
-                    try { emitter.send(data); } catch (Exception e) { log.error("SSE error", e); }
-                }
-
-                @Override
-                public void onComplete() {
-                    try { emitter.complete(); } catch (Exception e) { log.error("SSE complete error", e); }
-                }
-
-                @Override
-                public void onError(String error) {
-                    log.error("SSE error: {}", error);
-                    try { emitter.completeWithError(new RuntimeException(error)); } catch (Exception e) {}
-                }
-            });
-            
-            return ResponseEntity.ok().build();
-        } catch (Exception e) {
-            log.error("Stream chat error", e);
-            return ResponseEntity.internalServerError().build();
+    public ResponseEntity<SseEmitter> chatStream(@PathVariable String agentId,
+                                                 @RequestBody ChatRequest request) {
+        if (agentService.getAgent(agentId) == null) {
+            return ResponseEntity.notFound().build();
+        }
+        if (request.getMessages() == null || request.getMessages().isEmpty()) {
+            return ResponseEntity.badRequest().build();
         }
+        return ResponseEntity.ok(sseStreamService.stream(
+                callback -> agentService.chatStream(agentId, request, callback)));
     }
 
     /**
@@ -147,13 +137,11 @@ public class AgentController {
      */
     @DeleteMapping("/{agentId}/history")
     public ResponseEntity<Map<String, Object>> clearHistory(@PathVariable String agentId) {
-        MiniAgent agent = agentService.getAgent(agentId);
+        MiniAgent agent = agentService.update(agentId, MiniAgent::clearHistory);
         if (agent == null) {
             return ResponseEntity.notFound().build();
         }
         
-        agent.clearHistory();
-        
         Map<String, Object> result = new HashMap<>();
         result.put("success", true);
         result.put("message", "History cleared");
@@ -199,21 +187,22 @@ public class AgentController {
     @PatchMapping("/{agentId}")
     public ResponseEntity<Map<String, Object>> updateAgent(@PathVariable String agentId,
                                                           @RequestBody UpdateAgentRequest request) {
-        MiniAgent agent = agentService.getAgent(agentId);
+        // 冲突多次仍未写入时抛出 ConcurrentModificationException, 由全局异常处理返回409
+        MiniAgent agent = agentService.update(agentId, target -> {
+            if (request.getName() != null) {
+                target.setName(request.getName());
+            }
+            if (request.getSystemPrompt() != null) {
+                target.setSystemPrompt(request.getSystemPrompt());
+            }
+            if (request.getMaxHistory() != null) {
+                target.setMaxHistory(request.getMaxHistory());
+            }
+        });
         if (agent == null) {
             return ResponseEntity.notFound().build();
         }
         
-        if (request.getName() != null) {
-            agent.setName(request.getName());
-        }
-        if (request.getSystemPrompt() != null) {
-            agent.setSystemPrompt(request.getSystemPrompt());
-        }
-        if (request.getMaxHistory() != null) {
-            agent.setMaxHistory(request.getMaxHistory());
-        }
-        
         Map<String, Object> result = new HashMap<>();
         result.put("success", true);
         result.put("agent", Map.of(
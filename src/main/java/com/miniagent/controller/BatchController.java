@@ -0,0 +1,134 @@
+package com.miniagent.controller;
+
+import com.miniagent.model.ChatRequest;
+import com.miniagent.service.batch.BatchJob;
+import com.miniagent.service.batch.BatchService;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 批量推理控制器
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/batch")
+public class BatchController {
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private final BatchService batchService;
+
+    public BatchController(BatchService batchService) {
+        this.batchService = batchService;
+    }
+
+    /**
+     * 提交批量任务 (JSON请求列表)
+     */
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> submit(@RequestBody SubmitBatchRequest request) {
+        BatchJob job = batchService.submit(request.getRequests(), request.getName(),
+                request.getTenantId(), request.getConcurrency());
+        return ResponseEntity.accepted().body(job.toSummary());
+    }
+
+    /**
+     * 提交批量任务 (NDJSON请求流, 每行一个ChatRequest)
+     */
+    @PostMapping(consumes = NDJSON)
+    public ResponseEntity<Map<String, Object>> submitStream(InputStream body,
+                                                            @RequestParam(required = false) String name,
+                                                            @RequestParam(required = false) String tenantId,
+                                                            @RequestParam(required = false) Integer concurrency) {
+        BatchJob job = batchService.submit(body, name, tenantId, concurrency);
+        return ResponseEntity.accepted().body(job.toSummary());
+    }
+
+    /**
+     * 任务列表
+     */
+    @GetMapping
+    public ResponseEntity<List<Map<String, Object>>> listJobs() {
+        return ResponseEntity.ok(batchService.listJobs().stream()
+                .map(BatchJob::toSummary)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * 任务进度
+     */
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> getJob(@PathVariable String jobId) {
+        BatchJob job = batchService.getJob(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(job.toSummary());
+    }
+
+    /**
+     * 分页获取结果 (按完成顺序)
+     */
+    @GetMapping("/{jobId}/results")
+    public ResponseEntity<List<Map<String, Object>>> getResults(@PathVariable String jobId,
+                                                                @RequestParam(defaultValue = "0") int offset,
+                                                                @RequestParam(defaultValue = "100") int limit) {
+        BatchJob job = batchService.getJob(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        try {
+            return ResponseEntity.ok(batchService.getResults(job, Math.max(0, offset), Math.min(Math.max(1, limit), 1000)));
+        } catch (Exception e) {
+            log.error("Read batch results error", e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    /**
+     * 以NDJSON流式返回结果, 任务结束后关闭连接
+     */
+    @GetMapping(value = "/{jobId}/results/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamResults(@PathVariable String jobId) {
+        BatchJob job = batchService.getJob(jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        StreamingResponseBody body = out -> {
+            try {
+                batchService.streamResults(job, out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+    }
+
+    /**
+     * 取消任务
+     */
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> cancel(@PathVariable String jobId) {
+        if (!batchService.cancel(jobId)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(batchService.getJob(jobId).toSummary());
+    }
+
+    @Data
+    public static class SubmitBatchRequest {
+        private String name;
+        private String tenantId;
+        private Integer concurrency;
+        private List<ChatRequest> requests;
+    }
+}
@@ -1,16 +1,26 @@
 package com.miniagent.controller;
 
+import com.miniagent.exception.AiServiceException;
+import com.miniagent.exception.BudgetExceededException;
+import com.miniagent.exception.GlobalExceptionHandler;
+import com.miniagent.exception.RateLimitExceededException;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
+import com.miniagent.model.dto.CreateSessionRequest;
 import com.miniagent.service.AiService;
+import com.miniagent.service.QuestionCache;
+import com.miniagent.service.SessionService;
+import com.miniagent.service.stream.SseStreamService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 聊天控制器
@@ -21,25 +31,58 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ChatController {
 
     private final AiService aiService;
-    
-    // 简单的会话存储 (生产环境应使用数据库)
-    private final ConcurrentHashMap<String, ChatRequest> sessions = new ConcurrentHashMap<>();
+    private final QuestionCache questionCache;
+    private final SseStreamService sseStreamService;
+    private final SessionService sessionService;
 
-    public ChatController(AiService aiService) {
+    public ChatController(AiService aiService, QuestionCache questionCache, SseStreamService sseStreamService,
+                          SessionService sessionService) {
         this.aiService = aiService;
+        this.questionCache = questionCache;
+        this.sseStreamService = sseStreamService;
+        this.sessionService = sessionService;
     }
 
     /**
-     * 聊天接口
+     * 聊天接口. 带sessionId时messages只需包含本轮的新消息, 历史由服务端会话补全,
+     * 回复成功后连同新消息一起追加到会话
      */
     @PostMapping
     public ResponseEntity<ChatResponse> chat(@RequestBody ChatRequest request) {
         try {
             log.info("Chat request: sessionId={}", request.getSessionId());
-            
-            ChatResponse response = aiService.chat(request);
-            
+
+            SessionService.Session session = null;
+            ChatRequest effective = request;
+            if (request.getSessionId() != null && !request.getSessionId().isBlank()) {
+                if (request.getMessages() == null || request.getMessages().isEmpty()) {
+                    return ResponseEntity.badRequest().build();
+                }
+                session = sessionService.getOrCreate(request.getSessionId(), request.getSystemPrompt());
+                effective = sessionService.buildRequest(session, request);
+            }
+
+            ChatResponse response = questionCache.lookup("chat", effective).orElse(null);
+            if (response == null) {
+                response = aiService.chat(effective);
+                questionCache.store("chat", effective, response);
+            }
+            if (session != null) {
+                sessionService.appendTurn(session, request.getMessages(), response);
+            }
+
             return ResponseEntity.ok(response);
+        } catch (RateLimitExceededException e) {
+            log.warn("Chat rate limited: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMillis() / 1000)))
+                    .build();
+        } catch (BudgetExceededException e) {
+            log.warn("Chat budget exceeded: {}", e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        } catch (AiServiceException e) {
+            log.error("Chat upstream error: endpoint={}, status={}", e.getEndpoint(), e.getStatusCode());
+            return ResponseEntity.status(GlobalExceptionHandler.upstreamStatus(e)).build();
         } catch (Exception e) {
             log.error("Chat error", e);
             return ResponseEntity.internalServerError().build();
@@ -47,49 +90,26 @@ public class ChatController {
     }
 
     /**
-     * 流式聊天接口 (SSE)
+     * 流式聊天接口 (SSE), 事件类型见 SseStreamService
      */
     @PostMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public ResponseEntity<Void> chatStream(@RequestBody ChatRequest request,
-                                           org.springframework.web.servlet.mvc.method.annotation.SseEmitter emitter) {
-        try {
-            log.info("Stream chat request: sessionId={}", request.getSessionId());
-            
-            aiService.chatStream(request, new AiService.StreamCallback() {
-                @Override
-                public void onMessage(String data) {
-                    try {
-                        emitter.send(data);
-                    } catch (Exception e) {
-                        log.error("SSE send error", e);
-                    }
-                }
-
-                @Override
-                public void onComplete() {
-                    try {
-                        emitter.complete();
-                    } catch (Exception e) {
-                        log.error("SSE complete error", e);
-                    }
-                }
+    public SseEmitter chatStream(@RequestBody ChatRequest request) {
+        log.info("Stream chat request: sessionId={}", request.getSessionId());
+        return sseStreamService.stream(request);
+    }
 
-                @Override
-                public void onError(String error) {
-                    log.error("SSE error: {}", error);
-                    try {
-                        emitter.completeWithError(new RuntimeException(error));
-                    } catch (Exception e) {
-                        log.error("SSE error complete error", e);
-                    }
-                }
-            });
-            
-            return ResponseEntity.ok().build();
-        } catch (Exception e) {
-            log.error("Stream chat error", e);
-            return ResponseEntity.internalServerError().build();
-        }
+    /**
+     * 创建会话
+     */
+    @PostMapping("/session")
+    public ResponseEntity<Map<String, Object>> createSession(@RequestBody(required = false) CreateSessionRequest request) {
+        CreateSessionRequest body = request != null ? request : new CreateSessionRequest();
+        SessionService.Session session = sessionService.createSession(body.getSystemPrompt(), body.getMaxHistory());
+        Map<String, Object> result = new HashMap<>();
+        result.put("sessionId", session.getId());
+        result.put("maxHistory", session.getMaxMessages());
+        result.put("createdAt", session.getCreatedAt());
+        return ResponseEntity.ok(result);
     }
 
     /**
@@ -97,7 +117,7 @@ public class ChatController {
      */
     @DeleteMapping("/session/{sessionId}")
     public ResponseEntity<Map<String, Object>> clearSession(@PathVariable String sessionId) {
-        sessions.remove(sessionId);
+        sessionService.clearSession(sessionId);
         Map<String, Object> result = new HashMap<>();
         result.put("success", true);
         result.put("message", "Session cleared: " + sessionId);
@@ -109,10 +129,14 @@ public class ChatController {
      */
     @GetMapping("/session/{sessionId}")
     public ResponseEntity<ChatRequest> getSession(@PathVariable String sessionId) {
-        ChatRequest session = sessions.get(sessionId);
-        if (session != null) {
-            return ResponseEntity.ok(session);
+        SessionService.Session session = sessionService.getSession(sessionId);
+        if (session == null) {
+            return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.notFound().build();
+        ChatRequest history = new ChatRequest();
+        history.setSessionId(session.getId());
+        history.setSystemPrompt(session.getSystemPrompt());
+        history.setMessages(session.getMessages());
+        return ResponseEntity.ok(history);
     }
 }
@@ -0,0 +1,331 @@
+package com.miniagent.controller;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miniagent.agent.AgentService;
+import com.miniagent.config.AiProperties;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.service.AiService;
+import com.miniagent.service.StreamHandle;
+import com.miniagent.service.stream.StreamEvents;
+import jakarta.annotation.PreDestroy;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WebSocket聊天通道 - 一个连接上复用多路对话
+ *
+ * 客户端帧: {"type":"chat","id":"s1","request":{...ChatRequest}} 发起生成,
+ * {"type":"cancel","id":"s1"} 取消, {"type":"ping"} 保活.
+ * request带agentId时按该Agent对话: 使用并追加Agent历史, request.tools 按名称选用已注册的工具.
+ * 服务端帧: {"type":"delta|thinking|tool_call|tool_start|tool_result|done|error|cancelled","id":"s1",...},
+ * 事件内容与SSE接口相同. id由客户端指定, 用于区分同一连接上的多路生成.
+ *
+ * 流控: 每个连接的并发生成数有上限; 发送经过有界缓冲, 客户端读得太慢导致
+ * 缓冲超限或发送超时时关闭连接, 并取消该连接上所有进行中的生成.
+ */
+@Slf4j
+@Component
+public class ChatWebSocketHandler extends TextWebSocketHandler {
+
+    private final AiService aiService;
+    private final AgentService agentService;
+    private final AiProperties.Stream config;
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * 发起生成的线程, 与WebSocket接收线程分开
+     */
+    private final ExecutorService starters;
+
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder streamsStarted = new LongAdder();
+    private final LongAdder streamsCancelled = new LongAdder();
+    private final LongAdder streamsRejected = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder slowConsumerCloses = new LongAdder();
+
+    public ChatWebSocketHandler(AiService aiService, AgentService agentService, AiProperties aiProperties) {
+        this.aiService = aiService;
+        this.agentService = agentService;
+        this.config = aiProperties.getStream();
+        AtomicInteger threads = new AtomicInteger();
+        this.starters = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "ws-chat-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        starters.shutdownNow();
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        WebSocketSession outbound = new ConcurrentWebSocketSessionDecorator(session,
+                config.getSendTimeLimitMillis(), config.getSendBufferSizeLimit());
+        connections.put(session.getId(), new Connection(outbound));
+        totalConnections.increment();
+        log.debug("WebSocket connected: {}", session.getId());
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        Connection connection = connections.get(session.getId());
+        if (connection == null) {
+            return;
+        }
+        ClientFrame frame;
+        try {
+            frame = objectMapper.readValue(message.getPayload(), ClientFrame.class);
+        } catch (Exception e) {
+            connection.send(null, StreamEvents.ERROR, Map.of("message", "Invalid frame: " + e.getMessage()));
+            return;
+        }
+        switch (frame.getType() == null ? "" : frame.getType()) {
+            case "chat" -> startStream(connection, frame);
+            case "cancel" -> connection.cancel(frame.getId());
+            case "ping" -> connection.send(null, "pong", Map.of());
+            default -> connection.send(frame.getId(), StreamEvents.ERROR,
+                    Map.of("message", "Unknown frame type: " + frame.getType()));
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        Connection connection = connections.remove(session.getId());
+        if (connection != null) {
+            if (status.equals(CloseStatus.SESSION_NOT_RELIABLE)) {
+                slowConsumerCloses.increment();
+            }
+            connection.cancelAll();
+        }
+        log.debug("WebSocket closed: {} ({})", session.getId(), status);
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.debug("WebSocket transport error on {}: {}", session.getId(), exception.getMessage());
+    }
+
+    /**
+     * 登记后交给生成线程发起调用: 排队等待配额和并发许可可能阻塞数十秒,
+     * 不能占用接收线程, 否则同一连接上的cancel和ping都要等待
+     */
+    private void startStream(Connection connection, ClientFrame frame) {
+        String id = frame.getId();
+        ChatRequest request = frame.getRequest();
+        if (id == null || id.isEmpty() || request == null || request.getMessages() == null
+                || request.getMessages().isEmpty()) {
+            connection.send(id, StreamEvents.ERROR, Map.of("message", "chat frame requires id and request.messages"));
+            return;
+        }
+
+        Generation generation = new Generation(connection, id);
+        String rejection = connection.register(generation);
+        if (rejection != null) {
+            streamsRejected.increment();
+            connection.send(id, StreamEvents.ERROR, Map.of("message", rejection));
+            return;
+        }
+        streamsStarted.increment();
+        try {
+            starters.execute(() -> start(generation, request));
+        } catch (RejectedExecutionException e) {
+            generation.onError("Server is shutting down");
+        }
+    }
+
+    /**
+     * 带agentId时按Agent对话 (历史、工具执行), 否则直接调用模型
+     */
+    private void start(Generation generation, ChatRequest request) {
+        if (generation.finished.get()) {
+            // 开始之前已被取消
+            return;
+        }
+        try {
+            generation.attach(request.getAgentId() != null
+                    ? agentService.chatStream(request.getAgentId(), request, generation)
+                    : aiService.chatStream(request, generation));
+        } catch (RuntimeException e) {
+            generation.onError(e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("connections", connections.size());
+        stats.put("totalConnections", totalConnections.sum());
+        stats.put("activeStreams", connections.values().stream().mapToInt(c -> c.generations.size()).sum());
+        stats.put("streamsStarted", streamsStarted.sum());
+        stats.put("streamsCancelled", streamsCancelled.sum());
+        stats.put("streamsRejected", streamsRejected.sum());
+        stats.put("framesSent", framesSent.sum());
+        stats.put("slowConsumerCloses", slowConsumerCloses.sum());
+        return stats;
+    }
+
+    /**
+     * 客户端帧
+     */
+    @Data
+    public static class ClientFrame {
+        private String type;
+        private String id;
+        private ChatRequest request;
+    }
+
+    /**
+     * 一个WebSocket连接及其上进行中的生成
+     */
+    private class Connection {
+        private final WebSocketSession session;
+        private final Map<String, Generation> generations = new ConcurrentHashMap<>();
+
+        Connection(WebSocketSession session) {
+            this.session = session;
+        }
+
+        /**
+         * 登记一路生成, 超出并发上限或id重复时返回拒绝原因
+         */
+        synchronized String register(Generation generation) {
+            if (generations.containsKey(generation.id)) {
+                return "Stream id already in use: " + generation.id;
+            }
+            if (generations.size() >= config.getMaxStreamsPerConnection()) {
+                return "Too many concurrent streams on this connection";
+            }
+            generations.put(generation.id, generation);
+            return null;
+        }
+
+        void send(String id, String type, Map<String, Object> data) {
+            if (!session.isOpen()) {
+                return;
+            }
+            Map<String, Object> frame = new LinkedHashMap<>();
+            frame.put("type", type);
+            if (id != null) {
+                frame.put("id", id);
+            }
+            frame.putAll(data);
+            try {
+                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(frame)));
+                framesSent.increment();
+            } catch (Exception e) {
+                // 发送缓冲超限或超时时装饰器已关闭连接, afterConnectionClosed会取消其余生成
+                log.debug("WebSocket send failed on {}: {}", session.getId(), e.getMessage());
+            }
+        }
+
+        void cancel(String id) {
+            Generation generation = id != null ? generations.get(id) : null;
+            if (generation != null && generation.abort()) {
+                send(id, "cancelled", Map.of());
+            }
+        }
+
+        void cancelAll() {
+            generations.values().forEach(Generation::abort);
+        }
+    }
+
+    /**
+     * 连接上的一路生成
+     */
+    private class Generation implements AiService.StreamCallback {
+        private final Connection connection;
+        private final String id;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile StreamHandle handle;
+        private volatile boolean upstreamCancelled;
+        private volatile String finishReason;
+
+        Generation(Connection connection, String id) {
+            this.connection = connection;
+            this.id = id;
+        }
+
+        void attach(StreamHandle handle) {
+            this.handle = handle;
+            if (upstreamCancelled) {
+                handle.cancel();
+            }
+        }
+
+        /**
+         * 客户端取消或连接关闭: 取消上游调用. 返回是否由本次调用结束
+         */
+        boolean abort() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            connection.generations.remove(id, this);
+            streamsCancelled.increment();
+            upstreamCancelled = true;
+            StreamHandle current = handle;
+            if (current != null) {
+                current.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onMessage(String data) {
+            if (finished.get()) {
+                return;
+            }
+            String reason = StreamEvents.dispatch(data, (type, event) -> connection.send(id, type, event));
+            if (reason != null) {
+                finishReason = reason;
+            }
+        }
+
+        @Override
+        public void onEvent(String type, Map<String, Object> data) {
+            if (!finished.get()) {
+                connection.send(id, type, data);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (finished.compareAndSet(false, true)) {
+                connection.generations.remove(id, this);
+                Map<String, Object> done = new LinkedHashMap<>();
+                done.put("finishReason", finishReason);
+                connection.send(id, StreamEvents.DONE, done);
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            if (finished.compareAndSet(false, true)) {
+                connection.generations.remove(id, this);
+                connection.send(id, StreamEvents.ERROR, Map.of("message", error != null ? error : "Stream failed"));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.miniagent.controller;
+
+import com.miniagent.agent.AgentService;
+import com.miniagent.memory.ConversationSummarizer;
+import com.miniagent.memory.LongTermMemoryStore;
+import com.miniagent.service.AiService;
+import com.miniagent.service.QuestionCache;
+import com.miniagent.service.SessionService;
+import com.miniagent.service.batch.BatchService;
+import com.miniagent.service.context.PromptSegments;
+import com.miniagent.service.http.ConnectionWarmer;
+import com.miniagent.service.http.InstrumentedHttpClient;
+import com.miniagent.service.stream.SseStreamService;
+import com.miniagent.service.usage.UsageMeter;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 运行指标控制器
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    private final QuestionCache questionCache;
+    private final AiService aiService;
+    private final BatchService batchService;
+    private final UsageMeter usageMeter;
+    private final InstrumentedHttpClient httpClient;
+    private final ConnectionWarmer connectionWarmer;
+    private final SseStreamService sseStreamService;
+    private final ChatWebSocketHandler chatWebSocketHandler;
+    private final SessionService sessionService;
+    private final AgentService agentService;
+    private final ConversationSummarizer conversationSummarizer;
+    private final LongTermMemoryStore longTermMemoryStore;
+
+    public MetricsController(QuestionCache questionCache, AiService aiService, BatchService batchService,
+                             UsageMeter usageMeter, InstrumentedHttpClient httpClient,
+                             ConnectionWarmer connectionWarmer, SseStreamService sseStreamService,
+                             ChatWebSocketHandler chatWebSocketHandler, SessionService sessionService,
+                             AgentService agentService, ConversationSummarizer conversationSummarizer,
+                             LongTermMemoryStore longTermMemoryStore) {
+        this.questionCache = questionCache;
+        this.aiService = aiService;
+        this.batchService = batchService;
+        this.usageMeter = usageMeter;
+        this.httpClient = httpClient;
+        this.connectionWarmer = connectionWarmer;
+        this.sseStreamService = sseStreamService;
+        this.chatWebSocketHandler = chatWebSocketHandler;
+        this.sessionService = sessionService;
+        this.agentService = agentService;
+        this.conversationSummarizer = conversationSummarizer;
+        this.longTermMemoryStore = longTermMemoryStore;
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("questionCache", questionCache.getStats());
+        result.put("coalescing", aiService.getCoalescerStats());
+        result.put("providers", aiService.getProviderStats());
+        result.put("hedging", aiService.getHedgingStats());
+        result.put("retry", aiService.getRetryStats());
+        result.put("promptCache", aiService.getPromptCacheStats());
+        result.put("context", aiService.getContextStats());
+        result.put("rateLimit", aiService.getRateLimitStats());
+        result.put("streaming", sseStreamService.getStats());
+        result.put("websocket", chatWebSocketHandler.getStats());
+        result.put("sessions", sessionService.getStats());
+        result.put("agents", agentService.getStats());
+        result.put("memorySummarizer", conversationSummarizer.getStats());
+        result.put("longTermMemory", longTermMemoryStore.getStats());
+        result.put("promptSegments", PromptSegments.getStats());
+        result.put("batch", batchService.getStats());
+        result.put("usage", usageMeter.getStats());
+        Map<String, Object> http = new LinkedHashMap<>(httpClient.getStats());
+        http.put("prewarm", connectionWarmer.getStats());
+        result.put("http", http);
+        result.put("timestamp", System.currentTimeMillis());
+        return ResponseEntity.ok(result);
+    }
+
+    @GetMapping("/providers")
+    public ResponseEntity<List<Map<String, Object>>> providers() {
+        return ResponseEntity.ok(aiService.getProviderStats());
+    }
+
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> cache() {
+        return ResponseEntity.ok(questionCache.getStats());
+    }
+}
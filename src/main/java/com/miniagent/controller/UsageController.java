@@ -0,0 +1,46 @@
+package com.miniagent.controller;
+
+import com.miniagent.service.usage.UsageMeter;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * token用量查询控制器
+ */
+@RestController
+@RequestMapping("/api/usage")
+public class UsageController {
+
+    private final UsageMeter usageMeter;
+
+    public UsageController(UsageMeter usageMeter) {
+        this.usageMeter = usageMeter;
+    }
+
+    /**
+     * 查询用量, 如 /api/usage?day=2024-05-01&groupBy=agent
+     */
+    @GetMapping
+    public ResponseEntity<List<Map<String, Object>>> query(@RequestParam(required = false) String day,
+                                                           @RequestParam(required = false) String tenantId,
+                                                           @RequestParam(required = false) String agentId,
+                                                           @RequestParam(required = false) String sessionId,
+                                                           @RequestParam(required = false) String model,
+                                                           @RequestParam(required = false) String groupBy) {
+        return ResponseEntity.ok(usageMeter.query(day, tenantId, agentId, sessionId, model, groupBy));
+    }
+
+    /**
+     * 某个维度当天已用的token数
+     */
+    @GetMapping("/daily")
+    public ResponseEntity<Map<String, Object>> daily(@RequestParam String scope, @RequestParam String id) {
+        return ResponseEntity.ok(Map.of("scope", scope, "id", id, "tokens", usageMeter.getDailyTokens(scope, id)));
+    }
+}
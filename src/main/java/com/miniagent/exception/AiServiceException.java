@@ -0,0 +1,73 @@
+package com.miniagent.exception;
+
+/**
+ * 上游LLM调用异常
+ */
+public class AiServiceException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 上游HTTP状态码, 网络错误时为0
+     */
+    private final int statusCode;
+
+    /**
+     * 出错的端点名称
+     */
+    private final String endpoint;
+
+    /**
+     * 上游Retry-After建议的等待时间(毫秒), 未提供时为-1
+     */
+    private final long retryAfterMillis;
+
+    public AiServiceException(String message, int statusCode, String endpoint) {
+        this(message, statusCode, endpoint, -1L);
+    }
+
+    public AiServiceException(String message, int statusCode, String endpoint, long retryAfterMillis) {
+        super(message);
+        this.statusCode = statusCode;
+        this.endpoint = endpoint;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public AiServiceException(String message, int statusCode, String endpoint, Throwable cause) {
+        super(message, cause);
+        this.statusCode = statusCode;
+        this.endpoint = endpoint;
+        this.retryAfterMillis = -1L;
+    }
+
+    public int getStatusCode() { return statusCode; }
+    public String getEndpoint() { return endpoint; }
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+
+    /**
+     * 是否是请求本身的问题 (换端点也不会成功)
+     */
+    public boolean isClientError() {
+        return statusCode == 400 || statusCode == 413 || statusCode == 422;
+    }
+
+    /**
+     * 是否应计入端点健康度 (网络错误、限流和5xx)
+     */
+    public boolean isEndpointFailure() {
+        return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+    }
+
+    /**
+     * 是否是瞬时错误, 稍后重试可能成功 (网络错误、超时、限流和网关类5xx)
+     */
+    public boolean isRetryable() {
+        switch (statusCode) {
+            case 0: case 408: case 425: case 429:
+            case 500: case 502: case 503: case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
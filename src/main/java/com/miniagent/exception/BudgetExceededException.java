@@ -0,0 +1,28 @@
+package com.miniagent.exception;
+
+/**
+ * token预算超限: 租户、Agent或会话的用量已达到上限
+ */
+public class BudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 超限的维度 (tenant, agent, session)
+     */
+    private final String scope;
+
+    /**
+     * 超限的维度值
+     */
+    private final String scopeId;
+
+    public BudgetExceededException(String message, String scope, String scopeId) {
+        super(message);
+        this.scope = scope;
+        this.scopeId = scopeId;
+    }
+
+    public String getScope() { return scope; }
+    public String getScopeId() { return scopeId; }
+}
@@ -1,11 +1,13 @@
 package com.miniagent.exception;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,6 +18,72 @@ import java.util.Map;
 @RestControllerAdvice
 public class GlobalExceptionHandler {
 
+    /**
+     * 客户端已取消请求 (沿用nginx的499)
+     */
+    public static final int CLIENT_CLOSED_REQUEST = 499;
+
+    @ExceptionHandler(AiServiceException.class)
+    public ResponseEntity<Map<String, Object>> handleAiServiceException(AiServiceException e) {
+        log.error("AI service exception: endpoint={}, status={}", e.getEndpoint(), e.getStatusCode(), e);
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", e.getMessage());
+        result.put("type", "AiServiceException");
+        result.put("upstreamStatus", e.getStatusCode());
+        return ResponseEntity.status(upstreamStatus(e)).body(result);
+    }
+
+    @ExceptionHandler(RateLimitExceededException.class)
+    public ResponseEntity<Map<String, Object>> handleRateLimitExceededException(RateLimitExceededException e) {
+        log.warn("Rate limit exceeded: {}", e.getMessage());
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", e.getMessage());
+        result.put("type", "RateLimitExceededException");
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, e.getRetryAfterMillis() / 1000)))
+                .body(result);
+    }
+
+    @ExceptionHandler(BudgetExceededException.class)
+    public ResponseEntity<Map<String, Object>> handleBudgetExceededException(BudgetExceededException e) {
+        log.warn("Budget exceeded: {}", e.getMessage());
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", e.getMessage());
+        result.put("type", "BudgetExceededException");
+        result.put("scope", e.getScope());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(result);
+    }
+
+    @ExceptionHandler(RequestCancelledException.class)
+    public ResponseEntity<Map<String, Object>> handleRequestCancelledException(RequestCancelledException e) {
+        log.info("Request cancelled: {}", e.getMessage());
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", e.getMessage());
+        result.put("type", "RequestCancelledException");
+        return ResponseEntity.status(CLIENT_CLOSED_REQUEST).body(result);
+    }
+
+    /**
+     * 并发修改多次冲突仍未写入, 客户端可重试
+     */
+    @ExceptionHandler(ConcurrentModificationException.class)
+    public ResponseEntity<Map<String, Object>> handleConcurrentModificationException(ConcurrentModificationException e) {
+        log.warn("Concurrent modification: {}", e.getMessage());
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", e.getMessage());
+        result.put("type", "ConcurrentModificationException");
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(result);
+    }
+
+    /**
+     * 上游错误对应的HTTP状态: 限流透传429, 无可用端点503, 其余502
+     */
+    public static HttpStatus upstreamStatus(AiServiceException e) {
+        if (e.getStatusCode() == 429) return HttpStatus.TOO_MANY_REQUESTS;
+        if (e.getStatusCode() == 503) return HttpStatus.SERVICE_UNAVAILABLE;
+        return HttpStatus.BAD_GATEWAY;
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public ResponseEntity<Map<String, Object>> handleRuntimeException(RuntimeException e) {
         log.error("Runtime exception", e);
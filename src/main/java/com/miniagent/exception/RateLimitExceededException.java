@@ -0,0 +1,21 @@
+package com.miniagent.exception;
+
+/**
+ * 客户端限流: 请求在排队截止时间内未获得配额
+ */
+public class RateLimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 建议的重试等待时间(毫秒)
+     */
+    private final long retryAfterMillis;
+
+    public RateLimitExceededException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+}
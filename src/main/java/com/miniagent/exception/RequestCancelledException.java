@@ -0,0 +1,13 @@
+package com.miniagent.exception;
+
+/**
+ * 请求已取消: 客户端断开或主动取消, 后续的模型调用和工具执行不再进行
+ */
+public class RequestCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestCancelledException(String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,6 @@
 package com.miniagent.graph;
 
+import com.miniagent.service.CancellationToken;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
@@ -88,6 +89,13 @@ public class StateGraph {
      * 执行图
      */
     public Map<String, Object> invoke(Map<String, Object> input) {
+        return invoke(input, CancellationToken.NONE);
+    }
+
+    /**
+     * 执行图, 令牌取消后不再进入下一个节点
+     */
+    public Map<String, Object> invoke(Map<String, Object> input, CancellationToken token) {
         state.putAll(input);
         String current = startNode;
         
@@ -95,6 +103,7 @@ public class StateGraph {
         int iter = 0;
         
         while (current != null && iter < maxIterations) {
+            token.throwIfCancelled();
             iter++;
             Node node = nodes.get(current);
             
@@ -104,7 +113,7 @@ public class StateGraph {
             }
             
             log.debug("Executing node: {}", current);
-            Map<String, Object> result = node.execute(state);
+            Map<String, Object> result = node.execute(state, token);
             
             if (result != null) {
                 state.putAll(result);
@@ -151,6 +160,13 @@ public class StateGraph {
      */
     public interface Node {
         Map<String, Object> execute(Map<String, Object> state);
+
+        /**
+         * 可取消的执行, 调用Agent或模型的节点应覆盖并继续传递令牌
+         */
+        default Map<String, Object> execute(Map<String, Object> state, CancellationToken token) {
+            return execute(state);
+        }
     }
 
     /**
@@ -190,6 +206,10 @@ public class StateGraph {
             return graph.invoke(input);
         }
 
+        public Map<String, Object> invoke(Map<String, Object> input, CancellationToken token) {
+            return graph.invoke(input, token);
+        }
+
         public Map<String, Object> invokeWithHistory(Map<String, Object> input, List<Map<String, Object>> history) {
             Map<String, Object> state = new HashMap<>();
             state.put("history", history);
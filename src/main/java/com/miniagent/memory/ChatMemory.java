@@ -1,11 +1,14 @@
 package com.miniagent.memory;
 
+import com.miniagent.config.AiProperties;
+import com.miniagent.rag.TextEmbedder;
+import com.miniagent.service.usage.UsageContext;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 对话记忆 - 对标LangGraph/LangChain的ConversationMemory
@@ -15,27 +18,87 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * - 长时记忆 (持久化)
  * - 消息摘要
  * - 窗口管理
+ *
+ * 提供 ConversationSummarizer 时, 短时记忆超过token阈值(或消息数达到上限)后在后台
+ * 把较早的消息合并进滚动摘要, 保留最近的若干条原文; 摘要完成后在锁内一次性替换摘要并移除
+ * 已折叠的消息, 添加消息的线程不等待模型调用. 摘要积压时消息数超过上限的2倍才直接裁剪.
+ * 没有摘要器或 summarize=false 时超出上限直接丢弃最旧的消息.
+ *
+ * 长时记忆是按用户的向量索引 (LongTermMemory), 由 LongTermMemoryStore 提供时跨重启保留;
+ * getMessagesWithRecall 把与当前问题最相关的几条记忆注入提示词.
  */
 @Slf4j
 public class ChatMemory {
 
-    private final List<Message> messages = new CopyOnWriteArrayList<>();
+    private final Deque<Message> messages = new ArrayDeque<>();
     private final Map<String, Object> context = new ConcurrentHashMap<>();
     private final int maxMessages;
     private final boolean summarize;
-    private String summary = "";
+    private final ConversationSummarizer summarizer;
+
+    /**
+     * 摘要调用的用量归属, 为null时计入默认租户
+     */
+    private final UsageContext owner;
+    private volatile String summary = "";
+
+    /**
+     * 短时记忆的token估算, 与messages一起由this保护
+     */
+    private int messageTokens;
+
+    /**
+     * clear() 时递增, 丢弃清除前发起的摘要结果
+     */
+    private long generation;
+
+    /**
+     * 累计添加的消息数; 摘要失败后至少再添加 keepRecent 条才重试
+     */
+    private long appended;
+    private long nextAttemptAt;
+    private final AtomicBoolean summarizing = new AtomicBoolean();
     
     // 长时记忆
-    private final List<MemoryItem> longTermMemory = new CopyOnWriteArrayList<>();
+    private final LongTermMemory localMemory;
+
+    /**
+     * 按用户持久化的长时记忆, 为null时使用 localMemory. 每次访问都经存储解析, 实例被移出堆后重新加载
+     */
+    private final LongTermMemoryStore longTermStore;
+    private final String userId;
 
     public ChatMemory(int maxMessages) {
-        this.maxMessages = maxMessages;
-        this.summarize = true;
+        this(maxMessages, true);
     }
 
+    /**
+     * 长时记忆只在堆内, 不持久化
+     */
     public ChatMemory(int maxMessages, boolean summarize) {
-        this.maxMessages = maxMessages;
+        this.maxMessages = Math.max(1, maxMessages);
         this.summarize = summarize;
+        this.summarizer = null;
+        this.owner = null;
+        this.localMemory = new LongTermMemory(null, new TextEmbedder(), new AiProperties.Memory());
+        this.longTermStore = null;
+        this.userId = null;
+    }
+
+    /**
+     * 使用模型摘要较早的消息, 长时记忆使用 store 中给定用户的索引
+     * (store 或 userId 为null时只在堆内). 摘要的用量计入 owner (租户、Agent和会话)
+     */
+    public ChatMemory(int maxMessages, ConversationSummarizer summarizer, LongTermMemoryStore store,
+                      String userId, UsageContext owner) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.summarize = true;
+        this.summarizer = summarizer;
+        this.owner = owner;
+        boolean persistent = store != null && userId != null;
+        this.longTermStore = persistent ? store : null;
+        this.userId = persistent ? userId : null;
+        this.localMemory = persistent ? null : new LongTermMemory(null, new TextEmbedder(), summarizer.getConfig());
     }
 
     /**
@@ -43,21 +106,25 @@ public class ChatMemory {
      */
     public void addMessage(String role, String content) {
         Message msg = new Message(role, content);
-        messages.add(msg);
+        synchronized (this) {
+            messages.addLast(msg);
+            messageTokens += tokens(msg.getContent());
+            appended++;
+            if (summarize && summarizer != null) {
+                if (messages.size() > maxMessages * 2) {
+                    dropOldest(messages.size() - maxMessages * 2);
+                }
+            } else if (messages.size() > maxMessages) {
+                dropOldest(messages.size() - maxMessages);
+            }
+        }
         
         // 添加到长时记忆
         if (role.equals("user") || role.equals("assistant")) {
             addToLongTermMemory(role, content);
         }
-        
-        // 裁剪
-        if (messages.size() > maxMessages) {
-            if (summarize) {
-                summarizeOldMessages();
-            } else {
-                trimMessages();
-            }
-        }
+
+        maybeSummarize();
     }
 
     /**
@@ -84,24 +151,28 @@ public class ChatMemory {
     /**
      * 获取消息列表
      */
-    public List<Message> getMessages() {
+    public synchronized List<Message> getMessages() {
         return new ArrayList<>(messages);
     }
 
     /**
      * 获取最近N条消息
      */
-    public List<Message> getRecentMessages(int count) {
-        int size = messages.size();
-        int from = Math.max(0, size - count);
-        return new ArrayList<>(messages.subList(from, size));
+    public synchronized List<Message> getRecentMessages(int count) {
+        List<Message> result = new ArrayList<>(Math.min(Math.max(0, count), messages.size()));
+        Iterator<Message> it = messages.descendingIterator();
+        while (it.hasNext() && result.size() < count) {
+            result.add(it.next());
+        }
+        Collections.reverse(result);
+        return result;
     }
 
     /**
      * 获取带摘要的消息
      */
-    public List<Message> getMessagesWithSummary() {
-        List<Message> result = new ArrayList<>();
+    public synchronized List<Message> getMessagesWithSummary() {
+        List<Message> result = new ArrayList<>(messages.size() + 1);
         
         if (summary != null && !summary.isEmpty()) {
             result.add(new Message("system", "[Summary of previous conversation]: " + summary));
@@ -111,77 +182,167 @@ public class ChatMemory {
         return result;
     }
 
+    /**
+     * 带摘要和相关长时记忆的消息: 召回与query(通常是本轮用户输入)最相关的记忆,
+     * 跳过仍在短时记忆中的, 作为一条系统消息放在摘要之后
+     */
+    public List<Message> getMessagesWithRecall(String query) {
+        List<MemoryItem> recalled = longTermMemory().recall(query);
+        List<Message> result = getMessagesWithSummary();
+        if (recalled.isEmpty()) {
+            return result;
+        }
+        Set<String> recent = new HashSet<>();
+        for (Message message : result) {
+            recent.add(message.getContent());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (MemoryItem item : recalled) {
+            if (!recent.contains(item.getContent())) {
+                sb.append("- ").append(item.getRole()).append(": ").append(item.getContent()).append('\n');
+            }
+        }
+        if (sb.length() > 0) {
+            int at = summary != null && !summary.isEmpty() ? 1 : 0;
+            result.add(at, new Message("system", "[Relevant memories]:\n" + sb));
+        }
+        return result;
+    }
+
+    /**
+     * 当前的滚动摘要
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * 是否有进行中的后台摘要
+     */
+    public boolean isSummarizing() {
+        return summarizing.get();
+    }
+
     /**
      * 获取长时记忆
      */
     public List<MemoryItem> getLongTermMemory() {
-        return new ArrayList<>(longTermMemory);
+        return longTermMemory().items();
     }
 
     /**
-     * 搜索长时记忆
+     * 搜索长时记忆: 按语义相关度召回
      */
     public List<MemoryItem> searchLongTermMemory(String query) {
-        List<MemoryItem> results = new ArrayList<>();
-        String lowerQuery = query.toLowerCase();
-        
-        for (MemoryItem item : longTermMemory) {
-            if (item.getContent().toLowerCase().contains(lowerQuery)) {
-                results.add(item);
-            }
-        }
-        
-        return results;
+        return longTermMemory().recall(query);
+    }
+
+    /**
+     * 召回最相关的前topK条长时记忆
+     */
+    public List<MemoryItem> searchLongTermMemory(String query, int topK) {
+        return longTermMemory().recall(query, topK, 0.0);
     }
 
     /**
-     * 添加到长时记忆
+     * 添加到长时记忆 (由 LongTermMemory 评估重要度, 过短的忽略)
      */
     private void addToLongTermMemory(String role, String content) {
-        // 只保留重要信息
-        if (content.length() > 20) {
-            MemoryItem item = new MemoryItem(role, content);
-            longTermMemory.add(item);
+        if (longTermStore != null) {
+            longTermStore.add(userId, role, content);
+        } else {
+            localMemory.add(role, content);
         }
     }
 
+    private LongTermMemory longTermMemory() {
+        return longTermStore != null ? longTermStore.forUser(userId) : localMemory;
+    }
+
     /**
-     * 摘要旧消息
+     * 超过阈值且没有进行中的摘要时, 取出除最近 keepRecent 条以外的消息提交后台摘要
      */
-    private void summarizeOldMessages() {
-        if (messages.size() < maxMessages) return;
-        
-        // 保留最近的一半
-        int keepCount = maxMessages / 2;
-        List<Message> toSummarize = messages.subList(0, messages.size() - keepCount);
-        
-        // 简单摘要 (实际应该调用LLM)
-        StringBuilder sb = new StringBuilder();
-        for (Message msg : toSummarize) {
-            sb.append(msg.getRole()).append(": ").append(msg.getContent().substring(0, Math.min(50, msg.getContent().length()))).append("...; ");
+    private void maybeSummarize() {
+        if (!summarize || summarizer == null) {
+            return;
         }
-        
-        summary = sb.toString();
-        
-        // 移除已摘要的消息
-        toSummarize.clear();
+        List<Message> batch;
+        String base;
+        long batchGeneration;
+        synchronized (this) {
+            int keep = keepRecent();
+            boolean over = messageTokens > summarizer.getConfig().getSummarizeTokenThreshold()
+                    || messages.size() >= maxMessages;
+            if (!over || messages.size() <= keep || appended < nextAttemptAt
+                    || !summarizing.compareAndSet(false, true)) {
+                return;
+            }
+            batch = new ArrayList<>(messages.size() - keep);
+            Iterator<Message> it = messages.iterator();
+            while (batch.size() < messages.size() - keep) {
+                batch.add(it.next());
+            }
+            base = summary;
+            batchGeneration = generation;
+        }
+        summarizer.summarize(owner, base, batch).whenComplete((result, error) -> {
+            synchronized (this) {
+                if (error != null) {
+                    nextAttemptAt = appended + keepRecent();
+                } else if (batchGeneration == generation) {
+                    applySummary(batch, result);
+                }
+            }
+            summarizing.set(false);
+            if (error == null) {
+                // 摘要期间可能又超过了阈值
+                maybeSummarize();
+            }
+        });
+    }
+
+    /**
+     * 替换摘要并移除已折叠的消息. 摘要期间被兜底裁剪掉的消息已不在队首, 跳过即可
+     */
+    private void applySummary(List<Message> batch, String result) {
+        for (Message folded : batch) {
+            if (messages.peekFirst() != folded) {
+                continue;
+            }
+            messages.pollFirst();
+            messageTokens -= tokens(folded.getContent());
+        }
+        summary = result;
+        log.debug("Folded {} message(s) into summary ({} chars)", batch.size(), result.length());
+    }
+
+    private int keepRecent() {
+        return Math.max(1, Math.min(summarizer.getConfig().getKeepRecentMessages(), maxMessages / 2));
     }
 
     /**
-     * 裁剪消息
+     * 丢弃最旧的消息
      */
-    private void trimMessages() {
-        int removeCount = messages.size() - maxMessages + 1;
-        for (int i = 0; i < removeCount && !messages.isEmpty(); i++) {
-            messages.remove(0);
+    private void dropOldest(int count) {
+        for (int i = 0; i < count && !messages.isEmpty(); i++) {
+            messageTokens -= tokens(messages.pollFirst().getContent());
+        }
+    }
+
+    private int tokens(String text) {
+        if (text == null) {
+            return 0;
         }
+        return summarizer != null ? summarizer.countTokens(text) : text.length() / 4;
     }
 
     /**
      * 清除所有记忆
      */
-    public void clear() {
+    public synchronized void clear() {
         messages.clear();
+        messageTokens = 0;
+        generation++;
         summary = "";
     }
 
@@ -189,28 +350,25 @@ public class ChatMemory {
      * 清除长时记忆
      */
     public void clearLongTermMemory() {
-        longTermMemory.clear();
+        if (longTermStore != null) {
+            longTermStore.delete(userId);
+        } else {
+            localMemory.clear();
+        }
     }
 
     /**
      * 获取大小
      */
-    public int size() {
+    public synchronized int size() {
         return messages.size();
     }
 
     /**
      * 获取令牌数(估算)
      */
-    public int estimateTokens() {
-        int tokens = 0;
-        for (Message msg : messages) {
-            tokens += msg.getContent().length() / 4; // 简单估算
-        }
-        if (summary != null) {
-            tokens += summary.length() / 4;
-        }
-        return tokens;
+    public synchronized int estimateTokens() {
+        return messageTokens + tokens(summary);
     }
 
     // 数据类
@@ -234,10 +392,35 @@ public class ChatMemory {
         private final long timestamp;
         private final Map<String, Object> metadata = new HashMap<>();
 
+        /**
+         * 重要度 (0-1), 与最近访问时间一起决定淘汰顺序
+         */
+        private volatile double importance = 0.5;
+        private volatile long lastAccessAt;
+
+        /**
+         * 最近一次被召回时与查询的相似度
+         */
+        private volatile double score;
+
         public MemoryItem(String role, String content) {
+            this(role, content, System.currentTimeMillis());
+        }
+
+        public MemoryItem(String role, String content, long timestamp) {
             this.role = role;
             this.content = content;
-            this.timestamp = System.currentTimeMillis();
+            this.timestamp = timestamp;
+            this.lastAccessAt = timestamp;
+        }
+
+        /**
+         * 被召回或强化时刷新访问时间
+         */
+        public void touch(long now) {
+            if (now > lastAccessAt) {
+                lastAccessAt = now;
+            }
         }
 
         public void addMetadata(String key, Object value) {
@@ -3,24 +3,38 @@ package com.miniagent.memory;
 import com.miniagent.model.ChatRequest;
 import lombok.Data;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Supplier;
 
 /**
  * 对话记忆 - 管理对话历史
  * 对标 Qwen-Agent 的 memory 模块
+ *
+ * 消息保存在固定容量的环形缓冲中, 追加和淘汰最旧消息都是O(1).
+ * 每条消息在追加时转换一次为 ChatRequest.Message. toChatMessages / getRecentMessages / getMessages
+ * 返回环形缓冲上的只读视图, 读取不复制; 视图随之后的修改变化, 修改后继续遍历旧迭代器或子列表会抛出
+ * ConcurrentModificationException, 需要快照时由调用方复制.
+ * 返回的消息对象是共享的, 调用方不应修改. 非线程安全, 与所属Agent在同一线程使用.
  */
-@Data
 public class ConversationMemory {
 
-    private List<Message> messages;
-    private int maxSize;
+    private Message[] entries;
+    private ChatRequest.Message[] converted;
+    private int head;
+    private int count;
     private String summary;
 
+    private final RingView<ChatRequest.Message> chatView = new RingView<>(() -> converted);
+    private final RingView<Message> messageView = new RingView<>(() -> entries);
+
     public ConversationMemory(int maxSize) {
-        this.maxSize = maxSize;
-        this.messages = new LinkedList<>();
+        int capacity = Math.max(1, maxSize);
+        this.entries = new Message[capacity];
+        this.converted = new ChatRequest.Message[capacity];
     }
 
     public ConversationMemory() {
@@ -49,61 +63,139 @@ public class ConversationMemory {
     }
 
     /**
-     * 添加消息
+     * 添加消息, 缓冲已满时覆盖最旧的一条
      */
     private void addMessage(String role, String content) {
         Message msg = new Message(role, content);
-        messages.add(msg);
-        
-        // 裁剪
-        while (messages.size() > maxSize) {
-            messages.remove(0);
+        ChatRequest.Message chat = new ChatRequest.Message();
+        chat.setRole(role);
+        chat.setContent(content);
+
+        int capacity = entries.length;
+        int slot = (head + count) % capacity;
+        entries[slot] = msg;
+        converted[slot] = chat;
+        if (count < capacity) {
+            count++;
+        } else {
+            head = (head + 1) % capacity;
         }
+        modified();
     }
 
     /**
      * 获取消息列表 (转换为ChatRequest格式)
      */
     public List<ChatRequest.Message> toChatMessages() {
-        List<ChatRequest.Message> result = new ArrayList<>();
-        for (Message msg : messages) {
-            ChatRequest.Message m = new ChatRequest.Message();
-            m.setRole(msg.getRole());
-            m.setContent(msg.getContent());
-            result.add(m);
-        }
-        return result;
+        return chatView;
     }
 
     /**
      * 获取最近N条消息
      */
     public List<ChatRequest.Message> getRecentMessages(int count) {
-        List<ChatRequest.Message> result = new ArrayList<>();
-        int start = Math.max(0, messages.size() - count);
-        for (int i = start; i < messages.size(); i++) {
-            Message msg = messages.get(i);
-            ChatRequest.Message m = new ChatRequest.Message();
-            m.setRole(msg.getRole());
-            m.setContent(msg.getContent());
-            result.add(m);
-        }
-        return result;
+        List<ChatRequest.Message> all = toChatMessages();
+        int start = Math.max(0, all.size() - Math.max(0, count));
+        return all.subList(start, all.size());
+    }
+
+    /**
+     * 获取原始消息 (按时间顺序, 只读)
+     */
+    public List<Message> getMessages() {
+        return messageView;
     }
 
     /**
      * 清除记忆
      */
     public void clear() {
-        messages.clear();
+        Arrays.fill(entries, null);
+        Arrays.fill(converted, null);
+        head = 0;
+        count = 0;
         summary = null;
+        modified();
     }
 
     /**
      * 获取大小
      */
     public int size() {
-        return messages.size();
+        return count;
+    }
+
+    public int getMaxSize() {
+        return entries.length;
+    }
+
+    /**
+     * 调整容量, 缩小时保留最新的消息
+     */
+    public void setMaxSize(int maxSize) {
+        int capacity = Math.max(1, maxSize);
+        if (capacity == entries.length) {
+            return;
+        }
+        Message[] keptEntries = ordered(entries);
+        ChatRequest.Message[] keptConverted = ordered(converted);
+        int kept = Math.min(count, capacity);
+        entries = Arrays.copyOfRange(keptEntries, count - kept, count - kept + capacity);
+        converted = Arrays.copyOfRange(keptConverted, count - kept, count - kept + capacity);
+        head = 0;
+        count = kept;
+        modified();
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public void setSummary(String summary) {
+        this.summary = summary;
+    }
+
+    private void modified() {
+        chatView.modified();
+        messageView.modified();
+    }
+
+    /**
+     * 从最旧到最新复制出环形缓冲中的有效元素, 只用于调整容量
+     */
+    private <T> T[] ordered(T[] ring) {
+        T[] result = Arrays.copyOf(ring, count);
+        int firstPart = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, result, 0, firstPart);
+        System.arraycopy(ring, 0, result, firstPart, count - firstPart);
+        return result;
+    }
+
+    /**
+     * 环形缓冲上按时间顺序的只读视图. 容量调整会替换数组, 因此每次读取都取当前数组
+     */
+    private final class RingView<T> extends AbstractList<T> implements RandomAccess {
+        private final Supplier<T[]> ring;
+
+        RingView(Supplier<T[]> ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public T get(int index) {
+            Objects.checkIndex(index, count);
+            T[] array = ring.get();
+            return array[(head + index) % array.length];
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        void modified() {
+            modCount++;
+        }
     }
 
     /**
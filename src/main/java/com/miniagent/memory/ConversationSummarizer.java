@@ -0,0 +1,193 @@
+package com.miniagent.memory;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.model.ChatResponse;
+import com.miniagent.service.AiService;
+import com.miniagent.service.context.TokenCounter;
+import com.miniagent.service.usage.UsageContext;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 对话摘要器 - 在后台线程上调用模型, 把新的对话增量合并进已有摘要
+ *
+ * 每次只发送上一版摘要和本次要折叠的消息, 不重读整段历史, 成本与新增内容成正比.
+ * 队列满时立即以 RejectedExecutionException 失败, 调用方保留原消息稍后再试.
+ * 也用于给 SummaryMemory 的条目打重要度分, 与摘要共用线程和队列.
+ * 调用方传入所属的 UsageContext, 模型调用的用量计入对应的租户、Agent和会话 (为null时计入默认租户).
+ */
+@Slf4j
+@Component
+public class ConversationSummarizer {
+
+    private static final String SYSTEM_PROMPT = "You maintain a running summary of a conversation. "
+            + "Merge the new messages into the existing summary. Keep facts, decisions, user preferences, "
+            + "names, numbers and open tasks; drop greetings and filler. Write in the language of the conversation. "
+            + "Reply with the updated summary only.";
+    private static final String RATE_PROMPT = "Rate how important it is to remember the following note "
+            + "in future conversations, from 0 (trivial small talk) to 10 (critical facts, preferences or commitments). "
+            + "Reply with the number only.";
+    private static final Pattern NUMBER = Pattern.compile("\\d+(\\.\\d+)?");
+
+    private final AiService aiService;
+    private final TokenCounter tokenCounter;
+    private final AiProperties.Memory config;
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder foldedMessages = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final LongAdder ratings = new LongAdder();
+    private final LongAdder ratingFailures = new LongAdder();
+
+    public ConversationSummarizer(AiService aiService, TokenCounter tokenCounter, AiProperties aiProperties) {
+        this.aiService = aiService;
+        this.tokenCounter = tokenCounter;
+        this.config = aiProperties.getMemory();
+        int threads = Math.max(1, config.getSummarizerThreads());
+        AtomicInteger sequence = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getQueueSize())), r -> {
+                    Thread thread = new Thread(r, "memory-summarizer-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 异步把 messages 合并进 previousSummary, 返回新的摘要
+     */
+    public CompletableFuture<String> summarize(UsageContext owner, String previousSummary,
+                                               List<ChatMemory.Message> messages) {
+        try {
+            return CompletableFuture.supplyAsync(() -> run(owner, previousSummary, messages), executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 异步让模型给一条记忆的重要度打分, 返回0-1, 用于 SummaryMemory.setImportance
+     */
+    public CompletableFuture<Double> rateImportance(UsageContext owner, String content) {
+        try {
+            return CompletableFuture.supplyAsync(() -> rate(owner, content), executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * 估算文本的token数
+     */
+    public int countTokens(String text) {
+        return tokenCounter.count(text);
+    }
+
+    public AiProperties.Memory getConfig() {
+        return config;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long count = runs.sum();
+        stats.put("runs", count);
+        stats.put("failures", failures.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("foldedMessages", foldedMessages.sum());
+        stats.put("avgMillis", count > 0 ? totalMillis.sum() / count : 0);
+        stats.put("ratings", ratings.sum());
+        stats.put("ratingFailures", ratingFailures.sum());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        return stats;
+    }
+
+    private String run(UsageContext owner, String previousSummary, List<ChatMemory.Message> messages) {
+        long start = System.currentTimeMillis();
+        runs.increment();
+        try {
+            StringBuilder prompt = new StringBuilder();
+            if (previousSummary != null && !previousSummary.isEmpty()) {
+                prompt.append("Existing summary:\n").append(previousSummary).append("\n\n");
+            }
+            prompt.append("New messages:\n");
+            for (ChatMemory.Message message : messages) {
+                prompt.append(message.getRole()).append(": ").append(message.getContent()).append('\n');
+            }
+
+            ChatRequest request = new ChatRequest();
+            request.setSystemPrompt(SYSTEM_PROMPT);
+            request.setMessages(List.of(new ChatRequest.Message("user", prompt.toString(), null, null)));
+            request.setTemperature(0.2);
+            request.setMaxTokens(config.getSummaryMaxTokens());
+            attribute(request, owner);
+            ChatResponse response = aiService.chat(request);
+            String summary = response.getContent();
+            if (summary == null || summary.isBlank()) {
+                throw new IllegalStateException("Empty summary");
+            }
+            foldedMessages.add(messages.size());
+            return summary.trim();
+        } catch (RuntimeException e) {
+            failures.increment();
+            log.warn("Summarizing {} message(s) failed: {}", messages.size(), e.getMessage());
+            throw e;
+        } finally {
+            totalMillis.add(System.currentTimeMillis() - start);
+        }
+    }
+
+    private double rate(UsageContext owner, String content) {
+        try {
+            ChatRequest request = new ChatRequest();
+            request.setSystemPrompt(RATE_PROMPT);
+            request.setMessages(List.of(new ChatRequest.Message("user", content, null, null)));
+            request.setTemperature(0.0);
+            request.setMaxTokens(8);
+            attribute(request, owner);
+            String reply = aiService.chat(request).getContent();
+            Matcher matcher = NUMBER.matcher(reply != null ? reply : "");
+            if (!matcher.find()) {
+                throw new IllegalStateException("Unexpected rating: " + reply);
+            }
+            ratings.increment();
+            return Math.max(0, Math.min(10, Double.parseDouble(matcher.group()))) / 10;
+        } catch (RuntimeException e) {
+            ratingFailures.increment();
+            log.debug("Rating memory importance failed: {}", e.getMessage());
+            throw e;
+        }
+    }
+
+    private static void attribute(ChatRequest request, UsageContext owner) {
+        if (owner != null) {
+            owner.applyTo(request);
+        }
+    }
+}
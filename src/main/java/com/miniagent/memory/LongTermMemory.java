@@ -0,0 +1,349 @@
+package com.miniagent.memory;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.rag.Embedder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 单个用户的长时记忆 - 向量索引 + 重要度 + 时间衰减
+ *
+ * 向量按行连续存放在一个float数组中, 召回时顺序扫描做点积并维护前K名,
+ * 每用户条数有上限, 2000条x256维一次召回约50万次乘加, 亚毫秒级, 不需要近似索引.
+ * 数组按需倍增到上限, 条目少的用户不预占空间.
+ * 新增时与已有记忆几乎重复(相似度>=0.95)则以新文本替换该条目 (如更正后的偏好), 沿用较高的重要度.
+ * 满时淘汰保留分最低的条目,
+ * 保留分 = 重要度 x 0.5^(距最近访问的时间/半衰期), 被召回会刷新访问时间.
+ * 召回可以并发, 新增和淘汰持写锁. 被 LongTermMemoryStore 移出堆的实例标记为已退役, 不再接受新增.
+ *
+ * 相似度取决于 Embedder. 默认的 TextEmbedder 是字面特征哈希, 召回的是用词相近的记忆而不是语义相近的,
+ * 换了说法的问题可能召回不到; 查重阈值和 recallMinSimilarity 的默认值按它调整, 换用embedding模型时需重新设定.
+ */
+public class LongTermMemory {
+
+    private static final double DUPLICATE_SIMILARITY = 0.95;
+    private static final int MIN_CHARS = 20;
+    private static final int INITIAL_ROWS = 16;
+    private static final String[] SALIENT_CUES = {
+            "remember", "prefer", "my name", "i am", "i'm", "always", "never", "don't", "important", "deadline",
+            "记住", "喜欢", "讨厌", "我叫", "我是", "偏好", "重要", "总是", "不要", "截止"
+    };
+
+    private final String userId;
+    private final Embedder embedder;
+    private final int capacity;
+    private final int dimension;
+    private final long halfLifeMillis;
+    private final int recallTopK;
+    private final double recallMinSimilarity;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private float[] vectors;
+    private ChatMemory.MemoryItem[] items;
+    private int count;
+    private boolean retired;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public LongTermMemory(String userId, Embedder embedder, AiProperties.Memory config) {
+        this.userId = userId;
+        this.embedder = embedder;
+        this.capacity = Math.max(1, config.getLongTermMaxItems());
+        this.dimension = embedder.getDimension();
+        this.halfLifeMillis = Math.max(1L, (long) (config.getDecayHalfLifeDays() * 24 * 3600 * 1000));
+        this.recallTopK = config.getRecallTopK();
+        this.recallMinSimilarity = config.getRecallMinSimilarity();
+        int rows = Math.min(this.capacity, INITIAL_ROWS);
+        this.vectors = new float[rows * dimension];
+        this.items = new ChatMemory.MemoryItem[rows];
+    }
+
+    /**
+     * 评估并写入一条消息, 太短的忽略. 返回写入的条目, 忽略或实例已退役时返回null
+     */
+    public ChatMemory.MemoryItem add(String role, String content) {
+        if (content == null || content.trim().length() < MIN_CHARS) {
+            return null;
+        }
+        ChatMemory.MemoryItem item = new ChatMemory.MemoryItem(role, content);
+        item.setImportance(importance(role, content));
+        return put(item, embedder.embed(content), true);
+    }
+
+    /**
+     * 恢复已有条目 (从磁盘加载时使用, 不再查重)
+     */
+    void restore(ChatMemory.MemoryItem item) {
+        put(item, embedder.embed(item.getContent()), false);
+    }
+
+    /**
+     * 按配置的条数和相似度下限召回
+     */
+    public List<ChatMemory.MemoryItem> recall(String query) {
+        return recall(query, recallTopK, recallMinSimilarity);
+    }
+
+    /**
+     * 召回与query最相关的前topK条, 相似度低于minSimilarity的不返回. 结果按相似度从高到低
+     */
+    public List<ChatMemory.MemoryItem> recall(String query, int topK, double minSimilarity) {
+        if (query == null || query.isEmpty() || topK <= 0) {
+            return List.of();
+        }
+        float[] q = embedder.embed(query);
+        int[] best = new int[topK];
+        double[] bestScores = new double[topK];
+        int found = 0;
+        List<ChatMemory.MemoryItem> result;
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                double score = dot(q, i);
+                if (score < minSimilarity || (found == topK && score <= bestScores[found - 1])) {
+                    continue;
+                }
+                // 插入到有序的前K名中
+                int pos = found < topK ? found++ : topK - 1;
+                while (pos > 0 && bestScores[pos - 1] < score) {
+                    best[pos] = best[pos - 1];
+                    bestScores[pos] = bestScores[pos - 1];
+                    pos--;
+                }
+                best[pos] = i;
+                bestScores[pos] = score;
+            }
+            result = new ArrayList<>(found);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < found; i++) {
+                ChatMemory.MemoryItem item = items[best[i]];
+                item.setScore(bestScores[i]);
+                item.touch(now);
+                result.add(item);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 子串搜索 (兼容旧接口)
+     */
+    public List<ChatMemory.MemoryItem> search(String keyword) {
+        String lower = keyword.toLowerCase(Locale.ROOT);
+        List<ChatMemory.MemoryItem> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (items[i].getContent().toLowerCase(Locale.ROOT).contains(lower)) {
+                    result.add(items[i]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * 所有条目 (顺序不固定)
+     */
+    public List<ChatMemory.MemoryItem> items() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(Arrays.asList(items).subList(0, count));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(items, 0, count, null);
+            count = 0;
+            dirty.set(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 移出堆时标记, 之后的新增被拒绝 (由 LongTermMemoryStore.add 换用重新加载的实例)
+     */
+    void retire() {
+        lock.writeLock().lock();
+        try {
+            retired = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean isRetired() {
+        lock.readLock().lock();
+        try {
+            return retired;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 取出并清除修改标记, 持久化时使用
+     */
+    boolean takeDirty() {
+        return dirty.getAndSet(false);
+    }
+
+    void markDirty() {
+        dirty.set(true);
+    }
+
+    /**
+     * 估算占用的内存: 向量数组 + 文本
+     */
+    long estimateBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 16L + vectors.length * 4L + items.length * 8L;
+            for (int i = 0; i < count; i++) {
+                bytes += 64 + items[i].getContent().length() * 2L;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ChatMemory.MemoryItem put(ChatMemory.MemoryItem item, float[] vector, boolean dedupe) {
+        lock.writeLock().lock();
+        try {
+            if (retired) {
+                return null;
+            }
+            int duplicate = dedupe ? mostSimilar(vector) : -1;
+            if (duplicate >= 0) {
+                // 新的说法可能是更正, 以新文本为准
+                ChatMemory.MemoryItem existing = items[duplicate];
+                item.setImportance(Math.max(existing.getImportance(), item.getImportance()));
+                item.touch(existing.getLastAccessAt());
+                existing.getMetadata().forEach(item.getMetadata()::putIfAbsent);
+                items[duplicate] = item;
+                System.arraycopy(vector, 0, vectors, duplicate * dimension, dimension);
+                dirty.set(true);
+                return item;
+            }
+            if (count == items.length && count < capacity) {
+                int rows = Math.min(capacity, count * 2);
+                items = Arrays.copyOf(items, rows);
+                vectors = Arrays.copyOf(vectors, rows * dimension);
+            }
+            int slot = count < capacity ? count++ : evictionCandidate(System.currentTimeMillis());
+            items[slot] = item;
+            System.arraycopy(vector, 0, vectors, slot * dimension, dimension);
+            dirty.set(true);
+            return item;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int mostSimilar(float[] vector) {
+        int best = -1;
+        double bestScore = DUPLICATE_SIMILARITY;
+        for (int i = 0; i < count; i++) {
+            double score = dot(vector, i);
+            if (score >= bestScore) {
+                best = i;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 保留分最低的条目
+     */
+    private int evictionCandidate(long now) {
+        int victim = 0;
+        double lowest = Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            double retention = retention(items[i], now);
+            if (retention < lowest) {
+                lowest = retention;
+                victim = i;
+            }
+        }
+        return victim;
+    }
+
+    private double retention(ChatMemory.MemoryItem item, long now) {
+        double age = Math.max(0, now - item.getLastAccessAt());
+        return item.getImportance() * Math.pow(0.5, age / halfLifeMillis);
+    }
+
+    /**
+     * 点积, 四路累加打破依赖链, 便于JIT向量化
+     */
+    private double dot(float[] query, int row) {
+        float[] data = vectors;
+        int offset = row * dimension;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 3 < dimension; j += 4) {
+            s0 += query[j] * data[offset + j];
+            s1 += query[j + 1] * data[offset + j + 1];
+            s2 += query[j + 2] * data[offset + j + 2];
+            s3 += query[j + 3] * data[offset + j + 3];
+        }
+        for (; j < dimension; j++) {
+            s0 += query[j] * data[offset + j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * 重要度 (0-1): 用户说的比助手说的重要, 含偏好、身份、约束等提示词或数字的更重要, 长一些的略重要
+     */
+    static double importance(String role, String content) {
+        double score = "user".equals(role) ? 0.5 : 0.3;
+        String lower = content.toLowerCase(Locale.ROOT);
+        for (String cue : SALIENT_CUES) {
+            if (lower.contains(cue)) {
+                score += 0.2;
+                break;
+            }
+        }
+        for (int i = 0; i < content.length(); i++) {
+            if (Character.isDigit(content.charAt(i))) {
+                score += 0.1;
+                break;
+            }
+        }
+        score += Math.min(0.2, content.length() / 1000.0);
+        return Math.min(1.0, score);
+    }
+}
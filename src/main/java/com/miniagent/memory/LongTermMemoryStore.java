@@ -0,0 +1,230 @@
+package com.miniagent.memory;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.rag.Embedder;
+import com.miniagent.rag.TextEmbedder;
+import com.miniagent.service.session.ExpiringStore;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 长时记忆存储 - 按用户管理 LongTermMemory, 持久化到本地目录
+ *
+ * 每个用户一个文件, 只保存文本、重要度和时间, 加载时重新向量化, 文件小且与向量维度和 Embedder 无关.
+ * 向量化使用容器中的 Embedder bean, 没有时用本地哈希向量 (TextEmbedder, 很快, 但只反映字面重合);
+ * 换成调用模型的 Embedder 后加载一个用户要逐条请求模型. 修改过的用户由后台线程定期整文件重写(先写临时文件再原子替换),
+ * 空闲或超出用户数上限被移出堆时立即写入, 关闭时全部写入.
+ * 移出堆的实例随即退役, 调用方不要长期持有 forUser 返回的实例: 每次访问都经 forUser 解析, 写入用 add.
+ */
+@Slf4j
+@Component
+public class LongTermMemoryStore {
+
+    private static final int MAGIC = 0x4C544D31;
+    private static final String FILE_SUFFIX = ".mem";
+
+    private final AiProperties.Memory config;
+    private final Embedder embedder;
+    private final Path dir;
+    private final ExpiringStore<LongTermMemory> users;
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public LongTermMemoryStore(AiProperties aiProperties, ObjectProvider<Embedder> embedders) {
+        this.config = aiProperties.getMemory();
+        this.embedder = embedders.getIfAvailable(TextEmbedder::new);
+        this.dir = Paths.get(config.getLongTermDir());
+        this.users = new ExpiringStore<>("long-term-memory", config.getLongTermIdleTimeoutSeconds() * 1000,
+                config.getLongTermMaxUsers(), 0, 60, LongTermMemory::estimateBytes, null,
+                (userId, memory, cause) -> {
+                    // 先退役再写盘, 之后的新增转到重新加载的实例, 不会写进已写盘的旧实例
+                    memory.retire();
+                    if (memory.takeDirty()) {
+                        save(memory);
+                    }
+                });
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "long-term-memory-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, config.getLongTermFlushIntervalSeconds());
+        flusher.scheduleWithFixedDelay(this::flushDirty, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        users.close();
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushDirty();
+    }
+
+    /**
+     * 用户的长时记忆, 首次访问时从磁盘加载
+     */
+    public LongTermMemory forUser(String userId) {
+        return users.computeIfAbsent(userId, this::load);
+    }
+
+    /**
+     * 写入用户的长时记忆. 实例恰好在写入前被移出堆时重新加载后再写
+     */
+    public ChatMemory.MemoryItem add(String userId, String role, String content) {
+        while (true) {
+            LongTermMemory memory = forUser(userId);
+            ChatMemory.MemoryItem item = memory.add(role, content);
+            if (item != null || !memory.isRetired()) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * 删除用户的全部长时记忆
+     */
+    public void delete(String userId) {
+        LongTermMemory memory = users.remove(userId);
+        if (memory != null) {
+            memory.retire();
+            memory.takeDirty();
+        }
+        try {
+            Files.deleteIfExists(fileFor(userId));
+        } catch (IOException e) {
+            errors.increment();
+            log.warn("Failed to delete long-term memory of {}: {}", userId, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(users.getStats());
+        stats.put("loaded", loaded.sum());
+        stats.put("written", written.sum());
+        stats.put("errors", errors.sum());
+        return stats;
+    }
+
+    private void flushDirty() {
+        try {
+            users.snapshot().values().forEach(memory -> {
+                if (memory.takeDirty()) {
+                    save(memory);
+                }
+            });
+        } catch (Exception e) {
+            log.warn("Long-term memory flush failed: {}", e.getMessage());
+        }
+    }
+
+    private LongTermMemory load(String userId) {
+        LongTermMemory memory = new LongTermMemory(userId, embedder, config);
+        Path file = fileFor(userId);
+        if (!Files.exists(file)) {
+            return memory;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || !userId.equals(in.readUTF())) {
+                throw new IOException("Not a long-term memory file of " + userId);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String role = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                ChatMemory.MemoryItem item = new ChatMemory.MemoryItem(role,
+                        new String(content, StandardCharsets.UTF_8), in.readLong());
+                item.setLastAccessAt(in.readLong());
+                item.setImportance(in.readDouble());
+                memory.restore(item);
+            }
+            memory.takeDirty();
+            loaded.increment();
+        } catch (IOException e) {
+            errors.increment();
+            log.warn("Failed to load long-term memory of {}, starting empty: {}", userId, e.getMessage());
+        }
+        return memory;
+    }
+
+    /**
+     * 同一用户的写入串行执行 (后台刷新和淘汰可能同时触发)
+     */
+    private void save(LongTermMemory memory) {
+        synchronized (memory) {
+            write(memory);
+        }
+    }
+
+    private void write(LongTermMemory memory) {
+        Path file = fileFor(memory.getUserId());
+        List<ChatMemory.MemoryItem> items = memory.items();
+        try {
+            Files.createDirectories(dir);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(memory.getUserId());
+                out.writeInt(items.size());
+                for (ChatMemory.MemoryItem item : items) {
+                    out.writeUTF(item.getRole());
+                    byte[] content = item.getContent().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(content.length);
+                    out.write(content);
+                    out.writeLong(item.getTimestamp());
+                    out.writeLong(item.getLastAccessAt());
+                    out.writeDouble(item.getImportance());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written.increment();
+        } catch (IOException e) {
+            // 下次再写
+            memory.markDirty();
+            errors.increment();
+            log.warn("Failed to write long-term memory of {}: {}", memory.getUserId(), e.getMessage());
+        }
+    }
+
+    /**
+     * 文件名用用户ID的哈希, 避免路径注入和非法字符
+     */
+    private Path fileFor(String userId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(userId.getBytes(StandardCharsets.UTF_8));
+            return dir.resolve(HexFormat.of().formatHex(digest, 0, 16) + FILE_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
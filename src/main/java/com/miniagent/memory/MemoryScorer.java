@@ -0,0 +1,51 @@
+package com.miniagent.memory;
+
+/**
+ * 记忆评分 - 决定 SummaryMemory 满时先淘汰哪一条
+ *
+ * 返回条目的保留优先级, 越小越先淘汰. 优先级只能由条目自身的状态算出, 不依赖当前时间:
+ * 时间衰减写成对数形式 (最近访问时间 x ln2 / 半衰期), 随时间推移所有条目同比例衰减, 相对顺序不变,
+ * 因此条目只在自身变化时重新计算并调整在堆中的位置.
+ * 各评分都在对数空间, 用 plus 组合相当于各因子相乘.
+ */
+@FunctionalInterface
+public interface MemoryScorer {
+
+    double priority(SummaryMemory.MemoryItem item);
+
+    /**
+     * 组合两个评分 (对数相加, 即因子相乘)
+     */
+    default MemoryScorer plus(MemoryScorer other) {
+        return item -> priority(item) + other.priority(item);
+    }
+
+    /**
+     * 按最近访问时间指数衰减, 每过一个半衰期权重减半
+     */
+    static MemoryScorer recency(long halfLifeMillis) {
+        double rate = Math.log(2) / Math.max(1, halfLifeMillis);
+        return item -> item.getLastAccessAt() * rate;
+    }
+
+    /**
+     * 访问次数越多越重要, 对数增长
+     */
+    static MemoryScorer frequency() {
+        return item -> Math.log1p(item.getAccessCount());
+    }
+
+    /**
+     * 条目的重要度 (0-1, 可由模型打分后设置)
+     */
+    static MemoryScorer importance() {
+        return item -> Math.log(Math.max(1e-3, item.getImportance()));
+    }
+
+    /**
+     * 默认: 重要度 x 访问频率 x 按一天半衰期的时间衰减
+     */
+    static MemoryScorer weighted() {
+        return importance().plus(frequency()).plus(recency(24 * 3600 * 1000L));
+    }
+}
@@ -1,25 +1,56 @@
 package com.miniagent.memory;
 
-import lombok.Data;
+import lombok.Getter;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 摘要记忆 - 自动总结对话要点
  * 对标 Qwen-Agent 的 virtual_memory_agent
+ *
+ * 条目按保留优先级(由 MemoryScorer 计算, 默认综合重要度、访问频率和时间衰减)放在最小堆中,
+ * 超过 maxItems 时弹出堆顶, 淘汰和条目变化后的调整都是O(log n). 另按加入顺序保存一份,
+ * 用于输出. 格式化结果缓存起来, 只在内容变化后的下一次读取时重建, 每轮对话读取不再拼接字符串.
+ * 重要度可以在模型打分后异步设置, 因此所有修改都加锁.
  */
-@Data
 public class SummaryMemory {
 
+    public static final double DEFAULT_IMPORTANCE = 0.5;
+
+    private final MemoryScorer scorer;
     private String summary;
-    private List<MemoryItem> items;
     private int maxItems;
 
+    /**
+     * 按加入顺序, 键为序号
+     */
+    private final Map<Long, MemoryItem> chronological = new LinkedHashMap<>();
+
+    /**
+     * 按 (优先级, 序号) 排列的最小堆
+     */
+    private MemoryItem[] heap;
+    private int size;
+    private long nextSequence;
+
+    /**
+     * getFormattedMemory 的缓存, 修改后置空
+     */
+    private volatile String formatted;
+
+    public SummaryMemory(int maxItems, MemoryScorer scorer) {
+        this.maxItems = Math.max(1, maxItems);
+        this.scorer = scorer;
+        this.heap = new MemoryItem[Math.min(this.maxItems, 16) + 1];
+    }
+
     public SummaryMemory(int maxItems) {
-        this.maxItems = maxItems;
-        this.items = new ArrayList<>();
+        this(maxItems, MemoryScorer.weighted());
     }
 
     public SummaryMemory() {
@@ -29,63 +60,250 @@ public class SummaryMemory {
     /**
      * 添加记忆项
      */
-    public void add(String content) {
-        MemoryItem item = new MemoryItem(content);
-        items.add(item);
-        
-        // 裁剪
-        while (items.size() > maxItems) {
-            // 移除最老的
-            items.sort(Comparator.comparingLong(MemoryItem::getTimestamp));
-            if (!items.isEmpty()) {
-                items.remove(0);
-            }
+    public MemoryItem add(String content) {
+        return add(content, DEFAULT_IMPORTANCE);
+    }
+
+    /**
+     * 添加记忆项并指定重要度 (0-1), 超出上限时淘汰优先级最低的
+     */
+    public synchronized MemoryItem add(String content, double importance) {
+        MemoryItem item = new MemoryItem(content, nextSequence++, clamp(importance));
+        item.priority = scorer.priority(item);
+        chronological.put(item.sequence, item);
+        offer(item);
+        while (size > maxItems) {
+            remove(heap[0]);
+        }
+        formatted = null;
+        return item;
+    }
+
+    /**
+     * 更新重要度 (例如模型打分返回后), 条目已被淘汰时忽略
+     */
+    public synchronized void setImportance(MemoryItem item, double importance) {
+        if (item.heapIndex < 0) {
+            return;
         }
+        item.importance = clamp(importance);
+        reprioritize(item);
+    }
+
+    /**
+     * 记录一次使用, 提高访问频率并刷新访问时间
+     */
+    public synchronized void touch(MemoryItem item) {
+        if (item.heapIndex < 0) {
+            return;
+        }
+        item.accessCount++;
+        item.lastAccessAt = System.currentTimeMillis();
+        reprioritize(item);
     }
 
     /**
      * 更新摘要
      */
-    public void updateSummary(String summary) {
+    public synchronized void updateSummary(String summary) {
         this.summary = summary;
+        formatted = null;
+    }
+
+    public void setSummary(String summary) {
+        updateSummary(summary);
+    }
+
+    public synchronized String getSummary() {
+        return summary;
+    }
+
+    /**
+     * 按加入顺序的条目 (只读副本)
+     */
+    public synchronized List<MemoryItem> getItems() {
+        return Collections.unmodifiableList(new ArrayList<>(chronological.values()));
+    }
+
+    public synchronized int getMaxItems() {
+        return maxItems;
+    }
+
+    /**
+     * 调整上限, 缩小时按优先级淘汰
+     */
+    public synchronized void setMaxItems(int maxItems) {
+        this.maxItems = Math.max(1, maxItems);
+        boolean changed = false;
+        while (size > this.maxItems) {
+            remove(heap[0]);
+            changed = true;
+        }
+        if (changed) {
+            formatted = null;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
     }
 
     /**
-     * 获取所有记忆 (用于构建prompt)
+     * 获取所有记忆 (用于构建prompt), 未变化时直接返回缓存
      */
     public String getFormattedMemory() {
+        String cached = formatted;
+        if (cached != null) {
+            return cached;
+        }
+        synchronized (this) {
+            if (formatted == null) {
+                formatted = format();
+            }
+            return formatted;
+        }
+    }
+
+    /**
+     * 清除记忆
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            heap[i].heapIndex = -1;
+            heap[i] = null;
+        }
+        size = 0;
+        chronological.clear();
+        summary = null;
+        formatted = null;
+    }
+
+    private String format() {
         StringBuilder sb = new StringBuilder();
-        
+
         if (summary != null && !summary.isEmpty()) {
             sb.append("Summary:\n").append(summary).append("\n\n");
         }
-        
-        if (!items.isEmpty()) {
+
+        if (!chronological.isEmpty()) {
             sb.append("Recent interactions:\n");
-            for (MemoryItem item : items) {
+            for (MemoryItem item : chronological.values()) {
                 sb.append("- ").append(item.getContent()).append("\n");
             }
         }
-        
+
         return sb.toString();
     }
 
+    private void reprioritize(MemoryItem item) {
+        item.priority = scorer.priority(item);
+        int index = item.heapIndex;
+        siftUp(index);
+        if (item.heapIndex == index) {
+            siftDown(index);
+        }
+    }
+
+    private void offer(MemoryItem item) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = item;
+        item.heapIndex = size;
+        size++;
+        siftUp(size - 1);
+    }
+
+    private void remove(MemoryItem item) {
+        int index = item.heapIndex;
+        size--;
+        MemoryItem last = heap[size];
+        heap[size] = null;
+        item.heapIndex = -1;
+        chronological.remove(item.sequence);
+        if (index < size) {
+            heap[index] = last;
+            last.heapIndex = index;
+            siftUp(index);
+            if (last.heapIndex == index) {
+                siftDown(index);
+            }
+        }
+    }
+
+    private void siftUp(int index) {
+        MemoryItem item = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(item, heap[parent])) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(item, index);
+    }
+
+    private void siftDown(int index) {
+        MemoryItem item = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && before(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!before(heap[child], item)) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(item, index);
+    }
+
+    private void place(MemoryItem item, int index) {
+        heap[index] = item;
+        item.heapIndex = index;
+    }
+
     /**
-     * 清除记忆
+     * 优先级低的先淘汰, 相同时先淘汰较早加入的
      */
-    public void clear() {
-        items.clear();
-        summary = null;
+    private static boolean before(MemoryItem a, MemoryItem b) {
+        int cmp = Double.compare(a.priority, b.priority);
+        return cmp != 0 ? cmp < 0 : a.sequence < b.sequence;
     }
 
-    @Data
+    private static double clamp(double importance) {
+        return Double.isNaN(importance) ? DEFAULT_IMPORTANCE : Math.max(0, Math.min(1, importance));
+    }
+
+    /**
+     * 记忆项. 内容和创建时间不变, 重要度和访问统计通过 SummaryMemory 修改
+     */
     public static class MemoryItem {
+        @Getter
         private final String content;
+        @Getter
         private final long timestamp;
+        @Getter
+        private volatile double importance;
+        @Getter
+        private volatile int accessCount;
+        @Getter
+        private volatile long lastAccessAt;
+
+        private final long sequence;
+        private double priority;
+        private int heapIndex = -1;
 
-        public MemoryItem(String content) {
+        MemoryItem(String content, long sequence, double importance) {
             this.content = content;
             this.timestamp = System.currentTimeMillis();
+            this.lastAccessAt = timestamp;
+            this.sequence = sequence;
+            this.importance = importance;
         }
     }
 }
@@ -40,6 +40,16 @@ public class ChatRequest {
      */
     private String sessionId;
 
+    /**
+     * 租户ID (可选, 用于限流)
+     */
+    private String tenantId;
+
+    /**
+     * Agent ID (可选, 用于用量归属)
+     */
+    private String agentId;
+
     /**
      * 工具列表 (可选)
      */
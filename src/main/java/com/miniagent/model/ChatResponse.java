@@ -34,6 +34,11 @@ public class ChatResponse {
      */
     private Integer totalTokens;
 
+    /**
+     * 命中provider前缀缓存的输入token
+     */
+    private Integer cachedTokens;
+
     /**
      * 完成原因 (stop, length, etc.)
      */
@@ -0,0 +1,17 @@
+package com.miniagent.rag;
+
+/**
+ * 文本向量化 - 对标LangChain的Embeddings
+ *
+ * 返回L2归一化的向量, 点积即余弦相似度. 默认实现是本地特征哈希 (TextEmbedder), 只反映字面重合;
+ * 需要语义召回时注册一个调用embedding模型的实现为bean.
+ */
+public interface Embedder {
+
+    /**
+     * 生成归一化向量, 长度为 getDimension()
+     */
+    float[] embed(String text);
+
+    int getDimension();
+}
@@ -0,0 +1,122 @@
+package com.miniagent.rag;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * 本地文本向量化 - 基于特征哈希 (feature hashing)
+ *
+ * 将字符n-gram和词映射到固定维度的向量并做L2归一化, 无需调用外部embedding模型.
+ * 相似度只反映字面重合, 适合检索排序; 一词之差(如否定、数字)的文本相似度仍然很高,
+ * 不能用来判断两段文本含义相同.
+ */
+public class TextEmbedder implements Embedder {
+
+    public static final int DEFAULT_DIMENSION = 256;
+
+    private final int dimension;
+
+    public TextEmbedder() {
+        this(DEFAULT_DIMENSION);
+    }
+
+    public TextEmbedder(int dimension) {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("dimension must be positive");
+        }
+        this.dimension = dimension;
+    }
+
+    /**
+     * 生成归一化向量
+     */
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[dimension];
+        if (text == null || text.isEmpty()) {
+            return vector;
+        }
+
+        String normalized = normalize(text);
+
+        // 字符3-gram: 对中文和拼写变化更稳健
+        String padded = " " + normalized + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            addFeature(vector, padded.substring(i, i + 3), 1.0f);
+        }
+
+        // 词特征: 权重更高
+        for (String token : normalized.split(" ")) {
+            if (!token.isEmpty()) {
+                addFeature(vector, "w:" + token, 2.0f);
+            }
+        }
+
+        normalizeL2(vector);
+        return vector;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * 余弦相似度 (输入需已归一化)
+     */
+    public static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) return 0;
+        double dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    private void addFeature(float[] vector, String feature, float weight) {
+        int hash = murmurMix(feature);
+        int index = Math.floorMod(hash, dimension);
+        // 用哈希的另一位决定符号, 降低碰撞带来的偏差
+        vector[index] += ((hash >>> 31) == 0) ? weight : -weight;
+    }
+
+    private static String normalize(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean lastSpace = false;
+        for (char c : text.toLowerCase(Locale.ROOT).toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+                lastSpace = false;
+            } else if (!lastSpace && sb.length() > 0) {
+                sb.append(' ');
+                lastSpace = true;
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static void normalizeL2(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        if (norm == 0) return;
+        float inv = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] *= inv;
+        }
+    }
+
+    private static int murmurMix(String s) {
+        int h = 0x9747b28c;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x5bd1e995;
+            h ^= h >>> 15;
+        }
+        h ^= h >>> 13;
+        h *= 0x5bd1e995;
+        h ^= h >>> 15;
+        return h;
+    }
+}
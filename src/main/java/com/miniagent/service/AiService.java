@@ -2,17 +2,46 @@ package com.miniagent.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.miniagent.config.AiProperties;
+import com.miniagent.exception.AiServiceException;
+import com.miniagent.exception.RateLimitExceededException;
+import com.miniagent.exception.RequestCancelledException;
 import com.miniagent.model.ChatRequest;
 import com.miniagent.model.ChatResponse;
+import com.miniagent.service.context.ContextBudgeter;
+import com.miniagent.service.context.TokenCounter;
+import com.miniagent.service.provider.HedgingPolicy;
+import com.miniagent.service.provider.ProviderEndpoint;
+import com.miniagent.service.provider.ProviderPool;
+import com.miniagent.service.provider.RetryPolicy;
+import com.miniagent.service.ratelimit.AdaptiveConcurrencyLimiter;
+import com.miniagent.service.ratelimit.RateLimiter;
+import com.miniagent.service.usage.UsageContext;
+import com.miniagent.service.usage.UsageMeter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * AI服务 - 支持多种LLM provider
@@ -24,64 +53,504 @@ public class AiService {
     private final AiProperties aiProperties;
     private final ObjectMapper objectMapper;
     private final HttpClient httpClient;
+    private final RequestCoalescer coalescer;
+    private final ProviderPool providerPool;
+    private final HedgingPolicy hedgingPolicy;
+    private final RateLimiter rateLimiter;
+    private final RetryPolicy retryPolicy;
+    private final UsageMeter usageMeter;
+    private final ContextBudgeter contextBudgeter;
+    private final TokenCounter tokenCounter;
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder cachedPromptTokens = new LongAdder();
+    private final LongAdder streamsCancelled = new LongAdder();
 
-    public AiService(AiProperties aiProperties) {
+    /**
+     * 读取流式响应的线程. 逐行读取会阻塞到流结束, 不能占用HTTP客户端的回调线程,
+     * 否则回调线程有上限时, 正在读取的流会饿死投递数据的回调
+     */
+    private final ExecutorService streamExecutor;
+
+    /**
+     * 执行合并后的非流式调用. 调用不属于任何一个参与者, 一个参与者取消不会中断其他参与者共享的调用
+     */
+    private final ExecutorService callExecutor;
+
+    public AiService(AiProperties aiProperties, UsageMeter usageMeter, ContextBudgeter contextBudgeter,
+                     TokenCounter tokenCounter, HttpClient httpClient) {
         this.aiProperties = aiProperties;
+        this.usageMeter = usageMeter;
+        this.contextBudgeter = contextBudgeter;
+        this.tokenCounter = tokenCounter;
         this.objectMapper = new ObjectMapper();
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofMillis(aiProperties.getTimeout()))
-                .build();
+        this.httpClient = httpClient;
+        this.providerPool = new ProviderPool(aiProperties);
+        this.hedgingPolicy = new HedgingPolicy(aiProperties.getHedging());
+        this.rateLimiter = new RateLimiter(aiProperties.getRateLimit());
+        this.retryPolicy = new RetryPolicy(aiProperties.getRetry());
+        AtomicInteger streamThreads = new AtomicInteger();
+        this.streamExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "ai-stream-" + streamThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger callThreads = new AtomicInteger();
+        this.callExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "ai-call-" + callThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.coalescer = new RequestCoalescer(callExecutor);
     }
 
     /**
      * 发送聊天请求
      */
     public ChatResponse chat(ChatRequest request) {
+        return chat(request, CancellationToken.NONE);
+    }
+
+    /**
+     * 可取消的聊天请求: 取消时中断排队等待和退避, 并中止进行中的HTTP交换.
+     *
+     * 请求体相同的并发请求(不论租户、Agent和会话)合并为一次上游调用, 每个参与者各自通过预算检查和
+     * 租户限流, 结果的用量计入每个参与者. 合并的调用在 callExecutor 上执行: 参与者取消时只是自己退出,
+     * 所有参与者都退出后才中止上游调用. 加入的请求最多等待自己的排队时间加一次请求超时
+     */
+    public ChatResponse chat(ChatRequest request, CancellationToken token) {
+        token.throwIfCancelled();
+        Map<String, Object> body = buildRequestBody(request);
+        CancellationToken.Registration registration = token.interruptOnCancel();
         try {
-            Map<String, Object> body = buildRequestBody(request);
-            String requestBody = objectMapper.writeValueAsString(body);
-            
-            String endpoint = aiProperties.getChatEndpoint();
-            log.debug("Calling AI: {} with model: {}", endpoint, aiProperties.getModel());
+            Admission admission = admit(request, body);
+            ChatResponse response;
+            if (Boolean.TRUE.equals(aiProperties.getCoalesceRequests())) {
+                long deadlineNanos = admission.deadlineNanos
+                        + TimeUnit.MILLISECONDS.toNanos(aiProperties.getTimeout());
+                response = coalescer.execute(coalesceKey("chat", body), deadlineNanos,
+                        () -> routeWithRetry(body, admission));
+            } else {
+                response = routeWithRetry(body, admission);
+            }
+            usageMeter.record(admission.usage, response.getModel(), response.getInputTokens(),
+                    response.getOutputTokens(), response.getCachedTokens());
+            settleTenant(admission, response);
+            return response;
+        } catch (RuntimeException e) {
+            if (token.isCancelled()) {
+                throw new RequestCancelledException("Request cancelled: " + token.getReason());
+            }
+            throw e;
+        } finally {
+            registration.close();
+        }
+    }
+
+    /**
+     * 瞬时失败(所有端点都失败后)按退避策略整体重试
+     */
+    private ChatResponse routeWithRetry(Map<String, Object> body, Admission admission) {
+        if (!retryPolicy.isEnabled()) {
+            return route(body, admission);
+        }
+        retryPolicy.onRequest();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ChatResponse response = route(body, admission);
+                if (attempt > 1) {
+                    retryPolicy.onRecovered();
+                }
+                return response;
+            } catch (AiServiceException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // 请求已取消, 不再重试
+                    throw e;
+                }
+                long backoff = retryPolicy.backoffMillis(e, attempt);
+                if (backoff < 0) {
+                    throw e;
+                }
+                log.warn("AI request failed ({}), retrying in {}ms (attempt {})", e.getMessage(), backoff, attempt + 1);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 预算检查和租户级限流, 并确定本次请求的排队截止时间
+     */
+    private Admission admit(ChatRequest request, Map<String, Object> body) {
+        UsageContext usage = UsageContext.of(request);
+        usageMeter.checkBudget(usage);
+        int estimatedTokens = estimateTokens(body);
+        long deadlineNanos = rateLimiter.deadlineNanos();
+        rateLimiter.acquireTenant(request.getTenantId(), estimatedTokens, deadlineNanos);
+        return new Admission(usage, estimatedTokens, deadlineNanos);
+    }
+
+    /**
+     * 获取端点的熔断许可和限流配额
+     */
+    private boolean acquire(ProviderEndpoint endpoint, Admission admission, boolean blocking) {
+        if (!endpoint.tryAcquire(System.currentTimeMillis())) {
+            return false;
+        }
+        if (!rateLimiter.acquireProvider(endpoint, admission.estimatedTokens, admission.deadlineNanos, blocking)) {
+            endpoint.release();
+            admission.throttled = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 按端点池顺序尝试, 失败时故障转移到下一个端点
+     */
+    private ChatResponse route(Map<String, Object> body, Admission admission) {
+        List<ProviderEndpoint> candidates = providerPool.candidates();
+        AiServiceException last = null;
+        int index = 0;
 
-            HttpRequest httpRequest = HttpRequest.newBuilder()
-                    .uri(URI.create(endpoint))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer " + aiProperties.getApiKey())
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .timeout(Duration.ofMillis(aiProperties.getTimeout()))
-                    .build();
+        if (hedgingPolicy.isEnabled()) {
+            try {
+                return routeHedged(candidates, body, admission);
+            } catch (HedgeFailure e) {
+                // 对冲的请求都失败了, 继续尝试剩余端点
+                last = e.failure;
+                index = e.nextIndex;
+            }
+        }
 
-            HttpResponse<String> response = httpClient.send(httpRequest, 
-                    HttpResponse.BodyHandlers.ofString());
+        for (; index < candidates.size(); index++) {
+            ProviderEndpoint endpoint = candidates.get(index);
+            if (!acquire(endpoint, admission, true)) {
+                continue;
+            }
+            try {
+                return await(sendAsync(endpoint, body, admission.estimatedTokens));
+            } catch (AiServiceException e) {
+                if (e.isClientError() || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                last = e;
+                log.warn("AI endpoint {} failed ({}), trying next endpoint", endpoint.getName(), e.getMessage());
+            }
+        }
+        if (last != null) {
+            throw last;
+        }
+        if (admission.throttled) {
+            throw new RateLimitExceededException("Provider rate limit exceeded", 1000);
+        }
+        throw new AiServiceException("No available AI endpoint", 503, null);
+    }
 
-            if (response.statusCode() == 200) {
+    /**
+     * 对冲请求: 主请求超过分位延迟未返回时向下一个端点(或同一端点)发出备份请求,
+     * 取先成功的结果并取消另一个
+     */
+    private ChatResponse routeHedged(List<ProviderEndpoint> candidates, Map<String, Object> body,
+                                     Admission admission) {
+        int index = 0;
+        while (index < candidates.size() && !acquire(candidates.get(index), admission, true)) {
+            index++;
+        }
+        if (index >= candidates.size()) {
+            throw new HedgeFailure(null, index);
+        }
+
+        ProviderEndpoint primaryEndpoint = candidates.get(index++);
+        hedgingPolicy.onPrimary();
+        CompletableFuture<ChatResponse> primary = sendAsync(primaryEndpoint, body, admission.estimatedTokens);
+
+        try {
+            return primary.get(hedgingPolicy.hedgeDelayMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // 继续对冲
+        } catch (ExecutionException e) {
+            AiServiceException cause = unwrap(e);
+            if (cause.isClientError()) {
+                throw cause;
+            }
+            throw new HedgeFailure(cause, index);
+        } catch (InterruptedException e) {
+            primary.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AiServiceException("AI request interrupted", 0, primaryEndpoint.getName(), e);
+        }
+
+        if (!hedgingPolicy.tryAcquireHedge()) {
+            try {
+                return await(primary);
+            } catch (AiServiceException e) {
+                if (e.isClientError()) {
+                    throw e;
+                }
+                throw new HedgeFailure(e, index);
+            }
+        }
+
+        // 备份端点: 优先下一个候选, 没有则复用主端点
+        ProviderEndpoint backupEndpoint = null;
+        while (index < candidates.size()) {
+            ProviderEndpoint candidate = candidates.get(index++);
+            if (acquire(candidate, admission, false)) {
+                backupEndpoint = candidate;
+                break;
+            }
+        }
+        if (backupEndpoint == null && acquire(primaryEndpoint, admission, false)) {
+            backupEndpoint = primaryEndpoint;
+        }
+        if (backupEndpoint == null) {
+            try {
+                return await(primary);
+            } catch (AiServiceException e) {
+                if (e.isClientError()) {
+                    throw e;
+                }
+                throw new HedgeFailure(e, index);
+            }
+        }
+
+        log.debug("Hedging request: primary={} backup={}", primaryEndpoint.getName(), backupEndpoint.getName());
+        CompletableFuture<ChatResponse> backup = sendAsync(backupEndpoint, body, admission.estimatedTokens);
+        CompletableFuture<ChatResponse> winner = firstSuccess(primary, backup);
+        try {
+            ChatResponse response = await(winner);
+            if (backup.isDone() && !backup.isCompletedExceptionally()) {
+                hedgingPolicy.onHedgeWin();
+            }
+            return response;
+        } catch (AiServiceException e) {
+            if (e.isClientError()) {
+                throw e;
+            }
+            throw new HedgeFailure(e, index);
+        } finally {
+            primary.cancel(true);
+            backup.cancel(true);
+        }
+    }
+
+    /**
+     * 两个请求中第一个成功的结果; 都失败时以后失败的异常结束
+     */
+    private static CompletableFuture<ChatResponse> firstSuccess(CompletableFuture<ChatResponse> a,
+                                                              CompletableFuture<ChatResponse> b) {
+        CompletableFuture<ChatResponse> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<ChatResponse> future : List.of(a, b)) {
+            future.whenComplete((response, error) -> {
+                if (error == null) {
+                    result.complete(response);
+                } else if (failures.incrementAndGet() == 2) {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 异步向单个端点发送请求, 完成时更新端点健康度、释放限流名额并按实际用量结算token配额 (调用前需已acquire)
+     */
+    private CompletableFuture<ChatResponse> sendAsync(ProviderEndpoint endpoint, Map<String, Object> baseBody,
+                                                      int estimatedTokens) {
+        AiProperties.Endpoint config = endpoint.getConfig();
+        long start = System.nanoTime();
+
+        CompletableFuture<HttpResponse<String>> http;
+        try {
+            String requestBody = toJson(bodyFor(config, baseBody, false));
+            log.debug("Calling AI: {} with model: {}", config.getChatEndpoint(), config.getModel());
+            http = httpClient.sendAsync(buildHttpRequest(config, requestBody), HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            endpoint.release();
+            rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.IGNORE, 0);
+            throw e;
+        }
+
+        CompletableFuture<ChatResponse> result = http.handle((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                throw new CompletionException(new AiServiceException(
+                        "AI service error: " + cause.getMessage(), 0, endpoint.getName(), cause));
+            }
+            if (response.statusCode() != 200) {
+                log.error("AI API error: {} - {}", response.statusCode(), response.body());
+                throw new CompletionException(new AiServiceException(
+                        "AI API error: " + response.statusCode() + " - " + response.body(),
+                        response.statusCode(), endpoint.getName(), retryAfterMillis(response.headers())));
+            }
+            try {
                 return parseResponse(response.body());
+            } catch (Exception e) {
+                throw new CompletionException(new AiServiceException(
+                        "Invalid AI response: " + e.getMessage(), 502, endpoint.getName(), e));
+            }
+        });
+
+        result.whenComplete((response, error) -> {
+            long latencyMs = (System.nanoTime() - start) / 1_000_000;
+            if (error == null) {
+                endpoint.recordSuccess(latencyMs);
+                hedgingPolicy.recordLatency(latencyMs);
+                Integer used = usedTokens(response);
+                if (used != null) {
+                    rateLimiter.settleProvider(endpoint, estimatedTokens, used);
+                }
+                rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, latencyMs);
+            } else if (result.isCancelled() || isCancellation(error)) {
+                // 对冲输掉或调用方取消的请求: 中止HTTP交换, 不计入失败
+                http.cancel(true);
+                endpoint.release();
+                rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.IGNORE, latencyMs);
             } else {
-                log.error("AI API error: {} - {}", response.statusCode(), response.body());
-                throw new RuntimeException("AI API error: " + response.statusCode() + " - " + response.body());
+                AiServiceException failure = unwrap(error);
+                recordFailure(endpoint, failure);
+                rateLimiter.releaseProvider(endpoint, outcomeOf(failure), latencyMs);
             }
-            
+        });
+        return result;
+    }
+
+    private static ChatResponse await(CompletableFuture<ChatResponse> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AiServiceException("AI request interrupted", 0, null, e);
+        }
+    }
+
+    private static boolean isCancellation(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static AiServiceException unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof AiServiceException) {
+            return (AiServiceException) cause;
+        }
+        return new AiServiceException("AI service error: " + cause.getMessage(), 0, null, cause);
+    }
+
+    private HttpRequest buildHttpRequest(AiProperties.Endpoint config, String requestBody) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(config.getChatEndpoint()))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + config.getApiKey())
+                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                .timeout(Duration.ofMillis(aiProperties.getTimeout()))
+                .build();
+    }
+
+    /**
+     * 解析Retry-After头 (秒数或HTTP日期), 没有或无法解析时返回-1
+     */
+    private static long retryAfterMillis(HttpHeaders headers) {
+        Optional<String> value = headers.firstValue("Retry-After");
+        if (value.isEmpty()) {
+            return -1;
+        }
+        String text = value.get().trim();
+        try {
+            return Math.max(0, (long) (Double.parseDouble(text) * 1000));
+        } catch (NumberFormatException e) {
+            // 非数字, 按HTTP日期解析
+        }
+        try {
+            ZonedDateTime at = ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
         } catch (Exception e) {
-            log.error("AI service error", e);
-            throw new RuntimeException("AI service error: " + e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    private void recordFailure(ProviderEndpoint endpoint, AiServiceException e) {
+        if (e.isEndpointFailure()) {
+            endpoint.recordFailure(System.currentTimeMillis());
+        } else {
+            endpoint.release();
+        }
+    }
+
+    private static AdaptiveConcurrencyLimiter.Outcome outcomeOf(AiServiceException e) {
+        return e.getStatusCode() == 429
+                ? AdaptiveConcurrencyLimiter.Outcome.DROPPED
+                : AdaptiveConcurrencyLimiter.Outcome.IGNORE;
+    }
+
+    /**
+     * 预估请求token数: 只算输入消息. 输出token数在调用结束后按实际用量补扣,
+     * 不按max_tokens预扣, 否则TPM配额被远大于实际的输出上限占满
+     */
+    private int estimateTokens(Map<String, Object> body) {
+        long input = 0;
+        Object messages = body.get("messages");
+        if (messages instanceof List) {
+            for (Object message : (List<?>) messages) {
+                Object content = ((Map<?, ?>) message).get("content");
+                input += TokenCounter.MESSAGE_OVERHEAD + (content != null ? tokenCounter.count(content.toString()) : 0);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, input);
+    }
+
+    /**
+     * 上游报告的总token数, 未报告时返回null
+     */
+    private static Integer usedTokens(ChatResponse response) {
+        if (response.getTotalTokens() != null) {
+            return response.getTotalTokens();
         }
+        if (response.getInputTokens() == null && response.getOutputTokens() == null) {
+            return null;
+        }
+        return (response.getInputTokens() != null ? response.getInputTokens() : 0)
+                + (response.getOutputTokens() != null ? response.getOutputTokens() : 0);
     }
 
     /**
-     * 构建请求体
+     * 按实际用量结算调用方租户的token配额
+     */
+    private void settleTenant(Admission admission, ChatResponse usage) {
+        Integer used = usedTokens(usage);
+        if (used != null) {
+            rateLimiter.settleTenant(admission.usage.getTenantId(), admission.estimatedTokens, used);
+        }
+    }
+
+    /**
+     * 构建请求体 (与端点无关的部分)
+     *
+     * 字段和工具都按固定顺序输出, 相同的前缀每次序列化出相同的字节, 以命中provider的前缀缓存
      */
     private Map<String, Object> buildRequestBody(ChatRequest request) {
-        Map<String, Object> body = new HashMap<>();
-        body.put("model", aiProperties.getModel());
-        body.put("max_tokens", request.getMaxTokens() != null ? request.getMaxTokens() : aiProperties.getMaxTokens());
+        Map<String, Object> body = new LinkedHashMap<>();
+        Integer maxTokens = request.getMaxTokens() != null ? request.getMaxTokens() : aiProperties.getMaxTokens();
+        body.put("max_tokens", maxTokens);
         body.put("temperature", request.getTemperature() != null ? request.getTemperature() : aiProperties.getTemperature());
-        
-        // DeepSeek支持
-        if ("deepseek".equalsIgnoreCase(aiProperties.getProvider())) {
-            body.put("stream", false);
-        }
-        
+
         List<Map<String, Object>> messages = new ArrayList<>();
         
         // 系统提示
@@ -90,18 +559,37 @@ public class AiService {
             systemPrompt = aiProperties.getSystemPrompt();
         }
         if (systemPrompt != null && !systemPrompt.isEmpty()) {
-            Map<String, Object> systemMsg = new HashMap<>();
+            Map<String, Object> systemMsg = new LinkedHashMap<>();
             systemMsg.put("role", "system");
             systemMsg.put("content", systemPrompt);
             messages.add(systemMsg);
         }
         
+        List<Map<String, Object>> tools = null;
+        if (request.getTools() != null && !request.getTools().isEmpty()) {
+            tools = convertTools(request.getTools());
+        }
+
+        // 按上下文预算裁剪历史
+        List<ChatRequest.Message> history = request.getMessages();
+        if (history != null && contextBudgeter.isEnabled()) {
+            int budget = contextBudgeter.availableTokens(systemPrompt, tools != null ? toJson(tools) : null,
+                    maxTokens != null ? maxTokens : 0);
+            history = contextBudgeter.fit(history, budget);
+        }
+
         // 用户消息
-        if (request.getMessages() != null) {
-            for (ChatRequest.Message msg : request.getMessages()) {
-                Map<String, Object> messageMap = new HashMap<>();
+        if (history != null) {
+            for (ChatRequest.Message msg : history) {
+                Map<String, Object> messageMap = new LinkedHashMap<>();
                 messageMap.put("role", msg.getRole());
                 messageMap.put("content", msg.getContent());
+                if (msg.getToolCalls() != null && !msg.getToolCalls().isEmpty()) {
+                    messageMap.put("tool_calls", convertToolCalls(msg.getToolCalls()));
+                }
+                if (msg.getToolCallId() != null) {
+                    messageMap.put("tool_call_id", msg.getToolCallId());
+                }
                 messages.add(messageMap);
             }
         }
@@ -109,61 +597,240 @@ public class AiService {
         body.put("messages", messages);
         
         // 添加工具
-        if (request.getTools() != null && !request.getTools().isEmpty()) {
-            body.put("tools", convertTools(request.getTools()));
-            if ("deepseek".equalsIgnoreCase(aiProperties.getProvider())) {
-                body.put("parallel_tool_calls", true);
-            }
+        if (tools != null) {
+            body.put("tools", tools);
         }
-        
+
         return body;
     }
 
     /**
-     * 发送流式请求
+     * 补充端点相关的字段 (模型名、provider差异)
      */
-    public void chatStream(ChatRequest request, StreamCallback callback) {
+    private Map<String, Object> bodyFor(AiProperties.Endpoint config, Map<String, Object> baseBody, boolean stream) {
+        Map<String, Object> body = new LinkedHashMap<>(baseBody);
+        body.put("model", config.getModel());
+        body.put("stream", stream);
+
+        // DeepSeek支持
+        if ("deepseek".equalsIgnoreCase(config.getProvider()) && body.containsKey("tools")) {
+            body.put("parallel_tool_calls", true);
+        }
+
+        // 流式调用在最后一块返回用量
+        if (stream && ("deepseek".equalsIgnoreCase(config.getProvider())
+                || "openai".equalsIgnoreCase(config.getProvider()))) {
+            body.put("stream_options", Map.of("include_usage", true));
+        }
+        return body;
+    }
+
+    /**
+     * 发送流式请求. 返回的句柄用于在客户端断开时取消上游调用
+     */
+    public StreamHandle chatStream(ChatRequest request, StreamCallback callback) {
+        Map<String, Object> body;
+        Admission admission;
         try {
-            Map<String, Object> body = buildRequestBody(request);
-            body.put("stream", true);
+            body = buildRequestBody(request);
+            admission = admit(request, body);
+        } catch (Exception e) {
+            log.error("AI stream service error", e);
+            callback.onError(e.getMessage());
+            return new StreamHandle();
+        }
 
-            String requestBody = objectMapper.writeValueAsString(body);
-            
-            HttpRequest httpRequest = HttpRequest.newBuilder()
-                    .uri(URI.create(aiProperties.getChatEndpoint()))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer " + aiProperties.getApiKey())
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                    .timeout(Duration.ofMillis(aiProperties.getTimeout()))
-                    .build();
-
-            httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofLines())
-                    .thenAccept(response -> {
-                        response.body().forEach(line -> {
-                            if (line.startsWith("data: ")) {
-                                String data = line.substring(6);
-                                if (!data.equals("[DONE]")) {
-                                    try {
-                                        callback.onMessage(data);
-                                    } catch (Exception e) {
-                                        log.error("Stream callback error", e);
+        // 用量按订阅者计量: 合并时上游报告的用量扇出给每个订阅者, 计入各自的租户、Agent和会话
+        StreamCallback metered = new MeteredCallback(admission, callback);
+        if (!Boolean.TRUE.equals(aiProperties.getCoalesceRequests())) {
+            StreamHandle handle = new StreamHandle();
+            streamAttempt(providerPool.candidates(), 0, body, admission, metered, handle, null);
+            return handle;
+        }
+        return coalescer.subscribe(coalesceKey("stream", body), metered,
+                (fanOut, upstream) -> streamAttempt(providerPool.candidates(), 0, body, admission, fanOut,
+                        upstream, null));
+    }
+
+    /**
+     * 合并key: 调用方式加上请求体. 请求体不含用量归属, 不同租户、Agent或会话的相同请求共享一次调用;
+     * 参与者本来就发送了相同的内容, 共享结果不会泄露其他租户的数据
+     */
+    private String coalesceKey(String scope, Map<String, Object> body) {
+        return RequestCoalescer.keyOf(scope, toJson(body));
+    }
+
+    /**
+     * 流式调用: 在收到第一块数据之前失败时故障转移到下一个端点
+     */
+    private void streamAttempt(List<ProviderEndpoint> candidates, int index, Map<String, Object> baseBody,
+                               Admission admission, StreamCallback callback, StreamHandle handle,
+                               AiServiceException last) {
+        if (handle.isCancelled()) {
+            return;
+        }
+        // 只有首次尝试在调用线程上排队, 故障转移发生在HTTP回调线程, 不阻塞
+        boolean blocking = last == null;
+        while (index < candidates.size() && !acquire(candidates.get(index), admission, blocking)) {
+            index++;
+        }
+        if (index >= candidates.size()) {
+            if (last != null) {
+                callback.onError(last.getMessage());
+            } else {
+                callback.onError(admission.throttled ? "Provider rate limit exceeded" : "No available AI endpoint");
+            }
+            return;
+        }
+
+        ProviderEndpoint endpoint = candidates.get(index);
+        int next = index + 1;
+        AiProperties.Endpoint config = endpoint.getConfig();
+        long start = System.nanoTime();
+        AtomicLong firstChunkNanos = new AtomicLong();
+
+        HttpRequest httpRequest;
+        try {
+            httpRequest = buildHttpRequest(config, toJson(bodyFor(config, baseBody, true)));
+        } catch (Exception e) {
+            endpoint.release();
+            rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.IGNORE, 0);
+            log.error("AI stream service error", e);
+            callback.onError(e.getMessage());
+            return;
+        }
+
+        CompletableFuture<HttpResponse<Stream<String>>> future =
+                httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofLines());
+        // 收到响应头之前取消: 直接取消HTTP交换; 之后每读一行检查一次取消
+        CancellationToken.Registration exchange = handle.onCancel(() -> future.cancel(true));
+        future.whenCompleteAsync((response, error) -> {
+                    exchange.close();
+                    if (handle.isCancelled()) {
+                        if (response != null) {
+                            response.body().close();
+                        }
+                        cancelled(endpoint);
+                        return;
+                    }
+                    AiServiceException failure = null;
+                    if (error != null) {
+                        failure = new AiServiceException("AI service error: " + error.getMessage(), 0,
+                                endpoint.getName(), error);
+                    } else if (response.statusCode() != 200) {
+                        String text = response.body().collect(Collectors.joining("\n"));
+                        failure = new AiServiceException("AI API error: " + response.statusCode() + " - " + text,
+                                response.statusCode(), endpoint.getName(), retryAfterMillis(response.headers()));
+                    } else {
+                        // 每读一行检查一次取消; 关闭body会重置HTTP/2流或关闭HTTP/1.1连接, 上游停止生成
+                        try (Stream<String> lines = response.body()) {
+                            Iterator<String> iterator = lines.iterator();
+                            while (!handle.isCancelled() && iterator.hasNext()) {
+                                String line = iterator.next();
+                                if (line.startsWith("data: ")) {
+                                    String data = line.substring(6);
+                                    if (!data.equals("[DONE]")) {
+                                        firstChunkNanos.compareAndSet(0, System.nanoTime());
+                                        if (reportStreamUsage(data, endpoint, admission, callback)) {
+                                            // 只含用量的最后一块不转发
+                                            continue;
+                                        }
+                                        try {
+                                            callback.onMessage(data);
+                                        } catch (Exception e) {
+                                            log.error("Stream callback error", e);
+                                        }
                                     }
                                 }
                             }
-                        });
+                        } catch (Exception e) {
+                            if (!handle.isCancelled()) {
+                                failure = new AiServiceException("AI stream interrupted: " + e.getMessage(), 0,
+                                        endpoint.getName(), e);
+                            }
+                        }
+                        if (handle.isCancelled()) {
+                            cancelled(endpoint);
+                            return;
+                        }
+                    }
+
+                    long ttft = firstChunkNanos.get() != 0 ? firstChunkNanos.get() : System.nanoTime();
+                    long ttftMs = (ttft - start) / 1_000_000;
+                    if (failure == null) {
+                        endpoint.recordSuccess(ttftMs);
+                        rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.SUCCESS, ttftMs);
                         callback.onComplete();
-                    })
-                    .exceptionally(e -> {
-                        callback.onError(e.getMessage());
-                        return null;
-                    });
+                        return;
+                    }
+
+                    recordFailure(endpoint, failure);
+                    rateLimiter.releaseProvider(endpoint, outcomeOf(failure), ttftMs);
+                    if (firstChunkNanos.get() == 0 && !failure.isClientError()) {
+                        log.warn("AI stream endpoint {} failed ({}), trying next endpoint",
+                                endpoint.getName(), failure.getMessage());
+                        streamAttempt(candidates, next, baseBody, admission, callback, handle, failure);
+                    } else {
+                        callback.onError(failure.getMessage());
+                    }
+                }, streamExecutor);
+    }
+
+    /**
+     * 客户端取消的流式调用: 释放端点和并发许可, 不计入成功或失败
+     */
+    private void cancelled(ProviderEndpoint endpoint) {
+        endpoint.release();
+        rateLimiter.releaseProvider(endpoint, AdaptiveConcurrencyLimiter.Outcome.IGNORE, 0);
+        streamsCancelled.increment();
+        log.debug("AI stream on {} cancelled by client", endpoint.getName());
+    }
 
+    /**
+     * 解析流式数据块中的用量, 结算端点的token配额并交给回调计量. 返回该块是否只有用量(choices为空)
+     */
+    @SuppressWarnings("unchecked")
+    private boolean reportStreamUsage(String data, ProviderEndpoint endpoint, Admission admission,
+                                      StreamCallback callback) {
+        if (!data.contains("\"usage\"")) {
+            return false;
+        }
+        try {
+            Map<String, Object> chunk = objectMapper.readValue(data, Map.class);
+            Object usage = chunk.get("usage");
+            if (!(usage instanceof Map)) {
+                return false;
+            }
+            Map<String, Object> usageMap = (Map<String, Object>) usage;
+            ChatResponse counted = new ChatResponse();
+            counted.setInputTokens(intOf(usageMap.get("prompt_tokens")));
+            counted.setOutputTokens(intOf(usageMap.get("completion_tokens")));
+            counted.setTotalTokens(intOf(usageMap.get("total_tokens")));
+            counted.setCachedTokens(cachedTokensOf(usageMap));
+            recordPromptCache(counted);
+            counted.setModel(chunk.get("model") instanceof String
+                    ? (String) chunk.get("model") : endpoint.getConfig().getModel());
+            Integer used = usedTokens(counted);
+            if (used != null) {
+                rateLimiter.settleProvider(endpoint, admission.estimatedTokens, used);
+            }
+            try {
+                callback.onUsage(counted);
+            } catch (Exception e) {
+                log.error("Stream usage callback error", e);
+            }
+            Object choices = chunk.get("choices");
+            return choices instanceof List && ((List<?>) choices).isEmpty();
         } catch (Exception e) {
-            log.error("AI stream service error", e);
-            callback.onError(e.getMessage());
+            log.debug("Failed to parse stream usage: {}", e.getMessage());
+            return false;
         }
     }
 
+    private static Integer intOf(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : null;
+    }
+
     /**
      * 解析响应
      */
@@ -192,26 +859,61 @@ public class AiService {
             chatResponse.setInputTokens((Integer) usage.get("prompt_tokens"));
             chatResponse.setOutputTokens((Integer) usage.get("completion_tokens"));
             chatResponse.setTotalTokens((Integer) usage.get("total_tokens"));
+            chatResponse.setCachedTokens(cachedTokensOf(usage));
+            recordPromptCache(chatResponse);
         }
         
         return chatResponse;
     }
 
     /**
-     * 转换工具定义
+     * 命中provider前缀缓存的输入token数:
+     * DeepSeek为prompt_cache_hit_tokens, OpenAI为prompt_tokens_details.cached_tokens
+     */
+    @SuppressWarnings("unchecked")
+    private static Integer cachedTokensOf(Map<String, Object> usage) {
+        Object hit = usage.get("prompt_cache_hit_tokens");
+        if (hit instanceof Number) {
+            return ((Number) hit).intValue();
+        }
+        Object details = usage.get("prompt_tokens_details");
+        if (details instanceof Map) {
+            Object cached = ((Map<String, Object>) details).get("cached_tokens");
+            if (cached instanceof Number) {
+                return ((Number) cached).intValue();
+            }
+        }
+        return null;
+    }
+
+    private void recordPromptCache(ChatResponse response) {
+        if (response.getInputTokens() != null) {
+            promptTokens.add(response.getInputTokens());
+        }
+        if (response.getCachedTokens() != null) {
+            cachedPromptTokens.add(response.getCachedTokens());
+        }
+    }
+
+    /**
+     * 转换工具定义 (按名称排序, 保证工具列表字节稳定)
      */
     private List<Map<String, Object>> convertTools(List<ChatRequest.ToolDefinition> tools) {
+        List<ChatRequest.ToolDefinition> sorted = new ArrayList<>(tools);
+        sorted.sort(Comparator.comparing(ChatRequest.ToolDefinition::getName,
+                Comparator.nullsLast(Comparator.naturalOrder())));
+
         List<Map<String, Object>> result = new ArrayList<>();
-        for (ChatRequest.ToolDefinition tool : tools) {
-            Map<String, Object> toolMap = new HashMap<>();
-            Map<String, Object> function = new HashMap<>();
+        for (ChatRequest.ToolDefinition tool : sorted) {
+            Map<String, Object> toolMap = new LinkedHashMap<>();
+            Map<String, Object> function = new LinkedHashMap<>();
             function.put("name", tool.getName());
             function.put("description", tool.getDescription());
             
             if (tool.getParameters() != null) {
-                Map<String, Object> params = new HashMap<>();
+                Map<String, Object> params = new LinkedHashMap<>();
                 params.put("type", "object");
-                params.put("properties", tool.getParameters());
+                params.put("properties", new TreeMap<>(tool.getParameters()));
                 function.put("parameters", params);
             }
             
@@ -222,9 +924,181 @@ public class AiService {
         return result;
     }
 
+    /**
+     * 转换助手消息中的工具调用
+     */
+    private static List<Map<String, Object>> convertToolCalls(List<ChatRequest.ToolCall> toolCalls) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (ChatRequest.ToolCall call : toolCalls) {
+            Map<String, Object> function = new LinkedHashMap<>();
+            function.put("name", call.getName());
+            function.put("arguments", call.getArguments());
+            Map<String, Object> callMap = new LinkedHashMap<>();
+            callMap.put("id", call.getId());
+            callMap.put("type", "function");
+            callMap.put("function", function);
+            result.add(callMap);
+        }
+        return result;
+    }
+
+    /**
+     * 请求合并统计
+     */
+    public Map<String, Object> getCoalescerStats() {
+        return coalescer.getStats();
+    }
+
+    /**
+     * 被客户端取消的上游流式调用数
+     */
+    public long getCancelledStreams() {
+        return streamsCancelled.sum();
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to serialize AI request: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 端点池统计
+     */
+    public List<Map<String, Object>> getProviderStats() {
+        return providerPool.getStats();
+    }
+
+    /**
+     * 对冲请求统计
+     */
+    public Map<String, Object> getHedgingStats() {
+        return hedgingPolicy.getStats();
+    }
+
+    /**
+     * provider前缀缓存命中统计
+     */
+    public Map<String, Object> getPromptCacheStats() {
+        long prompt = promptTokens.sum();
+        long cached = cachedPromptTokens.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("promptTokens", prompt);
+        stats.put("cachedTokens", cached);
+        stats.put("hitRatio", prompt > 0 ? (double) cached / prompt : 0.0);
+        return stats;
+    }
+
+    /**
+     * 上下文预算统计
+     */
+    public Map<String, Object> getContextStats() {
+        return contextBudgeter.getStats();
+    }
+
+    /**
+     * 重试统计
+     */
+    public Map<String, Object> getRetryStats() {
+        return retryPolicy.getStats();
+    }
+
+    /**
+     * 限流统计
+     */
+    public Map<String, Object> getRateLimitStats() {
+        return rateLimiter.getStats();
+    }
+
+    /**
+     * 单次请求的限流上下文
+     */
+    private static class Admission {
+        private final UsageContext usage;
+        private final int estimatedTokens;
+        private final long deadlineNanos;
+        private volatile boolean throttled;
+
+        Admission(UsageContext usage, int estimatedTokens, long deadlineNanos) {
+            this.usage = usage;
+            this.estimatedTokens = estimatedTokens;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * 对冲的请求全部失败, 携带下一个可尝试的候选位置
+     */
+    private static class HedgeFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final AiServiceException failure;
+        private final int nextIndex;
+
+        HedgeFailure(AiServiceException failure, int nextIndex) {
+            super(null, null, false, false);
+            this.failure = failure;
+            this.nextIndex = nextIndex;
+        }
+    }
+
     public interface StreamCallback {
         void onMessage(String data);
         void onComplete();
         void onError(String error);
+
+        /**
+         * 不来自上游数据块的事件 (如Agent执行工具), 类型见 StreamEvents
+         */
+        default void onEvent(String type, Map<String, Object> data) {
+        }
+
+        /**
+         * 上游报告的用量 (只有model和token数), 由 AiService 计量, 不转发给客户端
+         */
+        default void onUsage(ChatResponse usage) {
+        }
+    }
+
+    /**
+     * 把上游报告的用量计入一个调用方并结算其租户配额, 其余回调原样转发
+     */
+    private class MeteredCallback implements StreamCallback {
+        private final Admission admission;
+        private final StreamCallback delegate;
+
+        MeteredCallback(Admission admission, StreamCallback delegate) {
+            this.admission = admission;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onMessage(String data) {
+            delegate.onMessage(data);
+        }
+
+        @Override
+        public void onComplete() {
+            delegate.onComplete();
+        }
+
+        @Override
+        public void onError(String error) {
+            delegate.onError(error);
+        }
+
+        @Override
+        public void onEvent(String type, Map<String, Object> data) {
+            delegate.onEvent(type, data);
+        }
+
+        @Override
+        public void onUsage(ChatResponse usage) {
+            usageMeter.record(admission.usage, usage.getModel(), usage.getInputTokens(), usage.getOutputTokens(),
+                    usage.getCachedTokens());
+            settleTenant(admission, usage);
+        }
     }
 }
@@ -0,0 +1,139 @@
+package com.miniagent.service;
+
+import com.miniagent.exception.RequestCancelledException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 取消令牌 - 每个请求一个, 沿Agent循环、图节点、工具执行和模型调用向下传递
+ *
+ * 长时间的阻塞操作在令牌上登记取消动作 (中断线程、终止子进程、取消HTTP交换),
+ * 操作结束时关闭登记; 循环在每一步之前调用 throwIfCancelled().
+ */
+@Slf4j
+public class CancellationToken {
+
+    /**
+     * 永不取消的令牌, 供没有请求上下文的调用使用
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel(String reason) {
+        }
+    };
+
+    private final Set<Registration> registrations = new LinkedHashSet<>();
+    private volatile String reason;
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * 取消并执行所有已登记的动作, 重复调用无效
+     */
+    public void cancel(String reason) {
+        List<Registration> actions;
+        synchronized (this) {
+            if (this.reason != null) {
+                return;
+            }
+            this.reason = reason != null ? reason : "cancelled";
+            actions = new ArrayList<>(registrations);
+            registrations.clear();
+        }
+        log.debug("Request cancelled: {}", this.reason);
+        for (Registration registration : actions) {
+            registration.fire();
+        }
+    }
+
+    public void throwIfCancelled() {
+        if (reason != null) {
+            throw new RequestCancelledException("Request cancelled: " + reason);
+        }
+    }
+
+    /**
+     * 登记取消动作; 已取消时立即执行. 操作结束后关闭返回的登记
+     */
+    public Registration onCancel(Runnable action) {
+        Registration registration = new Registration(action, null);
+        synchronized (this) {
+            if (reason == null) {
+                registrations.add(registration);
+                return registration;
+            }
+        }
+        registration.fire();
+        return registration;
+    }
+
+    /**
+     * 取消时中断当前线程, 用于包住可中断的阻塞调用 (排队等待、Future.get、同步HTTP).
+     * 关闭登记时清除由本令牌造成的中断标记, 线程归还线程池后不受影响
+     */
+    public Registration interruptOnCancel() {
+        Thread thread = Thread.currentThread();
+        Registration registration = new Registration(thread::interrupt, thread);
+        synchronized (this) {
+            if (reason == null) {
+                registrations.add(registration);
+                return registration;
+            }
+        }
+        registration.fire();
+        return registration;
+    }
+
+    /**
+     * 一次取消登记
+     */
+    public class Registration implements AutoCloseable {
+        private final Runnable action;
+        private final Thread interrupted;
+        private boolean fired;
+        private boolean closed;
+
+        private Registration(Runnable action, Thread interrupted) {
+            this.action = action;
+            this.interrupted = interrupted;
+        }
+
+        /**
+         * 在锁内执行, 保证close()返回之后不会再有中断到达
+         */
+        private synchronized void fire() {
+            if (closed) {
+                return;
+            }
+            fired = true;
+            try {
+                action.run();
+            } catch (Exception e) {
+                log.debug("Cancel action failed: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (CancellationToken.this) {
+                registrations.remove(this);
+            }
+            synchronized (this) {
+                closed = true;
+                if (fired && interrupted == Thread.currentThread()) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.miniagent.service;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.config.QuestionCacheProperties;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.model.ChatResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 问答缓存 - 对同一上下文中重复的用户问题直接返回已有回答
+ *
+ * 缓存键是以下内容的SHA-256, 必须完全一致才命中:
+ * - 租户、可用模型、工具定义、系统提示、生成参数和历史消息
+ * - 归一化后的最后一条用户消息 (Unicode兼容形式、小写、合并空白、去掉末尾标点)
+ *
+ * 不做语义(向量近似)匹配, 换一种说法的问题不会命中: 本地特征哈希向量只反映字面重合,
+ * 剂量、环境名等一词之差的问题相似度仍然很高, 近似命中会返回错误的回答.
+ */
+@Slf4j
+@Service
+public class QuestionCache {
+
+    private final QuestionCacheProperties properties;
+    private final String models;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public QuestionCache(QuestionCacheProperties properties, AiProperties aiProperties) {
+        this.properties = properties;
+        this.models = modelsOf(aiProperties);
+    }
+
+    /**
+     * 查找缓存的回答
+     */
+    public Optional<ChatResponse> lookup(String route, ChatRequest request) {
+        if (!properties.isEnabledFor(route)) {
+            return Optional.empty();
+        }
+        String question = lastUserMessage(request);
+        if (question == null) {
+            return Optional.empty();
+        }
+
+        String key = cacheKey(route, request, question);
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && isExpired(entry, now)) {
+                entries.remove(key);
+                expirations.increment();
+                entry = null;
+            }
+            if (entry != null) {
+                hits.increment();
+                log.debug("Response cache hit: route={}", route);
+                return Optional.of(entry.response);
+            }
+        }
+
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * 写入回答
+     */
+    public void store(String route, ChatRequest request, ChatResponse response) {
+        if (!properties.isEnabledFor(route) || response == null || response.getContent() == null) {
+            return;
+        }
+        // 工具调用结果依赖外部状态, 不缓存
+        if (response.getToolCalls() != null && !response.getToolCalls().isEmpty()) {
+            return;
+        }
+        String question = lastUserMessage(request);
+        if (question == null) {
+            return;
+        }
+
+        String key = cacheKey(route, request, question);
+
+        synchronized (this) {
+            entries.put(key, new Entry(response, System.currentTimeMillis()));
+            stores.increment();
+
+            // LRU淘汰
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > properties.getMaxEntries() && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 缓存统计
+     */
+    public Map<String, Object> getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", properties.isEnabled());
+        stats.put("routes", properties.getRoutes());
+        stats.put("size", size());
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+        stats.put("stores", stores.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        return stats;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return properties.getTtlSeconds() > 0 && now - entry.createdAt > properties.getTtlSeconds() * 1000;
+    }
+
+    private static String lastUserMessage(ChatRequest request) {
+        List<ChatRequest.Message> messages = request.getMessages();
+        if (messages == null || messages.isEmpty()) {
+            return null;
+        }
+        ChatRequest.Message last = messages.get(messages.size() - 1);
+        if (!"user".equals(last.getRole()) || last.getContent() == null || last.getContent().isBlank()) {
+            return null;
+        }
+        return last.getContent();
+    }
+
+    /**
+     * 归一化问题: 只消除大小写、空白和末尾标点的差异, 不改变含义
+     */
+    static String normalize(String question) {
+        String text = Normalizer.normalize(question, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("\\s+", " ")
+                .trim();
+        int end = text.length();
+        while (end > 0 && isTrailingPunctuation(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(0, end).trim();
+    }
+
+    private static boolean isTrailingPunctuation(char c) {
+        return c == '?' || c == '!' || c == '.' || c == '。' || c == '？' || c == '！';
+    }
+
+    /**
+     * 缓存键: 所有影响回答的内容加上归一化的问题
+     */
+    private String cacheKey(String route, ChatRequest request, String question) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, route);
+            update(digest, request.getTenantId());
+            update(digest, models);
+            updateTools(digest, request.getTools());
+            update(digest, request.getSystemPrompt());
+            update(digest, String.valueOf(request.getTemperature()));
+            update(digest, String.valueOf(request.getMaxTokens()));
+            List<ChatRequest.Message> messages = request.getMessages();
+            for (int i = 0; i < messages.size() - 1; i++) {
+                ChatRequest.Message message = messages.get(i);
+                update(digest, message.getRole());
+                update(digest, message.getContent());
+                update(digest, message.getToolCallId());
+                if (message.getToolCalls() != null) {
+                    for (ChatRequest.ToolCall call : message.getToolCalls()) {
+                        update(digest, call.getId());
+                        update(digest, call.getName());
+                        update(digest, call.getArguments());
+                    }
+                }
+            }
+            update(digest, normalize(question));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void updateTools(MessageDigest digest, List<ChatRequest.ToolDefinition> tools) {
+        if (tools == null) {
+            update(digest, null);
+            return;
+        }
+        update(digest, String.valueOf(tools.size()));
+        for (ChatRequest.ToolDefinition tool : tools) {
+            update(digest, tool.getName());
+            update(digest, tool.getDescription());
+            if (tool.getParameters() != null) {
+                for (Map.Entry<String, ChatRequest.ToolParameter> param : new TreeMap<>(tool.getParameters()).entrySet()) {
+                    ChatRequest.ToolParameter value = param.getValue();
+                    update(digest, param.getKey());
+                    update(digest, value != null ? value.getType() : null);
+                    update(digest, value != null ? value.getDescription() : null);
+                    update(digest, value != null ? String.valueOf(value.getRequired()) : null);
+                }
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    /**
+     * 端点池中可能处理请求的模型
+     */
+    private static String modelsOf(AiProperties aiProperties) {
+        Set<String> result = new TreeSet<>();
+        for (AiProperties.Endpoint endpoint : aiProperties.getEffectiveEndpoints()) {
+            String model = endpoint.getModel() == null || endpoint.getModel().isEmpty()
+                    ? aiProperties.getModel() : endpoint.getModel();
+            result.add(endpoint.getProvider() + "/" + model);
+        }
+        return String.join(",", result);
+    }
+
+    private static class Entry {
+        final ChatResponse response;
+        final long createdAt;
+
+        Entry(ChatResponse response, long createdAt) {
+            this.response = response;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.miniagent.service;
+
+import com.miniagent.exception.AiServiceException;
+import com.miniagent.model.ChatResponse;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并 (single-flight) - 并发的相同请求共享一次上游调用
+ *
+ * 非流式请求共享同一个结果, 上游调用在 executor 上执行, 不属于任何一个参与者:
+ * 参与者被中断(取消)或等待超时只是自己退出, 所有参与者都退出后才中止上游调用.
+ * 流式请求中途加入的订阅者会先回放已收到的数据(包括用量), 再继续接收后续数据.
+ */
+@Slf4j
+public class RequestCoalescer {
+
+    private final Executor executor;
+    private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, StreamFlight> streamsInFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+    private final LongAdder followerTimeouts = new LongAdder();
+    private final LongAdder detached = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+    private final LongAdder streamLeaders = new LongAdder();
+    private final LongAdder streamFollowers = new LongAdder();
+
+    public RequestCoalescer(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 执行请求, 相同key的并发调用只有一个真正执行. 发起者一直等到调用结束,
+     * 加入进行中调用的请求最多等到自己的截止时间 deadlineNanos (System.nanoTime), 超时抛出504.
+     * 等待期间线程被中断 (CancellationToken.interruptOnCancel) 时本调用方退出, 抛出 AiServiceException
+     */
+    public ChatResponse execute(String key, long deadlineNanos, Supplier<ChatResponse> call) {
+        Flight flight;
+        boolean leader;
+        while (true) {
+            Flight existing = inFlight.get(key);
+            if (existing != null) {
+                if (existing.join()) {
+                    flight = existing;
+                    leader = false;
+                    break;
+                }
+                // 已结束, 移除后重试
+                inFlight.remove(key, existing);
+                continue;
+            }
+            Flight created = new Flight(key);
+            if (inFlight.putIfAbsent(key, created) == null) {
+                flight = created;
+                leader = true;
+                break;
+            }
+        }
+
+        if (leader) {
+            leaders.increment();
+            flight.start(call);
+        } else {
+            followers.increment();
+            log.debug("Joined in-flight request: {}", key);
+        }
+        try {
+            return leader ? flight.result.get()
+                    : flight.result.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (TimeoutException e) {
+            followerTimeouts.increment();
+            flight.leave();
+            throw new AiServiceException("Timed out waiting for coalesced AI request", 504, null);
+        } catch (InterruptedException e) {
+            flight.leave();
+            Thread.currentThread().interrupt();
+            throw new AiServiceException("AI request interrupted", 0, null, e);
+        }
+    }
+
+    /**
+     * 订阅流式请求. 若已有相同请求在进行, 回放已收到的数据并加入;
+     * 否则通过starter发起上游调用, starter收到的回调会扇出给所有订阅者.
+     * 返回的句柄只退订当前订阅者, 所有订阅者都退订后才取消上游调用.
+     */
+    public StreamHandle subscribe(String key, AiService.StreamCallback callback,
+                                  BiConsumer<AiService.StreamCallback, StreamHandle> starter) {
+        while (true) {
+            StreamFlight flight = streamsInFlight.get(key);
+            if (flight != null) {
+                if (flight.join(callback)) {
+                    streamFollowers.increment();
+                    log.debug("Joined in-flight stream: {}", key);
+                    return flight.handleFor(callback);
+                }
+                // 已结束, 移除后重试
+                streamsInFlight.remove(key, flight);
+                continue;
+            }
+
+            StreamFlight created = new StreamFlight(key);
+            if (streamsInFlight.putIfAbsent(key, created) != null) {
+                continue;
+            }
+            created.join(callback);
+            streamLeaders.increment();
+            starter.accept(created, created.upstream);
+            return created.handleFor(callback);
+        }
+    }
+
+    /**
+     * 生成请求key
+     */
+    public static String keyOf(String scope, String requestBody) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(scope.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(requestBody.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight.size());
+        stats.put("streamsInFlight", streamsInFlight.size());
+        stats.put("leaders", leaders.sum());
+        stats.put("followers", followers.sum());
+        stats.put("followerTimeouts", followerTimeouts.sum());
+        stats.put("detached", detached.sum());
+        stats.put("abandoned", abandoned.sum());
+        stats.put("streamLeaders", streamLeaders.sum());
+        stats.put("streamFollowers", streamFollowers.sum());
+        return stats;
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * 一次进行中的非流式调用, 记录仍在等待结果的参与者数
+     */
+    private class Flight {
+        private final String key;
+        private final CompletableFuture<ChatResponse> result = new CompletableFuture<>();
+        private int participants = 1;
+        private boolean closed;
+        private Future<?> task;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 加入等待. 已结束或已被放弃时返回false
+         */
+        synchronized boolean join() {
+            if (closed) {
+                return false;
+            }
+            participants++;
+            return true;
+        }
+
+        void start(Supplier<ChatResponse> call) {
+            FutureTask<Void> submitted = new FutureTask<>(() -> {
+                try {
+                    result.complete(call.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    close();
+                }
+            }, null);
+            boolean cancelled;
+            synchronized (this) {
+                task = submitted;
+                cancelled = closed;
+            }
+            if (cancelled) {
+                return;
+            }
+            try {
+                executor.execute(submitted);
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(new AiServiceException("AI request rejected: " + e.getMessage(), 503,
+                        null));
+                close();
+            }
+        }
+
+        /**
+         * 参与者退出. 最后一个参与者退出且调用未结束时中止上游调用
+         */
+        void leave() {
+            Future<?> cancel;
+            synchronized (this) {
+                detached.increment();
+                if (closed || --participants > 0) {
+                    return;
+                }
+                closed = true;
+                cancel = task;
+            }
+            inFlight.remove(key, this);
+            abandoned.increment();
+            log.debug("All callers left request {}, cancelling upstream", key);
+            if (cancel != null) {
+                cancel.cancel(true);
+            }
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            inFlight.remove(key, this);
+        }
+    }
+
+    /**
+     * 一次进行中的流式调用: 缓存已收到的数据并扇出给订阅者
+     */
+    private class StreamFlight implements AiService.StreamCallback {
+        private final String key;
+        private final List<String> received = new ArrayList<>();
+        private final List<ChatResponse> usages = new ArrayList<>();
+        private final List<AiService.StreamCallback> subscribers = new ArrayList<>();
+        private final StreamHandle upstream = new StreamHandle();
+        private boolean finished;
+
+        StreamFlight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 加入订阅, 先回放已收到的数据. 已结束则返回false
+         */
+        synchronized boolean join(AiService.StreamCallback callback) {
+            if (finished) {
+                return false;
+            }
+            for (String data : received) {
+                safeMessage(callback, data);
+            }
+            for (ChatResponse usage : usages) {
+                safeUsage(callback, usage);
+            }
+            subscribers.add(callback);
+            return true;
+        }
+
+        StreamHandle handleFor(AiService.StreamCallback callback) {
+            StreamHandle handle = new StreamHandle();
+            handle.onCancel(() -> leave(callback));
+            return handle;
+        }
+
+        /**
+         * 退订. 最后一个订阅者退订时结束本次调用并取消上游
+         */
+        private void leave(AiService.StreamCallback callback) {
+            synchronized (this) {
+                if (finished || !subscribers.remove(callback) || !subscribers.isEmpty()) {
+                    return;
+                }
+                finished = true;
+                streamsInFlight.remove(key, this);
+                received.clear();
+                usages.clear();
+            }
+            log.debug("All subscribers left stream {}, cancelling upstream", key);
+            upstream.cancel();
+        }
+
+        @Override
+        public synchronized void onMessage(String data) {
+            if (finished) {
+                return;
+            }
+            received.add(data);
+            for (AiService.StreamCallback subscriber : subscribers) {
+                safeMessage(subscriber, data);
+            }
+        }
+
+        /**
+         * 用量计入每个订阅者 (各自的租户、Agent和会话), 并保留给之后加入的订阅者
+         */
+        @Override
+        public synchronized void onUsage(ChatResponse usage) {
+            if (finished) {
+                return;
+            }
+            usages.add(usage);
+            for (AiService.StreamCallback subscriber : subscribers) {
+                safeUsage(subscriber, usage);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            for (AiService.StreamCallback subscriber : finish()) {
+                try {
+                    subscriber.onComplete();
+                } catch (Exception e) {
+                    log.error("Stream subscriber complete error", e);
+                }
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            for (AiService.StreamCallback subscriber : finish()) {
+                try {
+                    subscriber.onError(error);
+                } catch (Exception e) {
+                    log.error("Stream subscriber error callback failed", e);
+                }
+            }
+        }
+
+        private synchronized List<AiService.StreamCallback> finish() {
+            finished = true;
+            streamsInFlight.remove(key, this);
+            List<AiService.StreamCallback> result = new ArrayList<>(subscribers);
+            subscribers.clear();
+            received.clear();
+            usages.clear();
+            return result;
+        }
+
+        private void safeUsage(AiService.StreamCallback callback, ChatResponse usage) {
+            try {
+                callback.onUsage(usage);
+            } catch (Exception e) {
+                log.error("Stream subscriber usage error", e);
+            }
+        }
+
+        private void safeMessage(AiService.StreamCallback callback, String data) {
+            try {
+                callback.onMessage(data);
+            } catch (Exception e) {
+                log.error("Stream subscriber error", e);
+            }
+        }
+    }
+}
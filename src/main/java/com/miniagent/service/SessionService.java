@@ -1,49 +1,198 @@
 package com.miniagent.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miniagent.config.AiProperties;
 import com.miniagent.model.ChatRequest;
+import com.miniagent.model.ChatResponse;
+import com.miniagent.service.context.PromptSegment;
+import com.miniagent.service.context.PromptSegments;
+import com.miniagent.service.session.ConversationLog;
+import com.miniagent.service.session.ExpiringStore;
+import com.miniagent.service.session.MemoryEstimator;
+import com.miniagent.service.session.MessageLog;
+import com.miniagent.service.session.SessionCodec;
+import com.miniagent.service.session.SessionSnapshot;
+import com.miniagent.service.session.SessionStore;
+import com.miniagent.service.session.WriteCombiner;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * 会话管理服务
+ * 会话管理服务 - 在服务端保存对话历史, 客户端每轮只需发送新消息和会话ID
+ *
+ * 每个会话最多保留 maxMessages 条消息, 超出时从最旧的一轮开始丢弃,
+ * 保证历史总是从用户消息开始. 只保存重建上下文所需的字段.
+ *
+ * 会话的持久副本在 SessionStore 中, 堆内只是近端缓存: 空闲超时或因会话数、估算内存超限
+ * 被淘汰后, 下次访问时从存储加载, 因此请求可以落在任意节点上. 修改过的会话由后台线程
+ * 批量写回(被淘汰时留在待写回集合中, 通知后台线程尽快整批写回). 写入带版本号, 其他节点已写入新版本时, 以存储中的版本为基础
+ * 追加本地未写回的消息后重试. 其他节点修改会话时通过失效通知丢弃本地缓存.
+ *
+ * 启用对话日志时, 每轮对话同时追加到 ConversationLog (完整历史, 组提交落盘), 默认等待落盘后返回.
+ * 会话在存储中找不到(store=none 重启后, 或存储已过期删除)时从日志回放最近的消息.
  */
 @Slf4j
 @Service
 public class SessionService {
 
-    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    
-    private static final int DEFAULT_MAX_MESSAGES = 100;
+    /**
+     * 存储中会话键的前缀, 与Agent状态区分
+     */
+    private static final String KEY_PREFIX = "session:";
+    private static final int MAX_REBASE_ATTEMPTS = 3;
+
+    private final AiProperties.Session config;
+    private final ExpiringStore<Session> sessions;
+
+    /**
+     * 持久存储, ai.session.store=none 时为null (被淘汰的会话直接丢弃)
+     */
+    private final SessionStore store;
+
+    /**
+     * 对话日志, ai.session.history.enabled=false 时为null
+     */
+    private final ConversationLog history;
+
+    /**
+     * 等待写回的会话
+     */
+    private final Map<String, Session> dirty = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * 已提交但尚未开始的立即写回任务, 避免重复提交
+     */
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder trimmedMessages = new LongAdder();
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder rebased = new LongAdder();
+    private final LongAdder invalidated = new LongAdder();
+    private final LongAdder storeErrors = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder historyErrors = new LongAdder();
+
+    public SessionService(AiProperties aiProperties, ObjectProvider<SessionStore> storeProvider,
+                          ObjectProvider<ConversationLog> historyProvider) {
+        this.config = aiProperties.getSession();
+        this.store = storeProvider.getIfAvailable();
+        this.history = historyProvider.getIfAvailable();
+        this.sessions = new ExpiringStore<>("sessions", config.getIdleTimeoutSeconds() * 1000,
+                config.getMaxSessions(), config.getMaxMemoryBytes(), config.getSweepIntervalSeconds(),
+                Session::getEstimatedBytes, null, (id, session, cause) -> {
+                    log.debug("Evicted session {} ({})", id, cause);
+                    // 淘汰在请求线程上执行且持有淘汰锁, 不在这里写存储; 写回前访问时由 find 从待写回集合取回
+                    if (dirty.get(id) == session) {
+                        requestFlush();
+                    }
+                });
+        if (store != null) {
+            store.onInvalidate(this::invalidate);
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "session-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = Math.max(1, config.getWriteBehindMillis());
+            flusher.scheduleWithFixedDelay(this::flushDirty, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.flusher = null;
+        }
+    }
+
+    /**
+     * 关闭时写回所有修改过的会话
+     */
+    @PreDestroy
+    public void shutdown() {
+        sessions.close();
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushDirty();
+        }
+    }
 
     /**
      * 创建会话
      */
     public Session createSession(String systemPrompt) {
-        Session session = new Session(UUID.randomUUID().toString(), systemPrompt);
+        return createSession(systemPrompt, null);
+    }
+
+    /**
+     * 创建会话, maxHistory为空时使用默认上限
+     */
+    public Session createSession(String systemPrompt, Integer maxHistory) {
+        Session session = newSession(UUID.randomUUID().toString(), systemPrompt, maxHistory);
         sessions.put(session.getId(), session);
+        markDirty(session);
+        recordOpen(session);
         log.info("Created session: {}", session.getId());
         return session;
     }
 
+    /**
+     * 获取会话, 不存在时以客户端给出的ID创建
+     */
+    public Session getOrCreate(String sessionId, String systemPrompt) {
+        Session existing = find(sessionId);
+        if (existing != null) {
+            return existing;
+        }
+        Session[] created = new Session[1];
+        Session session = sessions.computeIfAbsent(sessionId, id -> {
+            log.info("Created session: {}", id);
+            created[0] = newSession(id, systemPrompt, null);
+            return created[0];
+        });
+        if (session == created[0]) {
+            markDirty(session);
+            recordOpen(session);
+        }
+        return session;
+    }
+
     /**
      * 获取会话
      */
     public Session getSession(String sessionId) {
-        return sessions.get(sessionId);
+        return find(sessionId);
     }
 
     /**
      * 添加消息
      */
     public void addMessage(String sessionId, ChatRequest.Message message) {
-        Session session = sessions.get(sessionId);
+        Session session = find(sessionId);
         if (session != null) {
             session.addMessage(message);
+            sessions.reweigh(sessionId);
+            markDirty(session);
+            record(session, List.of(message));
         }
     }
 
@@ -51,51 +200,519 @@ public class SessionService {
      * 获取消息历史
      */
     public List<ChatRequest.Message> getMessages(String sessionId) {
-        Session session = sessions.get(sessionId);
+        Session session = find(sessionId);
         return session != null ? session.getMessages() : Collections.emptyList();
     }
 
     /**
-     * 清除会话
+     * 清除会话, 存储中的副本和对话日志一并清除
      */
-    public void clearSession(String sessionId) {
-        sessions.remove(sessionId);
+    public boolean clearSession(String sessionId) {
+        Session session = sessions.remove(sessionId);
+        Session pending = dirty.remove(sessionId);
+        if (session != null) {
+            session.removed = true;
+        }
+        if (pending != null) {
+            pending.removed = true;
+        }
+        boolean removed = session != null || pending != null;
+        if (store != null) {
+            try {
+                removed |= store.delete(KEY_PREFIX + sessionId);
+            } catch (IOException e) {
+                storeErrors.increment();
+                log.warn("Failed to delete session {} from store: {}", sessionId, e.getMessage());
+            }
+        }
+        if (history != null) {
+            try {
+                removed |= history.contains(sessionId);
+                history.clear(sessionId);
+            } catch (IOException e) {
+                historyErrors.increment();
+                log.warn("Failed to clear conversation log of {}: {}", sessionId, e.getMessage());
+            }
+        }
         log.info("Cleared session: {}", sessionId);
+        return removed;
+    }
+
+    /**
+     * 用会话历史和本轮新消息组装完整请求, 不修改会话
+     */
+    public ChatRequest buildRequest(Session session, ChatRequest request) {
+        List<ChatRequest.Message> messages = new ArrayList<>(session.getMessages());
+        if (request.getMessages() != null) {
+            messages.addAll(request.getMessages());
+        }
+        String systemPrompt = request.getSystemPrompt() != null ? request.getSystemPrompt() : session.getSystemPrompt();
+        return new ChatRequest(messages, systemPrompt, request.getTemperature(), request.getMaxTokens(),
+                session.getId(), request.getTenantId(), request.getAgentId(), request.getTools());
+    }
+
+    /**
+     * 一轮对话成功后追加本轮的新消息和回复. 调用失败时不写入, 会话保持不变
+     */
+    public void appendTurn(Session session, List<ChatRequest.Message> input, ChatResponse response) {
+        List<ChatRequest.Message> turn = new ArrayList<>();
+        if (input != null) {
+            turn.addAll(input);
+        }
+        turn.add(reply(response));
+        session.append(turn);
+        sessions.reweigh(session.getId());
+        turns.increment();
+        // 对话期间会话可能已被淘汰, 仍标记写回, 本轮结果不会丢失
+        markDirty(session);
+        record(session, turn);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(sessions.getStats());
+        stats.put("created", created.sum());
+        stats.put("turns", turns.sum());
+        stats.put("trimmedMessages", trimmedMessages.sum());
+        stats.put("loaded", loaded.sum());
+        stats.put("dirty", dirty.size());
+        stats.put("flushes", flushes.sum());
+        stats.put("written", written.sum());
+        stats.put("rebased", rebased.sum());
+        stats.put("invalidated", invalidated.sum());
+        stats.put("storeErrors", storeErrors.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("historyErrors", historyErrors.sum());
+        stats.put("store", store != null ? store.getStats() : Map.of("type", "none"));
+        stats.put("history", history != null ? history.getStats() : Map.of("enabled", false));
+        return stats;
+    }
+
+    /**
+     * 先查近端缓存和待写回的会话, 未命中时从存储加载, 存储中没有时从对话日志回放
+     */
+    private Session find(String sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session != null || (store == null && history == null)) {
+            return session;
+        }
+        Session pending = dirty.get(sessionId);
+        if (pending != null) {
+            return sessions.computeIfAbsent(sessionId, id -> pending);
+        }
+        Session restored = store != null ? load(sessionId) : null;
+        boolean fromHistory = false;
+        if (restored == null && history != null) {
+            restored = replay(sessionId);
+            fromHistory = restored != null;
+        }
+        if (restored == null) {
+            return null;
+        }
+        // 并发加载时以先放入的为准
+        Session candidate = restored;
+        Session current = sessions.computeIfAbsent(sessionId, id -> candidate);
+        if (current == candidate && fromHistory) {
+            markDirty(current);
+        }
+        return current;
+    }
+
+    private Session load(String sessionId) {
+        try {
+            SessionStore.Versioned stored = store.load(KEY_PREFIX + sessionId);
+            if (stored == null) {
+                return null;
+            }
+            loaded.increment();
+            return new Session(SessionCodec.decode(stored.getData()), stored.getVersion());
+        } catch (IOException e) {
+            storeErrors.increment();
+            log.warn("Failed to load session {} from store: {}", sessionId, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 从对话日志回放, 只读取会话上限内的最近消息
+     */
+    private Session replay(String sessionId) {
+        try {
+            SessionSnapshot snapshot = history.replay(sessionId, 0);
+            if (snapshot == null) {
+                return null;
+            }
+            if (snapshot.getMaxMessages() <= 0) {
+                snapshot.setMaxMessages(config.getMaxMessages());
+            }
+            replayed.increment();
+            log.info("Replayed session {} from conversation log ({} messages)", sessionId,
+                    snapshot.getMessages().size());
+            return new Session(snapshot, 0);
+        } catch (IOException e) {
+            historyErrors.increment();
+            log.warn("Failed to replay session {} from conversation log: {}", sessionId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void recordOpen(Session session) {
+        if (history == null) {
+            return;
+        }
+        try {
+            history.open(session.getId(), session.getSystemPrompt(), session.getMaxMessages(), session.getCreatedAt());
+        } catch (IOException e) {
+            historyErrors.increment();
+            log.warn("Failed to write conversation log of {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * 追加到对话日志, 按配置等待落盘. 失败只记录, 会话本身已更新
+     */
+    private void record(Session session, List<ChatRequest.Message> messages) {
+        if (history == null || session.removed) {
+            return;
+        }
+        AiProperties.History historyConfig = config.getHistory();
+        try {
+            if (!history.contains(session.getId())) {
+                // 日志启用前创建的会话
+                recordOpen(session);
+            }
+            CompletableFuture<Void> durable = history.append(session.getId(), messages);
+            if (historyConfig.isAwaitSync()) {
+                durable.get(historyConfig.getSyncTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            historyErrors.increment();
+            log.warn("Failed to write conversation log of {}: {}", session.getId(), e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void markDirty(Session session) {
+        if (store == null || session.removed) {
+            return;
+        }
+        dirty.put(session.getId(), session);
+        if (dirty.size() >= config.getWriteBatchSize()) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * 让后台线程立即写回待写回集合, 不等下一个周期
+     */
+    private void requestFlush() {
+        if (flusher == null || !flushRequested.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flusher.execute(() -> {
+                flushRequested.set(false);
+                flushDirty();
+            });
+        } catch (RejectedExecutionException e) {
+            // 正在关闭, 由 shutdown 最后写回
+            flushRequested.set(false);
+        }
+    }
+
+    /**
+     * 其他节点修改了会话: 丢弃本地缓存. 本地有未写回的修改时保留, 写回时按版本冲突处理
+     */
+    private void invalidate(String key) {
+        if (key == null) {
+            sessions.snapshot().keySet().forEach(id -> {
+                if (!dirty.containsKey(id)) {
+                    sessions.remove(id);
+                }
+            });
+            invalidated.increment();
+            return;
+        }
+        if (!key.startsWith(KEY_PREFIX)) {
+            return;
+        }
+        String sessionId = key.substring(KEY_PREFIX.length());
+        if (!dirty.containsKey(sessionId) && sessions.remove(sessionId) != null) {
+            invalidated.increment();
+        }
+    }
+
+    /**
+     * 按批写回修改过的会话, 由后台线程定时执行
+     */
+    private void flushDirty() {
+        try {
+            while (!dirty.isEmpty()) {
+                List<Session> batch = new ArrayList<>(Math.min(dirty.size(), config.getWriteBatchSize()));
+                for (Map.Entry<String, Session> entry : dirty.entrySet()) {
+                    if (batch.size() >= config.getWriteBatchSize()) {
+                        break;
+                    }
+                    if (dirty.remove(entry.getKey(), entry.getValue())) {
+                        batch.add(entry.getValue());
+                    }
+                }
+                if (batch.isEmpty() || !flush(batch)) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Session flush failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 写回一批会话, 写入失败时整批放回待写回集合下次重试. 返回是否写入成功
+     */
+    private boolean flush(List<Session> batch) {
+        List<State> pending = new ArrayList<>(batch.size());
+        List<SessionStore.Write> writes = new ArrayList<>(batch.size());
+        try {
+            for (Session session : batch) {
+                State state = session.state;
+                pending.add(state);
+                writes.add(new SessionStore.Write(KEY_PREFIX + session.getId(),
+                        SessionCodec.encode(session.snapshot(state)), state.version));
+            }
+            long[] results = store.saveAll(writes);
+            flushes.increment();
+            // 先记录写入成功的会话, 冲突的会话逐个处理, 一个失败不影响其余
+            List<Session> conflicted = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (results[i] != SessionStore.CONFLICT) {
+                    batch.get(i).saved(results[i], pending.get(i).unsaved);
+                    written.increment();
+                } else {
+                    conflicted.add(batch.get(i));
+                }
+            }
+            for (Session session : conflicted) {
+                try {
+                    rebase(session);
+                } catch (IOException e) {
+                    storeErrors.increment();
+                    log.warn("Failed to rebase session {}: {}", session.getId(), e.getMessage());
+                    if (!session.removed) {
+                        dirty.putIfAbsent(session.getId(), session);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            storeErrors.increment();
+            log.warn("Failed to write {} session(s) to store: {}", batch.size(), e.getMessage());
+            batch.forEach(session -> {
+                if (!session.removed) {
+                    dirty.putIfAbsent(session.getId(), session);
+                }
+            });
+            return false;
+        }
+    }
+
+    /**
+     * 版本冲突: 以存储中的最新版本为基础追加本地未写回的消息后重试.
+     * 存储中已不存在(被其他节点清除)时丢弃本地会话
+     */
+    private void rebase(Session session) throws IOException {
+        String key = KEY_PREFIX + session.getId();
+        for (int attempt = 0; attempt < MAX_REBASE_ATTEMPTS; attempt++) {
+            SessionStore.Versioned stored = store.load(key);
+            if (stored == null) {
+                session.removed = true;
+                sessions.remove(session.getId());
+                log.info("Session {} was cleared on another node, dropping local changes", session.getId());
+                return;
+            }
+            session.rebase(SessionCodec.decode(stored.getData()), stored.getVersion());
+            rebased.increment();
+            State state = session.state;
+            long version = store.save(key, SessionCodec.encode(session.snapshot(state)), state.version);
+            if (version != SessionStore.CONFLICT) {
+                session.saved(version, state.unsaved);
+                written.increment();
+                return;
+            }
+        }
+        log.warn("Session {} still conflicting after {} attempts, retrying later", session.getId(),
+                MAX_REBASE_ATTEMPTS);
+        dirty.putIfAbsent(session.getId(), session);
+    }
+
+    private Session newSession(String id, String systemPrompt, Integer maxHistory) {
+        created.increment();
+        int max = maxHistory != null && maxHistory > 0 ? maxHistory : config.getMaxMessages();
+        return new Session(id, systemPrompt, max);
+    }
+
+    /**
+     * 回复只保存内容和工具调用, 不保存思考过程和用量
+     */
+    private static ChatRequest.Message reply(ChatResponse response) {
+        List<ChatRequest.ToolCall> toolCalls = null;
+        if (response.getToolCalls() != null && !response.getToolCalls().isEmpty()) {
+            toolCalls = new ArrayList<>(response.getToolCalls().size());
+            for (ChatResponse.ToolCall call : response.getToolCalls()) {
+                toolCalls.add(new ChatRequest.ToolCall(call.getId(), call.getName(), call.getArguments()));
+            }
+        }
+        return new ChatRequest.Message("assistant", response.getContent(), toolCalls, null);
+    }
+
+    /**
+     * 会话的不可变状态, 每次修改发布新的一份, 读取方无需加锁
+     */
+    private static final class State {
+        private final MessageLog.View messages;
+        private final long estimatedBytes;
+        private final long lastActiveAt;
+
+        /**
+         * 存储中的版本(0表示尚未写入), 以及末尾尚未写回的消息数
+         */
+        private final long version;
+        private final int unsaved;
+
+        State(MessageLog.View messages, long estimatedBytes, long lastActiveAt, long version, int unsaved) {
+            this.messages = messages;
+            this.estimatedBytes = estimatedBytes;
+            this.lastActiveAt = lastActiveAt;
+            this.version = version;
+            this.unsaved = unsaved;
+        }
     }
 
     /**
      * 会话类
+     *
+     * 消息保存在环形缓冲中, 同一会话的写入经 WriteCombiner 串行化, 由单个线程执行;
+     * 每次写入后发布新的不可变状态, 读取只是一次volatile读, 得到的消息列表不会再变化.
      */
-    public static class Session {
+    public class Session {
         private final String id;
-        private final String systemPrompt;
-        private final List<ChatRequest.Message> messages;
+
+        /**
+         * 共享的提示片段, 相同提示的会话引用同一份. 内存估算仍按每个会话计入, 宁多勿少
+         */
+        private final PromptSegment systemPrompt;
+        private final int maxMessages;
         private final long createdAt;
-        private long lastActiveAt;
+        private final WriteCombiner writer = new WriteCombiner();
+
+        /**
+         * 只在 writer 中访问
+         */
+        private final MessageLog buffer;
+        private volatile State state;
+        private volatile boolean removed;
 
-        public Session(String id, String systemPrompt) {
+        Session(String id, String systemPrompt, int maxMessages) {
             this.id = id;
-            this.systemPrompt = systemPrompt;
-            this.messages = new ArrayList<>();
+            this.systemPrompt = PromptSegments.intern(systemPrompt);
+            this.maxMessages = Math.max(1, maxMessages);
             this.createdAt = System.currentTimeMillis();
-            this.lastActiveAt = System.currentTimeMillis();
+            this.buffer = new MessageLog();
+            this.state = new State(buffer.view(), MemoryEstimator.estimate(getSystemPrompt()), createdAt, 0, 0);
+        }
+
+        Session(SessionSnapshot snapshot, long version) {
+            this.id = snapshot.getId();
+            this.systemPrompt = PromptSegments.intern(snapshot.getSystemPrompt());
+            this.maxMessages = Math.max(1, snapshot.getMaxMessages());
+            this.createdAt = snapshot.getCreatedAt();
+            this.buffer = new MessageLog(snapshot.getMessages());
+            this.state = new State(buffer.view(), MemoryEstimator.estimate(getSystemPrompt())
+                    + MemoryEstimator.estimate(snapshot.getMessages()), snapshot.getLastActiveAt(), version, 0);
+            if (buffer.size() > this.maxMessages) {
+                // 从对话日志回放的消息可能多于上限
+                publish(state.estimatedBytes, state.lastActiveAt, version, 0);
+            }
         }
 
         public void addMessage(ChatRequest.Message message) {
-            messages.add(message);
-            lastActiveAt = System.currentTimeMillis();
-            
-            // 限制消息数量
-            while (messages.size() > DEFAULT_MAX_MESSAGES) {
-                messages.remove(0);
+            append(List.of(message));
+        }
+
+        void append(List<ChatRequest.Message> turn) {
+            long bytes = MemoryEstimator.estimate(turn);
+            writer.run(() -> {
+                State current = state;
+                buffer.append(turn);
+                publish(current.estimatedBytes + bytes, System.currentTimeMillis(), current.version,
+                        current.unsaved + turn.size());
+            });
+        }
+
+        /**
+         * 写入成功: 记录新版本, 写入期间追加的消息仍待写回
+         */
+        void saved(long newVersion, int flushed) {
+            writer.run(() -> {
+                State current = state;
+                publish(current.estimatedBytes, current.lastActiveAt, newVersion,
+                        Math.max(0, current.unsaved - flushed));
+            });
+        }
+
+        /**
+         * 以存储中的版本为基础, 追加本地尚未写回的消息
+         */
+        void rebase(SessionSnapshot stored, long storedVersion) {
+            writer.run(() -> {
+                State current = state;
+                List<ChatRequest.Message> tail = current.messages.tail(current.unsaved);
+                buffer.dropFirst(buffer.size());
+                buffer.append(stored.getMessages());
+                buffer.append(tail);
+                long bytes = MemoryEstimator.estimate(getSystemPrompt()) + MemoryEstimator.estimate(buffer.view());
+                publish(bytes, Math.max(current.lastActiveAt, stored.getLastActiveAt()), storedVersion, tail.size());
+            });
+        }
+
+        /**
+         * 丢弃超出上限的旧消息后发布新状态. 发生丢弃时继续丢弃到下一条用户消息为止,
+         * 不留下孤立的工具结果; 未超出上限时不检查
+         */
+        private void publish(long bytes, long lastActiveAt, long version, int unsaved) {
+            int dropped = 0;
+            while (buffer.size() > maxMessages) {
+                bytes -= MemoryEstimator.estimate(buffer.first());
+                buffer.dropFirst(1);
+                dropped++;
+            }
+            if (dropped > 0) {
+                while (buffer.size() > 1 && !"user".equals(buffer.first().getRole())) {
+                    bytes -= MemoryEstimator.estimate(buffer.first());
+                    buffer.dropFirst(1);
+                    dropped++;
+                }
+                trimmedMessages.add(dropped);
             }
+            state = new State(buffer.view(), bytes, lastActiveAt, version, Math.min(unsaved, buffer.size()));
+        }
+
+        SessionSnapshot snapshot(State current) {
+            return new SessionSnapshot(id, null, getSystemPrompt(), maxMessages, createdAt, current.lastActiveAt,
+                    current.messages);
         }
 
         // Getters
         public String getId() { return id; }
-        public String getSystemPrompt() { return systemPrompt; }
-        public List<ChatRequest.Message> getMessages() { return new ArrayList<>(messages); }
+        public String getSystemPrompt() { return systemPrompt != null ? systemPrompt.text() : null; }
+
+        /**
+         * 当前消息的不可变快照, O(1)
+         */
+        public List<ChatRequest.Message> getMessages() { return state.messages; }
+        public int getMessageCount() { return state.messages.size(); }
+        public int getMaxMessages() { return maxMessages; }
         public long getCreatedAt() { return createdAt; }
-        public long getLastActiveAt() { return lastActiveAt; }
+        public long getLastActiveAt() { return state.lastActiveAt; }
+        public long getEstimatedBytes() { return state.estimatedBytes; }
     }
 }
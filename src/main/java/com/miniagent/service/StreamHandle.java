@@ -0,0 +1,14 @@
+package com.miniagent.service;
+
+/**
+ * 流式调用句柄 - 客户端断开时取消上游调用, 不再继续消耗token
+ *
+ * 就是一个取消令牌: 登记的动作在 cancel() 时执行一次, 取消之后再登记的动作立即执行,
+ * 动作不再需要时(如故障转移后上一次HTTP交换已结束)关闭登记.
+ */
+public class StreamHandle extends CancellationToken {
+
+    public void cancel() {
+        cancel("stream cancelled");
+    }
+}
@@ -0,0 +1,228 @@
+package com.miniagent.service.batch;
+
+import com.miniagent.service.CancellationToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量任务 - 请求和结果都保存在检查点目录中
+ *
+ * requests.jsonl 每行一个请求, 行号即条目序号;
+ * results.jsonl 按完成顺序追加, 每行带有条目序号, 恢复时据此跳过已完成的条目.
+ * 内存中每 RESULT_INDEX_STRIDE 行记录一次结果行的字节位置, 分页读取时直接定位, 不从头扫描.
+ */
+public class BatchJob {
+
+    public enum Status { PENDING, RUNNING, COMPLETED, CANCELLED, FAILED }
+
+    static final String JOB_FILE = "job.json";
+    static final String REQUESTS_FILE = "requests.jsonl";
+    static final String RESULTS_FILE = "results.jsonl";
+    static final int RESULT_INDEX_STRIDE = 64;
+
+    private final String id;
+    private final String name;
+    private final String tenantId;
+    private final int concurrency;
+    private final long createdAt;
+    private final Path dir;
+
+    private volatile Status status = Status.PENDING;
+    private volatile int total;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+    private volatile boolean cancelRequested;
+    private final CancellationToken cancellation = new CancellationToken();
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final BitSet done = new BitSet();
+    private OutputStream resultOut;
+
+    /**
+     * 结果文件的行数、末尾位置和稀疏行索引 (第 i*RESULT_INDEX_STRIDE 行的起始位置), 由 this 保护
+     */
+    private int resultLines;
+    private long resultBytes;
+    private long[] resultIndex = new long[16];
+
+    BatchJob(String id, String name, String tenantId, int concurrency, long createdAt, Path dir) {
+        this.id = id;
+        this.name = name;
+        this.tenantId = tenantId;
+        this.concurrency = concurrency;
+        this.createdAt = createdAt;
+        this.dir = dir;
+    }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public String getTenantId() { return tenantId; }
+    public int getConcurrency() { return concurrency; }
+    public Status getStatus() { return status; }
+    public int getTotal() { return total; }
+    public int getSucceeded() { return succeeded.get(); }
+    public int getFailed() { return failed.get(); }
+
+    public int getCompleted() {
+        return succeeded.get() + failed.get();
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.CANCELLED || status == Status.FAILED;
+    }
+
+    boolean isCancelRequested() { return cancelRequested; }
+    CancellationToken getCancellation() { return cancellation; }
+
+    void requestCancel() {
+        cancelRequested = true;
+        cancellation.cancel("batch job " + id + " cancelled");
+    }
+
+    Path getDir() { return dir; }
+    Path requestsFile() { return dir.resolve(REQUESTS_FILE); }
+    Path resultsFile() { return dir.resolve(RESULTS_FILE); }
+
+    void setTotal(int total) { this.total = total; }
+
+    void markRunning() {
+        status = Status.RUNNING;
+        if (startedAt == 0) {
+            startedAt = System.currentTimeMillis();
+        }
+    }
+
+    void markFinished(Status status, String error) {
+        this.status = status;
+        this.error = error;
+        this.finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * 从检查点恢复已完成的条目
+     */
+    synchronized void restoreResult(int index, boolean success) {
+        if (done.get(index)) {
+            return;
+        }
+        done.set(index);
+        (success ? succeeded : failed).incrementAndGet();
+    }
+
+    synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    /**
+     * 追加一条结果并落盘
+     */
+    synchronized void appendResult(int index, boolean success, String line) throws IOException {
+        if (resultOut == null) {
+            resultOut = Files.newOutputStream(resultsFile(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            resultBytes = Files.size(resultsFile());
+        }
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        resultOut.write(bytes);
+        resultOut.flush();
+        indexResultLine(bytes.length);
+        done.set(index);
+        (success ? succeeded : failed).incrementAndGet();
+    }
+
+    /**
+     * 记录一行结果的位置 (追加时和从检查点加载时调用)
+     */
+    synchronized void indexResultLine(int length) {
+        if (resultLines % RESULT_INDEX_STRIDE == 0) {
+            int slot = resultLines / RESULT_INDEX_STRIDE;
+            if (slot == resultIndex.length) {
+                resultIndex = Arrays.copyOf(resultIndex, slot * 2);
+            }
+            resultIndex[slot] = resultBytes;
+        }
+        resultLines++;
+        resultBytes += length;
+    }
+
+    synchronized int getResultLines() {
+        return resultLines;
+    }
+
+    /**
+     * 不晚于第 line 行的最近索引行的起始位置, line 超出已有结果时返回-1
+     */
+    synchronized long resultSeekOffset(int line) {
+        if (line < 0 || line >= resultLines) {
+            return -1;
+        }
+        return resultIndex[line / RESULT_INDEX_STRIDE];
+    }
+
+    synchronized void closeResults() {
+        if (resultOut != null) {
+            try {
+                resultOut.close();
+            } catch (IOException ignored) {
+                // 结果已逐行flush
+            }
+            resultOut = null;
+        }
+    }
+
+    /**
+     * 持久化的任务元数据
+     */
+    Map<String, Object> toCheckpoint() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("name", name);
+        map.put("tenantId", tenantId);
+        map.put("concurrency", concurrency);
+        map.put("status", status.name());
+        map.put("total", total);
+        map.put("createdAt", createdAt);
+        map.put("startedAt", startedAt);
+        map.put("finishedAt", finishedAt);
+        map.put("error", error);
+        return map;
+    }
+
+    static BatchJob fromCheckpoint(Map<String, Object> map, Path dir) {
+        BatchJob job = new BatchJob((String) map.get("id"), (String) map.get("name"),
+                (String) map.get("tenantId"), ((Number) map.get("concurrency")).intValue(),
+                ((Number) map.get("createdAt")).longValue(), dir);
+        job.status = Status.valueOf((String) map.get("status"));
+        job.total = ((Number) map.get("total")).intValue();
+        job.startedAt = ((Number) map.get("startedAt")).longValue();
+        job.finishedAt = ((Number) map.get("finishedAt")).longValue();
+        job.error = (String) map.get("error");
+        return job;
+    }
+
+    /**
+     * 对外展示的任务概况
+     */
+    public Map<String, Object> toSummary() {
+        Map<String, Object> map = toCheckpoint();
+        map.put("completed", getCompleted());
+        map.put("succeeded", getSucceeded());
+        map.put("failed", getFailed());
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        if (startedAt != 0 && end > startedAt) {
+            map.put("itemsPerSecond", getCompleted() * 1000.0 / (end - startedAt));
+        }
+        return map;
+    }
+}
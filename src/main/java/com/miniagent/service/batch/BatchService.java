@@ -0,0 +1,456 @@
+package com.miniagent.service.batch;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miniagent.config.BatchProperties;
+import com.miniagent.exception.AiServiceException;
+import com.miniagent.exception.RateLimitExceededException;
+import com.miniagent.exception.RequestCancelledException;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.model.ChatResponse;
+import com.miniagent.service.AiService;
+import com.miniagent.service.CancellationToken;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量推理服务 - 有界并发执行大批量请求, 结果按完成顺序写入检查点
+ *
+ * 每个条目独立处理, 单条失败只记录错误, 不影响其它条目.
+ * 本地限流拒绝的条目会等待后重新排队, 而不是记为失败.
+ */
+@Slf4j
+@Service
+public class BatchService {
+
+    private final AiService aiService;
+    private final BatchProperties properties;
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<>() {
+    };
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, BatchJob> jobs = new ConcurrentHashMap<>();
+
+    private final ExecutorService dispatchers;
+    private final ThreadPoolExecutor workers;
+
+    public BatchService(AiService aiService, BatchProperties properties) {
+        this.aiService = aiService;
+        this.properties = properties;
+        this.dispatchers = Executors.newCachedThreadPool(namedThreads("batch-dispatcher-"));
+        int threads = Math.max(1, properties.getMaxConcurrency());
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), namedThreads("batch-worker-"));
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 启动时加载检查点, 恢复未完成的任务
+     */
+    @PostConstruct
+    public void init() {
+        Path root = Paths.get(properties.getCheckpointDir());
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                try {
+                    BatchJob job = load(dir);
+                    jobs.put(job.getId(), job);
+                    if (!job.isFinished() && properties.isResumeOnStartup()) {
+                        log.info("Resuming batch job {}: {}/{} done", job.getId(), job.getCompleted(), job.getTotal());
+                        start(job);
+                    }
+                } catch (Exception e) {
+                    log.warn("Skipping unreadable batch checkpoint {}: {}", dir, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to scan batch checkpoints: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 未完成的任务保持RUNNING状态, 下次启动时从检查点继续
+        dispatchers.shutdownNow();
+        workers.shutdownNow();
+        jobs.values().forEach(BatchJob::closeResults);
+    }
+
+    /**
+     * 提交一批请求
+     */
+    public BatchJob submit(List<ChatRequest> requests, String name, String tenantId, Integer concurrency) {
+        if (requests == null || requests.isEmpty()) {
+            throw new IllegalArgumentException("Batch must contain at least one request");
+        }
+        BatchJob job = create(name, tenantId, concurrency);
+        try (BufferedWriter writer = Files.newBufferedWriter(job.requestsFile(), StandardCharsets.UTF_8)) {
+            for (ChatRequest request : requests) {
+                writeRequest(writer, request, job);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write batch checkpoint: " + e.getMessage(), e);
+        }
+        return start(job);
+    }
+
+    /**
+     * 提交NDJSON格式的请求流 (每行一个ChatRequest), 边读边写入检查点, 不在内存中保留整批请求
+     */
+    public BatchJob submit(InputStream ndjson, String name, String tenantId, Integer concurrency) {
+        BatchJob job = create(name, tenantId, concurrency);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8));
+             BufferedWriter writer = Files.newBufferedWriter(job.requestsFile(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                ChatRequest request;
+                try {
+                    request = objectMapper.readValue(line, ChatRequest.class);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Invalid request at line " + lineNo + ": " + e.getMessage());
+                }
+                writeRequest(writer, request, job);
+            }
+        } catch (IOException e) {
+            discard(job);
+            throw new IllegalStateException("Failed to write batch checkpoint: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            discard(job);
+            throw e;
+        }
+        if (job.getTotal() == 0) {
+            discard(job);
+            throw new IllegalArgumentException("Batch must contain at least one request");
+        }
+        return start(job);
+    }
+
+    public BatchJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    public List<BatchJob> listJobs() {
+        List<BatchJob> result = new ArrayList<>(jobs.values());
+        result.sort(Comparator.comparing(BatchJob::getId));
+        return result;
+    }
+
+    /**
+     * 取消任务, 已发出的请求一并中止
+     */
+    public boolean cancel(String jobId) {
+        BatchJob job = jobs.get(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.requestCancel();
+        return true;
+    }
+
+    /**
+     * 按完成顺序读取结果. 从行索引定位到 offset 附近, 最多跳过 RESULT_INDEX_STRIDE-1 行
+     */
+    public List<Map<String, Object>> getResults(BatchJob job, int offset, int limit) throws IOException {
+        List<Map<String, Object>> results = new ArrayList<>();
+        long position = job.resultSeekOffset(offset);
+        if (position < 0) {
+            return results;
+        }
+        // 只读到当前已索引的行, 不会读到正在写入的行
+        int end = (int) Math.min((long) offset + limit, job.getResultLines());
+        try (FileChannel channel = FileChannel.open(job.resultsFile(), StandardOpenOption.READ)) {
+            channel.position(position);
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            int line = offset - offset % BatchJob.RESULT_INDEX_STRIDE;
+            String text;
+            while (line < end && (text = reader.readLine()) != null) {
+                if (line++ >= offset) {
+                    results.add(objectMapper.readValue(text, MAP_TYPE));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 以NDJSON持续输出结果, 直到任务结束
+     */
+    public void streamResults(BatchJob job, OutputStream out) throws IOException, InterruptedException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        while (!Files.exists(job.resultsFile())) {
+            if (job.isFinished()) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(job.resultsFile(), StandardCharsets.UTF_8)) {
+            StringBuilder pending = new StringBuilder();
+            char[] buffer = new char[8192];
+            while (true) {
+                // 先判断状态再读, 保证结束前写入的结果都能读到
+                boolean finished = job.isFinished();
+                int n;
+                boolean progressed = false;
+                while ((n = reader.read(buffer)) > 0) {
+                    progressed = true;
+                    pending.append(buffer, 0, n);
+                    int newline;
+                    while ((newline = pending.indexOf("\n")) >= 0) {
+                        writer.append(pending, 0, newline + 1);
+                        pending.delete(0, newline + 1);
+                    }
+                }
+                if (progressed) {
+                    writer.flush();
+                }
+                if (finished) {
+                    return;
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("jobs", jobs.size());
+        stats.put("running", jobs.values().stream().filter(j -> j.getStatus() == BatchJob.Status.RUNNING).count());
+        stats.put("activeWorkers", workers.getActiveCount());
+        stats.put("queuedItems", workers.getQueue().size());
+        return stats;
+    }
+
+    private BatchJob create(String name, String tenantId, Integer concurrency) {
+        String id = "batch-" + System.currentTimeMillis() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        int effective = concurrency != null && concurrency > 0 ? concurrency : properties.getDefaultConcurrency();
+        effective = Math.min(effective, Math.max(1, properties.getMaxConcurrency()));
+        String tenant = tenantId != null && !tenantId.isEmpty() ? tenantId : properties.getDefaultTenantId();
+        Path dir = Paths.get(properties.getCheckpointDir(), id);
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create batch checkpoint dir: " + e.getMessage(), e);
+        }
+        return new BatchJob(id, name != null ? name : id, tenant, effective, System.currentTimeMillis(), dir);
+    }
+
+    private void writeRequest(BufferedWriter writer, ChatRequest request, BatchJob job) throws IOException {
+        if (job.getTotal() >= properties.getMaxItems()) {
+            throw new IllegalArgumentException("Batch exceeds max items: " + properties.getMaxItems());
+        }
+        if (request == null || request.getMessages() == null || request.getMessages().isEmpty()) {
+            throw new IllegalArgumentException("Request " + job.getTotal() + " has no messages");
+        }
+        writer.write(objectMapper.writeValueAsString(request));
+        writer.newLine();
+        job.setTotal(job.getTotal() + 1);
+    }
+
+    private void discard(BatchJob job) {
+        try {
+            Files.deleteIfExists(job.requestsFile());
+            Files.deleteIfExists(job.getDir());
+        } catch (IOException e) {
+            log.debug("Failed to remove batch dir {}: {}", job.getDir(), e.getMessage());
+        }
+    }
+
+    private BatchJob start(BatchJob job) {
+        job.markRunning();
+        saveCheckpoint(job);
+        jobs.put(job.getId(), job);
+        dispatchers.execute(() -> dispatch(job));
+        log.info("Batch job {} started: {} items, concurrency={}", job.getId(), job.getTotal(), job.getConcurrency());
+        return job;
+    }
+
+    /**
+     * 顺序读取请求文件并按任务并发度分发; 请求不会一次性载入内存
+     */
+    private void dispatch(BatchJob job) {
+        Semaphore permits = new Semaphore(job.getConcurrency());
+        try (BufferedReader reader = Files.newBufferedReader(job.requestsFile(), StandardCharsets.UTF_8)) {
+            String line;
+            int index = -1;
+            while ((line = reader.readLine()) != null) {
+                index++;
+                if (job.isDone(index)) {
+                    continue;
+                }
+                if (job.isCancelRequested()) {
+                    break;
+                }
+                permits.acquire();
+                int itemIndex = index;
+                String requestJson = line;
+                try {
+                    workers.execute(() -> {
+                        try {
+                            process(job, itemIndex, requestJson);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+            // 等待已分发的条目全部完成
+            permits.acquire(job.getConcurrency());
+            job.markFinished(job.isCancelRequested() ? BatchJob.Status.CANCELLED : BatchJob.Status.COMPLETED, null);
+            log.info("Batch job {} {}: {} succeeded, {} failed", job.getId(), job.getStatus(),
+                    job.getSucceeded(), job.getFailed());
+        } catch (InterruptedException | RejectedExecutionException e) {
+            // 服务关闭, 保持RUNNING以便重启后恢复
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("Batch job {} failed", job.getId(), e);
+            job.markFinished(BatchJob.Status.FAILED, e.getMessage());
+        } finally {
+            job.closeResults();
+        }
+        saveCheckpoint(job);
+    }
+
+    /**
+     * 处理单个条目, 任何异常都只记录到该条目的结果中
+     */
+    private void process(BatchJob job, int index, String requestJson) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("index", index);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            ChatRequest request = objectMapper.readValue(requestJson, ChatRequest.class);
+            if (request.getTenantId() == null) {
+                request.setTenantId(job.getTenantId());
+            }
+            ChatResponse response = chatWithBackoff(request, job.getCancellation());
+            result.put("status", "ok");
+            result.put("response", response);
+            success = true;
+        } catch (InterruptedException e) {
+            // 服务关闭, 不写结果, 重启后重新执行
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RequestCancelledException e) {
+            // 任务已取消, 中止的条目不写结果
+            return;
+        } catch (AiServiceException e) {
+            result.put("status", "error");
+            result.put("error", e.getMessage());
+            result.put("upstreamStatus", e.getStatusCode());
+        } catch (Exception e) {
+            result.put("status", "error");
+            result.put("error", e.getMessage());
+        }
+        result.put("latencyMs", (System.nanoTime() - start) / 1_000_000);
+
+        try {
+            job.appendResult(index, success, objectMapper.writeValueAsString(result));
+        } catch (IOException e) {
+            log.error("Failed to write batch result {}#{}", job.getId(), index, e);
+        }
+    }
+
+    private ChatResponse chatWithBackoff(ChatRequest request, CancellationToken token) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return aiService.chat(request, token);
+            } catch (RateLimitExceededException e) {
+                if (attempt >= properties.getMaxRateLimitRetries()) {
+                    throw e;
+                }
+                Thread.sleep(Math.max(100, e.getRetryAfterMillis()));
+            }
+        }
+    }
+
+    private BatchJob load(Path dir) throws IOException {
+        Map<String, Object> checkpoint = objectMapper.readValue(dir.resolve(BatchJob.JOB_FILE).toFile(), MAP_TYPE);
+        BatchJob job = BatchJob.fromCheckpoint(checkpoint, dir);
+        Path results = job.resultsFile();
+        if (!Files.exists(results)) {
+            return job;
+        }
+        truncatePartialLine(results);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(results))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                // 行索引按字节位置记录, 每行(含换行符)都计入
+                job.indexResultLine(line.size() + 1);
+                try {
+                    Map<String, Object> result = objectMapper.readValue(line.toByteArray(), MAP_TYPE);
+                    job.restoreResult(((Number) result.get("index")).intValue(), "ok".equals(result.get("status")));
+                } catch (Exception e) {
+                    log.warn("Skipping corrupt batch result in {}: {}", results, e.getMessage());
+                }
+                line.reset();
+            }
+        }
+        return job;
+    }
+
+    /**
+     * 截掉崩溃时写了一半的最后一行, 对应条目会重新执行
+     */
+    private static void truncatePartialLine(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long end = raf.length();
+            while (end > 0) {
+                raf.seek(end - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            raf.setLength(end);
+        }
+    }
+
+    private void saveCheckpoint(BatchJob job) {
+        Path target = job.getDir().resolve(BatchJob.JOB_FILE);
+        Path tmp = job.getDir().resolve(BatchJob.JOB_FILE + ".tmp");
+        try {
+            objectMapper.writeValue(tmp.toFile(), job.toCheckpoint());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to save batch checkpoint {}", job.getId(), e);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
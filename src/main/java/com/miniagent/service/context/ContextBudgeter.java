@@ -0,0 +1,227 @@
+package com.miniagent.service.context;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.model.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上下文预算 - 在每次LLM调用前把对话历史裁剪到token预算以内
+ *
+ * 最近的消息和第一条用户消息(任务描述)始终保留, 中间部分按优先级处理:
+ * 先压缩过长的工具结果, 仍超出时从最旧的消息开始整组丢弃
+ * (助手消息和其后的工具结果为一组). 丢弃数量按 dropBlockSize 向上取整,
+ * 使裁剪位置在多轮对话间保持不变, 不破坏provider的前缀缓存.
+ * 保留下来的消息仍超出预算时, 从最长的消息开始截断.
+ */
+@Slf4j
+@Service
+public class ContextBudgeter {
+
+    private static final String TRUNCATION_MARKER = "\n...[truncated]";
+    private static final int TRUNCATION_MARKER_TOKENS = 5;
+
+    private final AiProperties.Context config;
+    private final TokenCounter tokenCounter;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder trimmedRequests = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder compressedMessages = new LongAdder();
+
+    public ContextBudgeter(AiProperties aiProperties, TokenCounter tokenCounter) {
+        this.config = aiProperties.getContext();
+        this.tokenCounter = tokenCounter;
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * 可用于对话消息的token数: 上下文窗口减去系统提示、工具定义和预留的输出
+     */
+    public int availableTokens(String systemPrompt, String toolsJson, int reservedOutput) {
+        int fixed = tokenCounter.count(systemPrompt) + TokenCounter.MESSAGE_OVERHEAD
+                + tokenCounter.count(toolsJson) + reservedOutput;
+        return Math.max(0, config.getMaxContextTokens() - fixed);
+    }
+
+    /**
+     * 把消息裁剪到budget以内. 未超出时原样返回; 不会修改传入的消息
+     */
+    public List<ChatRequest.Message> fit(List<ChatRequest.Message> messages, int budget) {
+        requests.increment();
+        if (messages == null || messages.isEmpty()) {
+            return messages;
+        }
+        int[] counts = new int[messages.size()];
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = tokenCounter.count(messages.get(i));
+            total += counts[i];
+        }
+        if (total <= budget) {
+            return messages;
+        }
+        trimmedRequests.increment();
+
+        List<ChatRequest.Message> result = new ArrayList<>(messages);
+        int recentStart = recentStart(messages);
+        int middleStart = pinnedEnd(messages, recentStart);
+
+        // 1. 压缩中间部分过长的工具结果
+        for (int i = middleStart; i < recentStart && total > budget; i++) {
+            ChatRequest.Message message = result.get(i);
+            if ("tool".equals(message.getRole()) && counts[i] > config.getToolResultMaxTokens()) {
+                ChatRequest.Message compressed = compress(message, config.getToolResultMaxTokens());
+                int newCount = tokenCounter.count(compressed);
+                total -= counts[i] - newCount;
+                counts[i] = newCount;
+                result.set(i, compressed);
+                compressedMessages.increment();
+            }
+        }
+        if (total <= budget) {
+            return result;
+        }
+
+        // 2. 从最旧的消息组开始丢弃, 丢弃的组数按块取整
+        List<int[]> units = units(result, middleStart, recentStart);
+        int needed = total - budget;
+        int dropUnits = 0;
+        int freed = 0;
+        while (dropUnits < units.size() && freed < needed) {
+            int[] unit = units.get(dropUnits++);
+            for (int i = unit[0]; i < unit[1]; i++) {
+                freed += counts[i];
+            }
+        }
+        int block = Math.max(1, config.getDropBlockSize());
+        dropUnits = Math.min(units.size(), (dropUnits + block - 1) / block * block);
+
+        List<ChatRequest.Message> trimmed = new ArrayList<>(result.subList(0, middleStart));
+        int dropEnd = dropUnits > 0 ? units.get(dropUnits - 1)[1] : middleStart;
+        if (dropEnd > middleStart) {
+            ChatRequest.Message marker = new ChatRequest.Message("system",
+                    "[" + (dropEnd - middleStart) + " earlier messages omitted]", null, null);
+            trimmed.add(marker);
+            droppedMessages.add(dropEnd - middleStart);
+        }
+        trimmed.addAll(result.subList(dropEnd, result.size()));
+        total = 0;
+        int[] trimmedCounts = new int[trimmed.size()];
+        for (int i = 0; i < trimmed.size(); i++) {
+            trimmedCounts[i] = tokenCounter.count(trimmed.get(i));
+            total += trimmedCounts[i];
+        }
+
+        // 3. 仍然超出: 从最长的消息开始截断, 开头的任务描述和最新的用户消息最后才截断
+        int pinned = middleStart;
+        int lastIndex = "user".equals(trimmed.get(trimmed.size() - 1).getRole()) ? trimmed.size() - 1 : -1;
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < trimmed.size(); i++) {
+            order.add(i);
+        }
+        int[] sizes = trimmedCounts;
+        order.sort((x, y) -> {
+            int rankX = x == lastIndex ? 2 : x < pinned ? 1 : 0;
+            int rankY = y == lastIndex ? 2 : y < pinned ? 1 : 0;
+            return rankX != rankY ? Integer.compare(rankX, rankY) : Integer.compare(sizes[y], sizes[x]);
+        });
+        for (int i : order) {
+            if (total <= budget) {
+                break;
+            }
+            int minKeep = i == lastIndex ? 1 : 0;
+            ChatRequest.Message original = trimmed.get(i);
+            // 只截断正文, 工具调用的参数原样保留
+            int keep = tokenCounter.count(original.getContent());
+            if (keep <= TRUNCATION_MARKER_TOKENS * 2) {
+                // 太短, 截断省不了多少
+                continue;
+            }
+            // 分词边界可能使截断后多出几个token, 最多再收紧两次
+            for (int attempt = 0; attempt < 3 && total > budget && keep > minKeep; attempt++) {
+                keep = Math.max(minKeep, keep - (total - budget) - TRUNCATION_MARKER_TOKENS);
+                ChatRequest.Message compressed = compress(original, keep);
+                int newCount = tokenCounter.count(compressed);
+                total -= trimmedCounts[i] - newCount;
+                trimmedCounts[i] = newCount;
+                trimmed.set(i, compressed);
+            }
+            if (trimmed.get(i) != original) {
+                compressedMessages.increment();
+            }
+        }
+
+        log.debug("Context trimmed to {} tokens (budget {}), {} -> {} messages",
+                total, budget, messages.size(), trimmed.size());
+        return trimmed;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("maxContextTokens", config.getMaxContextTokens());
+        stats.put("requests", requests.sum());
+        stats.put("trimmedRequests", trimmedRequests.sum());
+        stats.put("droppedMessages", droppedMessages.sum());
+        stats.put("compressedMessages", compressedMessages.sum());
+        stats.put("tokenCounter", tokenCounter.getStats());
+        return stats;
+    }
+
+    /**
+     * 最近保留区的起点, 不拆开助手消息和其后的工具结果
+     */
+    private int recentStart(List<ChatRequest.Message> messages) {
+        int start = Math.max(0, messages.size() - Math.max(1, config.getKeepRecentMessages()));
+        while (start > 0 && "tool".equals(messages.get(start).getRole())) {
+            start--;
+        }
+        return start;
+    }
+
+    /**
+     * 固定保留的开头部分: 到第一条用户消息为止
+     */
+    private static int pinnedEnd(List<ChatRequest.Message> messages, int recentStart) {
+        for (int i = 0; i < recentStart; i++) {
+            if ("user".equals(messages.get(i).getRole())) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 把 [from, to) 划分为消息组: 每条非工具消息连同其后的工具结果为一组
+     */
+    private static List<int[]> units(List<ChatRequest.Message> messages, int from, int to) {
+        List<int[]> units = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            int end = i + 1;
+            while (end < to && "tool".equals(messages.get(end).getRole())) {
+                end++;
+            }
+            units.add(new int[]{i, end});
+            i = end;
+        }
+        return units;
+    }
+
+    private ChatRequest.Message compress(ChatRequest.Message message, int maxTokens) {
+        String content = message.getContent();
+        String head = tokenCounter.truncate(content, maxTokens);
+        String compressed = head + TRUNCATION_MARKER;
+        return new ChatRequest.Message(message.getRole(), compressed, message.getToolCalls(), message.getToolCallId());
+    }
+}
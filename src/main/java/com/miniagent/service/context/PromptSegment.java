@@ -0,0 +1,89 @@
+package com.miniagent.service.context;
+
+/**
+ * 提示片段 - 不可变的提示文本, 由 PromptSegments 按内容寻址共享
+ *
+ * 叶子片段直接持有文本; 组合片段只持有各部分的引用, 文本在第一次读取时拼接一次并缓存.
+ * 组合片段同样按内容(各部分的ID)共享, 所以同一组合无论被多少会话使用, 只拼接一次、只占一份内存.
+ */
+public final class PromptSegment {
+
+    private final long id;
+    private final PromptSegment[] parts;
+    private final int length;
+    private volatile String text;
+
+    PromptSegment(long id, String text) {
+        this.id = id;
+        this.parts = null;
+        this.length = text.length();
+        this.text = text;
+    }
+
+    PromptSegment(long id, PromptSegment[] parts) {
+        this.id = id;
+        this.parts = parts;
+        int total = 0;
+        for (PromptSegment part : parts) {
+            total += part.length;
+        }
+        this.length = total;
+    }
+
+    /**
+     * 内容地址: 叶子为文本的哈希, 组合为各部分ID的哈希
+     */
+    public long getId() {
+        return id;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 完整文本, 组合片段首次读取时拼接
+     */
+    public String text() {
+        String result = text;
+        if (result == null) {
+            StringBuilder sb = new StringBuilder(length);
+            appendTo(sb);
+            result = sb.toString();
+            text = result;
+        }
+        return result;
+    }
+
+    boolean sameContent(String other) {
+        return parts == null && text.equals(other);
+    }
+
+    boolean sameParts(PromptSegment[] other) {
+        if (parts == null || parts.length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendTo(StringBuilder sb) {
+        String cached = text;
+        if (cached != null) {
+            sb.append(cached);
+            return;
+        }
+        for (PromptSegment part : parts) {
+            part.appendTo(sb);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text();
+    }
+}
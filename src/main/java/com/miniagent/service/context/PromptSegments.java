@@ -0,0 +1,155 @@
+package com.miniagent.service.context;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * 提示片段表 - 进程内按内容寻址的不可变提示片段
+ *
+ * 相同的系统提示、技能提示、工具说明在成千上万个会话和Agent中只保存一份: 会话持有片段引用,
+ * 发送时取片段(或片段组合)的文本, 组合的文本全局只拼接一次.
+ * 片段ID是64位FNV-1a哈希, 命中时再比较内容, 哈希冲突时返回不共享的新片段, 不会取错.
+ * 表中是弱引用, 不再被任何会话引用的片段可以被回收, 用户自定义的提示不会无限累积.
+ */
+public final class PromptSegments {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * 组合片段的哈希起点, 与叶子片段区分
+     */
+    private static final long COMPOSITE_SEED = 0x9e3779b97f4a7c15L;
+
+    private static final Map<Long, Ref> TABLE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<PromptSegment> CLEARED = new ReferenceQueue<>();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder collisions = new LongAdder();
+
+    private PromptSegments() {
+    }
+
+    /**
+     * 取得内容为 text 的共享片段, text为null时返回null
+     */
+    public static PromptSegment intern(String text) {
+        if (text == null) {
+            return null;
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        long id = hash;
+        return lookup(id, existing -> existing.sameContent(text), () -> new PromptSegment(id, text));
+    }
+
+    /**
+     * 按顺序组合片段 (忽略null), 只计算ID, 不拼接文本
+     */
+    public static PromptSegment join(PromptSegment... parts) {
+        List<PromptSegment> present = new ArrayList<>(parts.length);
+        for (PromptSegment part : parts) {
+            if (part != null) {
+                present.add(part);
+            }
+        }
+        if (present.size() == 1) {
+            return present.get(0);
+        }
+        PromptSegment[] joined = present.toArray(new PromptSegment[0]);
+        long hash = COMPOSITE_SEED;
+        for (PromptSegment part : joined) {
+            hash = (hash ^ part.getId()) * FNV_PRIME;
+        }
+        long id = hash;
+        return lookup(id, existing -> existing.sameParts(joined), () -> new PromptSegment(id, joined));
+    }
+
+    /**
+     * 按ID取片段, 不存在或已被回收时返回null
+     */
+    public static PromptSegment get(long id) {
+        Ref ref = TABLE.get(id);
+        return ref != null ? ref.get() : null;
+    }
+
+    public static Map<String, Object> getStats() {
+        expunge();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long chars = 0;
+        for (Ref ref : TABLE.values()) {
+            PromptSegment segment = ref.get();
+            if (segment != null) {
+                chars += segment.length();
+            }
+        }
+        stats.put("segments", TABLE.size());
+        stats.put("chars", chars);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("collisions", collisions.sum());
+        return stats;
+    }
+
+    private static PromptSegment lookup(long id, Predicate<PromptSegment> matches,
+                                        Supplier<PromptSegment> create) {
+        Ref cached = TABLE.get(id);
+        PromptSegment hit = cached != null ? cached.get() : null;
+        if (hit != null && matches.test(hit)) {
+            hits.increment();
+            return hit;
+        }
+        expunge();
+        PromptSegment[] result = new PromptSegment[1];
+        boolean[] created = new boolean[1];
+        TABLE.compute(id, (key, ref) -> {
+            PromptSegment existing = ref != null ? ref.get() : null;
+            if (existing == null) {
+                result[0] = create.get();
+                created[0] = true;
+                return new Ref(result[0], id);
+            }
+            if (matches.test(existing)) {
+                result[0] = existing;
+            }
+            return ref;
+        });
+        if (result[0] == null) {
+            // 哈希冲突: 已有的片段保留在表中, 新内容不共享
+            collisions.increment();
+            return create.get();
+        }
+        (created[0] ? misses : hits).increment();
+        return result[0];
+    }
+
+    /**
+     * 移除已被回收的片段
+     */
+    private static void expunge() {
+        Ref ref;
+        while ((ref = (Ref) CLEARED.poll()) != null) {
+            TABLE.remove(ref.id, ref);
+        }
+    }
+
+    private static final class Ref extends WeakReference<PromptSegment> {
+        private final long id;
+
+        Ref(PromptSegment segment, long id) {
+            super(segment, CLEARED);
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.miniagent.service.context;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.miniagent.model.ChatRequest;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * token计数 - 使用cl100k_base BPE分词, 按文本缓存结果
+ *
+ * 对话历史中的消息在多次调用间是同一个字符串对象, 命中缓存时只需一次哈希查找,
+ * 每次调用的计数成本只与新增消息相关.
+ * 缓存按文本总字符数限制大小, 超出时按LRU逐条淘汰; 过长的文本不缓存, 以免挤掉大量短消息.
+ */
+@Component
+public class TokenCounter {
+
+    /**
+     * 每条消息的格式开销 (role和分隔符)
+     */
+    public static final int MESSAGE_OVERHEAD = 4;
+
+    private static final long MAX_CACHE_CHARS = 4_000_000;
+    private static final int MAX_CACHED_TEXT_CHARS = 64 * 1024;
+
+    private final Encoding encoding = Encodings.newLazyEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+
+    /**
+     * 文本 -> token数, 按访问顺序排列, 由 this 保护
+     */
+    private final LinkedHashMap<String, Integer> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    private long cachedChars;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * 文本的token数
+     */
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        boolean cacheable = text.length() <= MAX_CACHED_TEXT_CHARS;
+        if (cacheable) {
+            Integer cached;
+            synchronized (this) {
+                cached = cache.get(text);
+            }
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        int tokens = encoding.countTokensOrdinary(text);
+        if (cacheable) {
+            cache(text, tokens);
+        }
+        return tokens;
+    }
+
+    /**
+     * 单条消息的token数 (含格式开销), 包括工具调用的名称、参数和工具结果对应的调用ID
+     */
+    public int count(ChatRequest.Message message) {
+        int tokens = MESSAGE_OVERHEAD + count(message.getContent()) + count(message.getToolCallId());
+        if (message.getToolCalls() != null) {
+            for (ChatRequest.ToolCall call : message.getToolCalls()) {
+                tokens += count(call.getId()) + count(call.getName()) + count(call.getArguments());
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 截取文本的前maxTokens个token
+     */
+    public String truncate(String text, int maxTokens) {
+        if (text == null || count(text) <= maxTokens) {
+            return text;
+        }
+        return encoding.decode(encoding.encodeOrdinary(text, maxTokens).getTokens());
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("cacheSize", cache.size());
+            stats.put("cacheChars", cachedChars);
+        }
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+
+    private synchronized void cache(String text, int tokens) {
+        if (cache.put(text, tokens) != null) {
+            return;
+        }
+        cachedChars += text.length();
+        Iterator<Map.Entry<String, Integer>> it = cache.entrySet().iterator();
+        while (cachedChars > MAX_CACHE_CHARS && it.hasNext()) {
+            cachedChars -= it.next().getKey().length();
+            it.remove();
+            evictions.increment();
+        }
+    }
+}
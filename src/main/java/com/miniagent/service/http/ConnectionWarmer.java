@@ -0,0 +1,113 @@
+package com.miniagent.service.http;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.config.HttpClientProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接预热 - 启动时向每个LLM端点发一个轻量请求, 提前完成DNS、TCP、TLS握手和HTTP/2协商,
+ * 避免第一个用户请求承担建连延迟; 之后按间隔重新预热, 防止空闲连接被回收
+ */
+@Slf4j
+@Component
+public class ConnectionWarmer {
+
+    private final AiProperties aiProperties;
+    private final HttpClientProperties properties;
+    private final HttpClient httpClient;
+    private final Map<String, Map<String, Object>> results = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public ConnectionWarmer(AiProperties aiProperties, HttpClientProperties properties, HttpClient httpClient) {
+        this.aiProperties = aiProperties;
+        this.properties = properties;
+        this.httpClient = httpClient;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-warmer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        if (!properties.isPrewarm()) {
+            return;
+        }
+        warmAll();
+        long interval = properties.getRewarmIntervalSeconds();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::warmAll, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 预热所有端点. 结果只用于统计, 端点返回4xx也说明连接已建立
+     */
+    public void warmAll() {
+        for (AiProperties.Endpoint endpoint : aiProperties.getEffectiveEndpoints()) {
+            try {
+                warm(endpoint);
+            } catch (Exception e) {
+                log.debug("Prewarm of {} skipped: {}", endpoint.getName(), e.getMessage());
+            }
+        }
+    }
+
+    private void warm(AiProperties.Endpoint endpoint) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint.getEffectiveBaseUrl() + "/models"))
+                .timeout(Duration.ofMillis(properties.getPrewarmTimeoutMillis()))
+                .GET();
+        if (endpoint.getApiKey() != null && !endpoint.getApiKey().isEmpty()) {
+            builder.header("Authorization", "Bearer " + endpoint.getApiKey());
+        }
+        String key = endpoint.getName() != null ? endpoint.getName() : endpoint.getEffectiveBaseUrl();
+        long start = System.nanoTime();
+        httpClient.sendAsync(builder.build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("ok", error == null);
+                    result.put("latencyMs", (System.nanoTime() - start) / 1_000_000);
+                    if (error == null) {
+                        result.put("status", response.statusCode());
+                        result.put("version", response.version().name());
+                    } else {
+                        result.put("error", error.getClass().getSimpleName());
+                    }
+                    result.put("timestamp", System.currentTimeMillis());
+                    results.put(key, result);
+                    log.debug("Prewarmed {}: {}", key, result);
+                });
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", properties.isPrewarm());
+        stats.put("rewarmIntervalSeconds", properties.getRewarmIntervalSeconds());
+        stats.put("endpoints", new TreeMap<>(results));
+        return stats;
+    }
+}
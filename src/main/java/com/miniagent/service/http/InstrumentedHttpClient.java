@@ -0,0 +1,182 @@
+package com.miniagent.service.http;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 带统计的HttpClient - 委托给共享的JDK客户端, 按目标主机统计请求数、
+ * 进行中的请求、失败数、协商到的HTTP版本和响应头到达耗时
+ *
+ * JDK客户端不暴露连接池内部状态, 这里的统计从请求侧观察连接复用情况.
+ */
+public class InstrumentedHttpClient extends HttpClient {
+
+    private final HttpClient delegate;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+    public InstrumentedHttpClient(HttpClient delegate, ThreadPoolExecutor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        HostStats stats = statsFor(request);
+        long start = stats.begin();
+        try {
+            HttpResponse<T> response = delegate.send(request, handler);
+            stats.success(response, start);
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            stats.failure();
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                            HttpResponse.BodyHandler<T> handler) {
+        return track(request, delegate.sendAsync(request, handler));
+    }
+
+    @Override
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                            HttpResponse.BodyHandler<T> handler,
+                                                            HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+        return track(request, delegate.sendAsync(request, handler, pushPromiseHandler));
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> track(HttpRequest request,
+                                                         CompletableFuture<HttpResponse<T>> future) {
+        HostStats stats = statsFor(request);
+        long start = stats.begin();
+        future.whenComplete((response, error) -> {
+            if (error == null) {
+                stats.success(response, start);
+            } else {
+                stats.failure();
+            }
+        });
+        return future;
+    }
+
+    private HostStats statsFor(HttpRequest request) {
+        String host = request.uri().getHost() + (request.uri().getPort() > 0 ? ":" + request.uri().getPort() : "");
+        return hosts.computeIfAbsent(host, h -> new HostStats());
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("version", delegate.version().name());
+        Map<String, Object> pool = new LinkedHashMap<>();
+        pool.put("active", executor.getActiveCount());
+        pool.put("poolSize", executor.getPoolSize());
+        pool.put("largestPoolSize", executor.getLargestPoolSize());
+        pool.put("queued", executor.getQueue().size());
+        pool.put("completedTasks", executor.getCompletedTaskCount());
+        stats.put("executor", pool);
+        Map<String, Object> perHost = new TreeMap<>();
+        hosts.forEach((host, hostStats) -> perHost.put(host, hostStats.toMap()));
+        stats.put("hosts", perHost);
+        return stats;
+    }
+
+    @Override
+    public Optional<CookieHandler> cookieHandler() { return delegate.cookieHandler(); }
+
+    @Override
+    public Optional<Duration> connectTimeout() { return delegate.connectTimeout(); }
+
+    @Override
+    public Redirect followRedirects() { return delegate.followRedirects(); }
+
+    @Override
+    public Optional<ProxySelector> proxy() { return delegate.proxy(); }
+
+    @Override
+    public SSLContext sslContext() { return delegate.sslContext(); }
+
+    @Override
+    public SSLParameters sslParameters() { return delegate.sslParameters(); }
+
+    @Override
+    public Optional<Authenticator> authenticator() { return delegate.authenticator(); }
+
+    @Override
+    public Version version() { return delegate.version(); }
+
+    @Override
+    public Optional<Executor> executor() { return delegate.executor(); }
+
+    @Override
+    public WebSocket.Builder newWebSocketBuilder() { return delegate.newWebSocketBuilder(); }
+
+    /**
+     * 单个目标主机的统计
+     */
+    private static class HostStats {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder http2 = new LongAdder();
+        private final LongAdder http1 = new LongAdder();
+        private final LongAdder headerMillis = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long lastUsed;
+
+        long begin() {
+            requests.increment();
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        void success(HttpResponse<?> response, long start) {
+            inFlight.decrementAndGet();
+            headerMillis.add((System.nanoTime() - start) / 1_000_000);
+            (response.version() == Version.HTTP_2 ? http2 : http1).increment();
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void failure() {
+            inFlight.decrementAndGet();
+            failures.increment();
+        }
+
+        Map<String, Object> toMap() {
+            long completed = http2.sum() + http1.sum();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("requests", requests.sum());
+            map.put("inFlight", inFlight.get());
+            map.put("failures", failures.sum());
+            map.put("http2Responses", http2.sum());
+            map.put("http1Responses", http1.sum());
+            map.put("avgHeaderMillis", completed > 0 ? headerMillis.sum() / completed : 0);
+            map.put("lastUsed", lastUsed);
+            return map;
+        }
+    }
+}
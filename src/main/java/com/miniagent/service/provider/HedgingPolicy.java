@@ -0,0 +1,111 @@
+package com.miniagent.service.provider;
+
+import com.miniagent.config.AiProperties;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对冲请求策略 - 决定何时发出备份请求, 并用预算限制额外开销
+ *
+ * 延迟阈值取最近成功请求延迟的指定分位数; 预算是一个令牌桶,
+ * 每个主请求存入 budgetRatio 个令牌, 每次对冲消耗1个令牌,
+ * 因此对冲请求数不会超过主请求数的 budgetRatio 倍.
+ */
+public class HedgingPolicy {
+
+    private static final int SAMPLE_SIZE = 512;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 32;
+
+    private final AiProperties.Hedging config;
+    private final long[] samples = new long[SAMPLE_SIZE];
+    private int sampleCount;
+    private int sampleIndex;
+    private long cachedDelayMs = -1;
+
+    private double budgetTokens;
+
+    private final LongAdder primaries = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetDenied = new LongAdder();
+
+    public HedgingPolicy(AiProperties.Hedging config) {
+        this.config = config;
+        this.budgetTokens = config.getMaxBurst();
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * 记录一个成功请求的延迟
+     */
+    public synchronized void recordLatency(long latencyMs) {
+        samples[sampleIndex] = latencyMs;
+        sampleIndex = (sampleIndex + 1) % SAMPLE_SIZE;
+        if (sampleCount < SAMPLE_SIZE) {
+            sampleCount++;
+        }
+        if (sampleCount >= MIN_SAMPLES && (cachedDelayMs < 0 || sampleIndex % RECOMPUTE_EVERY == 0)) {
+            cachedDelayMs = percentile(config.getPercentile());
+        }
+    }
+
+    /**
+     * 发出备份请求前的等待时间
+     */
+    public synchronized long hedgeDelayMs() {
+        long delay = cachedDelayMs < 0 ? config.getInitialDelayMillis() : cachedDelayMs;
+        return Math.max(config.getMinDelayMillis(), delay);
+    }
+
+    /**
+     * 主请求发出时调用, 向预算中存入令牌
+     */
+    public synchronized void onPrimary() {
+        primaries.increment();
+        budgetTokens = Math.min(config.getMaxBurst(), budgetTokens + config.getBudgetRatio());
+    }
+
+    /**
+     * 尝试获取一次对冲的预算
+     */
+    public synchronized boolean tryAcquireHedge() {
+        if (budgetTokens >= 1.0) {
+            budgetTokens -= 1.0;
+            hedges.increment();
+            return true;
+        }
+        budgetDenied.increment();
+        return false;
+    }
+
+    public void onHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    private long percentile(double p) {
+        long[] copy = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(copy);
+        int index = (int) Math.ceil(p / 100.0 * copy.length) - 1;
+        return copy[Math.max(0, Math.min(copy.length - 1, index))];
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("delayMs", hedgeDelayMs());
+        stats.put("samples", sampleCount);
+        stats.put("primaries", primaries.sum());
+        stats.put("hedges", hedges.sum());
+        stats.put("hedgeWins", hedgeWins.sum());
+        stats.put("budgetDenied", budgetDenied.sum());
+        stats.put("budgetTokens", budgetTokens);
+        return stats;
+    }
+}
@@ -0,0 +1,146 @@
+package com.miniagent.service.provider;
+
+import com.miniagent.config.AiProperties;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provider端点 - 记录延迟(EWMA)、并发数和熔断状态
+ *
+ * 端点失败按 failurePenaltyMs (请求超时) 计入EWMA, 持续出错或间歇出错的端点分数随之下降
+ */
+public class ProviderEndpoint {
+
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private final AiProperties.Endpoint config;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final double alpha;
+    private final long failurePenaltyMs;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private double ewmaLatencyMs = -1;
+    private int consecutiveFailures;
+    private CircuitState state = CircuitState.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public ProviderEndpoint(AiProperties.Endpoint config, int failureThreshold, long openMillis, double alpha,
+                            long failurePenaltyMs) {
+        this.config = config;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.alpha = alpha;
+        this.failurePenaltyMs = failurePenaltyMs;
+    }
+
+    /**
+     * 是否可以接收请求. 熔断到期后只放行一个探测请求
+     */
+    public synchronized boolean tryAcquire(long now) {
+        switch (state) {
+            case CLOSED:
+                break;
+            case OPEN:
+                if (now - openedAt < openMillis) {
+                    return false;
+                }
+                state = CircuitState.HALF_OPEN;
+                probeInFlight = true;
+                break;
+            case HALF_OPEN:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                break;
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 是否可用 (不改变状态)
+     */
+    public synchronized boolean isAvailable(long now) {
+        if (state == CircuitState.CLOSED) return true;
+        if (state == CircuitState.OPEN) return now - openedAt >= openMillis;
+        return !probeInFlight;
+    }
+
+    public synchronized void recordSuccess(long latencyMs) {
+        inFlight.decrementAndGet();
+        successes.increment();
+        sample(latencyMs);
+        consecutiveFailures = 0;
+        state = CircuitState.CLOSED;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure(long now) {
+        inFlight.decrementAndGet();
+        failures.increment();
+        sample(failurePenaltyMs);
+        consecutiveFailures++;
+        probeInFlight = false;
+        if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = CircuitState.OPEN;
+            openedAt = now;
+        }
+    }
+
+    private void sample(double latencyMs) {
+        ewmaLatencyMs = ewmaLatencyMs < 0 ? latencyMs : alpha * latencyMs + (1 - alpha) * ewmaLatencyMs;
+    }
+
+    /**
+     * 请求本身出错, 不计入端点健康度
+     */
+    public synchronized void release() {
+        inFlight.decrementAndGet();
+        if (state == CircuitState.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    /**
+     * 选择分数: 权重越高、延迟越低、并发越少分数越高.
+     * 尚无样本的端点按 priorLatencyMs (端点池平均延迟) 估计, 既能被探索到, 又不会压过已知健康的端点
+     */
+    public synchronized double score(double priorLatencyMs) {
+        double latency = Math.max(1.0, ewmaLatencyMs < 0 ? priorLatencyMs : ewmaLatencyMs);
+        int weight = config.getWeight() != null ? Math.max(0, config.getWeight()) : 1;
+        return weight / (latency * (inFlight.get() + 1));
+    }
+
+    public String getName() {
+        return config.getName() != null ? config.getName() : config.getProvider();
+    }
+
+    public AiProperties.Endpoint getConfig() { return config; }
+    public synchronized double getEwmaLatencyMs() { return ewmaLatencyMs; }
+    public synchronized CircuitState getState() { return state; }
+    public int getInFlight() { return inFlight.get(); }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", getName());
+        stats.put("provider", config.getProvider());
+        stats.put("model", config.getModel());
+        stats.put("weight", config.getWeight());
+        stats.put("state", state.name());
+        stats.put("ewmaLatencyMs", ewmaLatencyMs);
+        stats.put("inFlight", inFlight.get());
+        stats.put("successes", successes.sum());
+        stats.put("failures", failures.sum());
+        stats.put("consecutiveFailures", consecutiveFailures);
+        return stats;
+    }
+}
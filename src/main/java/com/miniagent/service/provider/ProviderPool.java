@@ -0,0 +1,118 @@
+package com.miniagent.service.provider;
+
+import com.miniagent.config.AiProperties;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Provider端点池 - 加权 + 延迟感知的端点选择
+ *
+ * 主端点按 score = weight / (ewmaLatency * (inFlight + 1)) 加权随机选出,
+ * 其余可用端点按分数降序作为故障转移候选. 熔断中的端点会被跳过.
+ * 尚无样本的端点按其他端点的平均延迟估计, 失败按请求超时计入延迟.
+ */
+@Slf4j
+public class ProviderPool {
+
+    private final List<ProviderEndpoint> endpoints;
+
+    public ProviderPool(AiProperties properties) {
+        List<ProviderEndpoint> list = new ArrayList<>();
+        for (AiProperties.Endpoint config : properties.getEffectiveEndpoints()) {
+            list.add(new ProviderEndpoint(resolve(config, properties),
+                    properties.getCircuitFailureThreshold(),
+                    properties.getCircuitOpenMillis(),
+                    properties.getLatencyEwmaAlpha(),
+                    properties.getTimeout()));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+        log.info("Provider pool initialized with {} endpoint(s)", endpoints.size());
+    }
+
+    /**
+     * 复制端点配置并补上全局默认的模型和密钥, 不修改共享的配置bean
+     */
+    private static AiProperties.Endpoint resolve(AiProperties.Endpoint config, AiProperties properties) {
+        AiProperties.Endpoint resolved = new AiProperties.Endpoint();
+        resolved.setName(config.getName());
+        resolved.setProvider(config.getProvider());
+        resolved.setBaseUrl(config.getBaseUrl());
+        resolved.setApiKey(config.getApiKey() != null ? config.getApiKey() : properties.getApiKey());
+        resolved.setModel(config.getModel() == null || config.getModel().isEmpty()
+                ? properties.getModel() : config.getModel());
+        resolved.setWeight(config.getWeight());
+        resolved.setRequestsPerMinute(config.getRequestsPerMinute());
+        resolved.setTokensPerMinute(config.getTokensPerMinute());
+        return resolved;
+    }
+
+    /**
+     * 返回本次请求的候选顺序: 第一个为主端点, 后续为故障转移端点
+     */
+    public List<ProviderEndpoint> candidates() {
+        long now = System.currentTimeMillis();
+        List<ProviderEndpoint> available = new ArrayList<>();
+        for (ProviderEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty()) {
+            return List.of();
+        }
+
+        // 尚无样本的端点按其他端点的平均延迟估计; 都没有样本时一视同仁
+        double sampledTotal = 0;
+        int sampled = 0;
+        for (ProviderEndpoint endpoint : endpoints) {
+            double latency = endpoint.getEwmaLatencyMs();
+            if (latency >= 0) {
+                sampledTotal += latency;
+                sampled++;
+            }
+        }
+        double prior = sampled > 0 ? sampledTotal / sampled : 1.0;
+
+        // 快照分数, 避免排序过程中分数变化
+        Map<ProviderEndpoint, Double> scores = new HashMap<>();
+        double total = 0;
+        for (ProviderEndpoint endpoint : available) {
+            double score = endpoint.score(prior);
+            scores.put(endpoint, score);
+            total += score;
+        }
+
+        ProviderEndpoint primary = available.get(0);
+        if (total > 0) {
+            double r = ThreadLocalRandom.current().nextDouble() * total;
+            for (ProviderEndpoint endpoint : available) {
+                r -= scores.get(endpoint);
+                if (r <= 0) {
+                    primary = endpoint;
+                    break;
+                }
+            }
+        }
+
+        List<ProviderEndpoint> ordered = new ArrayList<>(available.size());
+        ordered.add(primary);
+        available.remove(primary);
+        available.sort((a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        ordered.addAll(available);
+        return ordered;
+    }
+
+    public List<ProviderEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (ProviderEndpoint endpoint : endpoints) {
+            stats.add(endpoint.getStats());
+        }
+        return stats;
+    }
+}
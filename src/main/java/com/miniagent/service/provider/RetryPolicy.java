@@ -0,0 +1,103 @@
+package com.miniagent.service.provider;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.exception.AiServiceException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重试策略 - 判断失败是否值得重试, 并计算退避时间
+ *
+ * 退避采用 full jitter: 在 [0, min(max, initial * multiplier^n)] 中随机取值,
+ * 避免大量客户端同时重试. 上游给出Retry-After时至少等待该时长.
+ * 预算是一个令牌桶, 每个请求存入 budgetRatio 个令牌, 每次重试消耗1个令牌,
+ * 上游整体故障时重试量不会超过正常请求量的 budgetRatio 倍.
+ */
+public class RetryPolicy {
+
+    private final AiProperties.Retry config;
+    private double budgetTokens;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder budgetDenied = new LongAdder();
+
+    public RetryPolicy(AiProperties.Retry config) {
+        this.config = config;
+        this.budgetTokens = config.getMaxBurst();
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled() && config.getMaxAttempts() > 1;
+    }
+
+    /**
+     * 请求发出时调用, 向预算中存入令牌
+     */
+    public synchronized void onRequest() {
+        requests.increment();
+        budgetTokens = Math.min(config.getMaxBurst(), budgetTokens + config.getBudgetRatio());
+    }
+
+    /**
+     * 第attempt次(从1开始)尝试失败后, 返回重试前需要等待的毫秒数; 不应重试时返回-1
+     */
+    public long backoffMillis(AiServiceException failure, int attempt) {
+        if (!failure.isRetryable()) {
+            return -1;
+        }
+        if (attempt >= config.getMaxAttempts()) {
+            exhausted.increment();
+            return -1;
+        }
+        long retryAfter = failure.getRetryAfterMillis();
+        if (retryAfter > config.getMaxRetryAfterMillis()) {
+            // 上游要求等待太久, 直接把错误交给调用方
+            exhausted.increment();
+            return -1;
+        }
+        if (!tryAcquireBudget()) {
+            return -1;
+        }
+        retries.increment();
+
+        double ceiling = config.getInitialBackoffMillis() * Math.pow(config.getMultiplier(), attempt - 1);
+        long cap = (long) Math.min(config.getMaxBackoffMillis(), ceiling);
+        long jitter = cap > 0 ? ThreadLocalRandom.current().nextLong(cap + 1) : 0;
+        return Math.max(retryAfter, jitter);
+    }
+
+    /**
+     * 重试后成功
+     */
+    public void onRecovered() {
+        recovered.increment();
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        if (budgetTokens >= 1.0) {
+            budgetTokens -= 1.0;
+            return true;
+        }
+        budgetDenied.increment();
+        return false;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("maxAttempts", config.getMaxAttempts());
+        stats.put("requests", requests.sum());
+        stats.put("retries", retries.sum());
+        stats.put("recovered", recovered.sum());
+        stats.put("exhausted", exhausted.sum());
+        stats.put("budgetDenied", budgetDenied.sum());
+        stats.put("budgetTokens", budgetTokens);
+        return stats;
+    }
+}
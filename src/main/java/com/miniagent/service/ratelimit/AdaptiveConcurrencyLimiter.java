@@ -0,0 +1,158 @@
+package com.miniagent.service.ratelimit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AIMD自适应并发限制
+ *
+ * 成功且延迟正常时加性增加 (每个窗口约+1), 收到429时减半,
+ * 延迟超过阈值时小幅回退. 乘性回退每个窗口(平滑后的往返时间)最多一次:
+ * 同一时刻在途的一批请求一起收到429时只算一次拥塞信号, 限制不会被连续减半到最小值.
+ * 超出限制的请求按FIFO排队等待到截止时间.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public enum Outcome { SUCCESS, DROPPED, IGNORE }
+
+    private static final double DROP_BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double RTT_ALPHA = 0.2;
+    private static final long DEFAULT_WINDOW_MS = 1000;
+    private static final long MIN_WINDOW_MS = 100;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdMs;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double rttMs = -1;
+    private long lastDecreaseNanos;
+    private boolean decreased;
+
+    private final LongAdder drops = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.latencyThresholdMs = latencyThresholdMs;
+    }
+
+    /**
+     * 等待获取并发名额, 截止前未获取到返回false
+     */
+    public boolean acquire(long deadlineNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts.increment();
+                        return false;
+                    }
+                    available.await(remaining, TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 立即获取, 不排队
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 释放名额并根据结果调整限制
+     */
+    public void release(Outcome outcome, long latencyMs) {
+        lock.lock();
+        try {
+            inFlight--;
+            switch (outcome) {
+                case SUCCESS:
+                    rttMs = rttMs < 0 ? latencyMs : RTT_ALPHA * latencyMs + (1 - RTT_ALPHA) * rttMs;
+                    if (latencyThresholdMs > 0 && latencyMs > latencyThresholdMs) {
+                        decrease(LATENCY_BACKOFF);
+                    } else if (inFlight + 1 >= (int) limit) {
+                        // 只有在限制被用满时才增加, 避免空闲时无限增长
+                        limit = Math.min(maxLimit, limit + 1.0 / limit);
+                    }
+                    break;
+                case DROPPED:
+                    drops.increment();
+                    decrease(DROP_BACKOFF);
+                    break;
+                default:
+                    break;
+            }
+            if (inFlight < (int) limit) {
+                available.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 乘性回退, 距上次回退不足一个窗口时忽略 (调用时已持有锁)
+     */
+    private void decrease(double factor) {
+        long now = System.nanoTime();
+        long windowMs = rttMs >= 0 ? Math.max(MIN_WINDOW_MS, (long) rttMs) : DEFAULT_WINDOW_MS;
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        if (decreased && now - lastDecreaseNanos < windowNanos) {
+            return;
+        }
+        decreased = true;
+        lastDecreaseNanos = now;
+        limit = Math.max(minLimit, limit * factor);
+        decreases.increment();
+    }
+
+    public Map<String, Object> getStats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("limit", limit);
+            stats.put("inFlight", inFlight);
+            stats.put("waiting", waiting);
+            stats.put("rttMs", rttMs);
+            stats.put("drops", drops.sum());
+            stats.put("decreases", decreases.sum());
+            stats.put("queueTimeouts", timeouts.sum());
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
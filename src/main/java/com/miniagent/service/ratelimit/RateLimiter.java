@@ -0,0 +1,267 @@
+package com.miniagent.service.ratelimit;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.exception.RateLimitExceededException;
+import com.miniagent.service.provider.ProviderEndpoint;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端限流 - 按provider和租户限制请求数与预估token数, 并对provider做自适应并发控制
+ *
+ * 超出配额的请求在调用线程上排队等待, 直到截止时间; 超时才失败.
+ * 租户ID来自客户端, 租户配额表定期清理桶已补满(与新建相同, 删除不丢状态)的租户,
+ * 清理后仍超过 maxTenants 时新租户共用一个溢出配额, 内存不会随租户ID无限增长.
+ */
+@Slf4j
+public class RateLimiter {
+
+    private static final String DEFAULT_TENANT = "default";
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final AiProperties.RateLimit config;
+    private final Map<String, ProviderLimits> providers = new ConcurrentHashMap<>();
+    private final Map<String, TenantLimits> tenants = new ConcurrentHashMap<>();
+    private final TenantLimits overflow;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder tenantsExpired = new LongAdder();
+    private final LongAdder tenantsOverflowed = new LongAdder();
+
+    public RateLimiter(AiProperties.RateLimit config) {
+        this.config = config;
+        this.overflow = new TenantLimits();
+    }
+
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+
+    /**
+     * 本次请求的排队截止时间
+     */
+    public long deadlineNanos() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getQueueTimeoutMillis());
+    }
+
+    /**
+     * 获取租户配额, 截止前无法获得时抛出RateLimitExceededException
+     */
+    public void acquireTenant(String tenantId, int estimatedTokens, long deadlineNanos) {
+        if (!config.isEnabled()) return;
+        if (config.getTenantRequestsPerMinute() <= 0 && config.getTenantTokensPerMinute() <= 0) return;
+        String key = tenantId != null && !tenantId.isEmpty() ? tenantId : DEFAULT_TENANT;
+        TenantLimits limits = tenantLimits(key);
+        if (!reserveAndWait(limits.requests, limits.tokens, estimatedTokens, deadlineNanos)) {
+            throw new RateLimitExceededException("Tenant rate limit exceeded: " + key, retryAfterMillis(limits.tokens));
+        }
+    }
+
+    private TenantLimits tenantLimits(String key) {
+        TenantLimits limits = tenants.get(key);
+        if (limits != null) {
+            maybeSweep(false);
+            return limits;
+        }
+        if (tenants.size() >= config.getMaxTenants()) {
+            maybeSweep(true);
+            if (tenants.size() >= config.getMaxTenants()) {
+                tenantsOverflowed.increment();
+                return overflow;
+            }
+        }
+        return tenants.computeIfAbsent(key, k -> new TenantLimits());
+    }
+
+    /**
+     * 删除配额已补满的租户. 每分钟最多一次, 表满时提前
+     */
+    private void maybeSweep(boolean full) {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        long interval = full ? SWEEP_INTERVAL_NANOS / 60 : SWEEP_INTERVAL_NANOS;
+        if (now - last < interval || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        tenants.forEach((key, limits) -> {
+            if (limits.isIdle() && tenants.remove(key, limits)) {
+                tenantsExpired.increment();
+            }
+        });
+    }
+
+    /**
+     * 获取provider配额和并发名额
+     *
+     * @param blocking 为false时不排队, 用于故障转移和对冲请求
+     */
+    public boolean acquireProvider(ProviderEndpoint endpoint, int estimatedTokens, long deadlineNanos,
+                                   boolean blocking) {
+        if (!config.isEnabled()) return true;
+        ProviderLimits limits = limitsFor(endpoint);
+
+        if (!blocking) {
+            if (!limits.concurrency.tryAcquire()) {
+                return false;
+            }
+            if (!tryReserve(limits.requests, limits.tokens, estimatedTokens)) {
+                limits.concurrency.release(AdaptiveConcurrencyLimiter.Outcome.IGNORE, 0);
+                return false;
+            }
+            return true;
+        }
+
+        if (!reserveAndWait(limits.requests, limits.tokens, estimatedTokens, deadlineNanos)) {
+            return false;
+        }
+        try {
+            if (limits.concurrency.acquire(deadlineNanos)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        refund(limits.requests, limits.tokens, estimatedTokens);
+        return false;
+    }
+
+    /**
+     * 按实际用量结算租户的token配额: 多退少补准入时预估的 estimatedTokens
+     */
+    public void settleTenant(String tenantId, int estimatedTokens, int actualTokens) {
+        if (!config.isEnabled() || config.getTenantTokensPerMinute() <= 0) return;
+        String key = tenantId != null && !tenantId.isEmpty() ? tenantId : DEFAULT_TENANT;
+        settle(tenantLimits(key).tokens, estimatedTokens, actualTokens);
+    }
+
+    /**
+     * 按实际用量结算provider的token配额
+     */
+    public void settleProvider(ProviderEndpoint endpoint, int estimatedTokens, int actualTokens) {
+        if (!config.isEnabled()) return;
+        settle(limitsFor(endpoint).tokens, estimatedTokens, actualTokens);
+    }
+
+    private static void settle(TokenBucket tokens, int estimatedTokens, int actualTokens) {
+        if (tokens == null || actualTokens == estimatedTokens) return;
+        if (actualTokens > estimatedTokens) {
+            tokens.charge(actualTokens - estimatedTokens);
+        } else {
+            tokens.refund(estimatedTokens - actualTokens);
+        }
+    }
+
+    /**
+     * 释放provider并发名额
+     */
+    public void releaseProvider(ProviderEndpoint endpoint, AdaptiveConcurrencyLimiter.Outcome outcome,
+                                long latencyMs) {
+        if (!config.isEnabled()) return;
+        limitsFor(endpoint).concurrency.release(outcome, latencyMs);
+    }
+
+    private ProviderLimits limitsFor(ProviderEndpoint endpoint) {
+        return providers.computeIfAbsent(endpoint.getName(), k -> new ProviderLimits(endpoint.getConfig()));
+    }
+
+    private boolean tryReserve(TokenBucket requests, TokenBucket tokens, int estimatedTokens) {
+        if (requests != null && !requests.tryAcquire(1)) {
+            return false;
+        }
+        if (tokens != null && !tokens.tryAcquire(estimatedTokens)) {
+            if (requests != null) requests.refund(1);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 同时预约请求数和token数, 等待到两者都可用
+     */
+    private boolean reserveAndWait(TokenBucket requests, TokenBucket tokens, int estimatedTokens,
+                                   long deadlineNanos) {
+        long maxWait = Math.max(0, deadlineNanos - System.nanoTime());
+        long wait = 0;
+        if (requests != null) {
+            long w = requests.reserve(1, maxWait);
+            if (w < 0) return false;
+            wait = w;
+        }
+        if (tokens != null) {
+            long w = tokens.reserve(estimatedTokens, maxWait);
+            if (w < 0) {
+                if (requests != null) requests.refund(1);
+                return false;
+            }
+            wait = Math.max(wait, w);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                refund(requests, tokens, estimatedTokens);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void refund(TokenBucket requests, TokenBucket tokens, int estimatedTokens) {
+        if (requests != null) requests.refund(1);
+        if (tokens != null) tokens.refund(estimatedTokens);
+    }
+
+    private long retryAfterMillis(TokenBucket bucket) {
+        return bucket != null ? 1000 : config.getQueueTimeoutMillis();
+    }
+
+    private static TokenBucket bucket(Long perMinute) {
+        return perMinute != null && perMinute > 0 ? TokenBucket.perMinute(perMinute) : null;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        Map<String, Object> providerStats = new LinkedHashMap<>();
+        providers.forEach((name, limits) -> {
+            Map<String, Object> s = new LinkedHashMap<>(limits.concurrency.getStats());
+            if (limits.requests != null) s.put("requestTokens", limits.requests.available());
+            if (limits.tokens != null) s.put("tpmTokens", limits.tokens.available());
+            providerStats.put(name, s);
+        });
+        stats.put("providers", providerStats);
+        stats.put("tenants", tenants.size());
+        stats.put("tenantsExpired", tenantsExpired.sum());
+        stats.put("tenantsOverflowed", tenantsOverflowed.sum());
+        return stats;
+    }
+
+    private class ProviderLimits {
+        final TokenBucket requests;
+        final TokenBucket tokens;
+        final AdaptiveConcurrencyLimiter concurrency;
+
+        ProviderLimits(AiProperties.Endpoint endpoint) {
+            this.requests = bucket(endpoint.getRequestsPerMinute() != null
+                    ? endpoint.getRequestsPerMinute() : config.getProviderRequestsPerMinute());
+            this.tokens = bucket(endpoint.getTokensPerMinute() != null
+                    ? endpoint.getTokensPerMinute() : config.getProviderTokensPerMinute());
+            this.concurrency = new AdaptiveConcurrencyLimiter(config.getInitialConcurrency(),
+                    config.getMinConcurrency(), config.getMaxConcurrency(), config.getLatencyThresholdMillis());
+        }
+    }
+
+    private class TenantLimits {
+        final TokenBucket requests = bucket(config.getTenantRequestsPerMinute());
+        final TokenBucket tokens = bucket(config.getTenantTokensPerMinute());
+
+        boolean isIdle() {
+            return (requests == null || requests.isFull()) && (tokens == null || tokens.isFull());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.miniagent.service.ratelimit;
+
+/**
+ * 令牌桶 - 支持预约 (先扣减再等待), 用于按请求数或token数限流
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity        桶容量 (允许的突发量)
+     * @param refillPerSecond 每秒补充的令牌数
+     */
+    public TokenBucket(double capacity, double refillPerSecond) {
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSecond / 1_000_000_000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * 按每分钟配额创建, 容量等于一分钟的配额
+     */
+    public static TokenBucket perMinute(long amountPerMinute) {
+        return new TokenBucket(amountPerMinute, amountPerMinute / 60.0);
+    }
+
+    /**
+     * 立即获取, 不足时返回false
+     */
+    public synchronized boolean tryAcquire(double amount) {
+        refill();
+        double needed = Math.min(amount, capacity);
+        if (tokens >= needed) {
+            tokens -= needed;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 预约令牌: 若在maxWaitNanos内可以满足则扣减并返回需要等待的纳秒数, 否则返回-1且不扣减
+     */
+    public synchronized long reserve(double amount, long maxWaitNanos) {
+        refill();
+        // 超过容量的请求按容量计, 避免永远无法满足
+        double needed = Math.min(amount, capacity);
+        double deficit = needed - tokens;
+        long waitNanos = deficit <= 0 ? 0 : (long) Math.ceil(deficit / refillPerNano);
+        if (waitNanos > maxWaitNanos) {
+            return -1;
+        }
+        tokens -= needed;
+        return waitNanos;
+    }
+
+    /**
+     * 归还预约的令牌
+     */
+    public synchronized void refund(double amount) {
+        tokens = Math.min(capacity, tokens + Math.min(amount, capacity));
+    }
+
+    /**
+     * 事后扣减实际用量, 不足时记为欠额(最多一个容量), 之后的请求等待补足
+     */
+    public synchronized void charge(double amount) {
+        refill();
+        tokens = Math.max(-capacity, tokens - Math.min(amount, capacity));
+    }
+
+    /**
+     * 桶已补满, 与新建的桶状态相同
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    public synchronized double available() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
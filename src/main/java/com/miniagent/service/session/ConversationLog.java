@@ -0,0 +1,698 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 对话日志 - 只追加的分段二进制日志, 保存每个会话的完整历史(不受会话消息上限裁剪)
+ *
+ * 所有会话的事件按到达顺序追加到当前段, 段超过 segmentBytes 后切换新段. 写入只是一次
+ * 页缓存写, 返回的 future 在数据落盘后完成: 后台同步线程一次 fsync 覆盖期间到达的所有写入
+ * (组提交), 写入越密集每次同步摊到的记录越多, 不需要每条消息一次数据库往返.
+ *
+ * 每条记录带有同一会话在本段中上一条记录的位置, 内存中每个会话只保存每段中最后一条记录的位置
+ * (稀疏索引, 与记录数无关). 回放单个会话时沿这条链从新到旧直接定位读取, 不扫描其他会话的记录,
+ * 只需最近N条时读够即停. 启动时顺序扫描所有段重建索引, 末尾未写完整的记录被截断.
+ * 整段的最新记录超过保留期后删除该段.
+ *
+ * 记录格式: [int 长度][int CRC32][short 键长][键][byte 类型][long 时间戳][long 上一条位置][内容]
+ */
+@Slf4j
+public class ConversationLog implements AutoCloseable {
+
+    private static final String FILE_PREFIX = "conversation-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final byte OPEN = 1;
+    private static final byte MESSAGES = 2;
+    private static final byte CLEAR = 3;
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_BODY_BYTES = 2 + 1 + 8 + 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final long syncDelayMillis;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Thread syncer;
+    private final ScheduledExecutorService cleaner;
+
+    /**
+     * 以下字段由 this 保护
+     */
+    private final Map<String, Chain> index = new HashMap<>();
+    private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+    private Segment active;
+    private long appended;
+    private boolean closed;
+
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncedRecords = new LongAdder();
+    private final LongAdder syncErrors = new LongAdder();
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder replayedRecords = new LongAdder();
+    private final LongAdder expiredSegments = new LongAdder();
+    private final LongAdder corruptRecords = new LongAdder();
+
+    /**
+     * @param retentionMillis 段中最新记录超过保留期后删除整段, 0表示永久保留
+     * @param syncDelayMillis 收到写入后再等待多久才同步, 用来攒更大的批次, 0表示立即同步
+     */
+    public ConversationLog(Path dir, long segmentBytes, long retentionMillis, long syncDelayMillis,
+                           long cleanupIntervalSeconds) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.syncDelayMillis = syncDelayMillis;
+        Files.createDirectories(dir);
+        long start = System.currentTimeMillis();
+        load();
+        synchronized (this) {
+            if (active == null) {
+                roll();
+            }
+        }
+        log.info("Conversation log {} loaded: {} sessions in {} segments ({} ms)", dir, index.size(),
+                segments.size(), System.currentTimeMillis() - start);
+        this.syncer = new Thread(this::syncLoop, "conversation-log-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        if (retentionMillis > 0 && cleanupIntervalSeconds > 0) {
+            this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "conversation-log-cleaner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            cleaner.scheduleWithFixedDelay(this::expireQuietly, cleanupIntervalSeconds, cleanupIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            this.cleaner = null;
+        }
+    }
+
+    /**
+     * 停止接受写入, 等待已写入的记录落盘后关闭
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (cleaner != null) {
+            cleaner.shutdown();
+        }
+        try {
+            syncer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments.values()) {
+            segment.closeQuietly();
+        }
+    }
+
+    /**
+     * 记录会话的创建
+     */
+    public CompletableFuture<Void> open(String sessionId, String systemPrompt, int maxMessages, long createdAt)
+            throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(raw);
+        SessionCodec.writeString(out, systemPrompt);
+        SessionCodec.writeVarint(out, maxMessages);
+        out.writeLong(createdAt);
+        out.flush();
+        return write(sessionId, OPEN, raw.toByteArray());
+    }
+
+    /**
+     * 追加一批消息 (通常是一轮对话), 作为一条记录原子写入
+     */
+    public CompletableFuture<Void> append(String sessionId, List<ChatRequest.Message> messages) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(raw);
+        SessionCodec.writeMessages(out, messages);
+        out.flush();
+        return write(sessionId, MESSAGES, raw.toByteArray());
+    }
+
+    /**
+     * 清除会话的历史: 写入清除标记, 之前的记录不再回放, 随所在段过期删除
+     */
+    public CompletableFuture<Void> clear(String sessionId) throws IOException {
+        synchronized (this) {
+            if (!index.containsKey(sessionId)) {
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        return write(sessionId, CLEAR, new byte[0]);
+    }
+
+    public synchronized boolean contains(String sessionId) {
+        return index.containsKey(sessionId);
+    }
+
+    /**
+     * 回放会话, 不存在时返回null. 读到至少 maxMessages 条最近的消息即停止, 为0时使用会话创建时记录的上限
+     * (没有创建记录时读取全部). 返回的消息可能略多于上限 (按整条记录读取), 由调用方裁剪
+     */
+    public SessionSnapshot replay(String sessionId, int maxMessages) throws IOException {
+        Chain chain;
+        synchronized (this) {
+            Chain current = index.get(sessionId);
+            if (current == null) {
+                return null;
+            }
+            chain = current.copy();
+        }
+        replays.increment();
+        SessionSnapshot snapshot = new SessionSnapshot(sessionId, null, null, 0, 0, chain.lastActiveAt, null);
+        if (chain.openSegment != null) {
+            Record open = readLive(chain.openSegment, chain.openOffset);
+            if (open != null) {
+                DataInputStream in = open.payload();
+                snapshot.setSystemPrompt(SessionCodec.readString(in));
+                snapshot.setMaxMessages(SessionCodec.readVarint(in));
+                snapshot.setCreatedAt(in.readLong());
+            }
+        }
+        int limit = maxMessages > 0 ? maxMessages : snapshot.getMaxMessages();
+        List<List<ChatRequest.Message>> batches = new ArrayList<>();
+        int collected = 0;
+        walk:
+        for (int i = chain.size - 1; i >= 0; i--) {
+            Segment segment = chain.segments[i];
+            long offset = chain.offsets[i];
+            while (offset >= 0) {
+                Record record = readLive(segment, offset);
+                if (record == null) {
+                    // 所在段已过期删除, 更早的段也一样
+                    break walk;
+                }
+                replayedRecords.increment();
+                if (record.type == MESSAGES) {
+                    List<ChatRequest.Message> messages = SessionCodec.readMessages(record.payload());
+                    batches.add(messages);
+                    collected += messages.size();
+                    if (limit > 0 && collected >= limit) {
+                        break walk;
+                    }
+                }
+                offset = record.prev;
+            }
+        }
+        List<ChatRequest.Message> messages = new ArrayList<>(collected);
+        for (int i = batches.size() - 1; i >= 0; i--) {
+            messages.addAll(batches.get(i));
+        }
+        snapshot.setMessages(messages);
+        return snapshot;
+    }
+
+    /**
+     * 删除最新记录已超过保留期的段, 当前写入段除外
+     */
+    public void expire() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            synchronized (this) {
+                if (segment == active || now - segment.maxTimestamp <= retentionMillis) {
+                    continue;
+                }
+                segments.remove(segment.id);
+                prune(segment);
+            }
+            segment.closeQuietly();
+            Files.deleteIfExists(segment.path);
+            expiredSegments.increment();
+            log.debug("Deleted expired conversation segment {}", segment.path.getFileName());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long diskBytes = 0;
+        for (Segment segment : segments.values()) {
+            diskBytes += segment.size.get();
+        }
+        synchronized (this) {
+            stats.put("sessions", index.size());
+            stats.put("pendingSync", waiting.size());
+        }
+        long syncCount = syncs.sum();
+        stats.put("segments", segments.size());
+        stats.put("diskBytes", diskBytes);
+        stats.put("appends", appends.sum());
+        stats.put("appendedBytes", appendedBytes.sum());
+        stats.put("syncs", syncCount);
+        stats.put("avgRecordsPerSync", syncCount > 0 ? (double) syncedRecords.sum() / syncCount : 0.0);
+        stats.put("syncErrors", syncErrors.sum());
+        stats.put("replays", replays.sum());
+        stats.put("replayedRecords", replayedRecords.sum());
+        stats.put("expiredSegments", expiredSegments.sum());
+        stats.put("corruptRecords", corruptRecords.sum());
+        return stats;
+    }
+
+    private CompletableFuture<Void> write(String sessionId, byte type, byte[] payload) throws IOException {
+        byte[] key = sessionId.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xffff) {
+            throw new IllegalArgumentException("Session id too long: " + key.length + " bytes");
+        }
+        int bodyLength = MIN_BODY_BYTES + key.length + payload.length;
+        long timestamp = System.currentTimeMillis();
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Conversation log is closed");
+            }
+            if (active.size.get() > 0 && active.size.get() + HEADER_BYTES + bodyLength > segmentBytes) {
+                roll();
+            }
+            Chain chain = type == CLEAR ? index.remove(sessionId) : index.get(sessionId);
+            long prev = chain != null && type != CLEAR ? chain.lastOffsetIn(active) : -1;
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            body.putShort((short) key.length).put(key).put(type).putLong(timestamp).putLong(prev).put(payload);
+            byte[] record = ByteBuffer.allocate(HEADER_BYTES + bodyLength)
+                    .putInt(bodyLength).putInt(crc(body.array())).put(body.array()).array();
+
+            long offset = active.size.get();
+            writeFully(active, record, offset);
+            active.size.addAndGet(record.length);
+            active.maxTimestamp = Math.max(active.maxTimestamp, timestamp);
+            if (type != CLEAR) {
+                register(sessionId, type, active, offset, timestamp);
+            }
+            appended += record.length;
+            waiting.add(new Pending(appended, durable));
+            if (waiting.size() == 1) {
+                notifyAll();
+            }
+        }
+        appends.increment();
+        appendedBytes.add(HEADER_BYTES + bodyLength);
+        return durable;
+    }
+
+    /**
+     * 把记录登记到会话的稀疏索引. 调用方持有锁
+     */
+    private void register(String sessionId, byte type, Segment segment, long offset, long timestamp) {
+        Chain chain = index.computeIfAbsent(sessionId, id -> new Chain());
+        chain.add(segment, offset);
+        if (type == OPEN) {
+            chain.openSegment = segment;
+            chain.openOffset = offset;
+        }
+        chain.lastActiveAt = Math.max(chain.lastActiveAt, timestamp);
+    }
+
+    /**
+     * 组提交: 有写入等待时同步一次当前段, 完成同步前写入的所有记录.
+     * 切换新段时旧段已同步, 所以只需同步当前段
+     */
+    private void syncLoop() {
+        while (true) {
+            synchronized (this) {
+                while (waiting.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // 只在关闭时退出
+                    }
+                }
+                if (waiting.isEmpty()) {
+                    return;
+                }
+            }
+            if (syncDelayMillis > 0) {
+                try {
+                    Thread.sleep(syncDelayMillis);
+                } catch (InterruptedException e) {
+                    // 立即同步
+                }
+            }
+            long target;
+            Segment segment;
+            synchronized (this) {
+                target = appended;
+                segment = active;
+            }
+            IOException failure = null;
+            try {
+                segment.channel.force(false);
+            } catch (IOException e) {
+                failure = e;
+                syncErrors.increment();
+                log.warn("Conversation log sync failed: {}", e.getMessage());
+            }
+            List<Pending> done = new ArrayList<>();
+            synchronized (this) {
+                while (!waiting.isEmpty() && waiting.peek().position <= target) {
+                    done.add(waiting.poll());
+                }
+            }
+            syncs.increment();
+            syncedRecords.add(done.size());
+            for (Pending pending : done) {
+                if (failure == null) {
+                    pending.future.complete(null);
+                } else {
+                    pending.future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private void expireQuietly() {
+        try {
+            expire();
+        } catch (Exception e) {
+            log.warn("Conversation log cleanup failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 从所有会话的索引中去掉被删除的段. 段按顺序过期, 总在索引的最前面. 调用方持有锁
+     */
+    private void prune(Segment segment) {
+        Iterator<Chain> chains = index.values().iterator();
+        while (chains.hasNext()) {
+            Chain chain = chains.next();
+            chain.dropUpTo(segment.id);
+            if (chain.openSegment == segment) {
+                chain.openSegment = null;
+            }
+            if (chain.size == 0) {
+                chains.remove();
+            }
+        }
+    }
+
+    /**
+     * 切换新段, 旧段先同步. 调用方持有锁
+     */
+    private void roll() throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        if (active != null) {
+            active.channel.force(false);
+        }
+        active = open(id);
+        segments.put(id, active);
+    }
+
+    private Segment open(long id) throws IOException {
+        Path path = dir.resolve(String.format("%s%06d%s", FILE_PREFIX, id, FILE_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(id, path, channel);
+    }
+
+    private static void writeFully(Segment segment, byte[] record, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        // 线程的中断标记会使FileChannel被关闭, 读写期间暂时清除
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                segment.channel.write(buffer, offset + buffer.position());
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 读取一条记录, 所在段已被删除时返回null
+     */
+    private Record readLive(Segment segment, long offset) throws IOException {
+        try {
+            return read(segment, offset);
+        } catch (IOException e) {
+            if (!segments.containsKey(segment.id)) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private Record read(Segment segment, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(segment, header, offset);
+        int bodyLength = header.getInt(0);
+        int crc = header.getInt(4);
+        if (bodyLength < MIN_BODY_BYTES || bodyLength > MAX_RECORD_BYTES) {
+            corruptRecords.increment();
+            throw new IOException("Corrupt record in " + segment.path.getFileName() + " at " + offset);
+        }
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        readFully(segment, body, offset + HEADER_BYTES);
+        if (crc(body.array()) != crc) {
+            corruptRecords.increment();
+            throw new IOException("Corrupt record in " + segment.path.getFileName() + " at " + offset);
+        }
+        return Record.parse(body.array());
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long offset) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated record in " + segment.path.getFileName());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 启动时按段号顺序扫描所有段, 重建稀疏索引
+     */
+    private void load() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()))));
+        }
+        ids.sort(null);
+        for (long id : ids) {
+            Segment segment = open(id);
+            segment.size.set(segment.channel.size());
+            segments.put(id, segment);
+            long valid = scan(segment);
+            if (valid < segment.size.get()) {
+                log.warn("Truncating {} at {} (was {} bytes)", segment.path.getFileName(), valid, segment.size.get());
+                segment.channel.truncate(valid);
+                segment.size.set(valid);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * 顺序读取段中的记录登记到索引, 返回最后一条完整记录的结束位置
+     */
+    private long scan(Segment segment) throws IOException {
+        long position = 0;
+        long end = segment.size.get();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path),
+                64 * 1024))) {
+            while (position + HEADER_BYTES <= end) {
+                int bodyLength = in.readInt();
+                int crc = in.readInt();
+                if (bodyLength < MIN_BODY_BYTES || bodyLength > MAX_RECORD_BYTES
+                        || position + HEADER_BYTES + bodyLength > end) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                if (crc(body) != crc) {
+                    corruptRecords.increment();
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte[] key = new byte[buffer.getShort() & 0xffff];
+                buffer.get(key);
+                byte type = buffer.get();
+                long timestamp = buffer.getLong();
+                String sessionId = new String(key, StandardCharsets.UTF_8);
+                if (type == CLEAR) {
+                    index.remove(sessionId);
+                } else {
+                    register(sessionId, type, segment, position, timestamp);
+                }
+                segment.maxTimestamp = Math.max(segment.maxTimestamp, timestamp);
+                position += HEADER_BYTES + bodyLength;
+            }
+        } catch (EOFException e) {
+            // 段末尾不完整
+        }
+        return position;
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong size = new AtomicLong();
+        private volatile long maxTimestamp;
+
+        Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Segment close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 会话的稀疏索引: 按段顺序记录每段中最后一条记录的位置, 以及创建记录的位置
+     */
+    private static class Chain {
+        private Segment[] segments = new Segment[2];
+        private long[] offsets = new long[2];
+        private int size;
+        private Segment openSegment;
+        private long openOffset;
+        private long lastActiveAt;
+
+        void add(Segment segment, long offset) {
+            if (size > 0 && segments[size - 1] == segment) {
+                offsets[size - 1] = offset;
+                return;
+            }
+            if (size == segments.length) {
+                segments = Arrays.copyOf(segments, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            segments[size] = segment;
+            offsets[size] = offset;
+            size++;
+        }
+
+        long lastOffsetIn(Segment segment) {
+            return size > 0 && segments[size - 1] == segment ? offsets[size - 1] : -1;
+        }
+
+        void dropUpTo(long segmentId) {
+            int drop = 0;
+            while (drop < size && segments[drop].id <= segmentId) {
+                drop++;
+            }
+            if (drop > 0) {
+                System.arraycopy(segments, drop, segments, 0, size - drop);
+                System.arraycopy(offsets, drop, offsets, 0, size - drop);
+                Arrays.fill(segments, size - drop, size, null);
+                size -= drop;
+            }
+        }
+
+        Chain copy() {
+            Chain copy = new Chain();
+            copy.segments = Arrays.copyOf(segments, size);
+            copy.offsets = Arrays.copyOf(offsets, size);
+            copy.size = size;
+            copy.openSegment = openSegment;
+            copy.openOffset = openOffset;
+            copy.lastActiveAt = lastActiveAt;
+            return copy;
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final long prev;
+        private final byte[] body;
+        private final int payloadOffset;
+
+        Record(byte type, long prev, byte[] body, int payloadOffset) {
+            this.type = type;
+            this.prev = prev;
+            this.body = body;
+            this.payloadOffset = payloadOffset;
+        }
+
+        static Record parse(byte[] body) {
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            int keyLength = buffer.getShort() & 0xffff;
+            buffer.position(2 + keyLength);
+            byte type = buffer.get();
+            buffer.getLong();
+            long prev = buffer.getLong();
+            return new Record(type, prev, body, buffer.position());
+        }
+
+        DataInputStream payload() {
+            return new DataInputStream(new ByteArrayInputStream(body, payloadOffset, body.length - payloadOffset));
+        }
+    }
+
+    private static class Pending {
+        private final long position;
+        private final CompletableFuture<Void> future;
+
+        Pending(long position, CompletableFuture<Void> future) {
+            this.position = position;
+            this.future = future;
+        }
+    }
+}
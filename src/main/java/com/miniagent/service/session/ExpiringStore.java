@@ -0,0 +1,346 @@
+package com.miniagent.service.session;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * 有界的内存存储 - 按空闲时间过期, 超出条数或估算内存上限时按LRU淘汰
+ *
+ * 读取只更新条目的访问时间, 不加锁. 超出上限的写入线程按最近访问时间
+ * 淘汰到上限的90%, 后台线程定期清理过期条目并重新估算内存.
+ * pinned 判定为占用中的条目(如正在对话)不会被淘汰. 上限为0表示不限制.
+ */
+@Slf4j
+public class ExpiringStore<V> implements AutoCloseable {
+
+    private static final double LOW_WATERMARK = 0.9;
+
+    /**
+     * 淘汰原因
+     */
+    public enum Cause { EXPIRED, SIZE, MEMORY }
+
+    /**
+     * 淘汰回调, 在淘汰线程上执行
+     */
+    public interface EvictionListener<V> {
+        void onEviction(String key, V value, Cause cause);
+    }
+
+    private final String name;
+    private final long idleTimeoutMillis;
+    private final int maxEntries;
+    private final long maxMemoryBytes;
+    private final ToLongFunction<V> weigher;
+    private final Predicate<V> pinned;
+    private final EvictionListener<V> listener;
+
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong memoryBytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ScheduledExecutorService sweeper;
+
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder evictedBySize = new LongAdder();
+    private final LongAdder evictedByMemory = new LongAdder();
+    private final LongAdder sweeps = new LongAdder();
+    private volatile long lastSweepMillis;
+
+    public ExpiringStore(String name, long idleTimeoutMillis, int maxEntries, long maxMemoryBytes,
+                         long sweepIntervalSeconds, ToLongFunction<V> weigher, Predicate<V> pinned,
+                         EvictionListener<V> listener) {
+        this.name = name;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxEntries = maxEntries;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.weigher = weigher;
+        this.pinned = pinned != null ? pinned : v -> false;
+        this.listener = listener;
+        if (sweepIntervalSeconds > 0) {
+            this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name + "-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweepQuietly, sweepIntervalSeconds, sweepIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            this.sweeper = null;
+        }
+    }
+
+    /**
+     * 停止后台清理, 等待进行中的一轮结束 (淘汰回调可能正在写文件, 不中断)
+     */
+    @Override
+    public void close() {
+        if (sweeper == null) {
+            return;
+        }
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 读取并刷新访问时间, 已过期的条目视为不存在
+     */
+    public V get(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isExpired(entry, now)) {
+            expire(key, entry);
+            return null;
+        }
+        entry.accessedAt = now;
+        return entry.value;
+    }
+
+    /**
+     * 读取但不刷新访问时间 (列表、监控用)
+     */
+    public V peek(String key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * 不存在时用factory创建, factory返回null时不写入并返回null
+     */
+    public V computeIfAbsent(String key, Function<String, V> factory) {
+        V existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+        Entry<V> created = new Entry<>();
+        Entry<V> entry = entries.computeIfAbsent(key, k -> {
+            created.value = factory.apply(k);
+            return created.value != null ? created : null;
+        });
+        if (entry == null) {
+            return null;
+        }
+        if (entry == created) {
+            admit(entry);
+        } else {
+            entry.accessedAt = System.currentTimeMillis();
+        }
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        Entry<V> entry = new Entry<>();
+        entry.value = value;
+        Entry<V> previous = entries.put(key, entry);
+        if (previous != null) {
+            release(previous);
+        }
+        admit(entry);
+    }
+
+    public V remove(String key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        release(entry);
+        return entry.value;
+    }
+
+    /**
+     * 值被修改后重新估算内存, 超出上限时触发淘汰
+     */
+    public void reweigh(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            weigh(entry);
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * 当前所有条目的快照, 不刷新访问时间
+     */
+    public Map<String, V> snapshot() {
+        Map<String, V> result = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> result.put(key, entry.value));
+        return result;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 清理过期条目并重新估算内存, 由后台线程定期执行
+     */
+    public void sweep() {
+        long start = System.currentTimeMillis();
+        entries.forEach((key, entry) -> {
+            if (isExpired(entry, start)) {
+                expire(key, entry);
+            } else {
+                weigh(entry);
+            }
+        });
+        evictIfNeeded();
+        sweeps.increment();
+        lastSweepMillis = System.currentTimeMillis() - start;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("memoryBytes", memoryBytes.get());
+        stats.put("maxMemoryBytes", maxMemoryBytes);
+        stats.put("idleTimeoutSeconds", idleTimeoutMillis / 1000);
+        stats.put("expired", expired.sum());
+        stats.put("evictedBySize", evictedBySize.sum());
+        stats.put("evictedByMemory", evictedByMemory.sum());
+        stats.put("sweeps", sweeps.sum());
+        stats.put("lastSweepMillis", lastSweepMillis);
+        return stats;
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            log.warn("Sweep of {} failed: {}", name, e.getMessage());
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return idleTimeoutMillis > 0 && now - entry.accessedAt > idleTimeoutMillis && !pinned.test(entry.value);
+    }
+
+    private void expire(String key, Entry<V> entry) {
+        if (entries.remove(key, entry)) {
+            release(entry);
+            expired.increment();
+            notifyEviction(key, entry.value, Cause.EXPIRED);
+        }
+    }
+
+    private void admit(Entry<V> entry) {
+        weigh(entry);
+        evictIfNeeded();
+    }
+
+    private void weigh(Entry<V> entry) {
+        synchronized (entry) {
+            if (entry.removed) {
+                return;
+            }
+            long weight = weigher.applyAsLong(entry.value);
+            memoryBytes.addAndGet(weight - entry.weight);
+            entry.weight = weight;
+        }
+    }
+
+    private void release(Entry<V> entry) {
+        synchronized (entry) {
+            entry.removed = true;
+            memoryBytes.addAndGet(-entry.weight);
+        }
+    }
+
+    private boolean overLimit(long entryLimit, long memoryLimit) {
+        return entries.size() > entryLimit || memoryBytes.get() > memoryLimit;
+    }
+
+    /**
+     * 超出上限时按最近访问时间从旧到新淘汰到低水位. 同一时间只有一个线程执行
+     */
+    private void evictIfNeeded() {
+        long entryLimit = maxEntries > 0 ? maxEntries : Long.MAX_VALUE;
+        long memoryLimit = maxMemoryBytes > 0 ? maxMemoryBytes : Long.MAX_VALUE;
+        if (!overLimit(entryLimit, memoryLimit) || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long entryTarget = maxEntries > 0 ? (long) (maxEntries * LOW_WATERMARK) : Long.MAX_VALUE;
+            long memoryTarget = maxMemoryBytes > 0 ? (long) (maxMemoryBytes * LOW_WATERMARK) : Long.MAX_VALUE;
+
+            // 先取访问时间快照再排序, 排序期间访问时间可能变化
+            List<Candidate<V>> candidates = new ArrayList<>(entries.size());
+            entries.forEach((key, entry) -> candidates.add(new Candidate<>(key, entry, entry.accessedAt)));
+            candidates.sort(Comparator.comparingLong(c -> c.accessedAt));
+
+            int evicted = 0;
+            for (Candidate<V> candidate : candidates) {
+                if (!overLimit(entryTarget, memoryTarget)) {
+                    break;
+                }
+                if (pinned.test(candidate.entry.value)) {
+                    continue;
+                }
+                Cause cause = entries.size() > entryTarget ? Cause.SIZE : Cause.MEMORY;
+                if (entries.remove(candidate.key, candidate.entry)) {
+                    release(candidate.entry);
+                    (cause == Cause.SIZE ? evictedBySize : evictedByMemory).increment();
+                    notifyEviction(candidate.key, candidate.entry.value, cause);
+                    evicted++;
+                }
+            }
+            if (evicted > 0) {
+                log.info("Evicted {} {} (entries={}, memoryBytes={})", evicted, name, entries.size(),
+                        memoryBytes.get());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void notifyEviction(String key, V value, Cause cause) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onEviction(key, value, cause);
+        } catch (Exception e) {
+            log.warn("Eviction listener of {} failed: {}", name, e.getMessage());
+        }
+    }
+
+    private static class Entry<V> {
+        private V value;
+        private volatile long accessedAt = System.currentTimeMillis();
+        private long weight;
+        private boolean removed;
+    }
+
+    private static class Candidate<V> {
+        private final String key;
+        private final Entry<V> entry;
+        private final long accessedAt;
+
+        Candidate(String key, Entry<V> entry, long accessedAt) {
+            this.key = key;
+            this.entry = entry;
+            this.accessedAt = accessedAt;
+        }
+    }
+}
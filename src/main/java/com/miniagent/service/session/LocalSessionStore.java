@@ -0,0 +1,96 @@
+package com.miniagent.service.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 本地会话存储 - 单节点使用的 SessionStore 实现, 数据保存在本地分段存储中
+ *
+ * 版本号语义与Redis实现相同, 便于开发和单机部署时替代. 只有一个节点,
+ * 不会产生失效通知. 值的格式: [long 版本号][数据]
+ */
+public class LocalSessionStore implements SessionStore {
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final SegmentStore segments;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    public LocalSessionStore(SegmentStore segments) {
+        this.segments = segments;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Versioned load(String key) throws IOException {
+        loads.increment();
+        byte[] raw = segments.get(key);
+        if (raw == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        long version = buffer.getLong();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new Versioned(data, version);
+    }
+
+    @Override
+    public long save(String key, byte[] data, long expectedVersion) throws IOException {
+        synchronized (lockFor(key)) {
+            byte[] current = segments.get(key);
+            long version = current != null ? ByteBuffer.wrap(current).getLong() : 0;
+            if (version != expectedVersion) {
+                conflicts.increment();
+                return CONFLICT;
+            }
+            long next = version + 1;
+            byte[] value = ByteBuffer.allocate(8 + data.length).putLong(next).put(data).array();
+            segments.put(key, value, System.currentTimeMillis());
+            saves.increment();
+            return next;
+        }
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        synchronized (lockFor(key)) {
+            return segments.delete(key);
+        }
+    }
+
+    @Override
+    public void onInvalidate(Consumer<String> listener) {
+        // 单节点, 没有其他写入方
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", "local");
+        stats.put("loads", loads.sum());
+        stats.put("saves", saves.sum());
+        stats.put("conflicts", conflicts.sum());
+        stats.put("segments", segments.getStats());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        segments.close();
+    }
+
+    private Object lockFor(String key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+}
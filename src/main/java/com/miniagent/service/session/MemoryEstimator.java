@@ -0,0 +1,49 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+
+import java.util.Collection;
+
+/**
+ * 粗略估算对话消息占用的堆内存, 用于按内存预算淘汰
+ *
+ * 按每字符2字节(UTF-16)加对象头估算, 宁多勿少; role是共享的字符串常量, 不计入.
+ */
+public final class MemoryEstimator {
+
+    private static final long MESSAGE_OVERHEAD = 48;
+    private static final long TOOL_CALL_OVERHEAD = 32;
+    private static final long STRING_OVERHEAD = 40;
+
+    private MemoryEstimator() {
+    }
+
+    public static long estimate(Collection<ChatRequest.Message> messages) {
+        if (messages == null) {
+            return 0;
+        }
+        long bytes = 0;
+        for (ChatRequest.Message message : messages) {
+            bytes += estimate(message);
+        }
+        return bytes;
+    }
+
+    public static long estimate(ChatRequest.Message message) {
+        if (message == null) {
+            return 0;
+        }
+        long bytes = MESSAGE_OVERHEAD + estimate(message.getContent()) + estimate(message.getToolCallId());
+        if (message.getToolCalls() != null) {
+            for (ChatRequest.ToolCall call : message.getToolCalls()) {
+                bytes += TOOL_CALL_OVERHEAD + estimate(call.getId()) + estimate(call.getName())
+                        + estimate(call.getArguments());
+            }
+        }
+        return bytes;
+    }
+
+    public static long estimate(String value) {
+        return value == null ? 0 : STRING_OVERHEAD + 2L * value.length();
+    }
+}
@@ -0,0 +1,112 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 会话消息的环形缓冲 - 追加和从头丢弃都是O(1), 读取得到O(1)创建的不可变快照
+ *
+ * 写入方只在已发布区间之后的槽位写入, 丢弃旧消息只移动头指针, 不改动已写入的槽位,
+ * 所以已发布的快照永远不变. 写到数组末尾时把存活区间搬到新数组(长度为存活消息数的2倍),
+ * 旧数组留给仍持有快照的读取方, 搬移的开销均摊到每次追加是O(1).
+ *
+ * 本类只允许单线程写入(由调用方串行化), 快照可以在任意线程读取.
+ */
+public final class MessageLog {
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final ChatRequest.Message[] EMPTY = new ChatRequest.Message[0];
+
+    private ChatRequest.Message[] slots = EMPTY;
+    private int head;
+    private int tail;
+
+    public MessageLog() {
+    }
+
+    public MessageLog(Collection<ChatRequest.Message> messages) {
+        append(messages);
+    }
+
+    public void append(Collection<ChatRequest.Message> messages) {
+        for (ChatRequest.Message message : messages) {
+            if (tail == slots.length) {
+                relocate(size() + 1);
+            }
+            slots[tail++] = message;
+        }
+    }
+
+    /**
+     * 丢弃最旧的count条消息
+     */
+    public void dropFirst(int count) {
+        head = Math.min(tail, head + count);
+    }
+
+    public ChatRequest.Message first() {
+        return head < tail ? slots[head] : null;
+    }
+
+    public int size() {
+        return tail - head;
+    }
+
+    /**
+     * 当前内容的不可变快照
+     */
+    public View view() {
+        return new View(slots, head, tail);
+    }
+
+    /**
+     * 存活区间搬到新数组, 丢弃的槽位随旧数组一起回收
+     */
+    private void relocate(int needed) {
+        int live = size();
+        ChatRequest.Message[] next = new ChatRequest.Message[Math.max(INITIAL_CAPACITY, needed * 2)];
+        System.arraycopy(slots, head, next, 0, live);
+        slots = next;
+        head = 0;
+        tail = live;
+    }
+
+    /**
+     * 消息快照, 共享缓冲数组, 不可修改
+     */
+    public static final class View extends AbstractList<ChatRequest.Message> implements RandomAccess {
+        private final ChatRequest.Message[] slots;
+        private final int from;
+        private final int to;
+
+        private View(ChatRequest.Message[] slots, int from, int to) {
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ChatRequest.Message get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+            }
+            return slots[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        /**
+         * 末尾count条消息
+         */
+        public List<ChatRequest.Message> tail(int count) {
+            return new View(slots, Math.max(from, to - count), to);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.miniagent.service.session;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Redis会话存储 - 多节点共享的 SessionStore 实现, 使用RESP协议
+ *
+ * 每个键是一个hash: v为版本号, d为数据. 条件写入用Lua脚本在服务端原子地比较版本、写入、
+ * 续期并发布失效通知; 批量写入合并为一次管道往返. 各节点订阅失效频道,
+ * 忽略自己发出的通知, 订阅断开重连后通知丢弃全部近端缓存.
+ */
+@Slf4j
+public class RedisSessionStore implements SessionStore {
+
+    private static final String SAVE_SCRIPT = """
+            local current = redis.call('HGET', KEYS[1], 'v')
+            if current == false then current = '0' end
+            if current ~= ARGV[1] then return -1 end
+            local version = tonumber(current) + 1
+            redis.call('HSET', KEYS[1], 'v', version, 'd', ARGV[2])
+            if tonumber(ARGV[3]) > 0 then redis.call('PEXPIRE', KEYS[1], ARGV[3]) end
+            redis.call('PUBLISH', ARGV[4], ARGV[5])
+            return version
+            """;
+
+    private final RespClient client;
+    private final String keyPrefix;
+    private final String channel;
+    private final long ttlMillis;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final String scriptSha;
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder invalidationsReceived = new LongAdder();
+
+    public RedisSessionStore(RespClient client, String keyPrefix, long ttlMillis) {
+        this.client = client;
+        this.keyPrefix = keyPrefix;
+        this.channel = keyPrefix + "invalidate";
+        this.ttlMillis = ttlMillis;
+        this.scriptSha = sha1(SAVE_SCRIPT);
+        client.subscribe(channel, this::onMessage, () -> notifyListeners(null));
+    }
+
+    @Override
+    public Versioned load(String key) throws IOException {
+        loads.increment();
+        Object reply = client.execute("HMGET", keyPrefix + key, "v", "d");
+        List<?> fields = (List<?>) reply;
+        if (fields.get(0) == null || fields.get(1) == null) {
+            return null;
+        }
+        long version = Long.parseLong(new String((byte[]) fields.get(0), StandardCharsets.US_ASCII));
+        return new Versioned((byte[]) fields.get(1), version);
+    }
+
+    @Override
+    public long save(String key, byte[] data, long expectedVersion) throws IOException {
+        return saveAll(List.of(new Write(key, data, expectedVersion)))[0];
+    }
+
+    /**
+     * 所有写入在一次管道往返中完成; 服务端脚本缓存被清空时(NOSCRIPT)改用EVAL重发
+     */
+    @Override
+    public long[] saveAll(List<Write> writes) throws IOException {
+        long[] results = new long[writes.size()];
+        if (writes.isEmpty()) {
+            return results;
+        }
+        List<Object[]> batch = new ArrayList<>(writes.size());
+        for (Write write : writes) {
+            batch.add(command("EVALSHA", scriptSha, write));
+        }
+        List<Object> replies = client.pipeline(batch);
+
+        List<Integer> retry = new ArrayList<>();
+        for (int i = 0; i < replies.size(); i++) {
+            Object reply = replies.get(i);
+            if (reply instanceof RespClient.RespException error) {
+                if (error.getMessage() == null || !error.getMessage().startsWith("NOSCRIPT")) {
+                    throw error;
+                }
+                retry.add(i);
+            } else {
+                results[i] = (Long) reply;
+            }
+        }
+        if (!retry.isEmpty()) {
+            List<Object[]> again = new ArrayList<>(retry.size());
+            for (int i : retry) {
+                again.add(command("EVAL", SAVE_SCRIPT, writes.get(i)));
+            }
+            List<Object> retried = client.pipeline(again);
+            for (int j = 0; j < retry.size(); j++) {
+                Object reply = retried.get(j);
+                if (reply instanceof RespClient.RespException error) {
+                    throw error;
+                }
+                results[retry.get(j)] = (Long) reply;
+            }
+        }
+        for (long result : results) {
+            (result == CONFLICT ? conflicts : saves).increment();
+        }
+        return results;
+    }
+
+    @Override
+    public boolean delete(String key) throws IOException {
+        List<Object> replies = client.pipeline(List.of(
+                new Object[]{"DEL", keyPrefix + key},
+                new Object[]{"PUBLISH", channel, nodeId + " " + key}));
+        if (replies.get(0) instanceof RespClient.RespException error) {
+            throw error;
+        }
+        deletes.increment();
+        return (Long) replies.get(0) > 0;
+    }
+
+    @Override
+    public void onInvalidate(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("type", "redis");
+        stats.put("loads", loads.sum());
+        stats.put("saves", saves.sum());
+        stats.put("conflicts", conflicts.sum());
+        stats.put("deletes", deletes.sum());
+        stats.put("invalidationsReceived", invalidationsReceived.sum());
+        stats.put("connections", client.getOpenConnections());
+        stats.put("commands", client.getCommands());
+        stats.put("roundTrips", client.getRoundTrips());
+        stats.put("connectionErrors", client.getConnectionErrors());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    private Object[] command(String verb, String script, Write write) {
+        return new Object[]{verb, script, 1, keyPrefix + write.getKey(), write.getExpectedVersion(), write.getData(),
+                ttlMillis, channel, nodeId + " " + write.getKey()};
+    }
+
+    /**
+     * 通知格式: "节点ID 键"
+     */
+    private void onMessage(byte[] payload) {
+        String message = new String(payload, StandardCharsets.UTF_8);
+        int space = message.indexOf(' ');
+        if (space < 0 || message.substring(0, space).equals(nodeId)) {
+            return;
+        }
+        invalidationsReceived.increment();
+        notifyListeners(message.substring(space + 1));
+    }
+
+    private void notifyListeners(String key) {
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(key);
+            } catch (Exception e) {
+                log.warn("Invalidation listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static String sha1(String script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(digest.digest(script.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.miniagent.service.session;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 最小的RESP2客户端 - 只实现会话存储用到的部分: 连接池, 管道批量发送, 订阅
+ *
+ * 兼容Redis及实现了RESP协议的服务(KeyDB, Dragonfly, Valkey等).
+ * 错误回复在 execute 中抛出 {@link RespException}, 在 pipeline 结果中以 RespException 对象返回.
+ */
+@Slf4j
+public class RespClient implements AutoCloseable {
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int database;
+    private final int timeoutMillis;
+    private final int poolSize;
+    private final BlockingQueue<Connection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private volatile boolean closed;
+
+    private final LongAdder commands = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+
+    public RespClient(String host, int port, String password, int database, int timeoutMillis, int poolSize) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.timeoutMillis = timeoutMillis;
+        this.poolSize = Math.max(1, poolSize);
+        this.idle = new ArrayBlockingQueue<>(this.poolSize);
+    }
+
+    /**
+     * 执行单条命令, 错误回复抛出 RespException
+     */
+    public Object execute(Object... args) throws IOException {
+        Object reply = pipeline(List.<Object[]>of(args)).get(0);
+        if (reply instanceof RespException) {
+            throw (RespException) reply;
+        }
+        return reply;
+    }
+
+    /**
+     * 一次写出所有命令再依次读取回复, 只占用一次网络往返
+     */
+    public List<Object> pipeline(List<Object[]> batch) throws IOException {
+        Connection connection = borrow();
+        boolean healthy = false;
+        try {
+            for (Object[] command : batch) {
+                connection.write(command);
+            }
+            connection.out.flush();
+            List<Object> replies = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                replies.add(connection.read());
+            }
+            healthy = true;
+            commands.add(batch.size());
+            roundTrips.increment();
+            return replies;
+        } catch (IOException e) {
+            connectionErrors.increment();
+            throw e;
+        } finally {
+            release(connection, healthy);
+        }
+    }
+
+    /**
+     * 在独立连接上订阅频道, 断开后自动重连. 重连成功时调用 onReconnect (期间的消息可能已丢失)
+     */
+    public void subscribe(String channel, Consumer<byte[]> handler, Runnable onReconnect) {
+        Subscription subscription = new Subscription(channel, handler, onReconnect);
+        synchronized (subscriptions) {
+            subscriptions.add(subscription);
+        }
+        subscription.thread.start();
+    }
+
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    public long getCommands() {
+        return commands.sum();
+    }
+
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (subscriptions) {
+            subscriptions.forEach(Subscription::close);
+        }
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.closeQuietly();
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Client closed");
+        }
+        Connection connection = idle.poll();
+        if (connection != null) {
+            return connection;
+        }
+        if (open.incrementAndGet() <= poolSize) {
+            try {
+                return connect(timeoutMillis);
+            } catch (IOException e) {
+                open.decrementAndGet();
+                connectionErrors.increment();
+                throw e;
+            }
+        }
+        open.decrementAndGet();
+        try {
+            connection = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection");
+        }
+        if (connection == null) {
+            throw new IOException("No connection available within " + timeoutMillis + " ms");
+        }
+        return connection;
+    }
+
+    private void release(Connection connection, boolean healthy) {
+        if (healthy && !closed && idle.offer(connection)) {
+            return;
+        }
+        connection.closeQuietly();
+        open.decrementAndGet();
+    }
+
+    private Connection connect(int readTimeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(readTimeoutMillis);
+            Connection connection = new Connection(socket);
+            if (password != null && !password.isEmpty()) {
+                connection.call("AUTH", password);
+            }
+            if (database != 0) {
+                connection.call("SELECT", String.valueOf(database));
+            }
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 错误回复
+     */
+    public static class RespException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RespException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        }
+
+        Object call(Object... args) throws IOException {
+            write(args);
+            out.flush();
+            Object reply = read();
+            if (reply instanceof RespException) {
+                throw (RespException) reply;
+            }
+            return reply;
+        }
+
+        /**
+         * 命令编码为批量字符串数组, 参数可以是 byte[] 或任意对象的字符串形式
+         */
+        void write(Object[] args) throws IOException {
+            writeLine('*', args.length);
+            for (Object arg : args) {
+                byte[] bytes = arg instanceof byte[] ? (byte[]) arg
+                        : String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+                writeLine('$', bytes.length);
+                out.write(bytes);
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+
+        private void writeLine(char type, long value) throws IOException {
+            out.write(type);
+            out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        Object read() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            String line = readLine();
+            switch (type) {
+                case '+':
+                    return line;
+                case '-':
+                    return new RespException(line);
+                case ':':
+                    return Long.parseLong(line);
+                case '$': {
+                    int length = Integer.parseInt(line);
+                    if (length < 0) {
+                        return null;
+                    }
+                    byte[] data = in.readNBytes(length);
+                    if (data.length < length || in.read() != '\r' || in.read() != '\n') {
+                        throw new EOFException("Truncated bulk reply");
+                    }
+                    return data;
+                }
+                case '*': {
+                    int count = Integer.parseInt(line);
+                    if (count < 0) {
+                        return null;
+                    }
+                    List<Object> items = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        items.add(read());
+                    }
+                    return items;
+                }
+                default:
+                    throw new IOException("Unexpected reply type: " + (char) type);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\r') {
+                if (c < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                line.append((char) c);
+            }
+            if (in.read() != '\n') {
+                throw new IOException("Malformed reply line");
+            }
+            return line.toString();
+        }
+
+        void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * 订阅连接: 阻塞读取推送的消息, 断开后按退避重连
+     */
+    private class Subscription {
+        private final String channel;
+        private final Consumer<byte[]> handler;
+        private final Runnable onReconnect;
+        private final Thread thread;
+        private volatile Connection connection;
+
+        Subscription(String channel, Consumer<byte[]> handler, Runnable onReconnect) {
+            this.channel = channel;
+            this.handler = handler;
+            this.onReconnect = onReconnect;
+            this.thread = new Thread(this::run, "resp-subscriber-" + channel);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            long backoff = 100;
+            boolean first = true;
+            while (!closed) {
+                try {
+                    connection = connect(0);
+                    connection.write(new Object[]{"SUBSCRIBE", channel});
+                    connection.out.flush();
+                    connection.read();
+                    if (!first) {
+                        onReconnect.run();
+                    }
+                    first = false;
+                    backoff = 100;
+                    while (!closed) {
+                        Object message = connection.read();
+                        if (message instanceof List<?> parts && parts.size() == 3
+                                && "message".equals(text(parts.get(0))) && parts.get(2) instanceof byte[] payload) {
+                            handler.accept(payload);
+                        }
+                    }
+                } catch (Exception e) {
+                    if (closed) {
+                        break;
+                    }
+                    connectionErrors.increment();
+                    log.warn("Subscription to {} lost, reconnecting in {} ms: {}", channel, backoff, e.getMessage());
+                    first = false;
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        break;
+                    }
+                    backoff = Math.min(backoff * 2, 10_000);
+                } finally {
+                    Connection current = connection;
+                    if (current != null) {
+                        current.closeQuietly();
+                    }
+                }
+            }
+        }
+
+        void close() {
+            Connection current = connection;
+            if (current != null) {
+                current.closeQuietly();
+            }
+            thread.interrupt();
+        }
+
+        private String text(Object value) {
+            return value instanceof byte[] bytes ? new String(bytes, StandardCharsets.UTF_8) : String.valueOf(value);
+        }
+    }
+}
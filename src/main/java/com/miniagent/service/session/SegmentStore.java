@@ -0,0 +1,466 @@
+package com.miniagent.service.session;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 本地分段存储 - 追加写入的键值存储, 用作会话的冷存储层
+ *
+ * 记录追加写入当前段文件, 超过 segmentBytes 后切换到新段. 内存中只保存键到文件位置的索引,
+ * 读取按位置直接读出一条记录. 覆盖和删除都只追加新记录, 旧记录成为垃圾;
+ * 后台压缩把垃圾过半或整段超过保留期的段中的存活记录搬到当前段, 然后删除该段.
+ * 启动时按顺序扫描所有段重建索引, 末尾未写完整的记录被截断.
+ *
+ * 记录格式: [int 长度][int CRC32][short 键长][键][byte 类型][long 时间戳][值]
+ */
+@Slf4j
+public class SegmentStore implements AutoCloseable {
+
+    private static final String FILE_PREFIX = "segment-";
+    private static final String FILE_SUFFIX = ".dat";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final double COMPACT_GARBAGE_RATIO = 0.5;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private final LongAdder expiredRecords = new LongAdder();
+    private final LongAdder corruptRecords = new LongAdder();
+
+    /**
+     * @param retentionMillis 记录时间戳超过保留期后在压缩时丢弃, 0表示永久保留
+     */
+    public SegmentStore(Path dir, long segmentBytes, long retentionMillis, long compactIntervalSeconds)
+            throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+        long start = System.currentTimeMillis();
+        load();
+        synchronized (this) {
+            if (active == null) {
+                roll();
+            }
+        }
+        log.info("Segment store {} loaded: {} keys in {} segments ({} ms)", dir, index.size(), segments.size(),
+                System.currentTimeMillis() - start);
+        if (compactIntervalSeconds > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "segment-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly, compactIntervalSeconds, compactIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+        }
+        try {
+            active.channel.force(false);
+        } catch (IOException e) {
+            log.warn("Segment sync failed: {}", e.getMessage());
+        }
+        for (Segment segment : segments.values()) {
+            segment.closeQuietly();
+        }
+    }
+
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * 读取键对应的值, 不存在时返回null
+     */
+    public byte[] get(String key) throws IOException {
+        // 读取期间记录所在的段可能被压缩删除, 此时索引已指向新位置, 重新读取
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            try {
+                byte[] body = read(location);
+                reads.increment();
+                int keyLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                int valueOffset = 2 + keyLength + 1 + 8;
+                byte[] value = new byte[body.length - valueOffset];
+                System.arraycopy(body, valueOffset, value, 0, value.length);
+                return value;
+            } catch (IOException e) {
+                if (index.get(key) == location) {
+                    throw e;
+                }
+            }
+        }
+        throw new IOException("Record moved concurrently: " + key);
+    }
+
+    public void put(String key, byte[] value, long timestamp) throws IOException {
+        byte[] record = encode(key, PUT, timestamp, value);
+        synchronized (this) {
+            Location location = append(record, timestamp);
+            location.segment.liveBytes.addAndGet(record.length);
+            Location previous = index.put(key, location);
+            if (previous != null) {
+                previous.segment.liveBytes.addAndGet(-previous.length);
+            }
+        }
+        writes.increment();
+    }
+
+    public boolean delete(String key) throws IOException {
+        synchronized (this) {
+            Location previous = index.remove(key);
+            if (previous == null) {
+                return false;
+            }
+            previous.segment.liveBytes.addAndGet(-previous.length);
+            append(encode(key, DELETE, System.currentTimeMillis(), new byte[0]), System.currentTimeMillis());
+        }
+        deletes.increment();
+        return true;
+    }
+
+    /**
+     * 压缩垃圾过半或整段超过保留期的段, 当前写入段除外
+     */
+    public void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            Segment current;
+            synchronized (this) {
+                current = active;
+            }
+            if (segment == current) {
+                continue;
+            }
+            long size = segment.size.get();
+            boolean garbage = size == 0 || segment.liveBytes.get() < size * (1 - COMPACT_GARBAGE_RATIO);
+            boolean expired = retentionMillis > 0 && now - segment.maxTimestamp > retentionMillis;
+            if (garbage || expired) {
+                compact(segment, now);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long diskBytes = 0;
+        long liveBytes = 0;
+        for (Segment segment : segments.values()) {
+            diskBytes += segment.size.get();
+            liveBytes += segment.liveBytes.get();
+        }
+        stats.put("keys", index.size());
+        stats.put("segments", segments.size());
+        stats.put("diskBytes", diskBytes);
+        stats.put("liveBytes", liveBytes);
+        stats.put("reads", reads.sum());
+        stats.put("writes", writes.sum());
+        stats.put("deletes", deletes.sum());
+        stats.put("compactions", compactions.sum());
+        stats.put("reclaimedBytes", reclaimedBytes.sum());
+        stats.put("expiredRecords", expiredRecords.sum());
+        stats.put("corruptRecords", corruptRecords.sum());
+        return stats;
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.warn("Segment compaction failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 把段中仍被索引引用的记录搬到当前段, 然后删除该段.
+     * 更早的段可能还有同一个键的旧记录, 此时丢弃的记录需要写入删除标记
+     */
+    private void compact(Segment segment, long now) throws IOException {
+        long before = segment.size.get();
+        scan(segment, (key, type, timestamp, offset, length, body) -> {
+            synchronized (this) {
+                boolean olderSegments = segments.firstKey() < segment.id;
+                Location location = index.get(key);
+                if (type == DELETE) {
+                    if (location == null && olderSegments) {
+                        append(record(body, crc(body)), timestamp);
+                    }
+                    return;
+                }
+                if (location == null || location.segment != segment || location.offset != offset) {
+                    return;
+                }
+                if (retentionMillis > 0 && now - timestamp > retentionMillis) {
+                    index.remove(key);
+                    expiredRecords.increment();
+                    if (olderSegments) {
+                        append(encode(key, DELETE, now, new byte[0]), now);
+                    }
+                    return;
+                }
+                Location moved = append(record(body, crc(body)), timestamp);
+                moved.segment.liveBytes.addAndGet(moved.length);
+                index.put(key, moved);
+            }
+        });
+        synchronized (this) {
+            segments.remove(segment.id);
+        }
+        segment.closeQuietly();
+        Files.deleteIfExists(segment.path);
+        compactions.increment();
+        reclaimedBytes.add(before);
+        log.debug("Compacted segment {} ({} bytes)", segment.path.getFileName(), before);
+    }
+
+    /**
+     * 追加一条完整记录, 必要时切换新段. 调用方持有锁
+     */
+    private Location append(byte[] record, long timestamp) throws IOException {
+        if (active.size.get() > 0 && active.size.get() + record.length > segmentBytes) {
+            roll();
+        }
+        long offset = active.size.get();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        // 线程的中断标记会使FileChannel被关闭, 读写期间暂时清除
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                active.channel.write(buffer, offset + buffer.position());
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        active.size.addAndGet(record.length);
+        active.maxTimestamp = Math.max(active.maxTimestamp, timestamp);
+        return new Location(active, offset, record.length);
+    }
+
+    private void roll() throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        if (active != null) {
+            active.channel.force(false);
+        }
+        active = open(id);
+        segments.put(id, active);
+    }
+
+    private Segment open(long id) throws IOException {
+        Path path = dir.resolve(String.format("%s%06d%s", FILE_PREFIX, id, FILE_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(id, path, channel);
+    }
+
+    private byte[] read(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                if (location.segment.channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new EOFException("Truncated record in " + location.segment.path.getFileName());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        buffer.flip();
+        int bodyLength = buffer.getInt();
+        int crc = buffer.getInt();
+        byte[] body = new byte[bodyLength];
+        buffer.get(body);
+        if (crc(body) != crc) {
+            corruptRecords.increment();
+            throw new IOException("Corrupt record in " + location.segment.path.getFileName());
+        }
+        return body;
+    }
+
+    /**
+     * 启动时按段号顺序回放所有段, 重建索引和存活字节数
+     */
+    private void load() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX))
+                    .forEach(name -> ids.add(Long.parseLong(
+                            name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()))));
+        }
+        ids.sort(null);
+        for (long id : ids) {
+            Segment segment = open(id);
+            segment.size.set(segment.channel.size());
+            segments.put(id, segment);
+            long valid = scan(segment, (key, type, timestamp, offset, length, body) -> {
+                Location previous = type == PUT
+                        ? index.put(key, new Location(segment, offset, length))
+                        : index.remove(key);
+                if (type == PUT) {
+                    segment.liveBytes.addAndGet(length);
+                }
+                if (previous != null) {
+                    previous.segment.liveBytes.addAndGet(-previous.length);
+                }
+                segment.maxTimestamp = Math.max(segment.maxTimestamp, timestamp);
+            });
+            if (valid < segment.size.get()) {
+                log.warn("Truncating {} at {} (was {} bytes)", segment.path.getFileName(), valid, segment.size.get());
+                segment.channel.truncate(valid);
+                segment.size.set(valid);
+            }
+        }
+        if (!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    /**
+     * 顺序读取段中的记录, 返回最后一条完整记录的结束位置
+     */
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+        long end = segment.size.get();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path),
+                64 * 1024))) {
+            while (position + HEADER_BYTES <= end) {
+                int bodyLength = in.readInt();
+                int crc = in.readInt();
+                if (bodyLength < 11 || bodyLength > MAX_RECORD_BYTES || position + HEADER_BYTES + bodyLength > end) {
+                    break;
+                }
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                if (crc(body) != crc) {
+                    corruptRecords.increment();
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                byte[] keyBytes = new byte[buffer.getShort() & 0xffff];
+                buffer.get(keyBytes);
+                byte type = buffer.get();
+                long timestamp = buffer.getLong();
+                int length = HEADER_BYTES + bodyLength;
+                visitor.visit(new String(keyBytes, StandardCharsets.UTF_8), type, timestamp, position, length, body);
+                position += length;
+            }
+        } catch (EOFException e) {
+            // 段末尾不完整
+        }
+        return position;
+    }
+
+    private static byte[] encode(String key, byte type, long timestamp, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+        }
+        ByteBuffer body = ByteBuffer.allocate(2 + keyBytes.length + 1 + 8 + value.length);
+        body.putShort((short) keyBytes.length).put(keyBytes).put(type).putLong(timestamp).put(value);
+        return record(body.array(), crc(body.array()));
+    }
+
+    private static byte[] record(byte[] body, int crc) {
+        return ByteBuffer.allocate(HEADER_BYTES + body.length).putInt(body.length).putInt(crc).put(body).array();
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private interface RecordVisitor {
+        void visit(String key, byte type, long timestamp, long offset, int length, byte[] body) throws IOException;
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long maxTimestamp;
+
+        Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Segment close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 会话的紧凑二进制编码
+ *
+ * 长度和数量用变长整数, 常见role编码为一个字节, 字符串为UTF-8.
+ * 超过 DEFLATE_THRESHOLD 字节的会话整体压缩, 压缩后不变小时保留原文.
+ *
+ * 格式: [byte 版本][byte 标志][内容], 内容依次为 id, name(版本2起), systemPrompt, maxMessages,
+ * createdAt, lastActiveAt, 消息数, 每条消息的 role, content, toolCallId 和工具调用
+ */
+public final class SessionCodec {
+
+    private static final byte VERSION = 2;
+    private static final byte FLAG_DEFLATED = 1;
+    private static final int DEFLATE_THRESHOLD = 512;
+    private static final String[] ROLES = {null, "user", "assistant", "system", "tool"};
+
+    private SessionCodec() {
+    }
+
+    public static byte[] encode(SessionSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(raw);
+        writeString(out, snapshot.getId());
+        writeString(out, snapshot.getName());
+        writeString(out, snapshot.getSystemPrompt());
+        writeVarint(out, snapshot.getMaxMessages());
+        out.writeLong(snapshot.getCreatedAt());
+        out.writeLong(snapshot.getLastActiveAt());
+        writeMessages(out, snapshot.getMessages() != null ? snapshot.getMessages() : List.of());
+        out.flush();
+        byte[] payload = raw.toByteArray();
+
+        byte flags = 0;
+        if (payload.length > DEFLATE_THRESHOLD) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2);
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+                deflater.write(payload);
+            }
+            if (compressed.size() < payload.length) {
+                payload = compressed.toByteArray();
+                flags = FLAG_DEFLATED;
+            }
+        }
+        byte[] result = new byte[payload.length + 2];
+        result[0] = VERSION;
+        result[1] = flags;
+        System.arraycopy(payload, 0, result, 2, payload.length);
+        return result;
+    }
+
+    public static SessionSnapshot decode(byte[] data) throws IOException {
+        if (data.length < 2 || data[0] < 1 || data[0] > VERSION) {
+            throw new IOException("Unsupported session format: " + (data.length > 0 ? data[0] : -1));
+        }
+        InputStream payload = new ByteArrayInputStream(data, 2, data.length - 2);
+        if ((data[1] & FLAG_DEFLATED) != 0) {
+            payload = new InflaterInputStream(payload);
+        }
+        try (DataInputStream in = new DataInputStream(payload)) {
+            SessionSnapshot snapshot = new SessionSnapshot();
+            snapshot.setId(readString(in));
+            if (data[0] >= 2) {
+                snapshot.setName(readString(in));
+            }
+            snapshot.setSystemPrompt(readString(in));
+            snapshot.setMaxMessages(readVarint(in));
+            snapshot.setCreatedAt(in.readLong());
+            snapshot.setLastActiveAt(in.readLong());
+            snapshot.setMessages(readMessages(in));
+            return snapshot;
+        }
+    }
+
+    /**
+     * 消息列表: 变长整数条数 + 每条的 role, content, toolCallId 和工具调用
+     */
+    static void writeMessages(DataOutputStream out, List<ChatRequest.Message> messages) throws IOException {
+        writeVarint(out, messages.size());
+        for (ChatRequest.Message message : messages) {
+            writeRole(out, message.getRole());
+            writeString(out, message.getContent());
+            writeString(out, message.getToolCallId());
+            List<ChatRequest.ToolCall> toolCalls = message.getToolCalls();
+            writeVarint(out, toolCalls != null ? toolCalls.size() + 1 : 0);
+            if (toolCalls != null) {
+                for (ChatRequest.ToolCall call : toolCalls) {
+                    writeString(out, call.getId());
+                    writeString(out, call.getName());
+                    writeString(out, call.getArguments());
+                }
+            }
+        }
+    }
+
+    static List<ChatRequest.Message> readMessages(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        List<ChatRequest.Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ChatRequest.Message message = new ChatRequest.Message();
+            message.setRole(readRole(in));
+            message.setContent(readString(in));
+            message.setToolCallId(readString(in));
+            int toolCalls = readVarint(in) - 1;
+            if (toolCalls >= 0) {
+                List<ChatRequest.ToolCall> calls = new ArrayList<>(toolCalls);
+                for (int j = 0; j < toolCalls; j++) {
+                    calls.add(new ChatRequest.ToolCall(readString(in), readString(in), readString(in)));
+                }
+                message.setToolCalls(calls);
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void writeRole(DataOutputStream out, String role) throws IOException {
+        for (int i = 1; i < ROLES.length; i++) {
+            if (ROLES[i].equals(role)) {
+                out.writeByte(i);
+                return;
+            }
+        }
+        out.writeByte(0);
+        writeString(out, role);
+    }
+
+    private static String readRole(DataInputStream in) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code == 0) {
+            return readString(in);
+        }
+        if (code >= ROLES.length) {
+            throw new IOException("Unknown role code: " + code);
+        }
+        return ROLES[code];
+    }
+
+    /**
+     * 字符串: 变长整数(字节数+1, 0表示null) + UTF-8
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,24 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 会话(或Agent)的可序列化状态, 用于写入会话存储和从存储恢复
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SessionSnapshot {
+    private String id;
+    private String name;
+    private String systemPrompt;
+    private int maxMessages;
+    private long createdAt;
+    private long lastActiveAt;
+    private List<ChatRequest.Message> messages;
+}
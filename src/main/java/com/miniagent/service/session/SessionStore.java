@@ -0,0 +1,71 @@
+package com.miniagent.service.session;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 会话存储SPI - 会话和Agent状态的持久副本, 多个节点共享同一存储时可以不做会话粘滞
+ *
+ * 写入带乐观版本号: 只有存储中的当前版本等于 expectedVersion 时才写入(不存在视为版本0),
+ * 成功返回新版本号, 版本不一致返回 {@link #CONFLICT}. 其他节点写入或删除某个键时,
+ * 通过 onInvalidate 注册的回调收到该键, 用于丢弃本地近端缓存; 键为null表示可能漏掉了通知,
+ * 需要丢弃全部缓存.
+ */
+public interface SessionStore extends AutoCloseable {
+
+    long CONFLICT = -1;
+
+    /**
+     * 读取, 不存在时返回null
+     */
+    Versioned load(String key) throws IOException;
+
+    /**
+     * 条件写入, 返回新版本号或 CONFLICT
+     */
+    long save(String key, byte[] data, long expectedVersion) throws IOException;
+
+    /**
+     * 批量条件写入, 结果与writes一一对应. 实现可以合并为一次往返
+     */
+    default long[] saveAll(List<Write> writes) throws IOException {
+        long[] results = new long[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            Write write = writes.get(i);
+            results[i] = save(write.getKey(), write.getData(), write.getExpectedVersion());
+        }
+        return results;
+    }
+
+    boolean delete(String key) throws IOException;
+
+    /**
+     * 注册其他节点变更的回调
+     */
+    void onInvalidate(Consumer<String> listener);
+
+    Map<String, Object> getStats();
+
+    @Override
+    void close();
+
+    @Data
+    @AllArgsConstructor
+    class Versioned {
+        private byte[] data;
+        private long version;
+    }
+
+    @Data
+    @AllArgsConstructor
+    class Write {
+        private String key;
+        private byte[] data;
+        private long expectedVersion;
+    }
+}
@@ -0,0 +1,90 @@
+package com.miniagent.service.session;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单写者串行化 - 写操作进入无锁队列, 抢到执行权的线程按顺序执行队列中其他线程的操作
+ *
+ * 不使用监视器锁: 执行权由CAS争夺, 其余线程的操作由持有者代为执行. 持有者每轮最多执行
+ * MAX_BATCH 个操作后交出执行权并唤醒队首操作的提交线程接手, 不会因持续提交而一直执行别人的操作.
+ * 等待的线程先短暂自旋, 仍未完成时挂起, 由执行者完成操作后唤醒. 操作应当很短(追加、发布快照), 不能做I/O.
+ * 返回时本线程提交的操作一定已执行完, 操作抛出的异常在提交线程重新抛出.
+ */
+public final class WriteCombiner {
+
+    /**
+     * 持有执行权的线程每轮最多执行的操作数
+     */
+    static final int MAX_BATCH = 64;
+
+    /**
+     * 挂起前的自旋次数, 操作很短时多数等待在自旋期间结束
+     */
+    private static final int SPIN_LIMIT = 128;
+
+    private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public void run(Runnable operation) {
+        Task task = new Task(operation, Thread.currentThread());
+        queue.offer(task);
+        int spins = 0;
+        while (!task.done) {
+            if (draining.compareAndSet(false, true)) {
+                drain();
+            } else if (spins < SPIN_LIMIT) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        if (task.error != null) {
+            throw task.error;
+        }
+    }
+
+    private void drain() {
+        try {
+            Task next;
+            for (int i = 0; i < MAX_BATCH && (next = queue.poll()) != null; i++) {
+                next.execute();
+            }
+        } finally {
+            draining.set(false);
+        }
+        // 剩下的操作 (超出本轮上限, 或在最后一次poll之后提交、争夺执行权失败而挂起的) 由其提交线程接手
+        Task head = queue.peek();
+        if (head != null) {
+            LockSupport.unpark(head.submitter);
+        }
+    }
+
+    private static final class Task {
+        private final Runnable operation;
+        private final Thread submitter;
+        private RuntimeException error;
+        private volatile boolean done;
+
+        Task(Runnable operation, Thread submitter) {
+            this.operation = operation;
+            this.submitter = submitter;
+        }
+
+        void execute() {
+            try {
+                operation.run();
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                done = true;
+                if (submitter != Thread.currentThread()) {
+                    LockSupport.unpark(submitter);
+                }
+            }
+        }
+    }
+}
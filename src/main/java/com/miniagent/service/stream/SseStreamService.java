@@ -0,0 +1,246 @@
+package com.miniagent.service.stream;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.service.AiService;
+import com.miniagent.service.StreamHandle;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * SSE流式输出 - 把上游的数据块转换为带类型的事件立即推送给客户端
+ *
+ * 事件类型见 StreamEvents, 另有 done(结束, 带finishReason) 和 error(错误).
+ * 空闲时发送注释行作为心跳; 客户端断开或超时后取消上游调用.
+ */
+@Slf4j
+@Service
+public class SseStreamService {
+
+    private final AiService aiService;
+    private final AiProperties.Stream config;
+    private final ScheduledExecutorService heartbeats;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder firstTokenCount = new LongAdder();
+    private final LongAdder firstTokenMillis = new LongAdder();
+
+    public SseStreamService(AiService aiService, AiProperties aiProperties) {
+        this.aiService = aiService;
+        this.config = aiProperties.getStream();
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sse-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeats.shutdownNow();
+    }
+
+    /**
+     * 发起流式调用并返回绑定到响应的emitter
+     */
+    public SseEmitter stream(ChatRequest request) {
+        return stream(callback -> aiService.chatStream(request, callback));
+    }
+
+    /**
+     * 由调用方发起流式调用 (例如带历史的Agent对话), starter 把数据块交给传入的回调
+     */
+    public SseEmitter stream(Function<AiService.StreamCallback, StreamHandle> starter) {
+        SseEmitter emitter = new SseEmitter(config.getTimeoutMillis());
+        StreamSession session = new StreamSession(emitter);
+        active.incrementAndGet();
+        started.increment();
+
+        emitter.onTimeout(() -> {
+            if (session.abort(timeouts)) {
+                session.send(StreamEvents.ERROR, Map.of("message", "Stream timed out"));
+            }
+            session.complete();
+        });
+        emitter.onError(e -> log.debug("SSE connection error: {}", e.getMessage()));
+        emitter.onCompletion(session::close);
+
+        long interval = config.getHeartbeatSeconds();
+        if (interval > 0) {
+            session.heartbeat = heartbeats.scheduleWithFixedDelay(session::ping, interval, interval, TimeUnit.SECONDS);
+        }
+        try {
+            session.attach(starter.apply(session));
+        } catch (RuntimeException e) {
+            log.warn("Failed to start stream: {}", e.getMessage());
+            session.onError(e.getMessage());
+        }
+        return emitter;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("active", active.get());
+        stats.put("started", started.sum());
+        stats.put("completed", completed.sum());
+        stats.put("errors", errors.sum());
+        stats.put("cancelled", cancelled.sum());
+        stats.put("timeouts", timeouts.sum());
+        stats.put("upstreamCancelled", aiService.getCancelledStreams());
+        long count = firstTokenCount.sum();
+        stats.put("avgTimeToFirstTokenMillis", count > 0 ? firstTokenMillis.sum() / count : 0);
+        return stats;
+    }
+
+    /**
+     * 一个SSE连接: 接收上游数据块, 转换为事件发送
+     */
+    private class StreamSession implements AiService.StreamCallback {
+        private final SseEmitter emitter;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile StreamHandle handle;
+        private volatile boolean upstreamCancelled;
+        private volatile ScheduledFuture<?> heartbeat;
+        private volatile boolean firstToken = true;
+        private volatile String finishReason;
+
+        StreamSession(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        void attach(StreamHandle handle) {
+            this.handle = handle;
+            if (upstreamCancelled) {
+                handle.cancel();
+            }
+        }
+
+        /**
+         * 上游尚未结束时放弃本次调用并取消上游. 返回是否由本次调用放弃
+         */
+        boolean abort(LongAdder counter) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            counter.increment();
+            upstreamCancelled = true;
+            StreamHandle current = handle;
+            if (current != null) {
+                current.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public void onMessage(String data) {
+            String reason = StreamEvents.dispatch(data, this::sendToken);
+            if (reason != null) {
+                finishReason = reason;
+            }
+        }
+
+        @Override
+        public void onEvent(String type, Map<String, Object> data) {
+            if (!finished.get()) {
+                send(type, data);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (finished.compareAndSet(false, true)) {
+                completed.increment();
+                Map<String, Object> done = new LinkedHashMap<>();
+                done.put("finishReason", finishReason);
+                send(StreamEvents.DONE, done);
+                complete();
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            if (finished.compareAndSet(false, true)) {
+                errors.increment();
+                send(StreamEvents.ERROR, Map.of("message", error != null ? error : "Stream failed"));
+                complete();
+            }
+        }
+
+        private void sendToken(String event, Map<String, Object> data) {
+            if (firstToken) {
+                firstToken = false;
+                firstTokenCount.increment();
+                firstTokenMillis.add((System.nanoTime() - startNanos) / 1_000_000);
+            }
+            send(event, data);
+        }
+
+        void send(String event, Object data) {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                emitter.send(SseEmitter.event().name(event).data(data));
+            } catch (Exception e) {
+                // 客户端已断开
+                log.debug("SSE send failed, closing stream: {}", e.getMessage());
+                complete();
+            }
+        }
+
+        void ping() {
+            if (closed.get()) {
+                return;
+            }
+            try {
+                emitter.send(SseEmitter.event().comment("ping"));
+            } catch (Exception e) {
+                complete();
+            }
+        }
+
+        void complete() {
+            try {
+                emitter.complete();
+            } catch (Exception e) {
+                log.debug("SSE complete failed: {}", e.getMessage());
+            }
+            close();
+        }
+
+        /**
+         * 连接结束(正常完成、超时或断开): 停止心跳, 上游未结束时取消
+         */
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            active.decrementAndGet();
+            ScheduledFuture<?> beat = heartbeat;
+            if (beat != null) {
+                beat.cancel(false);
+            }
+            abort(cancelled);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.miniagent.service.stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把上游的OpenAI兼容数据块拆成带类型的事件, SSE和WebSocket共用
+ *
+ * 事件: delta(回答增量), thinking(推理增量), tool_call(工具调用增量);
+ * Agent对话另有 tool_start(开始执行工具) 和 tool_result(工具结果), 不来自上游数据块
+ */
+@Slf4j
+public final class StreamEvents {
+
+    public static final String DELTA = "delta";
+    public static final String THINKING = "thinking";
+    public static final String TOOL_CALL = "tool_call";
+    public static final String TOOL_START = "tool_start";
+    public static final String TOOL_RESULT = "tool_result";
+    public static final String DONE = "done";
+    public static final String ERROR = "error";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private StreamEvents() {
+    }
+
+    public interface Sink {
+        void event(String type, Map<String, Object> data);
+    }
+
+    /**
+     * 解析一个数据块并逐个输出事件. 返回块中的finish_reason, 没有则为null
+     */
+    @SuppressWarnings("unchecked")
+    public static String dispatch(String data, Sink sink) {
+        Map<String, Object> chunk;
+        try {
+            chunk = OBJECT_MAPPER.readValue(data, Map.class);
+        } catch (Exception e) {
+            log.debug("Skipping unparseable stream chunk: {}", e.getMessage());
+            return null;
+        }
+        Object choices = chunk.get("choices");
+        if (!(choices instanceof List) || ((List<?>) choices).isEmpty()) {
+            return null;
+        }
+        Map<String, Object> choice = (Map<String, Object>) ((List<?>) choices).get(0);
+        if (choice.get("delta") instanceof Map) {
+            Map<String, Object> delta = (Map<String, Object>) choice.get("delta");
+            if (delta.get("reasoning_content") instanceof String) {
+                sink.event(THINKING, Map.of("content", delta.get("reasoning_content")));
+            }
+            if (delta.get("content") instanceof String && !((String) delta.get("content")).isEmpty()) {
+                sink.event(DELTA, Map.of("content", delta.get("content")));
+            }
+            if (delta.get("tool_calls") != null) {
+                sink.event(TOOL_CALL, Map.of("toolCalls", delta.get("tool_calls")));
+            }
+        }
+        return choice.get("finish_reason") instanceof String ? (String) choice.get("finish_reason") : null;
+    }
+}
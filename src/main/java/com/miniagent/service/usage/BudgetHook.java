@@ -0,0 +1,13 @@
+package com.miniagent.service.usage;
+
+import com.miniagent.exception.BudgetExceededException;
+
+/**
+ * 预算检查扩展点 - 注册为Spring Bean后, 每次LLM调用前执行
+ *
+ * 拒绝请求时抛出 {@link BudgetExceededException}
+ */
+public interface BudgetHook {
+
+    void check(UsageContext context, UsageMeter meter) throws BudgetExceededException;
+}
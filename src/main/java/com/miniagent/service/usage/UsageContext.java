@@ -0,0 +1,59 @@
+package com.miniagent.service.usage;
+
+import com.miniagent.model.ChatRequest;
+
+import java.util.Objects;
+
+/**
+ * 用量归属: 租户、Agent和会话
+ */
+public final class UsageContext {
+
+    public static final String NONE = "-";
+    public static final String DEFAULT_TENANT = "default";
+
+    private final String tenantId;
+    private final String agentId;
+    private final String sessionId;
+
+    public UsageContext(String tenantId, String agentId, String sessionId) {
+        this.tenantId = tenantId != null && !tenantId.isEmpty() ? tenantId : DEFAULT_TENANT;
+        this.agentId = agentId != null && !agentId.isEmpty() ? agentId : NONE;
+        this.sessionId = sessionId != null && !sessionId.isEmpty() ? sessionId : NONE;
+    }
+
+    public static UsageContext of(ChatRequest request) {
+        return new UsageContext(request.getTenantId(), request.getAgentId(), request.getSessionId());
+    }
+
+    /**
+     * 把归属写入代为发起的请求 (如后台摘要), 用量计入发起方的租户、Agent和会话
+     */
+    public void applyTo(ChatRequest request) {
+        request.setTenantId(tenantId);
+        request.setAgentId(NONE.equals(agentId) ? null : agentId);
+        request.setSessionId(NONE.equals(sessionId) ? null : sessionId);
+    }
+
+    public String getTenantId() { return tenantId; }
+    public String getAgentId() { return agentId; }
+    public String getSessionId() { return sessionId; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof UsageContext)) return false;
+        UsageContext that = (UsageContext) o;
+        return tenantId.equals(that.tenantId) && agentId.equals(that.agentId) && sessionId.equals(that.sessionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tenantId, agentId, sessionId);
+    }
+
+    @Override
+    public String toString() {
+        return "tenant=" + tenantId + ", agent=" + agentId + ", session=" + sessionId;
+    }
+}
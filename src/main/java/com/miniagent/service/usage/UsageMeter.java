@@ -0,0 +1,412 @@
+package com.miniagent.service.usage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miniagent.config.UsageProperties;
+import com.miniagent.exception.BudgetExceededException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * token用量计量 - 按 (日期, 租户, Agent, 会话, 模型) 聚合
+ *
+ * 计数用LongAdder, 记录路径无锁; 后台定期把增量追加写入按天分的jsonl文件,
+ * 启动时回放保留期内的文件恢复计数. 每次LLM调用前按日用量检查预算.
+ */
+@Slf4j
+@Service
+public class UsageMeter {
+
+    private static final String FILE_PREFIX = "usage-";
+    private static final String FILE_SUFFIX = ".jsonl";
+    private static final int RETENTION_DAYS = 7;
+    private static final TypeReference<Map<String, Object>> RECORD_TYPE = new TypeReference<>() {
+    };
+
+    private final UsageProperties properties;
+    private final ObjectProvider<BudgetHook> budgetHooks;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<UsageKey, Counters> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> dailyScopeTokens = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public UsageMeter(UsageProperties properties, ObjectProvider<BudgetHook> budgetHooks) {
+        this.properties = properties;
+        this.budgetHooks = budgetHooks;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "usage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        replay();
+        long interval = Math.max(1, properties.getFlushIntervalSeconds());
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdownNow();
+        flushQuietly();
+    }
+
+    /**
+     * 记录一次调用的用量
+     */
+    public void record(UsageContext context, String model, Integer inputTokens, Integer outputTokens,
+                       Integer cachedTokens) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        long input = inputTokens != null ? inputTokens : 0;
+        long output = outputTokens != null ? outputTokens : 0;
+        long cached = cachedTokens != null ? cachedTokens : 0;
+        String day = today();
+
+        UsageKey key = new UsageKey(day, context.getTenantId(), context.getAgentId(), context.getSessionId(),
+                model != null ? model : UsageContext.NONE);
+        counters.computeIfAbsent(key, k -> new Counters()).add(1, input, cached, output);
+
+        long tokens = input + output;
+        addScopeTokens("tenant", context.getTenantId(), day, tokens);
+        addScopeTokens("agent", context.getAgentId(), day, tokens);
+        addScopeTokens("session", context.getSessionId(), day, tokens);
+    }
+
+    /**
+     * 调用前检查预算, 超限时抛出 {@link BudgetExceededException}
+     */
+    public void checkBudget(UsageContext context) {
+        if (!properties.isEnabled()) {
+            return;
+        }
+        checkLimit("tenant", context.getTenantId(), properties.getTenantDailyTokenLimit());
+        checkLimit("agent", context.getAgentId(), properties.getAgentDailyTokenLimit());
+        checkLimit("session", context.getSessionId(), properties.getSessionDailyTokenLimit());
+        budgetHooks.orderedStream().forEach(hook -> hook.check(context, this));
+    }
+
+    /**
+     * 某个维度当天已用的token数 (输入+输出)
+     */
+    public long getDailyTokens(String scope, String scopeId) {
+        LongAdder adder = dailyScopeTokens.get(scopeKey(scope, scopeId, today()));
+        return adder != null ? adder.sum() : 0;
+    }
+
+    /**
+     * 查询用量. 过滤条件为null时不过滤, groupBy为 tenant/agent/session/model/day 之一, 为null时汇总为一行
+     */
+    public List<Map<String, Object>> query(String day, String tenantId, String agentId, String sessionId,
+                                           String model, String groupBy) {
+        Function<UsageKey, String> grouping = groupingOf(groupBy);
+        Map<String, long[]> groups = new LinkedHashMap<>();
+        Map<String, Double> costs = new HashMap<>();
+
+        for (Map.Entry<UsageKey, Counters> entry : counters.entrySet()) {
+            UsageKey key = entry.getKey();
+            if (!matches(day, key.day) || !matches(tenantId, key.tenantId) || !matches(agentId, key.agentId)
+                    || !matches(sessionId, key.sessionId) || !matches(model, key.model)) {
+                continue;
+            }
+            long[] values = entry.getValue().snapshot();
+            String group = grouping.apply(key);
+            long[] totals = groups.computeIfAbsent(group, g -> new long[4]);
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += values[i];
+            }
+            costs.merge(group, cost(key.model, values[1], values[2], values[3]), Double::sum);
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : groups.entrySet()) {
+            long[] totals = entry.getValue();
+            Map<String, Object> row = new LinkedHashMap<>();
+            if (groupBy != null) {
+                row.put(groupBy, entry.getKey());
+            }
+            row.put("requests", totals[0]);
+            row.put("inputTokens", totals[1]);
+            row.put("cachedTokens", totals[2]);
+            row.put("outputTokens", totals[3]);
+            row.put("totalTokens", totals[1] + totals[3]);
+            row.put("cost", costs.getOrDefault(entry.getKey(), 0.0));
+            result.add(row);
+        }
+        result.sort(Comparator.comparing((Map<String, Object> row) -> (Long) row.get("totalTokens")).reversed());
+        return result;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", properties.isEnabled());
+        stats.put("keys", counters.size());
+        List<Map<String, Object>> today = query(today(), null, null, null, null, null);
+        stats.put("today", today.isEmpty() ? Map.of() : today.get(0));
+        return stats;
+    }
+
+    /**
+     * 把自上次刷盘以来的增量追加写入当天的文件, 并淘汰保留期之外的计数
+     */
+    public synchronized void flush() throws IOException {
+        Path dir = Paths.get(properties.getStoreDir());
+        Map<String, List<String>> linesByDay = new TreeMap<>();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<UsageKey, Counters> entry : counters.entrySet()) {
+            long[] delta = entry.getValue().drain();
+            if (delta[0] == 0 && delta[1] == 0 && delta[3] == 0) {
+                continue;
+            }
+            UsageKey key = entry.getKey();
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("ts", now);
+            line.put("day", key.day);
+            line.put("tenantId", key.tenantId);
+            line.put("agentId", key.agentId);
+            line.put("sessionId", key.sessionId);
+            line.put("model", key.model);
+            line.put("requests", delta[0]);
+            line.put("inputTokens", delta[1]);
+            line.put("cachedTokens", delta[2]);
+            line.put("outputTokens", delta[3]);
+            line.put("cost", cost(key.model, delta[1], delta[2], delta[3]));
+            linesByDay.computeIfAbsent(key.day, d -> new ArrayList<>()).add(objectMapper.writeValueAsString(line));
+        }
+
+        if (!linesByDay.isEmpty()) {
+            Files.createDirectories(dir);
+            for (Map.Entry<String, List<String>> entry : linesByDay.entrySet()) {
+                Path file = dir.resolve(FILE_PREFIX + entry.getKey() + FILE_SUFFIX);
+                try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String line : entry.getValue()) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                }
+            }
+        }
+
+        String oldest = LocalDate.now(ZoneOffset.UTC).minusDays(RETENTION_DAYS - 1).toString();
+        counters.entrySet().removeIf(e -> e.getKey().day.compareTo(oldest) < 0 && !e.getValue().hasPending());
+        dailyScopeTokens.keySet().removeIf(k -> !k.endsWith(today()));
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Failed to flush usage records", e);
+        }
+    }
+
+    /**
+     * 回放保留期内的用量文件
+     */
+    private void replay() {
+        Path dir = Paths.get(properties.getStoreDir());
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for (int i = RETENTION_DAYS - 1; i >= 0; i--) {
+            String day = today.minusDays(i).toString();
+            Path file = dir.resolve(FILE_PREFIX + day + FILE_SUFFIX);
+            if (!Files.exists(file)) {
+                continue;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    try {
+                        replayLine(objectMapper.readValue(line, RECORD_TYPE));
+                    } catch (Exception e) {
+                        log.warn("Skipping corrupt usage record in {}: {}", file, e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Failed to replay usage file {}: {}", file, e.getMessage());
+            }
+        }
+        counters.values().forEach(Counters::drain);
+        log.info("Usage meter restored {} aggregate(s) from {}", counters.size(), dir);
+    }
+
+    private void replayLine(Map<String, Object> line) {
+        UsageKey key = new UsageKey((String) line.get("day"), (String) line.get("tenantId"),
+                (String) line.get("agentId"), (String) line.get("sessionId"), (String) line.get("model"));
+        long requests = ((Number) line.get("requests")).longValue();
+        long input = ((Number) line.get("inputTokens")).longValue();
+        long cached = ((Number) line.get("cachedTokens")).longValue();
+        long output = ((Number) line.get("outputTokens")).longValue();
+        counters.computeIfAbsent(key, k -> new Counters()).add(requests, input, cached, output);
+        addScopeTokens("tenant", key.tenantId, key.day, input + output);
+        addScopeTokens("agent", key.agentId, key.day, input + output);
+        addScopeTokens("session", key.sessionId, key.day, input + output);
+    }
+
+    private void checkLimit(String scope, String scopeId, long limit) {
+        if (limit <= 0 || UsageContext.NONE.equals(scopeId)) {
+            return;
+        }
+        long used = getDailyTokens(scope, scopeId);
+        if (used >= limit) {
+            throw new BudgetExceededException(
+                    "Daily token budget exceeded for " + scope + " " + scopeId + ": " + used + "/" + limit,
+                    scope, scopeId);
+        }
+    }
+
+    private void addScopeTokens(String scope, String scopeId, String day, long tokens) {
+        if (UsageContext.NONE.equals(scopeId)) {
+            return;
+        }
+        dailyScopeTokens.computeIfAbsent(scopeKey(scope, scopeId, day), k -> new LongAdder()).add(tokens);
+    }
+
+    private double cost(String model, long input, long cached, long output) {
+        UsageProperties.Price price = properties.getPrices().get(model);
+        if (price == null) {
+            return 0.0;
+        }
+        long uncached = Math.max(0, input - cached);
+        return (uncached * price.getInputPerMillion()
+                + cached * price.getCachedInputPerMillion()
+                + output * price.getOutputPerMillion()) / 1_000_000.0;
+    }
+
+    private static Function<UsageKey, String> groupingOf(String groupBy) {
+        if (groupBy == null) {
+            return key -> "all";
+        }
+        switch (groupBy) {
+            case "tenant": return key -> key.tenantId;
+            case "agent": return key -> key.agentId;
+            case "session": return key -> key.sessionId;
+            case "model": return key -> key.model;
+            case "day": return key -> key.day;
+            default: throw new IllegalArgumentException("Unsupported groupBy: " + groupBy);
+        }
+    }
+
+    private static boolean matches(String filter, String value) {
+        return filter == null || filter.equals(value);
+    }
+
+    private static String scopeKey(String scope, String scopeId, String day) {
+        return scope + '\u0000' + scopeId + '\u0000' + day;
+    }
+
+    private static String today() {
+        return LocalDate.now(ZoneOffset.UTC).toString();
+    }
+
+    /**
+     * 聚合维度
+     */
+    private static final class UsageKey {
+        private final String day;
+        private final String tenantId;
+        private final String agentId;
+        private final String sessionId;
+        private final String model;
+
+        UsageKey(String day, String tenantId, String agentId, String sessionId, String model) {
+            this.day = day;
+            this.tenantId = tenantId;
+            this.agentId = agentId;
+            this.sessionId = sessionId;
+            this.model = model;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UsageKey)) return false;
+            UsageKey that = (UsageKey) o;
+            return day.equals(that.day) && tenantId.equals(that.tenantId) && agentId.equals(that.agentId)
+                    && sessionId.equals(that.sessionId) && model.equals(that.model);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(day, tenantId, agentId, sessionId, model);
+        }
+    }
+
+    /**
+     * 一组计数: 请求数、输入token、缓存命中token、输出token
+     */
+    private static final class Counters {
+        private final LongAdder[] values = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+        private final long[] flushed = new long[4];
+
+        void add(long requests, long input, long cached, long output) {
+            values[0].add(requests);
+            values[1].add(input);
+            values[2].add(cached);
+            values[3].add(output);
+        }
+
+        long[] snapshot() {
+            long[] result = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                result[i] = values[i].sum();
+            }
+            return result;
+        }
+
+        /**
+         * 返回自上次drain以来的增量 (只在持有UsageMeter锁时调用)
+         */
+        long[] drain() {
+            long[] current = snapshot();
+            long[] delta = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                delta[i] = current[i] - flushed[i];
+                flushed[i] = current[i];
+            }
+            return delta;
+        }
+
+        boolean hasPending() {
+            long[] current = snapshot();
+            for (int i = 0; i < values.length; i++) {
+                if (current[i] != flushed[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
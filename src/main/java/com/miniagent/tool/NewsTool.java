@@ -17,7 +17,11 @@ public class NewsTool implements FnCallAgent.ToolExecutor {
     private final HttpClient httpClient;
     
     public NewsTool() {
-        this.httpClient = HttpClient.newHttpClient();
+        this(HttpClient.newHttpClient());
+    }
+
+    public NewsTool(HttpClient httpClient) {
+        this.httpClient = httpClient;
     }
 
     @Override
@@ -1,5 +1,6 @@
 package com.miniagent.tool;
 
+import com.miniagent.service.CancellationToken;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.tools.*;
@@ -16,6 +17,15 @@ public class PythonExecutor implements FnCallAgent.ToolExecutor {
 
     @Override
     public Object execute(Map<String, Object> params) throws Exception {
+        return execute(params, CancellationToken.NONE);
+    }
+
+    /**
+     * 取消时终止Python进程
+     */
+    @Override
+    public Object execute(Map<String, Object> params, CancellationToken token) throws Exception {
+        token.throwIfCancelled();
         String code = (String) params.get("code");
         if (code == null || code.isEmpty()) {
             return Map.of("error", "No code provided");
@@ -23,10 +33,12 @@ public class PythonExecutor implements FnCallAgent.ToolExecutor {
         
         // 注意: 这是一个模拟实现
         // 生产环境需要使用 Docker 容器或专门的代码执行服务
-        return executePython(code);
+        Object result = executePython(code, token);
+        token.throwIfCancelled();
+        return result;
     }
 
-    private Object executePython(String code) {
+    private Object executePython(String code, CancellationToken token) {
         try {
             // 检查是否有python3
             ProcessBuilder pb = new ProcessBuilder("python3", "-c", code);
@@ -34,11 +46,17 @@ public class PythonExecutor implements FnCallAgent.ToolExecutor {
             Process process = pb.start();
             
             StringWriter output = new StringWriter();
+            CancellationToken.Registration registration = token.onCancel(() -> {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+            });
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
                     output.append(line).append("\n");
                 }
+            } finally {
+                registration.close();
             }
             
             int exitCode = process.waitFor();
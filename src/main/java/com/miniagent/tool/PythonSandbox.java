@@ -1,5 +1,6 @@
 package com.miniagent.tool;
 
+import com.miniagent.service.CancellationToken;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
@@ -42,6 +43,15 @@ public class PythonSandbox implements FnCallAgent.ToolExecutor {
 
     @Override
     public Object execute(Map<String, Object> params) throws Exception {
+        return execute(params, CancellationToken.NONE);
+    }
+
+    /**
+     * 取消时立即终止Python进程及其子进程
+     */
+    @Override
+    public Object execute(Map<String, Object> params, CancellationToken token) throws Exception {
+        token.throwIfCancelled();
         String code = (String) params.get("code");
         if (code == null || code.isEmpty()) {
             return Map.of("error", "No code provided");
@@ -50,13 +60,15 @@ public class PythonSandbox implements FnCallAgent.ToolExecutor {
         // 清理危险代码
         code = sanitizeCode(code);
         
-        return executePython(code);
+        Map<String, Object> result = executePython(code, token);
+        token.throwIfCancelled();
+        return result;
     }
 
     /**
      * 执行Python代码
      */
-    private Map<String, Object> executePython(String code) {
+    private Map<String, Object> executePython(String code, CancellationToken token) {
         String sessionId = UUID.randomUUID().toString().substring(0, 8);
         Path scriptFile = workDir.resolve("script_" + sessionId + ".py");
         Path outputFile = workDir.resolve("output_" + sessionId + ".txt");
@@ -84,6 +96,7 @@ public class PythonSandbox implements FnCallAgent.ToolExecutor {
             
             // 读取输出
             StringBuilder output = new StringBuilder();
+            CancellationToken.Registration registration = token.onCancel(() -> destroy(process));
             try (BufferedReader reader = new BufferedReader(
                     new InputStreamReader(process.getInputStream()))) {
                 String line;
@@ -98,13 +111,15 @@ public class PythonSandbox implements FnCallAgent.ToolExecutor {
                         );
                     }
                 }
+            } finally {
+                registration.close();
             }
             
             // 等待完成或超时
             boolean finished = process.waitFor(timeoutSeconds, TimeUnit.SECONDS);
             
             if (!finished) {
-                process.destroyForcibly();
+                destroy(process);
                 return Map.of(
                     "success", false,
                     "error", "Execution timeout (" + timeoutSeconds + "s)",
@@ -192,6 +207,14 @@ public class PythonSandbox implements FnCallAgent.ToolExecutor {
         return code;
     }
     
+    /**
+     * 终止进程, 连同它启动的子进程
+     */
+    private static void destroy(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
     private void cleanupFile(Path file) {
         try {
             Files.deleteIfExists(file);
@@ -17,7 +17,11 @@ public class WeatherTool implements FnCallAgent.ToolExecutor {
     private final HttpClient httpClient;
     
     public WeatherTool() {
-        this.httpClient = HttpClient.newHttpClient();
+        this(HttpClient.newHttpClient());
+    }
+
+    public WeatherTool(HttpClient httpClient) {
+        this.httpClient = httpClient;
     }
 
     @Override
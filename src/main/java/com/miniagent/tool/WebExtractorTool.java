@@ -22,9 +22,13 @@ public class WebExtractorTool implements FnCallAgent.ToolExecutor {
     private final HttpClient httpClient;
     
     public WebExtractorTool() {
-        this.httpClient = HttpClient.newBuilder()
+        this(HttpClient.newBuilder()
             .connectTimeout(java.time.Duration.ofSeconds(10))
-            .build();
+            .build());
+    }
+
+    public WebExtractorTool(HttpClient httpClient) {
+        this.httpClient = httpClient;
     }
 
     @Override
@@ -28,8 +28,16 @@ public class WebSearchTool implements FnCallAgent.ToolExecutor {
     }
     
     public WebSearchTool(String apiKey) {
+        this(apiKey, HttpClient.newHttpClient());
+    }
+
+    public WebSearchTool(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public WebSearchTool(String apiKey, HttpClient httpClient) {
         this.apiKey = apiKey;
-        this.httpClient = HttpClient.newHttpClient();
+        this.httpClient = httpClient;
     }
 
     @Override
@@ -0,0 +1,262 @@
+package com.miniagent.service;
+
+import com.miniagent.config.AiProperties;
+import com.miniagent.config.UsageProperties;
+import com.miniagent.exception.AiServiceException;
+import com.miniagent.model.ChatRequest;
+import com.miniagent.model.ChatResponse;
+import com.miniagent.service.context.ContextBudgeter;
+import com.miniagent.service.context.TokenCounter;
+import com.miniagent.service.provider.ProviderPool;
+import com.miniagent.service.usage.BudgetHook;
+import com.miniagent.service.usage.UsageMeter;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 端点池路由测试: 用本地桩服务器模拟多个provider
+ */
+class AiServiceRoutingTest {
+
+    static {
+        // 关闭Nagle算法, 否则桩服务器每个响应都有约40ms的延迟确认等待
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final List<StubProvider> stubs = new ArrayList<>();
+
+    @AfterEach
+    void stopStubs() {
+        stubs.forEach(StubProvider::stop);
+    }
+
+    @Test
+    void failsOverToNextEndpointOnServerError() throws IOException {
+        StubProvider broken = stub("broken");
+        StubProvider healthy = stub("healthy");
+        broken.status = 500;
+        AiService service = service(100, 30000, broken, healthy);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(service.chat(request()).getContent()).isEqualTo("healthy");
+        }
+        assertThat(healthy.hits.get()).isEqualTo(10);
+    }
+
+    @Test
+    void shiftsTrafficAwayFromFailingEndpoint() throws IOException {
+        StubProvider broken = stub("broken");
+        StubProvider healthy = stub("healthy");
+        broken.status = 500;
+        // 阈值足够高, 熔断不会打开, 只靠分数让流量离开出错的端点
+        AiService service = service(1000, 30000, broken, healthy);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(service.chat(request()).getContent()).isEqualTo("healthy");
+        }
+        assertThat(state(service, "broken")).isEqualTo("CLOSED");
+        assertThat(broken.hits.get()).isLessThanOrEqualTo(2);
+        assertThat(ewma(service, "broken")).isGreaterThan(ewma(service, "healthy"));
+    }
+
+    @Test
+    void doesNotModifyConfiguredEndpoints() {
+        AiProperties properties = new AiProperties();
+        properties.setApiKey("global-key");
+        properties.setModel("global-model");
+        AiProperties.Endpoint endpoint = new AiProperties.Endpoint();
+        endpoint.setName("bare");
+        properties.getEndpoints().add(endpoint);
+
+        ProviderPool pool = new ProviderPool(properties);
+
+        assertThat(pool.getEndpoints().get(0).getConfig().getModel()).isEqualTo("global-model");
+        assertThat(pool.getEndpoints().get(0).getConfig().getApiKey()).isEqualTo("global-key");
+        assertThat(endpoint.getModel()).isNull();
+        assertThat(endpoint.getApiKey()).isNull();
+    }
+
+    @Test
+    void doesNotFailOverOnClientError() throws IOException {
+        StubProvider rejecting = stub("rejecting");
+        rejecting.status = 400;
+        AiService service = service(1, 30000, rejecting);
+
+        assertThatThrownBy(() -> service.chat(request()))
+                .isInstanceOf(AiServiceException.class)
+                .extracting(e -> ((AiServiceException) e).getStatusCode())
+                .isEqualTo(400);
+        assertThat(state(service, "rejecting")).isEqualTo("CLOSED");
+    }
+
+    @Test
+    void opensCircuitAndClosesAfterSuccessfulProbe() throws Exception {
+        StubProvider provider = stub("only");
+        provider.status = 503;
+        AiService service = service(2, 300, provider);
+
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> service.chat(request())).isInstanceOf(AiServiceException.class);
+        }
+        assertThat(state(service, "only")).isEqualTo("OPEN");
+
+        // 熔断期间不再请求上游
+        assertThatThrownBy(() -> service.chat(request()))
+                .isInstanceOf(AiServiceException.class)
+                .hasMessageContaining("No available AI endpoint");
+        assertThat(provider.hits.get()).isEqualTo(2);
+
+        Thread.sleep(350);
+        provider.status = 200;
+        assertThat(service.chat(request()).getContent()).isEqualTo("only");
+        assertThat(state(service, "only")).isEqualTo("CLOSED");
+        assertThat(provider.hits.get()).isEqualTo(3);
+    }
+
+    @Test
+    void failedHalfOpenProbeReopensCircuit() throws Exception {
+        StubProvider provider = stub("only");
+        provider.status = 503;
+        AiService service = service(1, 300, provider);
+
+        assertThatThrownBy(() -> service.chat(request())).isInstanceOf(AiServiceException.class);
+        assertThat(state(service, "only")).isEqualTo("OPEN");
+
+        Thread.sleep(350);
+        assertThatThrownBy(() -> service.chat(request())).isInstanceOf(AiServiceException.class);
+        assertThat(provider.hits.get()).isEqualTo(2);
+        assertThat(state(service, "only")).isEqualTo("OPEN");
+        assertThatThrownBy(() -> service.chat(request()))
+                .hasMessageContaining("No available AI endpoint");
+        assertThat(provider.hits.get()).isEqualTo(2);
+    }
+
+    @Test
+    void prefersLowerLatencyEndpoint() throws IOException {
+        StubProvider slow = stub("slow");
+        StubProvider fast = stub("fast");
+        slow.delayMillis = 150;
+        AiService service = service(100, 30000, slow, fast);
+
+        for (int i = 0; i < 40; i++) {
+            service.chat(request());
+        }
+        assertThat(fast.hits.get()).isGreaterThan(slow.hits.get() * 4);
+        assertThat(ewma(service, "slow")).isGreaterThan(ewma(service, "fast"));
+    }
+
+    private StubProvider stub(String name) throws IOException {
+        StubProvider stub = new StubProvider(name);
+        stubs.add(stub);
+        return stub;
+    }
+
+    private static AiService service(int failureThreshold, long openMillis, StubProvider... providers) {
+        AiProperties properties = new AiProperties();
+        properties.setCoalesceRequests(false);
+        properties.setCircuitFailureThreshold(failureThreshold);
+        properties.setCircuitOpenMillis(openMillis);
+        properties.getRetry().setEnabled(false);
+        for (StubProvider provider : providers) {
+            AiProperties.Endpoint endpoint = new AiProperties.Endpoint();
+            endpoint.setName(provider.name);
+            endpoint.setProvider("openai");
+            endpoint.setBaseUrl(provider.baseUrl());
+            endpoint.setApiKey("test");
+            endpoint.setModel("stub");
+            properties.getEndpoints().add(endpoint);
+        }
+        UsageProperties usage = new UsageProperties();
+        usage.setEnabled(false);
+        UsageMeter usageMeter = new UsageMeter(usage,
+                new DefaultListableBeanFactory().getBeanProvider(BudgetHook.class));
+        TokenCounter tokenCounter = new TokenCounter();
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        return new AiService(properties, usageMeter, new ContextBudgeter(properties, tokenCounter), tokenCounter,
+                httpClient);
+    }
+
+    private static ChatRequest request() {
+        ChatRequest request = new ChatRequest();
+        request.setMessages(List.of(new ChatRequest.Message("user", "hello", null, null)));
+        return request;
+    }
+
+    private static Map<String, Object> endpointStats(AiService service, String name) {
+        return service.getProviderStats().stream()
+                .filter(stats -> name.equals(stats.get("name")))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static String state(AiService service, String name) {
+        return (String) endpointStats(service, name).get("state");
+    }
+
+    private static double ewma(AiService service, String name) {
+        return (Double) endpointStats(service, name).get("ewmaLatencyMs");
+    }
+
+    /**
+     * OpenAI兼容的桩服务器, 回复内容为端点名称
+     */
+    private static final class StubProvider {
+        private final String name;
+        private final HttpServer server;
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile int status = 200;
+        private volatile long delayMillis;
+
+        StubProvider(String name) throws IOException {
+            this.name = name;
+            this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/chat/completions", exchange -> {
+                hits.incrementAndGet();
+                exchange.getRequestBody().readAllBytes();
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int code = status;
+                String body = code == 200
+                        ? "{\"model\":\"stub\",\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\""
+                        + name + "\"},\"finish_reason\":\"stop\"}],"
+                        + "\"usage\":{\"prompt_tokens\":3,\"completion_tokens\":1,\"total_tokens\":4}}"
+                        : "{\"error\":\"stub " + code + "\"}";
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(code, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            });
+            server.start();
+        }
+
+        String baseUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+}
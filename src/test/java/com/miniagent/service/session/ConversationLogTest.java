@@ -0,0 +1,139 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 对话日志测试: 追加与回放、清除标记、保留期删除和崩溃后末尾截断
+ */
+class ConversationLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void replaysAppendedTurnsAfterRestart() throws Exception {
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            log.open("s1", "sys", 10, 1000L).join();
+            log.append("s1", turn("q1", "a1")).join();
+            log.append("s2", turn("other", "other")).join();
+            log.append("s1", turn("q2", "a2")).join();
+        }
+
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            SessionSnapshot snapshot = log.replay("s1", 0);
+            assertThat(snapshot.getSystemPrompt()).isEqualTo("sys");
+            assertThat(snapshot.getMaxMessages()).isEqualTo(10);
+            assertThat(snapshot.getCreatedAt()).isEqualTo(1000L);
+            assertThat(contents(snapshot)).containsExactly("q1", "a1", "q2", "a2");
+            assertThat(contents(log.replay("s2", 0))).containsExactly("other", "other");
+            assertThat(log.replay("missing", 0)).isNull();
+        }
+    }
+
+    @Test
+    void replayReadsOnlyRecentTurnsAcrossSegments() throws Exception {
+        try (ConversationLog log = open(256, 0)) {
+            for (int i = 0; i < 10; i++) {
+                log.append("s1", turn("q" + i, "a" + i)).join();
+                log.append("noise", turn("n" + i, "n" + i)).join();
+            }
+            assertThat(segmentFiles()).hasSizeGreaterThan(1);
+
+            // 按整条记录读取, 读够3条即停: 最近两轮
+            assertThat(contents(log.replay("s1", 3))).containsExactly("q8", "a8", "q9", "a9");
+            assertThat(contents(log.replay("s1", 0))).hasSize(20).startsWith("q0", "a0").endsWith("q9", "a9");
+        }
+    }
+
+    @Test
+    void clearHidesEarlierRecords() throws Exception {
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            log.append("s1", turn("old", "old")).join();
+            log.clear("s1").join();
+
+            assertThat(log.contains("s1")).isFalse();
+            assertThat(log.replay("s1", 0)).isNull();
+
+            log.append("s1", turn("new", "new")).join();
+            assertThat(contents(log.replay("s1", 0))).containsExactly("new", "new");
+        }
+
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            assertThat(contents(log.replay("s1", 0))).containsExactly("new", "new");
+        }
+    }
+
+    @Test
+    void expireDeletesSegmentsPastRetention() throws Exception {
+        long retention = 50;
+        try (ConversationLog log = open(256, retention)) {
+            for (int i = 0; i < 5; i++) {
+                log.append("old", turn("q" + i, "a" + i)).join();
+            }
+            Thread.sleep(retention * 2);
+            // 切换到新段, 当前写入段不会被删除
+            log.append("fresh", turn("x".repeat(200), "y")).join();
+            int before = segmentFiles().size();
+
+            log.expire();
+
+            assertThat(segmentFiles()).hasSize(1);
+            assertThat(log.getStats().get("expiredSegments")).isEqualTo((long) before - 1);
+            assertThat(log.contains("old")).isFalse();
+            assertThat(log.replay("old", 0)).isNull();
+            assertThat(contents(log.replay("fresh", 0))).containsExactly("x".repeat(200), "y");
+        }
+    }
+
+    @Test
+    void truncatesTornTailOnRestart() throws Exception {
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            log.append("s1", turn("q1", "a1")).join();
+            log.append("s1", turn("q2", "a2")).join();
+        }
+        Path segment = segmentFiles().get(0);
+        long validSize = Files.size(segment);
+        // 崩溃时只写了一半的记录: 长度字段完整, 内容不完整
+        Files.write(segment, new byte[]{0, 0, 0, 60, 1, 2, 3, 4, 0, 2, 's'}, StandardOpenOption.APPEND);
+
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            assertThat(Files.size(segment)).isEqualTo(validSize);
+            assertThat(contents(log.replay("s1", 0))).containsExactly("q1", "a1", "q2", "a2");
+            log.append("s1", turn("q3", "a3")).join();
+        }
+
+        try (ConversationLog log = open(1024 * 1024, 0)) {
+            assertThat(contents(log.replay("s1", 0))).containsExactly("q1", "a1", "q2", "a2", "q3", "a3");
+        }
+    }
+
+    private ConversationLog open(long segmentBytes, long retentionMillis) throws IOException {
+        return new ConversationLog(dir, segmentBytes, retentionMillis, 0, 0);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("conversation-")).sorted().toList();
+        }
+    }
+
+    private static List<ChatRequest.Message> turn(String question, String answer) {
+        return List.of(new ChatRequest.Message("user", question, null, null),
+                new ChatRequest.Message("assistant", answer, null, null));
+    }
+
+    private static List<String> contents(SessionSnapshot snapshot) {
+        return snapshot.getMessages().stream().map(ChatRequest.Message::getContent).toList();
+    }
+}
@@ -0,0 +1,189 @@
+package com.miniagent.service.session;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * 分段存储测试: 读写、重启恢复、末尾损坏截断、压缩和保留期
+ */
+class SegmentStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void putOverwriteAndDelete() throws IOException {
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            store.put("a", bytes("1"), now());
+            store.put("b", bytes("2"), now());
+            store.put("a", bytes("3"), now());
+            assertThat(store.delete("b")).isTrue();
+            assertThat(store.delete("missing")).isFalse();
+
+            assertThat(text(store.get("a"))).isEqualTo("3");
+            assertThat(store.get("b")).isNull();
+            assertThat(store.contains("b")).isFalse();
+            assertThat(store.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    void reloadRebuildsIndexFromAllSegments() throws IOException {
+        try (SegmentStore store = open(128, 0)) {
+            for (int i = 0; i < 20; i++) {
+                store.put("key-" + (i % 5), bytes("value-" + i), now());
+            }
+            store.delete("key-0");
+            assertThat(segmentFiles()).hasSizeGreaterThan(1);
+        }
+
+        try (SegmentStore store = open(128, 0)) {
+            assertThat(store.size()).isEqualTo(4);
+            assertThat(store.get("key-0")).isNull();
+            for (int i = 1; i < 5; i++) {
+                assertThat(text(store.get("key-" + i))).isEqualTo("value-" + (15 + i));
+            }
+        }
+    }
+
+    @Test
+    void truncatesTornTailOnReload() throws IOException {
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            store.put("a", bytes("first"), now());
+            store.put("b", bytes("second"), now());
+        }
+        Path segment = segmentFiles().get(0);
+        long validSize = Files.size(segment);
+        // 崩溃时只写了一半的记录: 长度字段完整, 内容不完整
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 0, 1}, StandardOpenOption.APPEND);
+
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            assertThat(Files.size(segment)).isEqualTo(validSize);
+            assertThat(text(store.get("a"))).isEqualTo("first");
+            assertThat(text(store.get("b"))).isEqualTo("second");
+            store.put("c", bytes("third"), now());
+        }
+
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            assertThat(text(store.get("c"))).isEqualTo("third");
+            assertThat(store.size()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    void stopsAtCorruptRecordOnReload() throws IOException {
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            store.put("a", bytes("first"), now());
+            store.put("b", bytes("second"), now());
+        }
+        Path segment = segmentFiles().get(0);
+        byte[] data = Files.readAllBytes(segment);
+        data[data.length - 1] ^= 0x55;
+        Files.write(segment, data);
+
+        try (SegmentStore store = open(1024 * 1024, 0)) {
+            assertThat(text(store.get("a"))).isEqualTo("first");
+            assertThat(store.get("b")).isNull();
+            assertThat(store.getStats().get("corruptRecords")).isEqualTo(1L);
+        }
+    }
+
+    @Test
+    void compactionReclaimsOverwrittenSegments() throws IOException {
+        try (SegmentStore store = open(256, 0)) {
+            for (int i = 0; i < 50; i++) {
+                store.put("key-" + (i % 3), bytes("value-" + i), now());
+            }
+            int before = segmentFiles().size();
+
+            store.compact();
+
+            assertThat(segmentFiles().size()).isLessThan(before);
+            assertThat((Long) store.getStats().get("reclaimedBytes")).isPositive();
+            assertThat(text(store.get("key-0"))).isEqualTo("value-48");
+            assertThat(text(store.get("key-1"))).isEqualTo("value-49");
+            assertThat(text(store.get("key-2"))).isEqualTo("value-47");
+        }
+
+        try (SegmentStore store = open(256, 0)) {
+            assertThat(store.size()).isEqualTo(3);
+            assertThat(text(store.get("key-1"))).isEqualTo("value-49");
+        }
+    }
+
+    @Test
+    void compactionKeepsTombstoneWhileOlderSegmentHoldsTheKey() throws IOException {
+        try (SegmentStore store = open(256, 0)) {
+            // 段1: 大部分是存活数据, 不会被压缩
+            store.put("keep", new byte[200], now());
+            store.put("k", bytes("deleted-value"), now());
+            // 段2: 删除标记和随后被覆盖的记录, 会被压缩
+            store.delete("k");
+            store.put("x", new byte[100], now());
+            store.put("x", new byte[100], now());
+
+            store.compact();
+
+            assertThat(store.get("k")).isNull();
+        }
+
+        try (SegmentStore store = open(256, 0)) {
+            assertThat(store.get("k")).as("deleted key must not come back from the older segment").isNull();
+            assertThat(store.get("keep")).hasSize(200);
+            assertThat(store.get("x")).hasSize(100);
+        }
+    }
+
+    @Test
+    void compactionDropsRecordsPastRetention() throws IOException {
+        long retention = 60_000;
+        try (SegmentStore store = open(256, retention)) {
+            store.put("old", bytes("stale"), now() - 2 * retention);
+            // 超出段大小, 切换到新段, 旧段不再是当前写入段
+            store.put("fresh", new byte[250], now());
+
+            store.compact();
+
+            assertThat(store.get("old")).isNull();
+            assertThat(store.get("fresh")).hasSize(250);
+            assertThat(store.getStats().get("expiredRecords")).isEqualTo(1L);
+        }
+
+        try (SegmentStore store = open(256, retention)) {
+            assertThat(store.get("old")).isNull();
+            assertThat(store.size()).isEqualTo(1);
+        }
+    }
+
+    private SegmentStore open(long segmentBytes, long retentionMillis) throws IOException {
+        return new SegmentStore(dir, segmentBytes, retentionMillis, 0);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("segment-")).sorted().toList();
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] value) {
+        return value != null ? new String(value, StandardCharsets.UTF_8) : null;
+    }
+}
@@ -0,0 +1,100 @@
+package com.miniagent.service.session;
+
+import com.miniagent.model.ChatRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * 会话编码测试: 往返、压缩和旧版本兼容
+ */
+class SessionCodecTest {
+
+    @Test
+    void roundTripsAllFields() throws IOException {
+        List<ChatRequest.Message> messages = List.of(
+                new ChatRequest.Message("user", "天气怎么样?", null, null),
+                new ChatRequest.Message("assistant", null,
+                        List.of(new ChatRequest.ToolCall("c1", "weather", "{\"city\":\"北京\"}")), null),
+                new ChatRequest.Message("tool", "晴", null, "c1"),
+                new ChatRequest.Message("assistant", "", new ArrayList<>(), null),
+                new ChatRequest.Message("critic", "custom role", null, null));
+        SessionSnapshot snapshot = new SessionSnapshot("s1", "agent", "You are helpful.", 20, 1000L, 2000L, messages);
+
+        byte[] data = SessionCodec.encode(snapshot);
+
+        assertThat(data[1]).as("small sessions are not deflated").isZero();
+        assertThat(SessionCodec.decode(data)).isEqualTo(snapshot);
+    }
+
+    @Test
+    void roundTripsNullFieldsAndEmptyHistory() throws IOException {
+        SessionSnapshot snapshot = new SessionSnapshot("s2", null, null, 0, 0L, 0L, List.of());
+
+        assertThat(SessionCodec.decode(SessionCodec.encode(snapshot))).isEqualTo(snapshot);
+    }
+
+    @Test
+    void deflatesLargeSessions() throws IOException {
+        List<ChatRequest.Message> messages = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            messages.add(new ChatRequest.Message(i % 2 == 0 ? "user" : "assistant",
+                    "message number " + i + " with some repeated text", null, null));
+        }
+        SessionSnapshot snapshot = new SessionSnapshot("s3", null, "prompt", 100, 1L, 2L, messages);
+
+        byte[] data = SessionCodec.encode(snapshot);
+
+        assertThat(data[1]).isEqualTo((byte) 1);
+        assertThat(SessionCodec.decode(data)).isEqualTo(snapshot);
+    }
+
+    @Test
+    void decodesVersionOneWithoutName() throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        raw.write(1);
+        raw.write(0);
+        DataOutputStream out = new DataOutputStream(raw);
+        SessionCodec.writeString(out, "legacy");
+        SessionCodec.writeString(out, "old prompt");
+        SessionCodec.writeVarint(out, 10);
+        out.writeLong(5L);
+        out.writeLong(6L);
+        SessionCodec.writeMessages(out, List.of(new ChatRequest.Message("user", "hi", null, null)));
+        out.flush();
+
+        SessionSnapshot decoded = SessionCodec.decode(raw.toByteArray());
+
+        assertThat(decoded.getId()).isEqualTo("legacy");
+        assertThat(decoded.getName()).isNull();
+        assertThat(decoded.getSystemPrompt()).isEqualTo("old prompt");
+        assertThat(decoded.getMaxMessages()).isEqualTo(10);
+        assertThat(decoded.getMessages()).containsExactly(new ChatRequest.Message("user", "hi", null, null));
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        assertThatThrownBy(() -> SessionCodec.decode(new byte[]{9, 0}))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Unsupported session format");
+        assertThatThrownBy(() -> SessionCodec.decode(new byte[0])).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsTruncatedPayload() throws IOException {
+        SessionSnapshot snapshot = new SessionSnapshot("s4", "n", "p", 5, 1L, 2L,
+                List.of(new ChatRequest.Message("user", "hello", null, null)));
+        byte[] data = SessionCodec.encode(snapshot);
+        byte[] truncated = Arrays.copyOf(data, data.length - 3);
+
+        assertThatThrownBy(() -> SessionCodec.decode(truncated)).isInstanceOf(IOException.class);
+    }
+}